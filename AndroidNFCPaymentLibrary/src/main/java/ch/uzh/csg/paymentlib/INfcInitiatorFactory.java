@@ -0,0 +1,31 @@
+package ch.uzh.csg.paymentlib;
+
+import ch.uzh.csg.nfclib.NfcInitiator;
+import ch.uzh.csg.nfclib.NfcLibException;
+import ch.uzh.csg.nfclib.events.INfcEventHandler;
+
+/**
+ * The implementation of this interface binds a {@link NfcInitiator} to one of
+ * several NFC readers attached to the device (see
+ * {@link MultiReaderInitializer}).
+ *
+ * @param <K>
+ *            the type identifying a reader (e.g., the reader's name or the
+ *            checkout lane)
+ */
+public interface INfcInitiatorFactory<K> {
+
+	/**
+	 * Returns a new {@link NfcInitiator} for the given reader, which notifies
+	 * the given event handler. The initiator is enabled by the caller.
+	 *
+	 * @param reader
+	 *            the reader
+	 * @param nfcEventHandler
+	 *            the event handler of the payment on this reader
+	 * @throws NfcLibException
+	 *             if the reader cannot be used for any reason
+	 */
+	public NfcInitiator createNfcInitiator(K reader, INfcEventHandler nfcEventHandler) throws NfcLibException;
+
+}
@@ -0,0 +1,31 @@
+package ch.uzh.csg.paymentlib;
+
+import java.security.PublicKey;
+
+import ch.uzh.csg.mbps.customserialization.PKIAlgorithm;
+import ch.uzh.csg.mbps.customserialization.PaymentRequest;
+
+/**
+ * The implementation of this interface provides the public keys of other
+ * users (e.g., from a local key directory), so that the signature of a
+ * received {@link PaymentRequest} can be verified before it is forwarded to
+ * the server (see
+ * {@link PaymentRequestInitializer#enablePipelining(IPublicKeyProvider)}).
+ */
+public interface IPublicKeyProvider {
+	
+	/**
+	 * Returns the public key of the given user, or null if the key is not
+	 * known. If null is returned, the signature is not verified locally but
+	 * only by the server.
+	 * 
+	 * @param username
+	 *            the username of the key's owner
+	 * @param pkiAlgorithm
+	 *            the {@link PKIAlgorithm} of the key
+	 * @param keyNumber
+	 *            the key number, since a user might have several keys
+	 */
+	public PublicKey getPublicKey(String username, PKIAlgorithm pkiAlgorithm, int keyNumber);
+
+}
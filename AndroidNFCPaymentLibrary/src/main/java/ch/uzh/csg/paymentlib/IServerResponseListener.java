@@ -6,7 +6,9 @@ import ch.uzh.csg.mbps.customserialization.ServerPaymentResponse;
 /**
  * The user can send a {@link ServerPaymentResponse} to the implementation of
  * this interface for further processing, after a {@link ServerPaymentRequest}
- * has been send to the server and the response has arrived.
+ * has been send to the server and the response has arrived. A response which
+ * arrives after the payment has been aborted (e.g., because of the server
+ * timeout) is ignored.
  * 
  * @author Jeton Memeti
  * 
@@ -21,5 +23,15 @@ public interface IServerResponseListener {
 	 *            the server's payment response
 	 */
 	public void onServerResponse(ServerPaymentResponse serverPaymentResponse);
+	
+	/**
+	 * Once the {@link ServerPaymentResponse}s of a batch arrive, they have to
+	 * be forwarded to the caller for further processing. The responses must
+	 * be in the same order as the {@link ServerPaymentRequest}s in the batch.
+	 * 
+	 * @param serverPaymentResponses
+	 *            the server's payment responses
+	 */
+	public void onBatchServerResponse(ServerPaymentResponse[] serverPaymentResponses);
 
 }
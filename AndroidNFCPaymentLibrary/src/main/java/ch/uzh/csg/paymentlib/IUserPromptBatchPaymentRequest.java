@@ -0,0 +1,35 @@
+package ch.uzh.csg.paymentlib;
+
+import ch.uzh.csg.mbps.customserialization.Currency;
+
+/**
+ * The user of this interface can prompt the application user to accept or
+ * reject several payments at once, which have been requested by the same
+ * payee within one NFC session (e.g., the line items at a vending terminal).
+ * 
+ * If the {@link IUserPromptPaymentRequest} passed to the
+ * {@link PaymentRequestHandler} does not implement this interface, the
+ * application user is prompted with the total amount, as long as all payments
+ * are in the same {@link Currency}. Otherwise, the batch is refused.
+ */
+public interface IUserPromptBatchPaymentRequest extends IUserPromptPaymentRequest {
+	
+	/**
+	 * Prompts the application user if he wants to accept or reject all the
+	 * payments with the given parameters. The user's answer has to be passed
+	 * to the answer object as soon as the user has decided (e.g., clicked on a
+	 * button). The payments can only be accepted or rejected all together.
+	 * 
+	 * @param username
+	 *            the payee's username
+	 * @param currencies
+	 *            the {@link Currency} of each payment
+	 * @param amounts
+	 *            the amount of each payment in the corresponding currency
+	 * @param answer
+	 *            the {@link IUserPromptAnswer} to pass the user's answer once
+	 *            the user decided if he wants to accept or reject the payments
+	 */
+	public void promptUserBatchPaymentRequest(String username, Currency[] currencies, long[] amounts, IUserPromptAnswer answer);
+	
+}
@@ -0,0 +1,284 @@
+package ch.uzh.csg.paymentlib;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.app.Activity;
+import android.util.Log;
+import ch.uzh.csg.nfclib.NfcLibException;
+import ch.uzh.csg.paymentlib.PaymentRequestInitializer.PaymentType;
+import ch.uzh.csg.paymentlib.container.PaymentInfos;
+import ch.uzh.csg.paymentlib.container.PaymentSessions;
+import ch.uzh.csg.paymentlib.container.ServerInfos;
+import ch.uzh.csg.paymentlib.container.UserInfos;
+import ch.uzh.csg.paymentlib.exceptions.IllegalArgumentException;
+import ch.uzh.csg.paymentlib.persistency.IPersistencyHandler;
+import ch.uzh.csg.paymentlib.signer.IPaymentSigner;
+import ch.uzh.csg.paymentlib.util.Config;
+
+/**
+ * This class runs the payments of several NFC readers attached to the same
+ * device (e.g., one reader per checkout lane) at the same time. Every reader
+ * has its own {@link PaymentRequestInitializer}, so the progress of one
+ * payment does not affect the others, and the events of a reader are fired
+ * to the {@link IPaymentEventHandler} passed when the reader is opened.
+ *
+ * All payments share the user's keys and payment signer, the server's keys,
+ * the persistency handler, the timer of the server timeouts, and a pool of
+ * worker threads with one thread per core for pipelining (see
+ * {@link #enablePipelining(IPublicKeyProvider)}). The payments do not
+ * synchronize with each other, hence the throughput grows with the number of
+ * cores as long as every reader runs on its own thread. The payment signer
+ * and the persistency handler must therefore be thread-safe.
+ *
+ * @param <K>
+ *            the type identifying a reader (e.g., the reader's name or the
+ *            checkout lane)
+ */
+public class MultiReaderInitializer<K> {
+
+	public static final String TAG = "ch.uzh.csg.paymentlib.MultiReaderInitializer";
+
+	private final Activity activity;
+	private final UserInfos userInfos;
+	private final ServerInfos serverInfos;
+	private final IPersistencyHandler persistencyHandler;
+	private final INfcInitiatorFactory<K> nfcInitiatorFactory;
+
+	private final ConcurrentMap<K, PaymentRequestInitializer> initializers = new ConcurrentHashMap<K, PaymentRequestInitializer>();
+	// the readers which are being opened or are open, reserved before the reader is enabled
+	private final Set<K> reserved = Collections.newSetFromMap(new ConcurrentHashMap<K, Boolean>());
+	private final ExecutorService workers;
+
+	private volatile IPaymentSigner paymentSigner;
+	private volatile boolean pipelining = false;
+	private volatile IPublicKeyProvider publicKeyProvider;
+	private volatile PaymentSessions sessions;
+
+	/**
+	 * Instantiates a new Multi Reader Initializer. The readers are opened with
+	 * {@link #open(Object, IPaymentEventHandler, PaymentInfos, PaymentType)}.
+	 *
+	 * @param activity
+	 *            the current application's activity, needed to hook the NFC
+	 * @param userInfos
+	 *            the user information of the user initiating the payment
+	 *            requests
+	 * @param serverInfos
+	 *            the server information
+	 * @param persistencyHandler
+	 *            the object responsible for writing the persisted payment
+	 *            requests to the device's local storage. This is only needed
+	 *            for {@link PaymentType}.SEND_PAYMENT. Otherwise you may pass
+	 *            null.
+	 * @param nfcInitiatorFactory
+	 *            the factory binding the payments to the readers
+	 * @throws IllegalArgumentException
+	 *             if any parameter is not valid (e.g., null)
+	 */
+	public MultiReaderInitializer(Activity activity, UserInfos userInfos, ServerInfos serverInfos, IPersistencyHandler persistencyHandler, INfcInitiatorFactory<K> nfcInitiatorFactory) throws IllegalArgumentException {
+		if (activity == null)
+			throw new IllegalArgumentException("The activity cannot be null.");
+
+		if (userInfos == null)
+			throw new IllegalArgumentException("The user infos cannot be null.");
+
+		if (serverInfos == null)
+			throw new IllegalArgumentException("The server infos cannot be null.");
+
+		if (nfcInitiatorFactory == null)
+			throw new IllegalArgumentException("The NFC initiator factory cannot be null.");
+
+		this.activity = activity;
+		this.userInfos = userInfos;
+		this.serverInfos = serverInfos;
+		this.persistencyHandler = persistencyHandler;
+		this.nfcInitiatorFactory = nfcInitiatorFactory;
+		this.workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "MultiReaderInitializer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Opens a payment on the given reader. The payment starts as soon as
+	 * another device is held to the reader, and can be used like any
+	 * {@link PaymentRequestInitializer} (e.g., to change the payment infos for
+	 * the next customer).
+	 *
+	 * @param reader
+	 *            the reader
+	 * @param paymentEventHandler
+	 *            the event handler, which will be notified on any
+	 *            {@link PaymentEvent} of this reader
+	 * @param paymentInfos
+	 *            the specific payment information
+	 * @param type
+	 *            the {@link PaymentType}
+	 * @return the payment of the reader
+	 * @throws IllegalArgumentException
+	 *             if any parameter is not valid (e.g., null) or a payment is
+	 *             already open on the reader
+	 * @throws NfcLibException
+	 *             if the reader cannot be used for any reason
+	 */
+	public PaymentRequestInitializer open(K reader, IPaymentEventHandler paymentEventHandler, PaymentInfos paymentInfos, PaymentType type) throws IllegalArgumentException, NfcLibException {
+		if (reader == null)
+			throw new IllegalArgumentException("The reader cannot be null.");
+
+		/*
+		 * The reader is reserved before it is enabled, so that a thread
+		 * opening the same reader at the same time fails without touching
+		 * the reader.
+		 */
+		if (!reserved.add(reader))
+			throw new IllegalArgumentException("A payment is already open on reader "+reader+".");
+
+		PaymentRequestInitializer initializer = null;
+		boolean opened = false;
+		try {
+			initializer = new PaymentRequestInitializer(activity, nfcInitiatorFactory, reader, paymentEventHandler, userInfos, paymentInfos, serverInfos, persistencyHandler, type);
+			configure(initializer);
+			initializers.put(reader, initializer);
+			opened = true;
+		} finally {
+			if (!opened) {
+				if (initializer != null)
+					initializer.disable();
+
+				reserved.remove(reader);
+			}
+		}
+
+		if (Config.DEBUG)
+			Log.d(TAG, "Opened reader "+reader);
+
+		return initializer;
+	}
+
+	private void configure(PaymentRequestInitializer initializer) throws IllegalArgumentException {
+		IPaymentSigner signer = paymentSigner;
+		if (signer != null)
+			initializer.setPaymentSigner(signer);
+
+		if (pipelining)
+			initializer.enablePipelining(publicKeyProvider, workers);
+
+		PaymentSessions current = sessions;
+		if (current != null)
+			initializer.enableSessions(current);
+	}
+
+	/**
+	 * Returns the payment of the given reader, or null if no payment is open
+	 * on the reader.
+	 */
+	public PaymentRequestInitializer get(K reader) {
+		return initializers.get(reader);
+	}
+
+	/**
+	 * Returns the readers with an open payment.
+	 */
+	public Set<K> getReaders() {
+		return Collections.unmodifiableSet(initializers.keySet());
+	}
+
+	/**
+	 * Closes the payment of the given reader and disables the reader. Has no
+	 * effect if no payment is open on the reader.
+	 *
+	 * @param reader
+	 *            the reader
+	 */
+	public void close(K reader) {
+		PaymentRequestInitializer initializer = initializers.remove(reader);
+		if (initializer == null)
+			return;
+
+		if (Config.DEBUG)
+			Log.d(TAG, "Closing reader "+reader);
+
+		initializer.disable();
+		// the reader can be opened again once it has been disabled
+		reserved.remove(reader);
+	}
+
+	/**
+	 * Closes the payments of all readers and stops the worker threads. This
+	 * instance cannot be used anymore afterwards.
+	 */
+	public void shutdown() {
+		for (K reader : initializers.keySet()) {
+			close(reader);
+		}
+		workers.shutdown();
+	}
+
+	/**
+	 * Sets the signer of the user's payment requests for all readers (see
+	 * {@link PaymentRequestInitializer#setPaymentSigner(IPaymentSigner)}).
+	 * The signer is shared by all readers and must be thread-safe.
+	 *
+	 * @param paymentSigner
+	 *            the signer
+	 * @throws IllegalArgumentException
+	 *             if the signer is null
+	 */
+	public void setPaymentSigner(IPaymentSigner paymentSigner) throws IllegalArgumentException {
+		if (paymentSigner == null)
+			throw new IllegalArgumentException("The payment signer cannot be null.");
+
+		this.paymentSigner = paymentSigner;
+		for (PaymentRequestInitializer initializer : initializers.values()) {
+			initializer.setPaymentSigner(paymentSigner);
+		}
+	}
+
+	/**
+	 * Enables the pipelined processing for all readers (see
+	 * {@link PaymentRequestInitializer#enablePipelining(IPublicKeyProvider)}).
+	 * Instead of a pool per reader, the worker threads of this instance are
+	 * used.
+	 *
+	 * @param publicKeyProvider
+	 *            the provider of the payers' public keys, or null if the
+	 *            payer's signature should only be verified by the server
+	 */
+	public void enablePipelining(IPublicKeyProvider publicKeyProvider) {
+		this.publicKeyProvider = publicKeyProvider;
+		this.pipelining = true;
+		for (PaymentRequestInitializer initializer : initializers.values()) {
+			initializer.enablePipelining(publicKeyProvider, workers);
+		}
+	}
+
+	/**
+	 * Enables {@link PaymentSessions} for all readers (see
+	 * {@link PaymentRequestInitializer#enableSessions(PaymentSessions)}).
+	 *
+	 * @param sessions
+	 *            the sessions of this device
+	 * @throws IllegalArgumentException
+	 *             if the sessions are null
+	 */
+	public void enableSessions(PaymentSessions sessions) throws IllegalArgumentException {
+		if (sessions == null)
+			throw new IllegalArgumentException("The sessions cannot be null.");
+
+		this.sessions = sessions;
+		for (PaymentRequestInitializer initializer : initializers.values()) {
+			initializer.enableSessions(sessions);
+		}
+	}
+
+}
@@ -10,16 +10,27 @@ import ch.uzh.csg.paymentlib.messages.PaymentMessage;
  * 
  */
 public enum PaymentEvent {
+	/*
+	 * provide the PaymentErrorResult containing the error and an optional
+	 * cause (null if the other device sent an unknown error code)
+	 */
 	ERROR,
 	SUCCESS,
 	/*
 	 * provide the message to forward to the server as well as the caller so it
-	 * can be notified as soon as the server response arrives
+	 * can be notified as soon as the server response arrives (for a batch, the
+	 * message is a PaymentBatch of encoded ServerPaymentRequests)
 	 */
 	FORWARD_TO_SERVER,
 	/*
 	 * This event is propagated whenever a payment is initialized. It is meant
 	 * to be used on the UI to show for example a progress dialog.
 	 */
-	INITIALIZED;
+	INITIALIZED,
+	/*
+	 * provide the encoded SessionPaymentRequest to forward to the server as
+	 * well as the caller, like FORWARD_TO_SERVER. This event is only fired if
+	 * PaymentSessions are enabled.
+	 */
+	FORWARD_SESSION_TO_SERVER;
 }
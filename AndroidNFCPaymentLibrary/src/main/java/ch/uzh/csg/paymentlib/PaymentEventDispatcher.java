@@ -0,0 +1,335 @@
+package ch.uzh.csg.paymentlib;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+import ch.uzh.csg.paymentlib.exceptions.IllegalArgumentException;
+import ch.uzh.csg.paymentlib.util.Config;
+
+/**
+ * This {@link IPaymentEventHandler} passes the {@link PaymentEvent}s to the
+ * app's handler on another thread, so that a slow handler (e.g., updating the
+ * UI or calling the server on PaymentEvent.FORWARD_TO_SERVER) does not delay
+ * the next message of the payment protocol. Pass an instance of this class
+ * instead of the app's handler to the {@link PaymentRequestInitializer} or
+ * {@link PaymentRequestHandler}.
+ *
+ * The events are written into a ring buffer of preallocated slots, so firing
+ * an event does not allocate anything. The events are dispatched in the order
+ * they have been fired, either by the thread of this class (see
+ * {@link #start()}) or by the app's thread calling {@link #drain()}. The
+ * {@link WaitStrategy} defines how the thread of this class waits for new
+ * events, and the {@link OverflowPolicy} what happens if the buffer is full.
+ *
+ * Events are fired by the NFC thread, the timeout thread, and the thread
+ * delivering the server response, hence a slot is claimed with a
+ * compare-and-set. If the app's handler fires an event itself while the
+ * buffer is full (e.g., by passing the server response synchronously), the
+ * event is dispatched immediately instead of waiting for a free slot, which
+ * would never become available.
+ */
+public class PaymentEventDispatcher implements IPaymentEventHandler {
+
+	public static final String TAG = "ch.uzh.csg.paymentlib.PaymentEventDispatcher";
+
+	/**
+	 * Defines how the dispatcher's thread waits for new events. BUSY_SPIN has
+	 * the lowest latency but occupies a core, BLOCKING releases the core
+	 * but has to wake up the thread for every event. YIELDING and SLEEPING
+	 * spin shortly and then yield the core or sleep for a short time.
+	 */
+	public enum WaitStrategy {
+		BUSY_SPIN,
+		YIELDING,
+		SLEEPING,
+		BLOCKING;
+	}
+
+	/**
+	 * Defines what happens if an event is fired while the buffer is full.
+	 * DROP discards the event, BLOCK waits until the app's handler has
+	 * processed an event. Note that BLOCK delays the payment protocol as long
+	 * as the app's handler is slower than the payment.
+	 */
+	public enum OverflowPolicy {
+		DROP,
+		BLOCK;
+	}
+
+	private static final int SPIN_TRIES = 100;
+	private static final long SLEEP_NANOS = 100 * 1000;
+
+	private final IPaymentEventHandler paymentEventHandler;
+	private final WaitStrategy waitStrategy;
+	private final OverflowPolicy overflowPolicy;
+
+	private final Slot[] slots;
+	private final int mask;
+
+	// the sequence of the next event to be fired and dispatched
+	private final AtomicLong claimed = new AtomicLong(0);
+	private volatile long dispatched = 0;
+	private final AtomicLong dropped = new AtomicLong(0);
+
+	private volatile Thread consumer;
+	private volatile boolean running = false;
+	private volatile boolean waiting = false;
+
+	/**
+	 * Instantiates a new dispatcher with a buffer of
+	 * {@link Config#EVENT_BUFFER_SIZE} events, which blocks if the buffer is
+	 * full. Call {@link #start()} to dispatch the events.
+	 *
+	 * @param paymentEventHandler
+	 *            the app's handler
+	 * @throws IllegalArgumentException
+	 *             if the handler is null
+	 */
+	public PaymentEventDispatcher(IPaymentEventHandler paymentEventHandler) throws IllegalArgumentException {
+		this(paymentEventHandler, Config.EVENT_BUFFER_SIZE, WaitStrategy.BLOCKING, OverflowPolicy.BLOCK);
+	}
+
+	/**
+	 * Instantiates a new dispatcher. Call {@link #start()} to dispatch the
+	 * events on the dispatcher's thread, or {@link #drain()} on the app's
+	 * thread.
+	 *
+	 * @param paymentEventHandler
+	 *            the app's handler
+	 * @param bufferSize
+	 *            the number of events waiting for the app's handler, which
+	 *            must be a power of two
+	 * @param waitStrategy
+	 *            the {@link WaitStrategy} of the dispatcher's thread
+	 * @param overflowPolicy
+	 *            the {@link OverflowPolicy} if the buffer is full
+	 * @throws IllegalArgumentException
+	 *             if any parameter is not valid (e.g., null)
+	 */
+	public PaymentEventDispatcher(IPaymentEventHandler paymentEventHandler, int bufferSize, WaitStrategy waitStrategy, OverflowPolicy overflowPolicy) throws IllegalArgumentException {
+		if (paymentEventHandler == null)
+			throw new IllegalArgumentException("The payment event handler cannot be null.");
+
+		if (bufferSize <= 0 || (bufferSize & (bufferSize - 1)) != 0)
+			throw new IllegalArgumentException("The buffer size must be a power of two.");
+
+		if (waitStrategy == null)
+			throw new IllegalArgumentException("The wait strategy cannot be null.");
+
+		if (overflowPolicy == null)
+			throw new IllegalArgumentException("The overflow policy cannot be null.");
+
+		this.paymentEventHandler = paymentEventHandler;
+		this.waitStrategy = waitStrategy;
+		this.overflowPolicy = overflowPolicy;
+		this.slots = new Slot[bufferSize];
+		for (int i = 0; i < bufferSize; i++) {
+			this.slots[i] = new Slot();
+		}
+		this.mask = bufferSize - 1;
+	}
+
+	@Override
+	public void handleMessage(PaymentEvent event, Object object, IServerResponseListener caller) {
+		long sequence = claim();
+		if (sequence < 0) {
+			if (Thread.currentThread() == consumer) {
+				dispatch(event, object, caller);
+			} else {
+				dropped.incrementAndGet();
+
+				if (Config.DEBUG)
+					Log.d(TAG, "Dropped event "+event+", the buffer is full");
+			}
+			return;
+		}
+
+		Slot slot = slots[(int) (sequence & mask)];
+		slot.event = event;
+		slot.object = object;
+		slot.caller = caller;
+		// publishes the event
+		slot.sequence = sequence;
+
+		Thread thread = consumer;
+		if (waiting && thread != null)
+			LockSupport.unpark(thread);
+	}
+
+	/*
+	 * Returns the sequence of the claimed slot, or -1 if the buffer is full
+	 * and the event cannot wait for a free slot.
+	 */
+	private long claim() {
+		int tries = 0;
+		while (true) {
+			long sequence = claimed.get();
+			if (sequence - dispatched >= slots.length) {
+				if (overflowPolicy == OverflowPolicy.DROP || Thread.currentThread() == consumer)
+					return -1;
+
+				backOff(tries++);
+				continue;
+			}
+
+			if (claimed.compareAndSet(sequence, sequence + 1))
+				return sequence;
+		}
+	}
+
+	/**
+	 * Starts the dispatcher's thread, which passes the events to the app's
+	 * handler. Has no effect if the thread is already running.
+	 */
+	public synchronized void start() {
+		if (running)
+			return;
+
+		running = true;
+		consumer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				int tries = 0;
+				while (running) {
+					if (dispatchNext())
+						tries = 0;
+					else
+						idle(tries++);
+				}
+
+				// the events fired before stop() are still dispatched
+				while (dispatchNext());
+			}
+		}, "PaymentEventDispatcher");
+		consumer.setDaemon(true);
+		consumer.start();
+	}
+
+	/**
+	 * Stops the dispatcher's thread after the events fired so far have been
+	 * dispatched. The dispatcher can be started again afterwards.
+	 */
+	public synchronized void stop() {
+		if (!running)
+			return;
+
+		Thread thread = consumer;
+		running = false;
+		LockSupport.unpark(thread);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		consumer = null;
+	}
+
+	/**
+	 * Passes all events fired so far to the app's handler on the calling
+	 * thread. This can be used instead of {@link #start()} if the app
+	 * processes the events on its own thread (e.g., the UI thread). Only one
+	 * thread may call this method at a time.
+	 *
+	 * @return the number of dispatched events
+	 * @throws IllegalStateException
+	 *             if the dispatcher's thread is running
+	 */
+	public int drain() throws IllegalStateException {
+		if (running)
+			throw new IllegalStateException("The events are dispatched by the dispatcher's thread.");
+
+		consumer = Thread.currentThread();
+		try {
+			int count = 0;
+			while (dispatchNext()) {
+				count++;
+			}
+			return count;
+		} finally {
+			consumer = null;
+		}
+	}
+
+	/**
+	 * Returns the number of events which have been dropped, since the buffer
+	 * was full (see {@link OverflowPolicy}).
+	 */
+	public long getDroppedEvents() {
+		return dropped.get();
+	}
+
+	private boolean dispatchNext() {
+		long sequence = dispatched;
+		Slot slot = slots[(int) (sequence & mask)];
+		if (slot.sequence != sequence)
+			return false;
+
+		PaymentEvent event = slot.event;
+		Object object = slot.object;
+		IServerResponseListener caller = slot.caller;
+		slot.event = null;
+		slot.object = null;
+		slot.caller = null;
+		// frees the slot
+		dispatched = sequence + 1;
+
+		dispatch(event, object, caller);
+		return true;
+	}
+
+	private void dispatch(PaymentEvent event, Object object, IServerResponseListener caller) {
+		try {
+			paymentEventHandler.handleMessage(event, object, caller);
+		} catch (RuntimeException e) {
+			Log.e(TAG, "error in payment event handler", e);
+		}
+	}
+
+	private boolean available() {
+		long sequence = dispatched;
+		return slots[(int) (sequence & mask)].sequence == sequence;
+	}
+
+	private void idle(int tries) {
+		switch (waitStrategy) {
+		case BUSY_SPIN:
+			break;
+		case YIELDING:
+			if (tries >= SPIN_TRIES)
+				Thread.yield();
+			break;
+		case SLEEPING:
+			backOff(tries);
+			break;
+		case BLOCKING:
+			waiting = true;
+			// an event published before the flag has been set does not wake us up
+			if (running && !available())
+				LockSupport.park(this);
+			waiting = false;
+			break;
+		}
+	}
+
+	private static void backOff(int tries) {
+		if (tries < SPIN_TRIES)
+			return;
+		else if (tries < 2 * SPIN_TRIES)
+			Thread.yield();
+		else
+			LockSupport.parkNanos(SLEEP_NANOS);
+	}
+
+	/*
+	 * A preallocated slot of the ring buffer. The sequence is written after
+	 * the event, which publishes the event to the dispatching thread.
+	 */
+	private static final class Slot {
+		private volatile long sequence = -1;
+		private PaymentEvent event;
+		private Object object;
+		private IServerResponseListener caller;
+	}
+
+}
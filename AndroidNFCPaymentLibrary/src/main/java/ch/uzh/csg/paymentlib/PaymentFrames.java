@@ -0,0 +1,98 @@
+package ch.uzh.csg.paymentlib;
+
+import ch.uzh.csg.paymentlib.messages.Fragmenter;
+import ch.uzh.csg.paymentlib.messages.PaymentError;
+import ch.uzh.csg.paymentlib.messages.PaymentMessage;
+
+/**
+ * This class contains the serialized {@link PaymentMessage}s which never
+ * change, i.e., the error messages, the ACK, and the request for the next
+ * fragment. They are created once when
+ * this class is loaded and reused for every payment, instead of allocating a
+ * new message on every abort or acknowledgement.
+ * 
+ * The returned arrays are shared and must therefore never be modified. This
+ * class is only used by the state machines of this package, which pass the
+ * arrays to the NFC library without modifying them.
+ */
+final class PaymentFrames {
+	
+	/**
+	 * The payload of the ack message to be returned if the payment finished
+	 * successfully.
+	 */
+	static final byte ACK = (byte) 0xAC;
+	
+	private static final byte[][] ERRORS_PAYER;
+	private static final byte[][] ERRORS_PAYEE;
+	private static final byte[] ACK_PAYER;
+	private static final byte[] ACK_PAYEE;
+	private static final byte[] NEXT_FRAGMENT_PAYER;
+	private static final byte[] NEXT_FRAGMENT_PAYEE;
+	
+	static {
+		PaymentError[] errors = PaymentError.values();
+		ERRORS_PAYER = new byte[errors.length][];
+		ERRORS_PAYEE = new byte[errors.length][];
+		for (PaymentError err : errors) {
+			ERRORS_PAYER[err.ordinal()] = new PaymentMessage().payer().error().payload(new byte[] { err.getCode() }).bytes();
+			ERRORS_PAYEE[err.ordinal()] = new PaymentMessage().payee().error().payload(new byte[] { err.getCode() }).bytes();
+		}
+		ACK_PAYER = new PaymentMessage().payer().payload(new byte[] { ACK }).bytes();
+		ACK_PAYEE = new PaymentMessage().payee().payload(new byte[] { ACK }).bytes();
+		NEXT_FRAGMENT_PAYER = new PaymentMessage().payer().fragment().bytes();
+		NEXT_FRAGMENT_PAYEE = new PaymentMessage().payee().fragment().bytes();
+	}
+	
+	private PaymentFrames() {
+	}
+	
+	/**
+	 * Returns the serialized error message for the given {@link PaymentError}.
+	 * 
+	 * @param err
+	 *            the error to be sent
+	 * @param payer
+	 *            true if the message is sent by the payer, false if it is sent
+	 *            by the payee
+	 */
+	static byte[] error(PaymentError err, boolean payer) {
+		return payer ? ERRORS_PAYER[err.ordinal()] : ERRORS_PAYEE[err.ordinal()];
+	}
+	
+	/**
+	 * Returns the serialized ack message.
+	 * 
+	 * @param payer
+	 *            true if the message is sent by the payer, false if it is sent
+	 *            by the payee
+	 */
+	static byte[] ack(boolean payer) {
+		return payer ? ACK_PAYER : ACK_PAYEE;
+	}
+	
+	/**
+	 * Returns the serialized message which asks for the next fragment of a
+	 * fragmented message (see {@link Fragmenter}). This is a fragment without
+	 * payload, which cannot be confused with a fragment of a message.
+	 * 
+	 * @param payer
+	 *            true if the message is sent by the payer, false if it is sent
+	 *            by the payee
+	 */
+	static byte[] nextFragment(boolean payer) {
+		return payer ? NEXT_FRAGMENT_PAYER : NEXT_FRAGMENT_PAYEE;
+	}
+	
+	/**
+	 * Returns true if the given serialized message asks for the next fragment
+	 * (see {@link #nextFragment(boolean)}).
+	 * 
+	 * @param frame
+	 *            the serialized message
+	 */
+	static boolean isNextFragment(byte[] frame) {
+		return frame.length == PaymentMessage.HEADER_LENGTH && (frame[0] & (PaymentMessage.FRAGMENT | PaymentMessage.ERROR)) == PaymentMessage.FRAGMENT;
+	}
+
+}
@@ -1,19 +1,23 @@
 package ch.uzh.csg.paymentlib;
 
 import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.app.Activity;
 import android.util.Log;
+import ch.uzh.csg.mbps.customserialization.Currency;
 import ch.uzh.csg.mbps.customserialization.DecoderFactory;
 import ch.uzh.csg.mbps.customserialization.InitMessagePayee;
 import ch.uzh.csg.mbps.customserialization.PaymentRequest;
 import ch.uzh.csg.mbps.customserialization.PaymentResponse;
 import ch.uzh.csg.mbps.customserialization.ServerResponseStatus;
+import ch.uzh.csg.mbps.customserialization.SignedSerializableObject;
 import ch.uzh.csg.nfclib.HostApduServiceNfcLib;
 import ch.uzh.csg.nfclib.ISendLater;
 import ch.uzh.csg.nfclib.ITransceiveHandler;
@@ -21,14 +25,27 @@ import ch.uzh.csg.nfclib.NfcResponder;
 import ch.uzh.csg.nfclib.events.INfcEventHandler;
 import ch.uzh.csg.nfclib.events.NfcEvent;
 import ch.uzh.csg.paymentlib.PaymentRequestInitializer.PaymentType;
+import ch.uzh.csg.paymentlib.container.PaymentSession;
+import ch.uzh.csg.paymentlib.container.PaymentSessions;
 import ch.uzh.csg.paymentlib.container.ServerInfos;
 import ch.uzh.csg.paymentlib.container.UserInfos;
 import ch.uzh.csg.paymentlib.exceptions.IllegalArgumentException;
+import ch.uzh.csg.paymentlib.messages.Capabilities;
+import ch.uzh.csg.paymentlib.messages.Fragmenter;
+import ch.uzh.csg.paymentlib.messages.PayloadCompressor;
+import ch.uzh.csg.paymentlib.messages.PaymentBatch;
 import ch.uzh.csg.paymentlib.messages.PaymentError;
+import ch.uzh.csg.paymentlib.messages.PaymentErrorResult;
 import ch.uzh.csg.paymentlib.messages.PaymentMessage;
+import ch.uzh.csg.paymentlib.messages.Reassembler;
+import ch.uzh.csg.paymentlib.messages.SessionToken;
 import ch.uzh.csg.paymentlib.persistency.IPersistencyHandler;
 import ch.uzh.csg.paymentlib.persistency.PersistedPaymentRequest;
+import ch.uzh.csg.paymentlib.signer.IPaymentSigner;
+import ch.uzh.csg.paymentlib.signer.ISignatureListener;
+import ch.uzh.csg.paymentlib.signer.SoftwareSigner;
 import ch.uzh.csg.paymentlib.util.Config;
+import ch.uzh.csg.paymentlib.util.HashedWheelTimer;
 
 /**
  * This class is the counterpart of {@link PaymentRequestInitializer} and
@@ -52,7 +69,7 @@ public class PaymentRequestHandler {
 	/**
 	 * The ack message to be returned if the payment finished successfully.
 	 */
-	public static final byte[] ACK = new byte[] { (byte) 0xAC };
+	public static final byte[] ACK = new byte[] { PaymentFrames.ACK };
 	
 	private volatile IPaymentEventHandler paymentEventHandler;
 	private UserInfos userInfos;
@@ -63,14 +80,25 @@ public class PaymentRequestHandler {
 	
 	private boolean connected = false;
 	
-	private int nofMessages = 0;
-	private volatile boolean aborted = false;
+	private final ProtocolState state = new ProtocolState();
 	
-	private ExecutorService executorService;
-	private ServerTimeoutTask timeoutTask;
+	private Capabilities capabilities = Capabilities.NONE;
+	private volatile boolean negotiate = false;
+	
+	// only used on the NFC thread
+	private final Reassembler reassembler = new Reassembler(Config.MAX_PAYLOAD_LENGTH);
+	
+	private HashedWheelTimer.Timeout timeoutTask;
 	private boolean startTimeoutTask = false;
 	
 	private PersistedPaymentRequest persistedPaymentRequest;
+	private List<PersistedPaymentRequest> persistedBatch;
+	
+	private volatile PaymentSessions sessions;
+	private volatile Capabilities localCapabilities = Capabilities.local();
+	private PaymentSession session;
+	
+	private volatile IPaymentSigner paymentSigner;
 	
 	/**
 	 * Instantiates a new payment request handler, which handles incoming
@@ -103,8 +131,7 @@ public class PaymentRequestHandler {
 		this.userPrompt = userPrompt;
 		this.persistencyHandler = persistencyHandler;
 		this.messageHandler = new MessageHandler();
-		
-		this.executorService = Executors.newSingleThreadExecutor();
+		this.paymentSigner = new SoftwareSigner(userInfos.getPrivateKey());
 		
 		NfcResponder c = new NfcResponder(nfcEventHandler, messageHandler);
 		HostApduServiceNfcLib.init(c);
@@ -130,6 +157,67 @@ public class PaymentRequestHandler {
 			throw new IllegalArgumentException("The persistency handler cannot be null.");
 	}
 	
+	/**
+	 * Enables {@link PaymentSession}s for payments requested by the payee
+	 * ({@link PaymentType}.REQUEST_PAYMENT). After a payment to a payee which
+	 * has enabled sessions as well, follow-up payments to the same payee are
+	 * authenticated with a MAC instead of a signature, as long as they are
+	 * within the session's limits. The user is still prompted to accept every
+	 * payment.
+	 * 
+	 * @param sessions
+	 *            the sessions of this device, which have to be shared by all
+	 *            instances of this class
+	 * @throws IllegalArgumentException
+	 *             if the sessions are null
+	 */
+	public synchronized void enableSessions(PaymentSessions sessions) throws IllegalArgumentException {
+		if (sessions == null)
+			throw new IllegalArgumentException("The sessions cannot be null.");
+		
+		this.sessions = sessions;
+		this.localCapabilities = localCapabilities.with(Capabilities.SESSION);
+	}
+	
+	/**
+	 * Sets the maximum length of a frame which this device can receive. The
+	 * length is announced to the other device during the first message of a
+	 * payment, which then sends larger messages in several fragments. By
+	 * default, {@link Config#MAX_FRAME_LENGTH} is announced. The new length
+	 * applies from the next payment on.
+	 * 
+	 * @param maxFrameLength
+	 *            the maximum length in bytes, or 0 if there is no limit
+	 * @throws IllegalArgumentException
+	 *             if the length is negative, does not leave room for the
+	 *             payload of a fragment, or exceeds 65535 bytes
+	 */
+	public synchronized void setMaxFrameLength(int maxFrameLength) throws IllegalArgumentException {
+		if (maxFrameLength != 0 && (maxFrameLength <= Fragmenter.FIRST_FRAGMENT_OVERHEAD || maxFrameLength > 0xFFFF))
+			throw new IllegalArgumentException("The max frame length must be 0 or between "+(Fragmenter.FIRST_FRAGMENT_OVERHEAD+1)+" and "+0xFFFF+".");
+		
+		this.localCapabilities = localCapabilities.withMaxFrameLength(maxFrameLength);
+	}
+	
+	/**
+	 * Sets the signer of the payment requests, e.g., if the user's private key
+	 * is held in a secure store. The signed payment request is sent as soon as
+	 * the signer notifies its listener, without blocking the NFC thread. By
+	 * default, the private key of the {@link UserInfos} is used.
+	 * 
+	 * @param paymentSigner
+	 *            the signer, which has to sign with the key matching the
+	 *            PKIAlgorithm and key number of the {@link UserInfos}
+	 * @throws IllegalArgumentException
+	 *             if the signer is null
+	 */
+	public void setPaymentSigner(IPaymentSigner paymentSigner) throws IllegalArgumentException {
+		if (paymentSigner == null)
+			throw new IllegalArgumentException("The payment signer cannot be null.");
+		
+		this.paymentSigner = paymentSigner;
+	}
+	
 	private INfcEventHandler nfcEventHandler = new INfcEventHandler() {
 		
 		@Override
@@ -139,11 +227,11 @@ public class PaymentRequestHandler {
 		
 			switch (event) {
 			case INIT_FAILED:
-				paymentEventHandler.handleMessage(PaymentEvent.ERROR, PaymentError.INIT_FAILED, null);
+				paymentEventHandler.handleMessage(PaymentEvent.ERROR, PaymentErrorResult.of(PaymentError.INIT_FAILED), null);
 				reset();
 				break;
 			case FATAL_ERROR:
-				paymentEventHandler.handleMessage(PaymentEvent.ERROR, PaymentError.UNEXPECTED_ERROR, null);
+				paymentEventHandler.handleMessage(PaymentEvent.ERROR, PaymentErrorResult.of(PaymentError.UNEXPECTED_ERROR), null);
 				reset();
 				break;
 			case CONNECTION_LOST:
@@ -151,7 +239,7 @@ public class PaymentRequestHandler {
 				break;
 			case INITIALIZED: //do nothing
 				connected = true;
-				aborted = false;
+				state.begin();
 				
 				if (startTimeoutTask) {
 					startTimeoutTask = false;
@@ -159,7 +247,8 @@ public class PaymentRequestHandler {
 				}
 				
 				paymentEventHandler.handleMessage(PaymentEvent.INITIALIZED, null, null);
-				nofMessages = 0;
+				capabilities = Capabilities.NONE;
+				reassembler.reset();
 				break;
 			case MESSAGE_RECEIVED: //do nothing, handle in IMessageHandler
 				break;
@@ -168,12 +257,14 @@ public class PaymentRequestHandler {
 		
 	};
 	
-	private synchronized void reset() {
+	private void reset() {
 		if (Config.DEBUG)
 			Log.d(TAG, "Resetting states");
 		
-		nofMessages = 0;
+		state.reset();
 		persistedPaymentRequest = null;
+		persistedBatch = null;
+		session = null;
 		startTimeoutTask = false;
 	}
 	
@@ -183,8 +274,7 @@ public class PaymentRequestHandler {
 		if (Config.DEBUG)
 			Log.d(TAG, "Starting new timeout task");
 		
-		timeoutTask = new ServerTimeoutTask();
-		executorService.submit(timeoutTask);
+		timeoutTask = HashedWheelTimer.getShared().schedule(new ServerTimeoutTask(), Config.SERVER_RESPONSE_TIMEOUT);
 	}
 	
 	private void terminateTimeoutTask() {
@@ -192,7 +282,7 @@ public class PaymentRequestHandler {
 			if (Config.DEBUG)
 				Log.d(TAG, "Terminating timeout task");
 			
-			timeoutTask.terminate();
+			timeoutTask.cancel();
 			timeoutTask = null;
 		}
 	}
@@ -205,11 +295,384 @@ public class PaymentRequestHandler {
 			terminateTimeoutTask();
 		}
 		
-		aborted = true;
-		reset();
+		// the event is fired only once, even if the timeout aborts the payment at the same time
+		if (state.abort()) {
+			reset();
+			paymentEventHandler.handleMessage(PaymentEvent.ERROR, PaymentErrorResult.of(err), null);
+		}
+		return PaymentFrames.error(err, false);
+	}
+	
+	/*
+	 * Sends the error from a callback, unless the payment the callback belongs
+	 * to is not the current one anymore.
+	 */
+	private void sendErrorLater(PaymentError err, int generation, ISendLater sendLater) {
+		if (!state.isCurrent(generation)) {
+			if (Config.DEBUG)
+				Log.d(TAG, "Dropping error of a previous payment: "+err);
+			
+			return;
+		}
+		
+		sendLater.sendLater(getError(err));
+	}
+	
+	/*
+	 * Sends the payer's message for the given payment. If sessions are
+	 * enabled, the payment request is authenticated with the session's MAC if
+	 * there is a session which permits the payment, and signed otherwise. The
+	 * message is sent once the payment signer has signed the payment request,
+	 * which might be on another thread.
+	 */
+	private void sendPaymentRequestMessage(InitMessagePayee initMessage, final PersistedPaymentRequest persisted, final ISendLater sendLater) throws Exception {
+		final int generation = state.generation();
+		PaymentRequest pr = new PaymentRequest(userInfos.getPKIAlgorithm(), userInfos.getKeyNumber(), userInfos.getUsername(), initMessage.getUsername(), initMessage.getCurrency(), initMessage.getAmount(), persisted.getTimestamp());
+		
+		// we announce SESSION, so the payment request is prefixed with the kind of authentication
+		PaymentSessions sessions = this.sessions;
+		final boolean prefix = sessions != null && negotiate;
+		if (prefix) {
+			session = sessions.find(userInfos.getUsername(), initMessage.getUsername(), initMessage.getCurrency(), initMessage.getAmount());
+			if (session != null) {
+				if (Config.DEBUG)
+					Log.d(TAG, "Authenticating payment request within session");
+				
+				byte[] token = new SessionToken(session.getKeyId(), persisted.getTimestamp(), session.mac(pr.getPayload())).encode();
+				sendPaymentRequestMessage(getPaymentRequestMessage(new PaymentMessage(), localCapabilities, token), Collections.singletonList(persisted), generation, sendLater);
+				return;
+			}
+		}
+		
+		paymentSigner.sign(pr, new ISignatureListener() {
+			
+			@Override
+			public void onSigned(SignedSerializableObject signedObject) {
+				try {
+					byte[] payload = signedObject.encode();
+					if (prefix) {
+						byte[] encoded = payload;
+						payload = new byte[1 + encoded.length];
+						payload[0] = SessionToken.SIGNATURE;
+						System.arraycopy(encoded, 0, payload, 1, encoded.length);
+					}
+					sendPaymentRequestMessage(getPaymentRequestMessage(new PaymentMessage(), localCapabilities, payload), Collections.singletonList(persisted), generation, sendLater);
+				} catch (Exception e) {
+					Log.wtf(TAG, e);
+					sendErrorLater(PaymentError.UNEXPECTED_ERROR, generation, sendLater);
+				}
+			}
+			
+			@Override
+			public void onSignatureFailed(Exception e) {
+				Log.e(TAG, "The payment request could not be signed.", e);
+				sendErrorLater(PaymentError.UNEXPECTED_ERROR, generation, sendLater);
+			}
+			
+		});
+	}
+	
+	/*
+	 * Persists the payment requests before sending them, so that a payment
+	 * can be resumed if the server response does not arrive. Nothing is sent
+	 * if the payment of the given generation has been aborted or has ended.
+	 */
+	private void sendPaymentRequestMessage(byte[] paymentRequestMessage, List<PersistedPaymentRequest> persisted, int generation, ISendLater sendLater) {
+		if (!state.isCurrent(generation)) {
+			if (Config.DEBUG)
+				Log.d(TAG, "The payment has been aborted while signing");
+			
+			return;
+		}
+		
+		for (PersistedPaymentRequest paymentRequest : persisted) {
+			persistencyHandler.addPersistedPaymentRequest(paymentRequest);
+		}
+		
+		if (connected)
+			startTimeoutTask();
+		else
+			startTimeoutTask = true;
+		
+		if (Config.DEBUG)
+			Log.d(TAG, "Returning signed payment request");
 		
-		paymentEventHandler.handleMessage(PaymentEvent.ERROR, err, null);
-		return new PaymentMessage().error().payload(new byte[] { err.getCode() }).bytes();
+		sendLater.sendLater(paymentRequestMessage);
+	}
+	
+	private byte[] getPaymentRequestMessage(PaymentMessage pm, Capabilities local, byte[] encoded) {
+		if (!negotiate)
+			return pm.payload(encoded).bytes();
+		
+		byte[] payload = new byte[local.encodedLength() + encoded.length];
+		int offset = local.encode(payload, 0);
+		System.arraycopy(encoded, 0, payload, offset, encoded.length);
+		return pm.negotiate().payload(payload).bytes();
+	}
+	
+	private void processServerResponse(PaymentResponse paymentResponse) {
+		switch (paymentResponse.getStatus()) {
+		case FAILURE:
+			if (Config.DEBUG)
+				Log.d(TAG, "The server refused the payment");
+			
+			paymentEventHandler.handleMessage(PaymentEvent.ERROR, PaymentErrorResult.of(PaymentError.SERVER_REFUSED, paymentResponse.getReason()), null);
+			break;
+		case SUCCESS:
+			if (Config.DEBUG)
+				Log.d(TAG, "The payment request was successful");
+			
+			paymentEventHandler.handleMessage(PaymentEvent.SUCCESS, paymentResponse, null);
+			break;
+		case DUPLICATE_REQUEST:
+			if (Config.DEBUG)
+				Log.d(TAG, "This payment request has already been accepted by the server before");
+			
+			paymentEventHandler.handleMessage(PaymentEvent.ERROR, PaymentErrorResult.of(PaymentError.DUPLICATE_REQUEST), null);
+			break;
+		}
+	}
+	
+	/*
+	 * Charges the session of a successful payment, or establishes a new
+	 * session if the payee has confirmed it.
+	 */
+	private void updateSession(PaymentResponse paymentResponse, boolean confirmed) {
+		PaymentSessions sessions = this.sessions;
+		if (sessions == null || paymentResponse.getStatus() != ServerResponseStatus.SUCCESS)
+			return;
+		
+		if (session != null) {
+			session.charge(paymentResponse.getAmount());
+		} else if (confirmed) {
+			try {
+				sessions.add(PaymentSession.establish(paymentResponse, userInfos.getPKIAlgorithm(), userInfos.getKeyNumber(), userInfos.getPrivateKey(), serverInfos.getPublicKey(paymentResponse.getKeyNumber()), true));
+				
+				if (Config.DEBUG)
+					Log.d(TAG, "Established session with "+paymentResponse.getUsernamePayee());
+			} catch (GeneralSecurityException e) {
+				Log.e(TAG, "The session could not be established.", e);
+			}
+		}
+	}
+	
+	private byte[] handleBatchPaymentRequest(PaymentMessage pm, final ISendLater sendLater) {
+		try {
+			if (Config.DEBUG)
+				Log.d(TAG, "About to return signed batch payment request (payer)");
+			
+			List<byte[]> items = PaymentBatch.decode(pm, 0);
+			final InitMessagePayee[] initMessages = new InitMessagePayee[items.size()];
+			for (int i = 0; i < initMessages.length; i++) {
+				initMessages[i] = DecoderFactory.decode(InitMessagePayee.class, items.get(i));
+				if (!initMessages[i].getUsername().equals(initMessages[0].getUsername())) {
+					Log.e(TAG, "All payments of a batch must be requested by the same payee.");
+					return getError(PaymentError.UNEXPECTED_ERROR);
+				}
+			}
+			
+			if (isPersistedBatch(initMessages)) {
+				/*
+				 * this is a payment resume (the user took his device away to
+				 * accept/reject the payment)
+				 */
+				if (Config.DEBUG)
+					Log.d(TAG, "Batch payment resume after reconnection");
+				
+				if (userPrompt.isPaymentAccepted()) {
+					if (Config.DEBUG)
+						Log.d(TAG, "Batch payment request has been accepted");
+					
+					sendBatchPaymentRequestMessage(initMessages, sendLater);
+				} else {
+					if (Config.DEBUG)
+						Log.d(TAG, "Batch payment request has been rejected by the payer");
+					
+					sendLater.sendLater(getError(PaymentError.PAYER_REFUSED));
+				}
+				return null;
+			}
+			
+			/*
+			 * Payments with the same currency and amount cannot be
+			 * distinguished in the local storage. Hence, the payee has to
+			 * combine them.
+			 */
+			List<PersistedPaymentRequest> batch = new ArrayList<PersistedPaymentRequest>(initMessages.length);
+			for (int i = 0; i < initMessages.length; i++) {
+				InitMessagePayee initMessage = initMessages[i];
+				PersistedPaymentRequest persisted = persistencyHandler.getPersistedPaymentRequest(initMessage.getUsername(), initMessage.getCurrency(), initMessage.getAmount());
+				if (persisted == null)
+					persisted = new PersistedPaymentRequest(initMessage.getUsername(), initMessage.getCurrency(), initMessage.getAmount(), System.currentTimeMillis());
+				
+				if (batch.contains(persisted)) {
+					Log.e(TAG, "The batch contains several payments with the same currency and amount.");
+					return getError(PaymentError.UNEXPECTED_ERROR);
+				}
+				batch.add(persisted);
+			}
+			persistedBatch = batch;
+			
+			IUserPromptAnswer answer = new IUserPromptAnswer() {
+				
+				@Override
+				public void acceptPayment() {
+					try {
+						if (Config.DEBUG)
+							Log.d(TAG, "Payer accepted batch payment request");
+						
+						sendBatchPaymentRequestMessage(initMessages, sendLater);
+					} catch (Exception e) {
+						Log.wtf(TAG, e);
+						sendLater.sendLater(getError(PaymentError.UNEXPECTED_ERROR));
+					}
+				}
+				
+				@Override
+				public void rejectPayment() {
+					if (Config.DEBUG)
+						Log.d(TAG, "Payer rejected batch payment request");
+					
+					sendLater.sendLater(getError(PaymentError.PAYER_REFUSED));
+				}
+				
+			};
+			
+			Currency[] currencies = new Currency[initMessages.length];
+			long[] amounts = new long[initMessages.length];
+			long total = 0;
+			boolean summable = true;
+			for (int i = 0; i < initMessages.length; i++) {
+				currencies[i] = initMessages[i].getCurrency();
+				amounts[i] = initMessages[i].getAmount();
+				if (currencies[i].getCode() != currencies[0].getCode() || amounts[i] > Long.MAX_VALUE - total)
+					summable = false;
+				else
+					total += amounts[i];
+			}
+			
+			if (userPrompt instanceof IUserPromptBatchPaymentRequest) {
+				((IUserPromptBatchPaymentRequest) userPrompt).promptUserBatchPaymentRequest(initMessages[0].getUsername(), currencies, amounts, answer);
+			} else if (summable) {
+				userPrompt.promptUserPaymentRequest(initMessages[0].getUsername(), currencies[0], total, answer);
+			} else {
+				Log.e(TAG, "The user prompt cannot display payments in different currencies.");
+				return getError(PaymentError.UNEXPECTED_ERROR);
+			}
+			
+			if (Config.DEBUG)
+				Log.d(TAG, "Returning null / start polling");
+			
+			return null;
+		} catch (Exception e) {
+			Log.wtf(TAG, e);
+			return getError(PaymentError.UNEXPECTED_ERROR);
+		}
+	}
+	
+	private boolean isPersistedBatch(InitMessagePayee[] initMessages) throws Exception {
+		if (persistedBatch == null || persistedBatch.size() != initMessages.length)
+			return false;
+		
+		for (int i = 0; i < initMessages.length; i++) {
+			PersistedPaymentRequest persisted = persistedBatch.get(i);
+			if (!persisted.getUsername().equals(initMessages[i].getUsername())
+					|| persisted.getCurrency().getCode() != initMessages[i].getCurrency().getCode()
+					|| persisted.getAmount() != initMessages[i].getAmount())
+				return false;
+		}
+		return true;
+	}
+	
+	/*
+	 * Sends the payer's message for the given batch once the payment signer
+	 * has signed all payment requests.
+	 */
+	private void sendBatchPaymentRequestMessage(InitMessagePayee[] initMessages, final ISendLater sendLater) throws Exception {
+		final int generation = state.generation();
+		final List<PersistedPaymentRequest> batch = persistedBatch;
+		final byte[][] encoded = new byte[initMessages.length][];
+		final AtomicInteger remaining = new AtomicInteger(initMessages.length);
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		
+		for (int i = 0; i < initMessages.length; i++) {
+			InitMessagePayee initMessage = initMessages[i];
+			PaymentRequest pr = new PaymentRequest(userInfos.getPKIAlgorithm(), userInfos.getKeyNumber(), userInfos.getUsername(), initMessage.getUsername(), initMessage.getCurrency(), initMessage.getAmount(), batch.get(i).getTimestamp());
+			final int index = i;
+			paymentSigner.sign(pr, new ISignatureListener() {
+				
+				@Override
+				public void onSigned(SignedSerializableObject signedObject) {
+					try {
+						encoded[index] = signedObject.encode();
+					} catch (Exception e) {
+						onSignatureFailed(e);
+						return;
+					}
+					
+					if (remaining.decrementAndGet() > 0 || failed.get())
+						return;
+					
+					// sessions are not used for batches, hence we do not announce them
+					sendPaymentRequestMessage(getPaymentRequestMessage(new PaymentMessage().version(1), localCapabilities.without(Capabilities.SESSION), PaymentBatch.encode(Arrays.asList(encoded))), batch, generation, sendLater);
+				}
+				
+				@Override
+				public void onSignatureFailed(Exception e) {
+					if (!failed.compareAndSet(false, true))
+						return;
+					
+					Log.e(TAG, "The batch payment request could not be signed.", e);
+					sendErrorLater(PaymentError.UNEXPECTED_ERROR, generation, sendLater);
+				}
+				
+			});
+		}
+	}
+	
+	private byte[] handleBatchServerResponse(PaymentMessage pm) {
+		if (Config.DEBUG)
+			Log.d(TAG, "Received batch server response");
+		
+		try {
+			byte[] payload = PayloadCompressor.payload(pm, PayloadCompressor.dictionary(persistedBatch.get(0).getUsername()), Config.MAX_PAYLOAD_LENGTH);
+			List<byte[]> items = PaymentBatch.decode(payload);
+			if (items.size() != persistedBatch.size()) {
+				Log.e(TAG, "The server response does not correspond to the batch sent.");
+				return getError(PaymentError.UNEXPECTED_ERROR);
+			}
+			
+			PaymentResponse[] paymentResponses = new PaymentResponse[items.size()];
+			for (int i = 0; i < paymentResponses.length; i++) {
+				paymentResponses[i] = DecoderFactory.decode(PaymentResponse.class, items.get(i));
+			}
+			
+			boolean[] signaturesValid = serverInfos.verify(paymentResponses);
+			for (int i = 0; i < signaturesValid.length; i++) {
+				if (!signaturesValid[i]) {
+					Log.e(TAG, "The signature of server response "+i+" is not valid! This might be a Man-In-The-Middle attack, where someone manipulated the server response.");
+					return getError(PaymentError.NO_SERVER_RESPONSE);
+				}
+			}
+			
+			for (int i = 0; i < paymentResponses.length; i++) {
+				if (paymentResponses[i].getStatus() != ServerResponseStatus.DUPLICATE_REQUEST)
+					persistencyHandler.deletePersistedPaymentRequest(persistedBatch.get(i));
+			}
+			
+			reset();
+			for (PaymentResponse paymentResponse : paymentResponses) {
+				processServerResponse(paymentResponse);
+			}
+			
+			if (Config.DEBUG)
+				Log.d(TAG, "Returning ACK");
+			
+			return PaymentFrames.ack(true);
+		} catch (Exception e) {
+			Log.wtf(TAG, e);
+			return getError(PaymentError.NO_SERVER_RESPONSE);
+		}
 	}
 	
 	/*
@@ -232,44 +695,89 @@ public class PaymentRequestHandler {
 			if (Config.DEBUG)
 				Log.d(TAG, "Received PaymentMessage: "+Arrays.toString(message));
 			
-			if (aborted)
-				return new PaymentMessage().error().payload(new byte[] { PaymentError.UNEXPECTED_ERROR.getCode() }).bytes();
+			/*
+			 * The fragments of a large message are put together before the
+			 * message is processed, hence they are not counted as messages.
+			 */
+			if (message != null && message.length > PaymentMessage.HEADER_LENGTH && PaymentMessage.isFragment(message)) {
+				if (state.isAborted())
+					return PaymentFrames.error(PaymentError.UNEXPECTED_ERROR, false);
+				
+				PaymentMessage fragment = new PaymentMessage().view(message);
+				try {
+					if (!reassembler.append(fragment))
+						return PaymentFrames.nextFragment(fragment.isPayee());
+				} catch (java.lang.IllegalArgumentException e) {
+					Log.e(TAG, "Received a malformed fragment.", e);
+					reassembler.reset();
+					return getError(PaymentError.UNEXPECTED_ERROR);
+				}
+				message = reassembler.message();
+				reassembler.reset();
+			}
+			
+			int nofMessages = state.nextMessage();
+			if (nofMessages < 0)
+				return PaymentFrames.error(PaymentError.UNEXPECTED_ERROR, false);
 			
-			nofMessages++;
-			PaymentMessage pm = new PaymentMessage().bytes(message);
+			/*
+			 * Malformed messages are rejected on the serialized message, i.e.,
+			 * before a PaymentMessage is instantiated. The returned error
+			 * messages are precomputed, so nothing is allocated.
+			 */
+			if (message == null || message.length < PaymentMessage.HEADER_LENGTH)
+				return getError(PaymentError.UNEXPECTED_ERROR);
 			
-			if (pm.version() > PaymentMessage.getSupportedVersion()) {
+			if (PaymentMessage.version(message) > PaymentMessage.getSupportedVersion()) {
 				if (Config.DEBUG)
-					Log.d(TAG, "excepted PaymentMessage version "+PaymentMessage.getSupportedVersion()+" but was "+pm.version());
+					Log.d(TAG, "excepted PaymentMessage version "+PaymentMessage.getSupportedVersion()+" but was "+PaymentMessage.version(message));
 				
 				return getError(PaymentError.INCOMPATIBLE_VERSIONS);
 			}
 			
-			if (pm.isError()) {
-				try {
-					if (Config.DEBUG)
-						Log.d(TAG, "Received PaymentMessage ERROR");
-					
-					PaymentError paymentError = PaymentError.getPaymentError(pm.payload()[0]);
-					return getError(paymentError);
-				} catch (Exception e) {
-					Log.wtf(TAG, e);
-					return getError(PaymentError.UNEXPECTED_ERROR);
+			if (PaymentMessage.isError(message)) {
+				if (Config.DEBUG)
+					Log.d(TAG, "Received PaymentMessage ERROR");
+				
+				PaymentError paymentError = PaymentMessage.error(message);
+				if (paymentError == PaymentError.INVALID_SESSION && session != null) {
+					// the payee does not know the session anymore, the next attempt is signed
+					sessions.remove(session);
 				}
+				return getError(paymentError == null ? PaymentError.UNEXPECTED_ERROR : paymentError);
 			}
 			
+			PaymentMessage pm = new PaymentMessage().view(message);
+			
 			if (pm.isPayer()) {
 				switch (nofMessages) {
 				case 1:
 					if (Config.DEBUG)
 						Log.d(TAG, "Returning username (payee)");
 					
-					byte[] bytes = userInfos.getUsername().getBytes(Charset.forName("UTF-8"));
-					return new PaymentMessage().payee().payload(bytes).bytes();
+					byte[] username = userInfos.getUsername().getBytes(Charset.forName("UTF-8"));
+					if (!pm.isNegotiate())
+						return new PaymentMessage().payee().payload(username).bytes();
+					
+					Capabilities local = localCapabilities.without(Capabilities.SESSION);
+					try {
+						// the payer's capabilities follow the placeholder byte
+						capabilities = local.negotiate(Capabilities.decode(pm, 1));
+					} catch (Exception e) {
+						Log.wtf(TAG, e);
+						return getError(PaymentError.UNEXPECTED_ERROR);
+					}
+					
+					// our capabilities precede the username
+					byte[] reply = new byte[local.encodedLength() + username.length];
+					int offset = local.encode(reply, 0);
+					System.arraycopy(username, 0, reply, offset, username.length);
+					return new PaymentMessage().payee().negotiate().payload(reply).bytes();
 				case 2:
 					try {
-						PaymentResponse paymentResponse = DecoderFactory.decode(PaymentResponse.class, pm.payload());
-						boolean signatureValid = paymentResponse.verify(serverInfos.getPublicKey());
+						byte[] payload = PayloadCompressor.payload(pm, PayloadCompressor.dictionary(userInfos.getUsername()), Config.MAX_PAYLOAD_LENGTH);
+						PaymentResponse paymentResponse = DecoderFactory.decode(PaymentResponse.class, payload);
+						boolean signatureValid = serverInfos.verify(paymentResponse);
 						if (!signatureValid) {
 							Log.e(TAG, "The signature of the server response is not valid! This might be a Man-In-The-Middle attack, where someone manipulated the server response.");
 							return getError(PaymentError.NO_SERVER_RESPONSE);
@@ -278,32 +786,12 @@ public class PaymentRequestHandler {
 								persistencyHandler.deletePersistedPaymentRequest(persistedPaymentRequest);
 							
 							reset();
-							
-							switch (paymentResponse.getStatus()) {
-							case FAILURE:
-								if (Config.DEBUG)
-									Log.d(TAG, "The server refused the payment");
-								
-								paymentEventHandler.handleMessage(PaymentEvent.ERROR, PaymentError.SERVER_REFUSED.setErrorCause(paymentResponse.getReason()), null);
-								break;
-							case SUCCESS:
-								if (Config.DEBUG)
-									Log.d(TAG, "The payment request was successful");
-								
-								paymentEventHandler.handleMessage(PaymentEvent.SUCCESS, paymentResponse, null);
-								break;
-							case DUPLICATE_REQUEST:
-								if (Config.DEBUG)
-									Log.d(TAG, "This payment request has already been accepted by the server before");
-								
-								paymentEventHandler.handleMessage(PaymentEvent.ERROR, PaymentError.DUPLICATE_REQUEST, null);
-								break;
-							}
+							processServerResponse(paymentResponse);
 							
 							if (Config.DEBUG)
 								Log.d(TAG, "Returning ACK");
 							
-							return new PaymentMessage().payload(ACK).bytes();
+							return PaymentFrames.ack(false);
 						}
 					} catch (Exception e) {
 						Log.wtf(TAG, e);
@@ -317,6 +805,17 @@ public class PaymentRequestHandler {
 						if (Config.DEBUG)
 							Log.d(TAG, "About to return signed payment request (payer)");
 						
+						/*
+						 * The payee cannot send its capabilities in the first
+						 * message, since a payer not supporting the negotiation
+						 * could not decode it. Hence, we only return ours.
+						 */
+						negotiate = pm.isNegotiate();
+						
+						// since version 1, the first message may contain a batch
+						if (PaymentBatch.isBatch(pm, 0))
+							return handleBatchPaymentRequest(pm, sendLater);
+						
 						final InitMessagePayee initMessage = DecoderFactory.decode(InitMessagePayee.class, pm.payload());
 						
 						boolean paymentAccepted;
@@ -337,18 +836,7 @@ public class PaymentRequestHandler {
 								if (Config.DEBUG)
 									Log.d(TAG, "Payment request has been accepted");
 								
-								PaymentRequest pr = new PaymentRequest(userInfos.getPKIAlgorithm(), userInfos.getKeyNumber(), userInfos.getUsername(), initMessage.getUsername(), initMessage.getCurrency(), initMessage.getAmount(), persistedPaymentRequest.getTimestamp());
-								pr.sign(userInfos.getPrivateKey());
-								byte[] encoded = pr.encode();
-								
-								persistencyHandler.addPersistedPaymentRequest(persistedPaymentRequest);
-								
-								startTimeoutTask();
-								
-								if (Config.DEBUG)
-									Log.d(TAG, "Returning signed payment request (payer)");
-								
-								sendLater.sendLater(new PaymentMessage().payload(encoded).bytes());
+								sendPaymentRequestMessage(initMessage, persistedPaymentRequest, sendLater);
 							} else {
 								if (Config.DEBUG)
 									Log.d(TAG, "Payment request has been rejected by the payer");
@@ -379,21 +867,7 @@ public class PaymentRequestHandler {
 											Log.d(TAG, "Payer accepted payment request");
 										
 										//response 1st message
-										PaymentRequest pr = new PaymentRequest(userInfos.getPKIAlgorithm(), userInfos.getKeyNumber(), userInfos.getUsername(), initMessage.getUsername(), initMessage.getCurrency(), initMessage.getAmount(), persistedPaymentRequest.getTimestamp());
-										pr.sign(userInfos.getPrivateKey());
-										byte[] encoded = pr.encode();
-										
-										if (connected)
-											startTimeoutTask();
-										else
-											startTimeoutTask = true;
-											
-										persistencyHandler.addPersistedPaymentRequest(persistedPaymentRequest);
-										
-										if (Config.DEBUG)
-											Log.d(TAG, "Returning signed payment request");
-										
-										sendLater.sendLater(new PaymentMessage().payload(encoded).bytes());
+										sendPaymentRequestMessage(initMessage, persistedPaymentRequest, sendLater);
 									} catch (Exception e) {
 										Log.wtf(TAG, e);
 										sendLater.sendLater(getError(PaymentError.UNEXPECTED_ERROR));
@@ -425,9 +899,21 @@ public class PaymentRequestHandler {
 					
 					terminateTimeoutTask();
 					
+					if (persistedBatch != null)
+						return handleBatchServerResponse(pm);
+					
 					try {
-						PaymentResponse paymentResponse = DecoderFactory.decode(PaymentResponse.class, pm.payload());
-						boolean signatureValid = paymentResponse.verify(serverInfos.getPublicKey());
+						// the payee prefixes its capabilities if it has established a session
+						int offset = 0;
+						boolean sessionConfirmed = false;
+						if (pm.isNegotiate()) {
+							sessionConfirmed = Capabilities.decode(pm, 0).supports(Capabilities.SESSION);
+							offset = Capabilities.blockLength(pm, 0);
+						}
+						
+						byte[] payload = PayloadCompressor.payload(pm, offset, PayloadCompressor.dictionary(persistedPaymentRequest.getUsername()), Config.MAX_PAYLOAD_LENGTH);
+						PaymentResponse paymentResponse = DecoderFactory.decode(PaymentResponse.class, payload);
+						boolean signatureValid = serverInfos.verify(paymentResponse);
 						if (!signatureValid) {
 							Log.e(TAG, "The signature of the server response is not valid! This might be a Man-In-The-Middle attack, where someone manipulated the server response.");
 							return getError(PaymentError.NO_SERVER_RESPONSE);
@@ -435,32 +921,14 @@ public class PaymentRequestHandler {
 							if (paymentResponse.getStatus() != ServerResponseStatus.DUPLICATE_REQUEST)
 								persistencyHandler.deletePersistedPaymentRequest(persistedPaymentRequest);
 							
+							updateSession(paymentResponse, sessionConfirmed);
 							reset();
-							switch (paymentResponse.getStatus()) {
-							case FAILURE:
-								if (Config.DEBUG)
-									Log.d(TAG, "The server refused the payment");
-								
-								paymentEventHandler.handleMessage(PaymentEvent.ERROR, PaymentError.SERVER_REFUSED.setErrorCause(paymentResponse.getReason()), null);
-								break;
-							case SUCCESS:
-								if (Config.DEBUG)
-									Log.d(TAG, "The payment request was successful");
-								
-								paymentEventHandler.handleMessage(PaymentEvent.SUCCESS, paymentResponse, null);
-								break;
-							case DUPLICATE_REQUEST:
-								if (Config.DEBUG)
-									Log.d(TAG, "This payment request has already been accepted by the server before.");
-								
-								paymentEventHandler.handleMessage(PaymentEvent.ERROR, PaymentError.DUPLICATE_REQUEST, null);
-								break;
-							}
+							processServerResponse(paymentResponse);
 							
 							if (Config.DEBUG)
 								Log.d(TAG, "Returning ACK");
 							
-							return new PaymentMessage().payload(ACK).bytes();
+							return PaymentFrames.ack(true);
 						}
 					} catch (Exception e) {
 						Log.wtf(TAG, e);
@@ -476,39 +944,35 @@ public class PaymentRequestHandler {
 		}
 	}
 	
+	/*
+	 * Runs on the thread of the shared timer, which only aborts the payment.
+	 * The app is notified on another thread, so that a slow event handler does
+	 * not delay the timeouts of other payments.
+	 */
 	private class ServerTimeoutTask implements Runnable {
-		private final CountDownLatch latch = new CountDownLatch(1);
-		private final long startTime = System.currentTimeMillis();
-		
-		public void terminate() {
-			latch.countDown();
-		}
+		private final int generation = state.generation();
 		
 		public void run() {
-			try {
-				if (latch.await(Config.SERVER_RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS)) {
-					//countdown reached 0, we wanted to terminate this thread
-				} else {
-					//waiting time elapsed
-					if (Config.DEBUG)
-						Log.d(TAG, "Server response timeout (timeout)");
-					
-					reset();
-					aborted = true;
-					paymentEventHandler.handleMessage(PaymentEvent.ERROR, PaymentError.NO_SERVER_RESPONSE, null);
-				}
-			} catch (InterruptedException e) {
-				//the current thread has been interrupted
-				long now = System.currentTimeMillis();
-				if (now - startTime >= Config.SERVER_RESPONSE_TIMEOUT) {
+			//waiting time elapsed without the task being cancelled
+			if (!state.abort(generation)) {
+				if (Config.DEBUG)
+					Log.d(TAG, "Dropping server response timeout of a previous payment");
+				
+				return;
+			}
+			
+			HashedWheelTimer.getCallbackExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
 					if (Config.DEBUG)
-						Log.d(TAG, "Server response timeout (interrupted)");
+						Log.d(TAG, "Server response timeout");
 					
-					reset();
-					aborted = true;
-					paymentEventHandler.handleMessage(PaymentEvent.ERROR, PaymentError.NO_SERVER_RESPONSE, null);
+					// the devices might have been connected again in the meantime, which must not be affected
+					if (state.isStillAborted(generation))
+						reset();
+					paymentEventHandler.handleMessage(PaymentEvent.ERROR, PaymentErrorResult.of(PaymentError.NO_SERVER_RESPONSE), null);
 				}
-			}
+			});
 		}
 	}
 	
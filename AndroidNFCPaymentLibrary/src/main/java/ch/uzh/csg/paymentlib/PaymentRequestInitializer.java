@@ -1,10 +1,19 @@
 package ch.uzh.csg.paymentlib;
 
 import java.nio.charset.Charset;
-import java.util.concurrent.CountDownLatch;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.app.Activity;
 import android.util.Log;
@@ -14,21 +23,35 @@ import ch.uzh.csg.mbps.customserialization.PaymentRequest;
 import ch.uzh.csg.mbps.customserialization.PaymentResponse;
 import ch.uzh.csg.mbps.customserialization.ServerPaymentRequest;
 import ch.uzh.csg.mbps.customserialization.ServerPaymentResponse;
+import ch.uzh.csg.mbps.customserialization.ServerResponseStatus;
+import ch.uzh.csg.mbps.customserialization.SignedSerializableObject;
 import ch.uzh.csg.mbps.customserialization.exceptions.NotSignedException;
 import ch.uzh.csg.nfclib.NfcInitiator;
 import ch.uzh.csg.nfclib.NfcLibException;
 import ch.uzh.csg.nfclib.events.INfcEventHandler;
 import ch.uzh.csg.nfclib.events.NfcEvent;
 import ch.uzh.csg.paymentlib.container.PaymentInfos;
+import ch.uzh.csg.paymentlib.container.PaymentSession;
+import ch.uzh.csg.paymentlib.container.PaymentSessions;
 import ch.uzh.csg.paymentlib.container.ServerInfos;
 import ch.uzh.csg.paymentlib.container.UserInfos;
 import ch.uzh.csg.paymentlib.exceptions.IllegalArgumentException;
-import ch.uzh.csg.paymentlib.exceptions.UnknownPaymentErrorException;
+import ch.uzh.csg.paymentlib.messages.Capabilities;
+import ch.uzh.csg.paymentlib.messages.Fragmenter;
+import ch.uzh.csg.paymentlib.messages.PayloadCompressor;
+import ch.uzh.csg.paymentlib.messages.PaymentBatch;
 import ch.uzh.csg.paymentlib.messages.PaymentError;
+import ch.uzh.csg.paymentlib.messages.PaymentErrorResult;
 import ch.uzh.csg.paymentlib.messages.PaymentMessage;
+import ch.uzh.csg.paymentlib.messages.SessionPaymentRequest;
+import ch.uzh.csg.paymentlib.messages.SessionToken;
 import ch.uzh.csg.paymentlib.persistency.IPersistencyHandler;
 import ch.uzh.csg.paymentlib.persistency.PersistedPaymentRequest;
+import ch.uzh.csg.paymentlib.signer.IPaymentSigner;
+import ch.uzh.csg.paymentlib.signer.ISignatureListener;
+import ch.uzh.csg.paymentlib.signer.SoftwareSigner;
 import ch.uzh.csg.paymentlib.util.Config;
+import ch.uzh.csg.paymentlib.util.HashedWheelTimer;
 
 /**
  * This class is responsible for initializing payment requests. Based on the
@@ -67,18 +90,36 @@ public class PaymentRequestInitializer implements IServerResponseListener {
 	
 	private UserInfos userInfos;
 	private ServerInfos serverInfos;
-	private PaymentInfos paymentInfos;
+	private volatile PaymentInfos paymentInfos;
+	private List<PaymentInfos> batch;
 	private IPersistencyHandler persistencyHandler;
 	
 	private volatile NfcInitiator nfcTransceiver;
-	private int nofMessages = 0;
-	private boolean aborted = false;
+	private final ProtocolState state = new ProtocolState();
+	private Capabilities capabilities = Capabilities.NONE;
+	private volatile Fragmenter fragmenter;
 	private boolean disabled = false;
 	
 	private PersistedPaymentRequest persistedPaymentRequest;
 	
-	private ExecutorService executorService;
-	private ServerTimeoutTask timeoutTask;
+	private volatile HashedWheelTimer.Timeout timeoutTask;
+	// the generation of the payment whose server response is expected
+	private volatile int forwardedGeneration = -1;
+	
+	private ExecutorService signingService;
+	private volatile PresignedPaymentRequest presigned;
+	
+	private volatile IPaymentSigner paymentSigner;
+	
+	private boolean pipelining = false;
+	private ExecutorService pipelineWorkers;
+	private ExecutorService pipelineService;
+	private volatile IPublicKeyProvider publicKeyProvider;
+	
+	private volatile PaymentSessions sessions;
+	private volatile Capabilities localCapabilities = Capabilities.local();
+	private PaymentSession session;
+	private PaymentRequest sessionPaymentRequestPayer;
 	
 	/**
 	 * Instantiates a new Payment Request Initializer in order to conduct a
@@ -129,10 +170,106 @@ public class PaymentRequestInitializer implements IServerResponseListener {
 		this.paymentInfos = paymentInfos;
 		this.persistencyHandler = persistencyHandler;
 		
-		this.executorService = Executors.newSingleThreadExecutor();
+		this.paymentSigner = new SoftwareSigner(userInfos.getPrivateKey());
 		
 		initPayment(nfcTransceiver);
 	}
+	
+	/*
+	 * This constructor is used by the MultiReaderInitializer, which binds
+	 * every instance to the NfcInitiator of another reader.
+	 */
+	<K> PaymentRequestInitializer(Activity activity, INfcInitiatorFactory<K> nfcInitiatorFactory, K reader, IPaymentEventHandler paymentEventHandler, UserInfos userInfos, PaymentInfos paymentInfos, ServerInfos serverInfos, IPersistencyHandler persistencyHandler, PaymentType type) throws IllegalArgumentException, NfcLibException {
+		checkParameters(activity, paymentEventHandler, userInfos, paymentInfos, serverInfos, persistencyHandler, type);
+		
+		this.paymentType = type;
+		this.activity = activity;
+		this.paymentEventHandler = paymentEventHandler;
+		this.userInfos = userInfos;
+		this.serverInfos = serverInfos;
+		this.paymentInfos = paymentInfos;
+		this.persistencyHandler = persistencyHandler;
+		
+		this.paymentSigner = new SoftwareSigner(userInfos.getPrivateKey());
+		
+		NfcInitiator nfcInitiator = nfcInitiatorFactory.createNfcInitiator(reader, getNfcEventHandler());
+		if (nfcInitiator == null)
+			throw new IllegalArgumentException("The NFC initiator factory did not return an initiator for reader "+reader+".");
+		
+		nfcInitiator.enable(activity);
+		initPayment(nfcInitiator);
+	}
+	
+	/**
+	 * Instantiates a new Payment Request Initializer in order to request
+	 * several payments from another device within one NFC session. The payer
+	 * is prompted once and all payments are forwarded to the server at once
+	 * (see {@link IServerResponseListener#onBatchServerResponse(ServerPaymentResponse[])}).
+	 * 
+	 * The other device has to support protocol version 1. Otherwise, the
+	 * payment is aborted with {@link PaymentError}.INCOMPATIBLE_VERSIONS and
+	 * the payments have to be requested one by one.
+	 * 
+	 * @param activity
+	 *            the current application's activity, needed to hook the NFC
+	 * @param paymentEventHandler
+	 *            the event handler, which will be notified on any
+	 *            {@link PaymentEvent}
+	 * @param userInfos
+	 *            the user information of the user initiating the payment
+	 *            request
+	 * @param batch
+	 *            the payment information of each payment. Payments with the
+	 *            same currency and amount have to be combined, since the payer
+	 *            could not distinguish them in its local storage.
+	 * @param serverInfos
+	 *            the server information
+	 * @throws IllegalArgumentException
+	 *             if any parameter is not valid (e.g., null)
+	 * @throws NfcLibException
+	 *             if the underlying NFC feature cannot be used for any reason
+	 */
+	public PaymentRequestInitializer(Activity activity, IPaymentEventHandler paymentEventHandler, UserInfos userInfos, List<PaymentInfos> batch, ServerInfos serverInfos) throws IllegalArgumentException, NfcLibException {
+		this(activity, null, paymentEventHandler, userInfos, batch, serverInfos);
+	}
+	
+	/*
+	 * This constructor is only for test purposes, in order to mock the
+	 * NfcTransceiver. For productive use the public constructor, otherwise the
+	 * NFC will not work.
+	 */
+	protected PaymentRequestInitializer(Activity activity, NfcInitiator nfcTransceiver, IPaymentEventHandler paymentEventHandler, UserInfos userInfos, List<PaymentInfos> batch, ServerInfos serverInfos) throws IllegalArgumentException, NfcLibException {
+		checkBatch(batch);
+		checkParameters(activity, paymentEventHandler, userInfos, batch.get(0), serverInfos, null, PaymentType.REQUEST_PAYMENT);
+		
+		this.paymentType = PaymentType.REQUEST_PAYMENT;
+		this.activity = activity;
+		this.paymentEventHandler = paymentEventHandler;
+		this.userInfos = userInfos;
+		this.serverInfos = serverInfos;
+		this.paymentInfos = batch.get(0);
+		this.batch = new ArrayList<PaymentInfos>(batch);
+		
+		this.paymentSigner = new SoftwareSigner(userInfos.getPrivateKey());
+		
+		initPayment(nfcTransceiver);
+	}
+	
+	private void checkBatch(List<PaymentInfos> batch) throws IllegalArgumentException {
+		if (batch == null || batch.isEmpty() || batch.size() > PaymentBatch.MAX_ITEMS)
+			throw new IllegalArgumentException("The batch must contain between 1 and "+PaymentBatch.MAX_ITEMS+" payment infos.");
+		
+		for (int i = 0; i < batch.size(); i++) {
+			PaymentInfos paymentInfos = batch.get(i);
+			if (paymentInfos == null)
+				throw new IllegalArgumentException("The payment infos cannot be null.");
+			
+			for (int j = 0; j < i; j++) {
+				if (batch.get(j).getCurrency().getCode() == paymentInfos.getCurrency().getCode() && batch.get(j).getAmount() == paymentInfos.getAmount())
+					throw new IllegalArgumentException("Payments with the same currency and amount have to be combined.");
+			}
+		}
+	}
 
 	private void checkParameters(Activity activity, IPaymentEventHandler paymentEventHandler, UserInfos userInfos, PaymentInfos paymentInfos, ServerInfos serverInfos, IPersistencyHandler persistencyHandler, PaymentType type) throws IllegalArgumentException {
 		if (activity == null)
@@ -179,6 +316,11 @@ public class PaymentRequestInitializer implements IServerResponseListener {
 	/**
 	 * Replaces the payment infos provided in the constructor with the new ones.
 	 * 
+	 * A payment request which has been presigned (see
+	 * {@link #presign(String)}) is discarded, since it has been signed with
+	 * the old payment infos, and the payment request is presigned again for
+	 * the same payee.
+	 * 
 	 * @param newPaymentInfos
 	 *            the new payment infos
 	 */
@@ -186,7 +328,15 @@ public class PaymentRequestInitializer implements IServerResponseListener {
 		if (newPaymentInfos == null)
 			throw new java.lang.IllegalArgumentException("The payment infos can't be null.");
 		
-		this.paymentInfos = newPaymentInfos;
+		synchronized (this) {
+			this.paymentInfos = newPaymentInfos;
+			
+			PresignedPaymentRequest current = presigned;
+			if (current != null) {
+				discardPresigned();
+				presignFor(current.request.getUsername());
+			}
+		}
 	}
 	
 	/**
@@ -197,8 +347,13 @@ public class PaymentRequestInitializer implements IServerResponseListener {
 	 * If you call this method and stay in the same activity, then the Android
 	 * Beam jumps in (see
 	 * http://developer.android.com/guide/topics/connectivity/nfc/nfc.html#p2p).
+	 * 
+	 * A presigned payment request is discarded and the threads signing the
+	 * payment requests (see {@link #presign(String)} and
+	 * {@link #enablePipelining(IPublicKeyProvider)}) are stopped. They are
+	 * started again when needed.
 	 */
-	public void disable() {
+	public synchronized void disable() {
 		if (Config.DEBUG)
 			Log.d(TAG, "Disable NFC");
 		
@@ -206,6 +361,16 @@ public class PaymentRequestInitializer implements IServerResponseListener {
 			nfcTransceiver.disable(activity);
 			disabled = true;
 		}
+		
+		discardPresigned();
+		if (signingService != null) {
+			signingService.shutdownNow();
+			signingService = null;
+		}
+		if (pipelineService != null) {
+			pipelineService.shutdownNow();
+			pipelineService = null;
+		}
 	}
 	
 	/**
@@ -227,12 +392,254 @@ public class PaymentRequestInitializer implements IServerResponseListener {
 		nfcTransceiver.disableNfc();
 	}
 	
+	/**
+	 * Sets the signer of this user's payment requests, e.g., a
+	 * PrecomputedSigner. By default, the private key of the {@link UserInfos}
+	 * is used. As in the {@link PaymentRequestHandler}, the NFC thread does not
+	 * wait for the signer: the payment request is forwarded to the server once
+	 * it has been signed, which might be on another thread. The server
+	 * timeout (see {@link Config#SERVER_CALL_TIMEOUT}) includes the time the
+	 * signer takes.
+	 * 
+	 * @param paymentSigner
+	 *            the signer, which has to sign with the key matching the
+	 *            PKIAlgorithm and key number of the {@link UserInfos}
+	 * @throws IllegalArgumentException
+	 *             if the signer is null
+	 */
+	public void setPaymentSigner(IPaymentSigner paymentSigner) throws IllegalArgumentException {
+		if (paymentSigner == null)
+			throw new IllegalArgumentException("The payment signer cannot be null.");
+		
+		this.paymentSigner = paymentSigner;
+	}
+	
+	/**
+	 * Enables the pipelined processing of the payer's payment request(s) for
+	 * {@link PaymentType}.REQUEST_PAYMENT. The payee's payment requests are
+	 * then signed and encoded on a small pool of worker threads (see
+	 * {@link Config#PIPELINE_THREADS}), while the payer's signatures are
+	 * verified on the NFC thread. A payment request with an invalid signature
+	 * is rejected with {@link PaymentError}.INVALID_SIGNATURE before it is
+	 * forwarded to the server. The order of the payment requests and the
+	 * abort semantics are not changed. This has no effect for
+	 * {@link PaymentType}.SEND_PAYMENT.
+	 * 
+	 * @param publicKeyProvider
+	 *            the provider of the payers' public keys, or null if the
+	 *            payer's signature should only be verified by the server
+	 */
+	public void enablePipelining(IPublicKeyProvider publicKeyProvider) {
+		enablePipelining(publicKeyProvider, null);
+	}
+	
+	/*
+	 * Uses the given worker threads instead of creating a pool for this
+	 * instance, if the workers are not null (see MultiReaderInitializer). The
+	 * given workers are not shut down by this instance.
+	 */
+	synchronized void enablePipelining(IPublicKeyProvider publicKeyProvider, ExecutorService workers) {
+		if (paymentType != PaymentType.REQUEST_PAYMENT)
+			return;
+		
+		this.publicKeyProvider = publicKeyProvider;
+		if (workers != null)
+			pipelineWorkers = workers;
+		pipelining = true;
+	}
+	
+	/*
+	 * Returns the worker threads for the pipelined processing or null if
+	 * pipelining is not enabled. The pool of this instance is created on the
+	 * first payment and shut down in disable().
+	 */
+	private synchronized ExecutorService getPipelineService() {
+		if (!pipelining)
+			return null;
+		
+		if (pipelineWorkers != null)
+			return pipelineWorkers;
+		
+		if (pipelineService == null) {
+			pipelineService = Executors.newFixedThreadPool(Config.PIPELINE_THREADS, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "PaymentRequestInitializer-pipeline");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return pipelineService;
+	}
+	
+	/**
+	 * Enables {@link PaymentSession}s for {@link PaymentType}.REQUEST_PAYMENT.
+	 * After a payment with a payer which has enabled sessions as well,
+	 * follow-up payments of the same payer are authenticated with a MAC
+	 * instead of a signature, as long as they are within the session's limits.
+	 * Such a payment is forwarded to the server with
+	 * {@link PaymentEvent}.FORWARD_SESSION_TO_SERVER, hence sessions may only
+	 * be enabled if the server supports them. This has no effect for
+	 * {@link PaymentType}.SEND_PAYMENT.
+	 * 
+	 * @param sessions
+	 *            the sessions of this device, which have to be shared by all
+	 *            instances of this class
+	 * @throws IllegalArgumentException
+	 *             if the sessions are null
+	 */
+	public void enableSessions(PaymentSessions sessions) throws IllegalArgumentException {
+		if (sessions == null)
+			throw new IllegalArgumentException("The sessions cannot be null.");
+		
+		if (paymentType != PaymentType.REQUEST_PAYMENT)
+			return;
+		
+		this.sessions = sessions;
+		this.localCapabilities = Capabilities.local().with(Capabilities.SESSION);
+	}
+	
+	/**
+	 * Starts signing the payment request in the background for the expected
+	 * payee (e.g., the payee of the last payment with this device), so that it
+	 * does not have to be signed while the devices are connected. If the
+	 * payee turns out to be another user, the signature is discarded and the
+	 * payment request is signed as usual. This is only supported for
+	 * {@link PaymentType}.SEND_PAYMENT and has no effect otherwise.
+	 * 
+	 * If a {@link PersistedPaymentRequest} for the expected payee, currency,
+	 * and amount exists (i.e., a previous payment did not receive any server
+	 * response), it is loaded and signed.
+	 * 
+	 * @param usernamePayee
+	 *            the username of the expected payee
+	 * @throws IllegalArgumentException
+	 *             if the username is null or empty
+	 */
+	public void presign(String usernamePayee) throws IllegalArgumentException {
+		if (usernamePayee == null || usernamePayee.isEmpty())
+			throw new IllegalArgumentException("The username cannot be null or empty.");
+		
+		if (paymentType != PaymentType.SEND_PAYMENT)
+			return;
+		
+		presignFor(usernamePayee);
+	}
+	
+	private synchronized void presignFor(String usernamePayee) {
+		PaymentInfos infos = paymentInfos;
+		PersistedPaymentRequest request = persistencyHandler.getPersistedPaymentRequest(usernamePayee, infos.getCurrency(), infos.getAmount());
+		if (request == null) {
+			request = new PersistedPaymentRequest(usernamePayee, infos.getCurrency(), infos.getAmount(), System.currentTimeMillis());
+			// a payment request which has been sent is persisted, so the presigned one has not been sent yet
+			if (presigned != null && presigned.request.equals(request) && presigned.hasInput(infos))
+				return;
+		} else if (presigned != null && presigned.matches(request, infos)) {
+			return;
+		}
+		
+		presign(request, infos);
+	}
+	
+	private synchronized void presign(final PersistedPaymentRequest request, PaymentInfos infos) {
+		if (Config.DEBUG)
+			Log.d(TAG, "Presigning payment request for "+request.getUsername());
+		
+		// the thread is stopped in disable()
+		if (signingService == null) {
+			signingService = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "PaymentRequestInitializer-presign");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		
+		discardPresigned();
+		final PresignedPaymentRequest entry = new PresignedPaymentRequest(request, infos);
+		entry.future = signingService.submit(new Runnable() {
+			@Override
+			public void run() {
+				signPaymentRequestPayer(entry);
+			}
+		});
+		presigned = entry;
+	}
+	
+	private synchronized void discardPresigned() {
+		if (presigned != null) {
+			presigned.cancel();
+			presigned = null;
+		}
+	}
+	
+	/*
+	 * Notifies the listener once the payment request for the given persisted
+	 * payment request has been signed. A presigned payment request is
+	 * committed if it has been signed for the same payment, otherwise it is
+	 * discarded and a new one is signed.
+	 */
+	private void getPaymentRequestPayer(PersistedPaymentRequest request, ISignatureListener listener) {
+		PresignedPaymentRequest current;
+		boolean sign = false;
+		synchronized (this) {
+			PaymentInfos infos = paymentInfos;
+			current = presigned;
+			if (current != null && current.matches(request, infos) && !current.isFailed()) {
+				if (Config.DEBUG)
+					Log.d(TAG, "Committing presigned payment request");
+			} else {
+				discardPresigned();
+				// keep the signed payment request in case the payment is resumed
+				current = new PresignedPaymentRequest(request, infos);
+				presigned = current;
+				sign = true;
+			}
+			// the payment waits for the signature, so it must not be cancelled anymore
+			current.commit();
+		}
+		
+		if (sign)
+			signPaymentRequestPayer(current);
+		
+		current.whenSigned(listener);
+	}
+	
+	private void signPaymentRequestPayer(PresignedPaymentRequest entry) {
+		try {
+			paymentSigner.sign(createPaymentRequestPayer(entry.request, entry.paymentInfos), entry);
+		} catch (Exception e) {
+			entry.onSignatureFailed(e);
+		}
+	}
+	
+	/*
+	 * The payment infos are passed, since this might run on the presigning
+	 * thread while the payment infos are replaced.
+	 */
+	private PaymentRequest createPaymentRequestPayer(PersistedPaymentRequest request, PaymentInfos paymentInfos) throws Exception {
+		PaymentRequest paymentRequestPayer = null;
+		if (paymentInfos.getInputCurrency() == null) {
+			paymentRequestPayer = new PaymentRequest(userInfos.getPKIAlgorithm(), userInfos.getKeyNumber(), userInfos.getUsername(), request.getUsername(), request.getCurrency(), request.getAmount(), request.getTimestamp());
+		} else {
+			paymentRequestPayer = new PaymentRequest(userInfos.getPKIAlgorithm(), userInfos.getKeyNumber(), userInfos.getUsername(), request.getUsername(), request.getCurrency(), request.getAmount(), paymentInfos.getInputCurrency(), paymentInfos.getInputAmount(), request.getTimestamp());
+		}
+		return paymentRequestPayer;
+	}
+	
 	private void reset() {
 		if (Config.DEBUG)
 			Log.d(TAG, "Resetting states");
 		
-		nofMessages = 0;
+		state.reset();
+		capabilities = Capabilities.NONE;
+		fragmenter = null;
 		persistedPaymentRequest = null;
+		session = null;
+		sessionPaymentRequestPayer = null;
 		
 		if (disabled) {
 			nfcTransceiver.enable(activity);
@@ -241,34 +648,51 @@ public class PaymentRequestInitializer implements IServerResponseListener {
 	}
 	
 	private void startTimeoutTask() {
+		startTimeoutTask(state.generation());
+	}
+	
+	/*
+	 * Starts the server timeout for the payment of the given generation, which
+	 * has no effect if that payment has ended in the meantime.
+	 */
+	private void startTimeoutTask(int generation) {
 		terminateTimeoutTask();
 		
 		if (Config.DEBUG)
 			Log.d(TAG, "Starting new timeout task");
 		
-		timeoutTask = new ServerTimeoutTask();
-		executorService.submit(timeoutTask);
+		timeoutTask = HashedWheelTimer.getShared().schedule(new ServerTimeoutTask(generation), Config.SERVER_CALL_TIMEOUT);
 	}
 
-	private void terminateTimeoutTask() {
-		if (timeoutTask != null) {
-			if (Config.DEBUG)
-				Log.d(TAG, "Terminating timeout task");
-			
-			timeoutTask.terminate();
-			timeoutTask = null;
-		}
+	/*
+	 * Cancels the server timeout. Returns false if the timeout has already
+	 * expired, i.e., the payment is being aborted.
+	 */
+	private boolean terminateTimeoutTask() {
+		HashedWheelTimer.Timeout current = timeoutTask;
+		if (current == null)
+			return true;
+		
+		if (Config.DEBUG)
+			Log.d(TAG, "Terminating timeout task");
+		
+		timeoutTask = null;
+		current.cancel();
+		return !current.isExpired();
 	}
 	
-	private synchronized void sendError(PaymentError err) {
-		aborted = true;
+	private void sendError(PaymentError err) {
+		// only the first error of a payment is sent
+		if (!state.abort())
+			return;
 		
 		if (Config.DEBUG)
 			Log.d(TAG, "Sending error: "+err);
 		
-		nfcTransceiver.transceive(new PaymentMessage().error().payload(new byte[] { err.getCode() }).bytes());
-		paymentEventHandler.handleMessage(PaymentEvent.ERROR, err, null);
+		nfcTransceiver.transceive(PaymentFrames.error(err, paymentType == PaymentType.SEND_PAYMENT));
+		// the app might start the next payment as soon as it is notified
 		reset();
+		paymentEventHandler.handleMessage(PaymentEvent.ERROR, PaymentErrorResult.of(err), null);
 	}
 	
 	/*
@@ -292,96 +716,128 @@ public class PaymentRequestInitializer implements IServerResponseListener {
 			
 			switch (event) {
 			case INIT_FAILED:
-				paymentEventHandler.handleMessage(PaymentEvent.ERROR, PaymentError.INIT_FAILED, null);
+				paymentEventHandler.handleMessage(PaymentEvent.ERROR, PaymentErrorResult.of(PaymentError.INIT_FAILED), null);
 				reset();
 				break;
 			case FATAL_ERROR:
-				paymentEventHandler.handleMessage(PaymentEvent.ERROR, PaymentError.UNEXPECTED_ERROR, null);
+				paymentEventHandler.handleMessage(PaymentEvent.ERROR, PaymentErrorResult.of(PaymentError.UNEXPECTED_ERROR), null);
 				reset();
 				break;
 			case CONNECTION_LOST:
 				break;
 			case INITIALIZED:
-				aborted = false;
+				state.begin();
 				
 				paymentEventHandler.handleMessage(PaymentEvent.INITIALIZED, null, null);
-				nofMessages = 0;
+				capabilities = Capabilities.NONE;
 				try {
+					if (batch != null) {
+						if (Config.DEBUG)
+							Log.d(TAG, "Sending init message batch payment request");
+						
+						List<byte[]> items = new ArrayList<byte[]>(batch.size());
+						for (PaymentInfos item : batch) {
+							items.add(new InitMessagePayee(userInfos.getUsername(), item.getCurrency(), item.getAmount()).encode());
+						}
+						
+						// a batch is only understood by payers of version 1
+						nfcTransceiver.transceive(new PaymentMessage().version(1).payee().negotiate().payload(PaymentBatch.encode(items)).bytes());
+						break;
+					}
+					
 					InitMessagePayee initMessage = new InitMessagePayee(userInfos.getUsername(), paymentInfos.getCurrency(), paymentInfos.getAmount());
 					
 					if (Config.DEBUG)
 						Log.d(TAG, "Sending init message payment request");
 					
-					nfcTransceiver.transceive(new PaymentMessage().payee().payload(initMessage.encode()).bytes());
+					/*
+					 * A payer which supports the negotiation prefixes its
+					 * answer with its capabilities, others ignore the flag.
+					 */
+					nfcTransceiver.transceive(new PaymentMessage().payee().negotiate().payload(initMessage.encode()).bytes());
 				} catch (Exception e) {
 					sendError(PaymentError.UNEXPECTED_ERROR);
 				}
 				break;
 			case MESSAGE_RECEIVED:
-				if (aborted) {
+				if (sendNextFragment(object))
+					break;
+				
+				int nofMessages = state.nextMessage();
+				if (nofMessages < 0) {
 					break;
 				}
 				
-				nofMessages++;
-				if (object == null || !(object instanceof byte[])) {
+				if (object == null || !(object instanceof byte[]) || ((byte[]) object).length < PaymentMessage.HEADER_LENGTH) {
 					sendError(PaymentError.UNEXPECTED_ERROR);
 					break;
 				}
-				PaymentMessage response = new PaymentMessage().bytes((byte[]) object);
+				byte[] frame = (byte[]) object;
 				
-				if (response.version() > PaymentMessage.getSupportedVersion()) {
+				// reject malformed messages before instantiating a PaymentMessage
+				if (PaymentMessage.version(frame) > PaymentMessage.getSupportedVersion()) {
 					if (Config.DEBUG)
-						Log.d(TAG, "excepted PaymentMessage version "+PaymentMessage.getSupportedVersion()+" but was "+response.version());
+						Log.d(TAG, "excepted PaymentMessage version "+PaymentMessage.getSupportedVersion()+" but was "+PaymentMessage.version(frame));
 					
 					sendError(PaymentError.INCOMPATIBLE_VERSIONS);
 					break;
 				}
 				
-				if (response.isError()) {
+				if (PaymentMessage.isError(frame)) {
 					if (Config.DEBUG)
 						Log.d(TAG, "Received PaymentMessage ERROR");
 					
-					PaymentError paymentError = null;
-					if (response.payload() != null && response.payload().length > 0) {
-						try {
-							paymentError = PaymentError.getPaymentError(response.payload()[0]);
-						} catch (UnknownPaymentErrorException e) {
-						}
-					}
-					
-					paymentEventHandler.handleMessage(PaymentEvent.ERROR, paymentError, null);
+					PaymentError paymentError = PaymentMessage.error(frame);
+					paymentEventHandler.handleMessage(PaymentEvent.ERROR, paymentError == null ? null : PaymentErrorResult.of(paymentError), null);
 					reset();
 					break;
 				}
 				
+				PaymentMessage response = new PaymentMessage().view(frame);
+				
 				switch (nofMessages) {
 				case 1:
 					try {
 						if (Config.DEBUG)
 							Log.d(TAG, "Received signed payment request from payer");
 						
-						PaymentRequest paymentRequestPayer = DecoderFactory.decode(PaymentRequest.class, response.payload());
+						int offset = 0;
+						Capabilities remote = Capabilities.NONE;
+						if (response.isNegotiate()) {
+							remote = Capabilities.decode(response, 0);
+							capabilities = localCapabilities.negotiate(remote);
+							offset = Capabilities.blockLength(response, 0);
+						}
 						
-						PaymentRequest paymentRequestPayee;
-						if (paymentInfos.getInputCurrency() == null) {
-							paymentRequestPayee = new PaymentRequest(userInfos.getPKIAlgorithm(), userInfos.getKeyNumber(), paymentRequestPayer.getUsernamePayer(), userInfos.getUsername(), paymentInfos.getCurrency(), paymentInfos.getAmount(), paymentRequestPayer.getTimestamp());
-						} else {
-							paymentRequestPayee = new PaymentRequest(userInfos.getPKIAlgorithm(), userInfos.getKeyNumber(), paymentRequestPayer.getUsernamePayer(), userInfos.getUsername(), paymentInfos.getCurrency(), paymentInfos.getAmount(), paymentInfos.getInputCurrency(), paymentInfos.getInputAmount(), paymentRequestPayer.getTimestamp());
+						byte[] payload = PayloadCompressor.payload(response, offset, PayloadCompressor.dictionary(userInfos.getUsername()), Config.MAX_PAYLOAD_LENGTH);
+						if (batch != null) {
+							forwardBatch(PaymentBatch.decode(payload));
+							break;
 						}
 						
+						// a payer announcing sessions prefixes the kind of authentication
+						if (remote.supports(Capabilities.SESSION)) {
+							if (payload.length > 0 && payload[0] == SessionToken.MAC) {
+								forwardSessionPayment(SessionToken.decode(payload, 1));
+								break;
+							} else if (payload.length == 0 || payload[0] != SessionToken.SIGNATURE) {
+								throw new IllegalArgumentException("The kind of authentication is not known.");
+							}
+							payload = Arrays.copyOfRange(payload, 1, payload.length);
+						}
+						
+						PaymentRequest paymentRequestPayer = DecoderFactory.decode(PaymentRequest.class, payload);
+						PaymentRequest paymentRequestPayee = createPaymentRequestPayee(paymentInfos, paymentRequestPayer);
+						
 						if (!paymentRequestPayer.requestsIdentic(paymentRequestPayee)) {
 							Log.e(TAG, "The received payment request does not correspond to the payment request sent. Aborted the payment process.");
 							sendError(PaymentError.REQUESTS_NOT_IDENTIC);
 						} else {
-							paymentRequestPayee.sign(userInfos.getPrivateKey());
-							ServerPaymentRequest spr = new ServerPaymentRequest(paymentRequestPayer, paymentRequestPayee);
-							
-							if (Config.DEBUG)
-								Log.d(TAG, "About to forward the payment request to the server");
+							// both devices establish a session if the payment succeeds
+							if (sessions != null && capabilities.supports(Capabilities.SESSION))
+								sessionPaymentRequestPayer = paymentRequestPayer;
 							
-							startTimeoutTask();
-							paymentEventHandler.handleMessage(PaymentEvent.FORWARD_TO_SERVER, spr.encode(), PaymentRequestInitializer.this);
-							nfcTransceiver.startPolling();
+							forwardServerPaymentRequests(Collections.singletonList(paymentRequestPayer), Collections.singletonList(paymentRequestPayee));
 						}
 					} catch (Exception e) {
 						Log.wtf(TAG, e);
@@ -402,81 +858,87 @@ public class PaymentRequestInitializer implements IServerResponseListener {
 	
 	private INfcEventHandler nfcEventHandlerSend = new INfcEventHandler() {
 		
-		@Override
+		@Override
 		public void handleMessage(NfcEvent event, Object object) {	
 			if (Config.DEBUG)
 				Log.d(TAG, "Received NfcEvent: "+event);
 			
 			switch (event) {
 			case INIT_FAILED:
-				paymentEventHandler.handleMessage(PaymentEvent.ERROR, PaymentError.INIT_FAILED, null);
+				paymentEventHandler.handleMessage(PaymentEvent.ERROR, PaymentErrorResult.of(PaymentError.INIT_FAILED), null);
 				reset();
 				break;
 			case FATAL_ERROR:
-				paymentEventHandler.handleMessage(PaymentEvent.ERROR, PaymentError.UNEXPECTED_ERROR, null);
+				paymentEventHandler.handleMessage(PaymentEvent.ERROR, PaymentErrorResult.of(PaymentError.UNEXPECTED_ERROR), null);
 				reset();
 				break;
 			case CONNECTION_LOST:
 				break;
 			case INITIALIZED:
-				aborted = false;
+				state.begin();
 				
 				paymentEventHandler.handleMessage(PaymentEvent.INITIALIZED, null, null);
-				nofMessages = 0;
 				try {
 					if (Config.DEBUG)
 						Log.d(TAG, "Request the payee's username");
 					
-					//send empty message, we just need the payee's username
-					nfcTransceiver.transceive(new PaymentMessage().payer().payload(new byte[] { 0x00 }).bytes());
+					/*
+					 * We just need the payee's username. Our capabilities
+					 * follow the placeholder byte, a payee which does not
+					 * negotiate ignores them.
+					 */
+					capabilities = Capabilities.NONE;
+					Capabilities local = Capabilities.local();
+					byte[] payload = new byte[1 + local.encodedLength()];
+					local.encode(payload, 1);
+					nfcTransceiver.transceive(new PaymentMessage().payer().negotiate().payload(payload).bytes());
 				} catch (Exception e) {
 					sendError(PaymentError.UNEXPECTED_ERROR);
 				}
 				break;
 			case MESSAGE_RECEIVED:
-				if (aborted)
+				if (sendNextFragment(object))
 					break;
 				
-				nofMessages++;
-				if (object == null || !(object instanceof byte[])) {
+				int nofMessages = state.nextMessage();
+				if (nofMessages < 0)
+					break;
+				
+				if (object == null || !(object instanceof byte[]) || ((byte[]) object).length < PaymentMessage.HEADER_LENGTH) {
 					sendError(PaymentError.UNEXPECTED_ERROR);
 					break;
 				}
-				PaymentMessage response = new PaymentMessage().bytes((byte[]) object);
+				byte[] frame = (byte[]) object;
 				
-				if (response.version() > PaymentMessage.getSupportedVersion()) {
+				// reject malformed messages before instantiating a PaymentMessage
+				if (PaymentMessage.version(frame) > PaymentMessage.getSupportedVersion()) {
 					if (Config.DEBUG)
-						Log.d(TAG, "excepted PaymentMessage version "+PaymentMessage.getSupportedVersion()+" but was "+response.version());
+						Log.d(TAG, "excepted PaymentMessage version "+PaymentMessage.getSupportedVersion()+" but was "+PaymentMessage.version(frame));
 					
 					sendError(PaymentError.INCOMPATIBLE_VERSIONS);
 					break;
 				}
 				
-				if (response.isError()) {
+				if (PaymentMessage.isError(frame)) {
 					if (Config.DEBUG)
 						Log.d(TAG, "Received PaymentMessage ERROR");
 					
-					PaymentError paymentError = null;
-					if (response.payload() != null && response.payload().length > 0) {
-						try {
-							paymentError = PaymentError.getPaymentError(response.payload()[0]);
-						} catch (UnknownPaymentErrorException e) {
-						}
-					}
-					
-					paymentEventHandler.handleMessage(PaymentEvent.ERROR, paymentError, null);
+					PaymentError paymentError = PaymentMessage.error(frame);
+					paymentEventHandler.handleMessage(PaymentEvent.ERROR, paymentError == null ? null : PaymentErrorResult.of(paymentError), null);
 					reset();
 					break;
 				}
 				
+				PaymentMessage response = new PaymentMessage().view(frame);
+				
 				switch (nofMessages) {
 				case 1:
 					if (Config.DEBUG)
 						Log.d(TAG, "Received the payee's username");
 					
-					String usernamePayee = new String(response.payload(), Charset.forName("UTF-8"));
-					
 					try {
+						String usernamePayee = readUsernamePayee(response);
+						
 						if (persistedPaymentRequest == null
 								|| !persistedPaymentRequest.getUsername().equals(usernamePayee)
 								|| persistedPaymentRequest.getCurrency().getCode() != paymentInfos.getCurrency().getCode()
@@ -488,6 +950,12 @@ public class PaymentRequestInitializer implements IServerResponseListener {
 									Log.d(TAG, "Creating new payment request");
 								
 								persistedPaymentRequest = new PersistedPaymentRequest(usernamePayee, paymentInfos.getCurrency(), paymentInfos.getAmount(), System.currentTimeMillis());
+								
+								// use the timestamp of the presigned payment request if it has been signed for this payee
+								PresignedPaymentRequest current = presigned;
+								if (current != null && current.request.equals(persistedPaymentRequest))
+									persistedPaymentRequest = current.request;
+								
 								persistencyHandler.addPersistedPaymentRequest(persistedPaymentRequest);
 							} else {
 								if (Config.DEBUG)
@@ -502,22 +970,43 @@ public class PaymentRequestInitializer implements IServerResponseListener {
 								Log.d(TAG, "Payment resume after reconnection");
 						}
 						
-						PaymentRequest paymentRequestPayer = null;
-						if (paymentInfos.getInputCurrency() == null) {
-							paymentRequestPayer = new PaymentRequest(userInfos.getPKIAlgorithm(), userInfos.getKeyNumber(), userInfos.getUsername(), persistedPaymentRequest.getUsername(), persistedPaymentRequest.getCurrency(), persistedPaymentRequest.getAmount(), persistedPaymentRequest.getTimestamp());
-						} else {
-							paymentRequestPayer = new PaymentRequest(userInfos.getPKIAlgorithm(), userInfos.getKeyNumber(), userInfos.getUsername(), persistedPaymentRequest.getUsername(), persistedPaymentRequest.getCurrency(), persistedPaymentRequest.getAmount(), paymentInfos.getInputCurrency(), paymentInfos.getInputAmount(), persistedPaymentRequest.getTimestamp());
-						}
-						paymentRequestPayer.sign(userInfos.getPrivateKey());
-						
-						ServerPaymentRequest spr = new ServerPaymentRequest(paymentRequestPayer);
-						
-						if (Config.DEBUG)
-							Log.d(TAG, "About to forward the payment request to the server");
-						
-						startTimeoutTask();
-						paymentEventHandler.handleMessage(PaymentEvent.FORWARD_TO_SERVER, spr.encode(), PaymentRequestInitializer.this);
+						// the payment request is forwarded once it has been signed, which might be on another thread
+						final int generation = state.generation();
+						startTimeoutTask(generation);
 						nfcTransceiver.startPolling();
+						getPaymentRequestPayer(persistedPaymentRequest, new ISignatureListener() {
+							
+							@Override
+							public void onSigned(SignedSerializableObject signedObject) {
+								if (!state.isCurrent(generation)) {
+									if (Config.DEBUG)
+										Log.d(TAG, "Dropping the payment request of a previous payment");
+									
+									return;
+								}
+								
+								try {
+									ServerPaymentRequest spr = new ServerPaymentRequest((PaymentRequest) signedObject);
+									
+									if (Config.DEBUG)
+										Log.d(TAG, "About to forward the payment request to the server");
+									
+									byte[] serverPaymentRequest = spr.encode();
+									forwardedGeneration = generation;
+									paymentEventHandler.handleMessage(PaymentEvent.FORWARD_TO_SERVER, serverPaymentRequest, PaymentRequestInitializer.this);
+								} catch (Exception e) {
+									Log.wtf(TAG, e);
+									sendErrorLater(PaymentError.UNEXPECTED_ERROR, generation);
+								}
+							}
+							
+							@Override
+							public void onSignatureFailed(Exception e) {
+								Log.e(TAG, "The payment request could not be signed.", e);
+								sendErrorLater(PaymentError.UNEXPECTED_ERROR, generation);
+							}
+							
+						});
 					} catch (Exception e) {
 						Log.wtf(TAG, e);
 						sendError(PaymentError.UNEXPECTED_ERROR);
@@ -535,12 +1024,268 @@ public class PaymentRequestInitializer implements IServerResponseListener {
 		}
 	};
 	
+	private void forwardBatch(List<byte[]> items) throws Exception {
+		if (Config.DEBUG)
+			Log.d(TAG, "Received signed batch payment request from payer");
+		
+		if (items.size() != batch.size()) {
+			Log.e(TAG, "The received batch does not correspond to the batch sent. Aborted the payment process.");
+			sendError(PaymentError.REQUESTS_NOT_IDENTIC);
+			return;
+		}
+		
+		List<PaymentRequest> paymentRequestsPayer = new ArrayList<PaymentRequest>(items.size());
+		List<PaymentRequest> paymentRequestsPayee = new ArrayList<PaymentRequest>(items.size());
+		for (int i = 0; i < items.size(); i++) {
+			PaymentRequest paymentRequestPayer = DecoderFactory.decode(PaymentRequest.class, items.get(i));
+			PaymentRequest paymentRequestPayee = createPaymentRequestPayee(batch.get(i), paymentRequestPayer);
+			
+			if (!paymentRequestPayer.requestsIdentic(paymentRequestPayee)) {
+				Log.e(TAG, "The received payment request does not correspond to the payment request sent. Aborted the payment process.");
+				sendError(PaymentError.REQUESTS_NOT_IDENTIC);
+				return;
+			}
+			
+			paymentRequestsPayer.add(paymentRequestPayer);
+			paymentRequestsPayee.add(paymentRequestPayee);
+		}
+		
+		forwardServerPaymentRequests(paymentRequestsPayer, paymentRequestsPayee);
+	}
+	
+	/*
+	 * Reconstructs the payer's payment request of a payment within a session
+	 * and forwards both payment requests authenticated with the session's MACs.
+	 */
+	private void forwardSessionPayment(SessionToken token) throws Exception {
+		if (Config.DEBUG)
+			Log.d(TAG, "Received payment request authenticated within session");
+		
+		PaymentSessions sessions = this.sessions;
+		PaymentSession current = sessions == null ? null : sessions.get(token.getKeyId(), 0);
+		if (current == null
+				|| !current.getUsernamePayee().equals(userInfos.getUsername())
+				|| !current.permits(paymentInfos.getCurrency(), paymentInfos.getAmount(), System.currentTimeMillis())) {
+			Log.e(TAG, "The session is not known or does not permit the payment. Aborted the payment process.");
+			sendError(PaymentError.INVALID_SESSION);
+			return;
+		}
+		
+		// the payer's payment request never contains the input currency
+		PaymentRequest paymentRequestPayer = new PaymentRequest(current.getPKIAlgorithmPayer(), current.getKeyNumberPayer(), current.getUsernamePayer(), userInfos.getUsername(), paymentInfos.getCurrency(), paymentInfos.getAmount(), token.getTimestamp());
+		PaymentRequest paymentRequestPayee = createPaymentRequestPayee(paymentInfos, paymentRequestPayer);
+		byte[] payloadPayee = paymentRequestPayee.getPayload();
+		SessionPaymentRequest spr = new SessionPaymentRequest(token.getKeyId(), paymentRequestPayer.getPayload(), token.getMac(), payloadPayee, current.mac(payloadPayee));
+		session = current;
+		
+		if (Config.DEBUG)
+			Log.d(TAG, "About to forward the session payment request to the server");
+		
+		byte[] sessionPaymentRequest = spr.encode();
+		int generation = state.generation();
+		startTimeoutTask(generation);
+		forwardedGeneration = generation;
+		paymentEventHandler.handleMessage(PaymentEvent.FORWARD_SESSION_TO_SERVER, sessionPaymentRequest, PaymentRequestInitializer.this);
+		nfcTransceiver.startPolling();
+	}
+	
+	/*
+	 * Charges the session of a successful payment, or establishes a new
+	 * session with the payer. Returns true if a session has been established,
+	 * which has to be confirmed to the payer.
+	 */
+	private boolean updateSession(PaymentResponse paymentResponsePayer, PaymentResponse toProcess) {
+		PaymentSessions sessions = this.sessions;
+		if (sessions == null || toProcess.getStatus() != ServerResponseStatus.SUCCESS)
+			return false;
+		
+		if (session != null) {
+			session.charge(toProcess.getAmount());
+		} else if (sessionPaymentRequestPayer != null) {
+			try {
+				sessions.add(PaymentSession.establish(paymentResponsePayer, sessionPaymentRequestPayer.getPKIAlgorithm(), sessionPaymentRequestPayer.getKeyNumber(), userInfos.getPrivateKey(), serverInfos.getPublicKey(paymentResponsePayer.getKeyNumber()), false));
+				
+				if (Config.DEBUG)
+					Log.d(TAG, "Established session with "+paymentResponsePayer.getUsernamePayer());
+				
+				return true;
+			} catch (GeneralSecurityException e) {
+				Log.e(TAG, "The session could not be established.", e);
+			}
+		}
+		return false;
+	}
+	
+	private PaymentRequest createPaymentRequestPayee(PaymentInfos item, PaymentRequest paymentRequestPayer) throws Exception {
+		if (item.getInputCurrency() == null) {
+			return new PaymentRequest(userInfos.getPKIAlgorithm(), userInfos.getKeyNumber(), paymentRequestPayer.getUsernamePayer(), userInfos.getUsername(), item.getCurrency(), item.getAmount(), paymentRequestPayer.getTimestamp());
+		} else {
+			return new PaymentRequest(userInfos.getPKIAlgorithm(), userInfos.getKeyNumber(), paymentRequestPayer.getUsernamePayer(), userInfos.getUsername(), item.getCurrency(), item.getAmount(), item.getInputCurrency(), item.getInputAmount(), paymentRequestPayer.getTimestamp());
+		}
+	}
+	
+	/*
+	 * Signs the payee's payment requests and forwards the server payment
+	 * requests in the same order (a batch if this is a batch payment) once
+	 * all of them have been signed, which might be on another thread. If
+	 * pipelining is enabled, the payment requests are signed and encoded on
+	 * the worker threads while the payer's signatures are verified on this
+	 * thread, and the payment is aborted if a payer's signature is not valid.
+	 */
+	private void forwardServerPaymentRequests(List<PaymentRequest> paymentRequestsPayer, List<PaymentRequest> paymentRequestsPayee) throws Exception {
+		final int generation = state.generation();
+		final byte[][] encoded = new byte[paymentRequestsPayer.size()][];
+		// this thread counts as well, so nothing is forwarded before the timeout has been started
+		final AtomicInteger remaining = new AtomicInteger(encoded.length + 1);
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		
+		final Runnable forward = new Runnable() {
+			@Override
+			public void run() {
+				if (remaining.decrementAndGet() > 0 || failed.get())
+					return;
+				
+				if (!state.isCurrent(generation)) {
+					if (Config.DEBUG)
+						Log.d(TAG, "Dropping the payment request of a previous payment");
+					
+					return;
+				}
+				
+				if (Config.DEBUG)
+					Log.d(TAG, "About to forward the payment request to the server");
+				
+				byte[] serverPaymentRequest = batch == null ? encoded[0] : PaymentBatch.encode(Arrays.asList(encoded));
+				forwardedGeneration = generation;
+				paymentEventHandler.handleMessage(PaymentEvent.FORWARD_TO_SERVER, serverPaymentRequest, PaymentRequestInitializer.this);
+			}
+		};
+		
+		ExecutorService pipeline = getPipelineService();
+		List<Future<?>> futures = new ArrayList<Future<?>>(encoded.length);
+		try {
+			for (int i = 0; i < encoded.length; i++) {
+				final int index = i;
+				final PaymentRequest paymentRequestPayer = paymentRequestsPayer.get(i);
+				final PaymentRequest paymentRequestPayee = paymentRequestsPayee.get(i);
+				final ISignatureListener listener = new ISignatureListener() {
+					
+					@Override
+					public void onSigned(SignedSerializableObject signedObject) {
+						try {
+							encoded[index] = new ServerPaymentRequest(paymentRequestPayer, paymentRequestPayee).encode();
+						} catch (Exception e) {
+							onSignatureFailed(e);
+							return;
+						}
+						forward.run();
+					}
+					
+					@Override
+					public void onSignatureFailed(Exception e) {
+						if (!failed.compareAndSet(false, true))
+							return;
+						
+						Log.e(TAG, "The payment request could not be signed.", e);
+						sendErrorLater(PaymentError.UNEXPECTED_ERROR, generation);
+					}
+					
+				};
+				
+				if (pipeline == null) {
+					paymentSigner.sign(paymentRequestPayee, listener);
+				} else {
+					futures.add(pipeline.submit(new Runnable() {
+						@Override
+						public void run() {
+							paymentSigner.sign(paymentRequestPayee, listener);
+						}
+					}));
+				}
+			}
+			
+			if (pipeline != null) {
+				for (PaymentRequest paymentRequestPayer : paymentRequestsPayer) {
+					if (!verifyPaymentRequestPayer(paymentRequestPayer)) {
+						failed.set(true);
+						// has no effect on completed tasks
+						for (Future<?> future : futures) {
+							future.cancel(false);
+						}
+						
+						Log.e(TAG, "The signature of the received payment request is not valid. Aborted the payment process.");
+						sendError(PaymentError.INVALID_SIGNATURE);
+						return;
+					}
+				}
+			}
+		} catch (Exception e) {
+			failed.set(true);
+			throw e;
+		}
+		
+		startTimeoutTask(generation);
+		nfcTransceiver.startPolling();
+		forward.run();
+	}
+	
+	/*
+	 * Returns false if the payer's signature is not valid. If the payer's
+	 * public key is not known, the signature is only verified by the server.
+	 */
+	private boolean verifyPaymentRequestPayer(PaymentRequest paymentRequestPayer) throws Exception {
+		IPublicKeyProvider provider = publicKeyProvider;
+		if (provider == null)
+			return true;
+		
+		PublicKey publicKey = provider.getPublicKey(paymentRequestPayer.getUsernamePayer(), paymentRequestPayer.getPKIAlgorithm(), paymentRequestPayer.getKeyNumber());
+		if (publicKey == null)
+			return true;
+		
+		if (paymentRequestPayer.getSignature() == null)
+			return false;
+		
+		try {
+			return paymentRequestPayer.verify(publicKey);
+		} catch (SignatureException e) {
+			// the signature is malformed
+			return false;
+		}
+	}
+	
+	private String readUsernamePayee(PaymentMessage response) throws IllegalArgumentException {
+		if (!response.isNegotiate())
+			return new String(response.payload(), Charset.forName("UTF-8"));
+		
+		// the payee's capabilities precede the username
+		capabilities = Capabilities.local().negotiate(Capabilities.decode(response, 0));
+		int offset = Capabilities.blockLength(response, 0);
+		if (offset == response.payloadLength())
+			throw new IllegalArgumentException("The payee's username is missing.");
+		
+		byte[] username = new byte[response.payloadLength() - offset];
+		response.copyPayload(offset, username, 0, username.length);
+		return new String(username, Charset.forName("UTF-8"));
+	}
+	
 	@Override
 	public void onServerResponse(ServerPaymentResponse serverPaymentResponse) {
-		terminateTimeoutTask();
+		// the response belongs to the payment which has been forwarded last
+		final int generation = forwardedGeneration;
+		if (!state.isCurrent(generation)) {
+			if (Config.DEBUG)
+				Log.d(TAG, "Dropping the server response of a previous payment");
+			
+			return;
+		}
 		
-		if (aborted)
+		// the timeout and the response race, only one of them ends the payment
+		if (!terminateTimeoutTask()) {
+			if (Config.DEBUG)
+				Log.d(TAG, "Dropping the server response, the timeout has expired");
+			
 			return;
+		}
 		
 		if (Config.DEBUG)
 			Log.d(TAG, "Received the server response");
@@ -570,21 +1315,26 @@ public class PaymentRequestInitializer implements IServerResponseListener {
 			
 		boolean signatureValid = false;
 		try {
-			signatureValid = toProcess.verify(serverInfos.getPublicKey());
+			signatureValid = serverInfos.verify(toProcess);
 			if (!signatureValid) {
 				Log.e(TAG, "The signature of the server response is not valid! This might be a Man-In-The-Middle attack, where someone manipulated the server response.");
-				sendErrorLater(PaymentError.NO_SERVER_RESPONSE);
+				sendErrorLater(PaymentError.NO_SERVER_RESPONSE, generation);
 				return;
 			}
 		} catch (Exception e) {
 			Log.wtf(TAG, e);
-			sendErrorLater(PaymentError.NO_SERVER_RESPONSE);
+			sendErrorLater(PaymentError.NO_SERVER_RESPONSE, generation);
 			return;
 		}
 		
 		if (persistedPaymentRequest != null)
 			persistencyHandler.deletePersistedPaymentRequest(persistedPaymentRequest);
 		
+		// the server has processed the payment request, so it must not be sent again
+		discardPresigned();
+		
+		boolean sessionEstablished = paymentType == PaymentType.REQUEST_PAYMENT && updateSession(toForward, toProcess);
+		
 		try {
 			byte[] encode = toForward.encode();
 			
@@ -592,32 +1342,185 @@ public class PaymentRequestInitializer implements IServerResponseListener {
 				Log.d(TAG, "Forwarding the payment response over NFC");
 			
 			PaymentMessage pm = null;
+			String usernamePayee = null;
 			
 			switch (paymentType) {
 			case REQUEST_PAYMENT:
-				pm = new PaymentMessage().payee().payload(encode);
+				pm = new PaymentMessage().payee();
+				usernamePayee = userInfos.getUsername();
 				break;
 			case SEND_PAYMENT:
-				pm = new PaymentMessage().payer().payload(encode);
+				pm = new PaymentMessage().payer();
+				usernamePayee = toForward.getUsernamePayee();
 				break;
 			}
-			nfcTransceiver.sendLater(pm.bytes());
+			
+			sendLater(getPaymentResponseMessage(pm, encode, usernamePayee, sessionEstablished));
 		} catch (NotSignedException e) {
 			Log.wtf(TAG, e);
-			sendErrorLater(PaymentError.NO_SERVER_RESPONSE);
+			sendErrorLater(PaymentError.NO_SERVER_RESPONSE, generation);
 			return;
 		} catch (Exception e1) {
 			Log.e(TAG, "other exception" ,e1);
-			sendErrorLater(PaymentError.UNEXPECTED_ERROR);
+			sendErrorLater(PaymentError.UNEXPECTED_ERROR, generation);
 			return;
 		}
 		
+		processServerResponse(toProcess);
+	}
+	
+	@Override
+	public void onBatchServerResponse(ServerPaymentResponse[] serverPaymentResponses) {
+		// the response belongs to the payment which has been forwarded last
+		final int generation = forwardedGeneration;
+		if (!state.isCurrent(generation)) {
+			if (Config.DEBUG)
+				Log.d(TAG, "Dropping the batch server response of a previous payment");
+			
+			return;
+		}
+		
+		// the timeout and the response race, only one of them ends the payment
+		if (!terminateTimeoutTask()) {
+			if (Config.DEBUG)
+				Log.d(TAG, "Dropping the batch server response, the timeout has expired");
+			
+			return;
+		}
+		
+		if (Config.DEBUG)
+			Log.d(TAG, "Received the batch server response");
+		
+		if (batch == null || serverPaymentResponses == null || serverPaymentResponses.length != batch.size()) {
+			Log.e(TAG, "The server response does not correspond to the batch sent.");
+			sendErrorLater(PaymentError.UNEXPECTED_ERROR, generation);
+			return;
+		}
+		
+		PaymentResponse[] toProcess = new PaymentResponse[serverPaymentResponses.length];
+		List<byte[]> toForward = new ArrayList<byte[]>(serverPaymentResponses.length);
+		try {
+			for (int i = 0; i < serverPaymentResponses.length; i++) {
+				ServerPaymentResponse serverPaymentResponse = serverPaymentResponses[i];
+				PaymentResponse paymentResponsePayer = serverPaymentResponse.getPaymentResponsePayer();
+				if (serverPaymentResponse.getPaymentResponsePayee() != null) {
+					toProcess[i] = serverPaymentResponse.getPaymentResponsePayee();
+				} else {
+					toProcess[i] = paymentResponsePayer;
+				}
+				
+				toForward.add(paymentResponsePayer.encode());
+			}
+		} catch (Exception e) {
+			Log.wtf(TAG, e);
+			sendErrorLater(PaymentError.NO_SERVER_RESPONSE, generation);
+			return;
+		}
+		
+		boolean[] signaturesValid = serverInfos.verify(toProcess);
+		for (int i = 0; i < signaturesValid.length; i++) {
+			if (!signaturesValid[i]) {
+				Log.e(TAG, "The signature of server response "+i+" is not valid! This might be a Man-In-The-Middle attack, where someone manipulated the server response.");
+				sendErrorLater(PaymentError.NO_SERVER_RESPONSE, generation);
+				return;
+			}
+		}
+		
+		try {
+			if (Config.DEBUG)
+				Log.d(TAG, "Forwarding the batch payment response over NFC");
+			
+			PaymentMessage pm = new PaymentMessage().version(1).payee();
+			sendLater(getPaymentResponseMessage(pm, PaymentBatch.encode(toForward), userInfos.getUsername(), false));
+		} catch (Exception e) {
+			Log.e(TAG, "other exception", e);
+			sendErrorLater(PaymentError.UNEXPECTED_ERROR, generation);
+			return;
+		}
+		
+		for (PaymentResponse paymentResponse : toProcess) {
+			processServerResponse(paymentResponse);
+		}
+	}
+	
+	private byte[] getPaymentResponseMessage(PaymentMessage pm, byte[] payload, String usernamePayee, boolean sessionEstablished) {
+		byte[] compressed = null;
+		if (capabilities.supports(Capabilities.COMPRESSION))
+			compressed = PayloadCompressor.compress(payload, PayloadCompressor.dictionary(usernamePayee));
+		
+		if (compressed != null) {
+			pm.compressed();
+			payload = compressed;
+		}
+		
+		if (!sessionEstablished)
+			return pm.payload(payload).bytes();
+		
+		// the payer establishes the session only if we confirm it with our capabilities (never compressed)
+		Capabilities local = localCapabilities;
+		byte[] prefixed = new byte[local.encodedLength() + payload.length];
+		int offset = local.encode(prefixed, 0);
+		System.arraycopy(payload, 0, prefixed, offset, payload.length);
+		return pm.negotiate().payload(prefixed).bytes();
+	}
+	
+	/*
+	 * Sends the given message once the other device polls. If the message
+	 * exceeds the maximum frame length the other device has announced, only
+	 * the first fragment is sent and the other device asks for the next ones
+	 * (see sendNextFragment).
+	 */
+	private void sendLater(byte[] message) {
+		Capabilities current = capabilities;
+		int maxFrameLength = current.supports(Capabilities.FRAGMENTATION) ? current.getMaxFrameLength() : 0;
+		if (!Fragmenter.needsFragmentation(message.length - PaymentMessage.HEADER_LENGTH, maxFrameLength)) {
+			nfcTransceiver.sendLater(message);
+			return;
+		}
+		
+		Fragmenter next = new Fragmenter(message, maxFrameLength);
+		if (Config.DEBUG)
+			Log.d(TAG, "Sending the message in "+next.getNofFragments()+" fragments");
+		
+		fragmenter = next;
+		nfcTransceiver.sendLater(next.next());
+	}
+	
+	/*
+	 * Sends the next fragment if the other device asks for it. Returns false
+	 * if the given message is not such a request, i.e., has to be processed
+	 * as usual. The fragments are not counted as messages, since the other
+	 * device only processes the message once all fragments have arrived.
+	 */
+	private boolean sendNextFragment(Object object) {
+		if (!(object instanceof byte[]) || ((byte[]) object).length < PaymentMessage.HEADER_LENGTH || !PaymentFrames.isNextFragment((byte[]) object))
+			return false;
+		
+		if (state.isAborted())
+			return true;
+		
+		Fragmenter current = fragmenter;
+		if (current == null || !current.hasNext()) {
+			Log.e(TAG, "The other device asks for a fragment which does not exist.");
+			sendError(PaymentError.UNEXPECTED_ERROR);
+			return true;
+		}
+		
+		byte[] next = current.next();
+		if (!current.hasNext())
+			fragmenter = null;
+		
+		nfcTransceiver.transceive(next);
+		return true;
+	}
+	
+	private void processServerResponse(PaymentResponse toProcess) {
 		switch (toProcess.getStatus()) {
 		case FAILURE:
 			if (Config.DEBUG)
 				Log.d(TAG, "The server refused the payment");
 			
-			paymentEventHandler.handleMessage(PaymentEvent.ERROR, PaymentError.SERVER_REFUSED.setErrorCause(toProcess.getReason()), null);
+			paymentEventHandler.handleMessage(PaymentEvent.ERROR, PaymentErrorResult.of(PaymentError.SERVER_REFUSED, toProcess.getReason()), null);
 			break;
 		case SUCCESS:
 			if (Config.DEBUG)
@@ -629,56 +1532,186 @@ public class PaymentRequestInitializer implements IServerResponseListener {
 			if (Config.DEBUG)
 				Log.d(TAG, "This payment request has already been accepted by the server before");
 			
-			paymentEventHandler.handleMessage(PaymentEvent.ERROR, PaymentError.DUPLICATE_REQUEST, null);
+			paymentEventHandler.handleMessage(PaymentEvent.ERROR, PaymentErrorResult.of(PaymentError.DUPLICATE_REQUEST), null);
 			break;
 		}
 	}
 	
-	private void sendErrorLater(PaymentError err) {
-		aborted = true;
+	/*
+	 * Sends the error, unless the payment of the given generation has already
+	 * been aborted or has ended.
+	 */
+	private void sendErrorLater(PaymentError err, int generation) {
+		if (!state.abort(generation)) {
+			if (Config.DEBUG)
+				Log.d(TAG, "Dropping error of a previous payment: "+err);
+			
+			return;
+		}
 		
+		sendAbortedError(err);
+	}
+	
+	/*
+	 * Sends the error of a payment which has already been aborted.
+	 */
+	private void sendAbortedError(PaymentError err) {
 		if (Config.DEBUG)
 			Log.d(TAG, "Sending error: "+err);
 		
 		try {
-			nfcTransceiver.sendLater(new PaymentMessage().error().payload(new byte[] { err.getCode() }).bytes());
+			nfcTransceiver.sendLater(PaymentFrames.error(err, paymentType == PaymentType.SEND_PAYMENT));
 		} catch (Exception e) {
 			Log.e(TAG, "error in send error later", e);
 		}
-		paymentEventHandler.handleMessage(PaymentEvent.ERROR, err, null);
+		// the app might start the next payment as soon as it is notified
 		reset();
+		paymentEventHandler.handleMessage(PaymentEvent.ERROR, PaymentErrorResult.of(err), null);
 	}
 	
+	/*
+	 * Runs on the thread of the shared timer, which only aborts the payment.
+	 * The error is sent and the app is notified on another thread, so that a
+	 * slow event handler does not delay the timeouts of other payments.
+	 */
 	private class ServerTimeoutTask implements Runnable {
-		private final CountDownLatch latch = new CountDownLatch(1);
-		private final long startTime = System.currentTimeMillis();
+		private final int generation;
 		
-		public void terminate() {
-			latch.countDown();
+		private ServerTimeoutTask(int generation) {
+			this.generation = generation;
 		}
 		
 		public void run() {
-			try {
-				if (latch.await(Config.SERVER_CALL_TIMEOUT, TimeUnit.MILLISECONDS)) {
-					//countdown reached 0, we wanted to terminate this thread
-				} else {
-					//waiting time elapsed
+			//waiting time elapsed without the task being cancelled
+			if (!state.abort(generation)) {
+				if (Config.DEBUG)
+					Log.d(TAG, "Dropping server call timeout of a previous payment");
+				
+				return;
+			}
+			
+			HashedWheelTimer.getCallbackExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
 					if (Config.DEBUG)
-						Log.d(TAG, "Server response timeout (timeout)");
+						Log.d(TAG, "Server response timeout");
 					
-					sendErrorLater(PaymentError.NO_SERVER_RESPONSE);
+					if (state.isStillAborted(generation)) {
+						sendAbortedError(PaymentError.NO_SERVER_RESPONSE);
+					} else {
+						// the devices have been connected again in the meantime, which must not be affected
+						paymentEventHandler.handleMessage(PaymentEvent.ERROR, PaymentErrorResult.of(PaymentError.NO_SERVER_RESPONSE), null);
+					}
 				}
-			} catch (InterruptedException e) {
-				//the current thread has been interrupted
-				long now = System.currentTimeMillis();
-				if (now - startTime >= Config.SERVER_CALL_TIMEOUT) {
-					if (Config.DEBUG)
-						Log.d(TAG, "Server response timeout (interrupted)");
-					
-					sendErrorLater(PaymentError.NO_SERVER_RESPONSE);
+			});
+		}
+	}
+
+	/*
+	 * A payment request which is signed in the background, before the
+	 * payee's username has been received, or which has been signed for a
+	 * payment which might be resumed. The payment is notified once the payment
+	 * signer has signed the payment request.
+	 */
+	private static class PresignedPaymentRequest implements ISignatureListener {
+		private final PersistedPaymentRequest request;
+		private final PaymentInfos paymentInfos;
+		private Future<?> future;
+		private boolean committed = false;
+		private SignedSerializableObject signed;
+		private Exception failure;
+		private ISignatureListener listener;
+		
+		private PresignedPaymentRequest(PersistedPaymentRequest request, PaymentInfos paymentInfos) {
+			this.request = request;
+			this.paymentInfos = paymentInfos;
+		}
+		
+		/*
+		 * PersistedPaymentRequest.equals does not consider the timestamp,
+		 * which is part of the signed payment request.
+		 */
+		private boolean matches(PersistedPaymentRequest other, PaymentInfos infos) {
+			return request.equals(other) && request.getTimestamp() == other.getTimestamp() && hasInput(infos);
+		}
+		
+		/*
+		 * The input currency and amount are signed as well, but are not part
+		 * of the persisted payment request.
+		 */
+		private boolean hasInput(PaymentInfos infos) {
+			if (paymentInfos.getInputCurrency() == null || infos.getInputCurrency() == null)
+				return paymentInfos.getInputCurrency() == infos.getInputCurrency();
+			
+			return paymentInfos.getInputCurrency().getCode() == infos.getInputCurrency().getCode() && paymentInfos.getInputAmount() == infos.getInputAmount();
+		}
+		
+		@Override
+		public void onSigned(SignedSerializableObject signedObject) {
+			ISignatureListener waiting;
+			synchronized (this) {
+				if (signed != null || failure != null)
+					return;
+				
+				signed = signedObject;
+				waiting = listener;
+				listener = null;
+			}
+			if (waiting != null)
+				waiting.onSigned(signedObject);
+		}
+		
+		@Override
+		public void onSignatureFailed(Exception e) {
+			ISignatureListener waiting;
+			synchronized (this) {
+				if (signed != null || failure != null)
+					return;
+				
+				failure = e;
+				waiting = listener;
+				listener = null;
+			}
+			if (waiting != null)
+				waiting.onSignatureFailed(e);
+		}
+		
+		/*
+		 * Notifies the listener once the payment request has been signed, or
+		 * immediately if this has already happened.
+		 */
+		private void whenSigned(ISignatureListener listener) {
+			SignedSerializableObject signedObject;
+			Exception e;
+			synchronized (this) {
+				if (signed == null && failure == null) {
+					this.listener = listener;
+					return;
 				}
+				signedObject = signed;
+				e = failure;
 			}
+			if (signedObject != null)
+				listener.onSigned(signedObject);
+			else
+				listener.onSignatureFailed(e);
+		}
+		
+		private synchronized boolean isFailed() {
+			return failure != null;
+		}
+		
+		private synchronized void commit() {
+			committed = true;
+		}
+		
+		/*
+		 * Stops signing, unless a payment waits for the signature.
+		 */
+		private synchronized void cancel() {
+			if (!committed && future != null)
+				future.cancel(true);
 		}
 	}
-
+	
 }
@@ -0,0 +1,160 @@
+package ch.uzh.csg.paymentlib;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import android.util.Log;
+import ch.uzh.csg.mbps.customserialization.Currency;
+import ch.uzh.csg.mbps.customserialization.DecoderFactory;
+import ch.uzh.csg.mbps.customserialization.InitMessagePayee;
+import ch.uzh.csg.mbps.customserialization.PaymentRequest;
+import ch.uzh.csg.mbps.customserialization.PaymentResponse;
+import ch.uzh.csg.mbps.customserialization.ServerPaymentRequest;
+import ch.uzh.csg.mbps.customserialization.ServerPaymentResponse;
+import ch.uzh.csg.mbps.customserialization.ServerResponseStatus;
+import ch.uzh.csg.paymentlib.container.ServerInfos;
+import ch.uzh.csg.paymentlib.container.UserInfos;
+import ch.uzh.csg.paymentlib.exceptions.IllegalArgumentException;
+import ch.uzh.csg.paymentlib.messages.Capabilities;
+import ch.uzh.csg.paymentlib.messages.PayloadCompressor;
+import ch.uzh.csg.paymentlib.messages.PaymentError;
+import ch.uzh.csg.paymentlib.messages.PaymentMessage;
+import ch.uzh.csg.paymentlib.util.Config;
+
+/**
+ * This class warms up the library before the first payment. Otherwise, the
+ * first payment after the app has been started loads the security providers
+ * and the classes of the serialization library, initializes the lookup
+ * tables (e.g., of {@link PaymentError}), and runs in the interpreter, all
+ * within the time the NFC devices wait for each other.
+ * 
+ * The warm-up runs through the messages of a payment (see
+ * {@link PaymentRequestInitializer} and {@link PaymentRequestHandler}) with a
+ * dummy payment from and to the given user: the payment requests are signed,
+ * encoded, compressed, and decoded again, and a payment response is verified
+ * with the server's public key. Since the response is not signed by the
+ * server, this verification fails, which is expected. No message is sent and
+ * nothing is persisted.
+ * 
+ * The signature engines are cached per thread (see {@link ServerInfos}), so
+ * the threads of a payment still initialize their own engine. The providers
+ * and the code are loaded and compiled nevertheless.
+ */
+public final class PaymentWarmUp {
+	
+	public static final String TAG = "ch.uzh.csg.paymentlib.PaymentWarmUp";
+	
+	private static final Currency CURRENCY = Currency.BTC;
+	private static final long AMOUNT = 1;
+	
+	private PaymentWarmUp() {
+	}
+	
+	/**
+	 * Starts the warm-up on a background thread. Call this as soon as the
+	 * user's keys are loaded, e.g., when the app is started.
+	 * 
+	 * @param userInfos
+	 *            the user's information, whose private key is used to sign
+	 *            the dummy payment
+	 * @param serverInfos
+	 *            the server's information
+	 * @return the Future which returns how long the warm-up took (in ms), or
+	 *         throws the exception which aborted it
+	 * @throws IllegalArgumentException
+	 *             if any parameter is null
+	 */
+	public static Future<Long> start(final UserInfos userInfos, final ServerInfos serverInfos) throws IllegalArgumentException {
+		checkParameters(userInfos, serverInfos);
+		
+		FutureTask<Long> task = new FutureTask<Long>(new Callable<Long>() {
+			@Override
+			public Long call() throws Exception {
+				return run(userInfos, serverInfos);
+			}
+		});
+		
+		Thread thread = new Thread(task, "PaymentWarmUp");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+		return task;
+	}
+	
+	/**
+	 * Runs the warm-up on the calling thread. This must not be called on the
+	 * main thread, since it takes some ten to hundred milliseconds.
+	 * 
+	 * @param userInfos
+	 *            the user's information, whose private key is used to sign
+	 *            the dummy payment
+	 * @param serverInfos
+	 *            the server's information
+	 * @return how long the warm-up took (in ms)
+	 * @throws IllegalArgumentException
+	 *             if any parameter is null
+	 * @throws Exception
+	 *             if the dummy payment cannot be signed, encoded, or decoded
+	 *             (e.g., the {@link UserInfos} contain an invalid key)
+	 */
+	public static long run(UserInfos userInfos, ServerInfos serverInfos) throws Exception {
+		checkParameters(userInfos, serverInfos);
+		
+		long start = System.nanoTime();
+		for (int i = 0; i < Config.WARM_UP_ITERATIONS; i++) {
+			cycle(userInfos, serverInfos);
+		}
+		long duration = (System.nanoTime() - start) / 1000000;
+		
+		if (Config.DEBUG)
+			Log.d(TAG, "Warm-up took "+duration+"ms");
+		
+		return duration;
+	}
+	
+	private static void checkParameters(UserInfos userInfos, ServerInfos serverInfos) throws IllegalArgumentException {
+		if (userInfos == null)
+			throw new IllegalArgumentException("The user infos cannot be null.");
+		if (serverInfos == null)
+			throw new IllegalArgumentException("The server infos cannot be null.");
+	}
+	
+	private static void cycle(UserInfos userInfos, ServerInfos serverInfos) throws Exception {
+		String username = userInfos.getUsername();
+		byte[] dictionary = PayloadCompressor.dictionary(username);
+		long timestamp = System.currentTimeMillis();
+		
+		// payee -> payer
+		InitMessagePayee initMessage = new InitMessagePayee(username, CURRENCY, AMOUNT);
+		PaymentMessage pm = new PaymentMessage().view(new PaymentMessage().payee().negotiate().payload(initMessage.encode()).bytes());
+		DecoderFactory.decode(InitMessagePayee.class, pm.payload());
+		Capabilities.decode(new PaymentMessage().payload(Capabilities.local().encode()), 0).negotiate(Capabilities.local());
+		
+		// payer -> payee
+		PaymentRequest paymentRequestPayer = new PaymentRequest(userInfos.getPKIAlgorithm(), userInfos.getKeyNumber(), username, username, CURRENCY, AMOUNT, timestamp);
+		paymentRequestPayer.sign(userInfos.getPrivateKey());
+		byte[] payload = paymentRequestPayer.encode();
+		byte[] compressed = PayloadCompressor.compress(payload, dictionary);
+		if (compressed != null)
+			payload = PayloadCompressor.decompress(compressed, dictionary, Config.MAX_PAYLOAD_LENGTH);
+		pm = new PaymentMessage().view(new PaymentMessage().payer().payload(payload).bytes());
+		paymentRequestPayer = DecoderFactory.decode(PaymentRequest.class, pm.payload());
+		
+		// payee -> server
+		PaymentRequest paymentRequestPayee = new PaymentRequest(userInfos.getPKIAlgorithm(), userInfos.getKeyNumber(), username, username, CURRENCY, AMOUNT, timestamp);
+		paymentRequestPayee.sign(userInfos.getPrivateKey());
+		DecoderFactory.decode(ServerPaymentRequest.class, new ServerPaymentRequest(paymentRequestPayer, paymentRequestPayee).encode());
+		
+		// server -> payee -> payer
+		PaymentResponse paymentResponse = new PaymentResponse(userInfos.getPKIAlgorithm(), userInfos.getKeyNumber(), ServerResponseStatus.SUCCESS, null, username, username, CURRENCY, AMOUNT, timestamp);
+		paymentResponse.sign(userInfos.getPrivateKey());
+		DecoderFactory.decode(ServerPaymentResponse.class, new ServerPaymentResponse(paymentResponse).encode());
+		serverInfos.verify(DecoderFactory.decode(PaymentResponse.class, paymentResponse.encode()));
+		
+		PaymentError.lookup(PaymentError.UNEXPECTED_ERROR.getCode());
+		new PaymentMessage().view(PaymentFrames.error(PaymentError.UNEXPECTED_ERROR, true));
+		new PaymentMessage().view(PaymentFrames.ack(true));
+	}
+	
+}
@@ -0,0 +1,159 @@
+package ch.uzh.csg.paymentlib;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class tracks the progress of the payment protocol of a
+ * {@link PaymentRequestInitializer} or {@link PaymentRequestHandler}, which is
+ * driven by the NFC thread, the timeout thread, and the server response or the
+ * signer at the same time.
+ *
+ * The state consists of a generation, which identifies the current payment, an
+ * aborted flag, and the number of messages received over the current NFC
+ * connection. All three are kept in one atomic value, so every transition is a
+ * single compare-and-set and no lock is needed. A payment ends with
+ * {@link #reset()} or {@link #abort(int)}, which both start a new generation.
+ * Events which captured the generation of a previous payment (e.g., a timeout
+ * which could not be cancelled in time) are dropped by comparing the
+ * generation. A new NFC connection does not start a new generation, since a
+ * payment can be resumed after reconnecting.
+ */
+final class ProtocolState {
+
+	private static final long ABORTED = 1L << 31;
+	private static final long MESSAGES = ABORTED - 1;
+
+	private final AtomicLong state = new AtomicLong(0);
+
+	private static int generation(long s) {
+		return (int) (s >>> 32);
+	}
+
+	private static long next(long s, boolean aborted) {
+		return ((long) (generation(s) + 1) << 32) | (aborted ? ABORTED : 0);
+	}
+
+	/**
+	 * Returns the generation of the current payment.
+	 */
+	int generation() {
+		return generation(state.get());
+	}
+
+	/**
+	 * Returns true if the current payment has been aborted.
+	 */
+	boolean isAborted() {
+		return (state.get() & ABORTED) != 0;
+	}
+
+	/**
+	 * Returns true if the given generation is the one of the current payment
+	 * and the payment has not been aborted.
+	 */
+	boolean isCurrent(int generation) {
+		long s = state.get();
+		return generation(s) == generation && (s & ABORTED) == 0;
+	}
+
+	/**
+	 * Returns true if the payment of the given generation has been aborted
+	 * with {@link #abort(int)} and neither a new connection has been
+	 * established nor the state has been reset since. The work following an
+	 * abort on another thread (e.g., resetting the payment) must only be done
+	 * in this case.
+	 */
+	boolean isStillAborted(int generation) {
+		long s = state.get();
+		return generation(s) == generation + 1 && (s & ABORTED) != 0;
+	}
+
+	/**
+	 * Returns the number of messages received over the current connection.
+	 */
+	int messages() {
+		return (int) (state.get() & MESSAGES);
+	}
+
+	/**
+	 * Is called when a new NFC connection has been established. Clears the
+	 * aborted flag and the number of messages, but keeps the generation.
+	 *
+	 * @return the generation of the current payment
+	 */
+	int begin() {
+		while (true) {
+			long s = state.get();
+			if (state.compareAndSet(s, s & ~(ABORTED | MESSAGES)))
+				return generation(s);
+		}
+	}
+
+	/**
+	 * Counts a received message, unless the payment has been aborted.
+	 *
+	 * @return the number of messages received over the current connection
+	 *         including this one, or -1 if the message has to be dropped
+	 */
+	int nextMessage() {
+		while (true) {
+			long s = state.get();
+			if ((s & ABORTED) != 0)
+				return -1;
+
+			long count = (s & MESSAGES) + 1;
+			if (count > MESSAGES)
+				return -1;
+
+			if (state.compareAndSet(s, (s & ~MESSAGES) | count))
+				return (int) count;
+		}
+	}
+
+	/**
+	 * Aborts the current payment.
+	 *
+	 * @return true if this call aborted the payment, false if it has already
+	 *         been aborted
+	 */
+	boolean abort() {
+		while (true) {
+			long s = state.get();
+			if ((s & ABORTED) != 0)
+				return false;
+
+			if (state.compareAndSet(s, next(s, true)))
+				return true;
+		}
+	}
+
+	/**
+	 * Aborts the payment of the given generation.
+	 *
+	 * @return true if this call aborted the payment, false if it has already
+	 *         been aborted or another payment is in progress
+	 */
+	boolean abort(int generation) {
+		while (true) {
+			long s = state.get();
+			if (generation(s) != generation || (s & ABORTED) != 0)
+				return false;
+
+			if (state.compareAndSet(s, next(s, true)))
+				return true;
+		}
+	}
+
+	/**
+	 * Ends the current payment and starts a new generation. The aborted flag
+	 * is kept until the next connection is established.
+	 */
+	void reset() {
+		while (true) {
+			long s = state.get();
+			if (state.compareAndSet(s, next(s, (s & ABORTED) != 0)))
+				return;
+		}
+	}
+
+}
@@ -0,0 +1,398 @@
+package ch.uzh.csg.paymentlib.container;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECField;
+import java.security.spec.ECFieldFp;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class verifies ECDSA signatures made with one fixed public key. The
+ * verification computes u1*G + u2*Q, where both the generator G and the
+ * public key Q are the same for every signature. Tables with the multiples
+ * of both points are therefore computed once, so that a verification only
+ * needs point additions and no point doublings.
+ *
+ * Every table contains the points j * 2^(4i) * P for all 4-bit digits j and
+ * all positions i of the scalar. Computing the tables takes some ten
+ * milliseconds and some hundred kilobytes of memory for a 256 bit curve.
+ *
+ * Only curves over prime fields and signature algorithms of the form
+ * SHA&lt;n&gt;withECDSA are supported (see {@link #create(PublicKey)} and
+ * {@link #supports(String)}).
+ */
+final class FixedBaseVerifier {
+
+	private static final int WINDOW = 4;
+	private static final int DIGITS = 1 << WINDOW;
+
+	private final BigInteger p;
+	private final BigInteger a;
+	private final BigInteger n;
+
+	private final Table generator;
+	private final Table publicKey;
+
+	private final ThreadLocal<Map<String, MessageDigest>> digests = new ThreadLocal<Map<String, MessageDigest>>() {
+		@Override
+		protected Map<String, MessageDigest> initialValue() {
+			return new HashMap<String, MessageDigest>();
+		}
+	};
+
+	private FixedBaseVerifier(BigInteger p, BigInteger a, BigInteger n, ECPoint g, ECPoint q) {
+		this.p = p;
+		this.a = a;
+		this.n = n;
+
+		int windows = (n.bitLength() + WINDOW - 1) / WINDOW;
+		this.generator = new Table(g, windows);
+		this.publicKey = new Table(q, windows);
+	}
+
+	/**
+	 * Returns a new verifier for the given public key, or null if the key is
+	 * not supported (i.e., it is not an EC key over a prime field).
+	 */
+	static FixedBaseVerifier create(PublicKey key) {
+		if (!(key instanceof ECPublicKey))
+			return null;
+
+		ECPublicKey ecKey = (ECPublicKey) key;
+		ECParameterSpec params = ecKey.getParams();
+		ECField field = params.getCurve().getField();
+		if (!(field instanceof ECFieldFp) || ECPoint.POINT_INFINITY.equals(ecKey.getW()))
+			return null;
+
+		BigInteger p = ((ECFieldFp) field).getP();
+		BigInteger a = params.getCurve().getA().mod(p);
+		BigInteger b = params.getCurve().getB().mod(p);
+		BigInteger x = ecKey.getW().getAffineX();
+		BigInteger y = ecKey.getW().getAffineY();
+		// leave invalid keys to the signature engine
+		if (!y.multiply(y).mod(p).equals(x.multiply(x).multiply(x).add(a.multiply(x)).add(b).mod(p)))
+			return null;
+
+		try {
+			return new FixedBaseVerifier(p, a, params.getOrder(), params.getGenerator(), ecKey.getW());
+		} catch (ArithmeticException e) {
+			// a multiple of the key is the point at infinity
+			return null;
+		}
+	}
+
+	/**
+	 * Returns if signatures of the given algorithm (e.g., SHA256withECDSA) can
+	 * be verified.
+	 */
+	static boolean supports(String signatureAlgorithm) {
+		return digestAlgorithm(signatureAlgorithm) != null;
+	}
+
+	private static String digestAlgorithm(String signatureAlgorithm) {
+		String suffix = "withECDSA";
+		if (signatureAlgorithm == null || !signatureAlgorithm.startsWith("SHA") || !signatureAlgorithm.endsWith(suffix))
+			return null;
+
+		String bits = signatureAlgorithm.substring(3, signatureAlgorithm.length() - suffix.length());
+		if (bits.equals("1"))
+			return "SHA-1";
+		else if (bits.equals("224") || bits.equals("256") || bits.equals("384") || bits.equals("512"))
+			return "SHA-" + bits;
+		else
+			return null;
+	}
+
+	/**
+	 * Verifies the DER encoded signature of the given data.
+	 *
+	 * @param signatureAlgorithm
+	 *            the algorithm used to create the signature (see
+	 *            {@link #supports(String)})
+	 * @param data
+	 *            the signed data
+	 * @param signature
+	 *            the signature
+	 * @return true if the signature is valid
+	 * @throws GeneralSecurityException
+	 *             if the algorithm is not supported or the signature is not
+	 *             encoded properly
+	 */
+	boolean verify(String signatureAlgorithm, byte[] data, byte[] signature) throws GeneralSecurityException {
+		String digestAlgorithm = digestAlgorithm(signatureAlgorithm);
+		if (digestAlgorithm == null)
+			throw new SignatureException("The signature algorithm "+signatureAlgorithm+" is not supported.");
+
+		BigInteger[] rs = decodeSignature(signature);
+		BigInteger r = rs[0];
+		BigInteger s = rs[1];
+		if (r.signum() <= 0 || r.compareTo(n) >= 0 || s.signum() <= 0 || s.compareTo(n) >= 0)
+			return false;
+
+		Map<String, MessageDigest> map = digests.get();
+		MessageDigest digest = map.get(digestAlgorithm);
+		if (digest == null) {
+			digest = MessageDigest.getInstance(digestAlgorithm);
+			map.put(digestAlgorithm, digest);
+		}
+		BigInteger e = truncate(digest.digest(data));
+
+		BigInteger w = s.modInverse(n);
+		BigInteger u1 = e.multiply(w).mod(n);
+		BigInteger u2 = r.multiply(w).mod(n);
+
+		BigInteger[] point = new BigInteger[] { BigInteger.ZERO, BigInteger.ONE, BigInteger.ZERO };
+		generator.multiplyAdd(u1, point);
+		publicKey.multiplyAdd(u2, point);
+		if (point[2].signum() == 0)
+			return false;
+
+		BigInteger zInv = point[2].modInverse(p);
+		BigInteger x = point[0].multiply(zInv.multiply(zInv)).mod(p);
+		return x.mod(n).equals(r);
+	}
+
+	/*
+	 * Returns the leftmost bits of the hash, as many as the order has.
+	 */
+	private BigInteger truncate(byte[] hash) {
+		BigInteger e = new BigInteger(1, hash);
+		int excess = hash.length * 8 - n.bitLength();
+		return excess > 0 ? e.shiftRight(excess) : e;
+	}
+
+	/*
+	 * Decodes the DER encoded sequence of the two integers r and s.
+	 */
+	private static BigInteger[] decodeSignature(byte[] signature) throws SignatureException {
+		if (signature == null || signature.length < 8 || signature[0] != 0x30)
+			throw new SignatureException("The signature is not encoded properly.");
+
+		int[] index = new int[] { 1 };
+		int length = decodeLength(signature, index);
+		if (index[0] + length != signature.length)
+			throw new SignatureException("The signature is not encoded properly.");
+
+		BigInteger r = decodeInteger(signature, index);
+		BigInteger s = decodeInteger(signature, index);
+		if (index[0] != signature.length)
+			throw new SignatureException("The signature is not encoded properly.");
+
+		return new BigInteger[] { r, s };
+	}
+
+	private static int decodeLength(byte[] der, int[] index) throws SignatureException {
+		if (index[0] >= der.length)
+			throw new SignatureException("The signature is not encoded properly.");
+
+		int length = der[index[0]++] & 0xFF;
+		if (length < 0x80)
+			return length;
+
+		int bytes = length & 0x7F;
+		if (bytes == 0 || bytes > 2 || index[0] + bytes > der.length)
+			throw new SignatureException("The signature is not encoded properly.");
+
+		length = 0;
+		for (int i = 0; i < bytes; i++) {
+			length = (length << 8) | (der[index[0]++] & 0xFF);
+		}
+		return length;
+	}
+
+	private static BigInteger decodeInteger(byte[] der, int[] index) throws SignatureException {
+		if (index[0] >= der.length || der[index[0]++] != 0x02)
+			throw new SignatureException("The signature is not encoded properly.");
+
+		int length = decodeLength(der, index);
+		if (length == 0 || index[0] + length > der.length)
+			throw new SignatureException("The signature is not encoded properly.");
+
+		byte[] value = new byte[length];
+		System.arraycopy(der, index[0], value, 0, length);
+		index[0] += length;
+		return new BigInteger(value);
+	}
+
+	/*
+	 * Adds the affine point (x2, y2) to the point in Jacobian coordinates,
+	 * which is given as { X, Y, Z } and updated in place. Z = 0 denotes the
+	 * point at infinity.
+	 */
+	private void addAffine(BigInteger[] point, BigInteger x2, BigInteger y2) {
+		if (point[2].signum() == 0) {
+			point[0] = x2;
+			point[1] = y2;
+			point[2] = BigInteger.ONE;
+			return;
+		}
+
+		BigInteger z1z1 = point[2].multiply(point[2]).mod(p);
+		BigInteger u2 = x2.multiply(z1z1).mod(p);
+		BigInteger s2 = y2.multiply(point[2]).mod(p).multiply(z1z1).mod(p);
+		BigInteger h = u2.subtract(point[0]).mod(p);
+		BigInteger r = s2.subtract(point[1]).mod(p);
+
+		if (h.signum() == 0) {
+			if (r.signum() == 0)
+				doublePoint(point);
+			else
+				point[2] = BigInteger.ZERO;
+			return;
+		}
+
+		BigInteger hh = h.multiply(h).mod(p);
+		BigInteger hhh = h.multiply(hh).mod(p);
+		BigInteger v = point[0].multiply(hh).mod(p);
+		BigInteger x3 = r.multiply(r).subtract(hhh).subtract(v.shiftLeft(1)).mod(p);
+		BigInteger y3 = r.multiply(v.subtract(x3)).subtract(point[1].multiply(hhh)).mod(p);
+		point[2] = point[2].multiply(h).mod(p);
+		point[0] = x3;
+		point[1] = y3;
+	}
+
+	/*
+	 * Adds the second point to the first one, both in Jacobian coordinates.
+	 * This is only needed to compute the tables.
+	 */
+	private void addJacobian(BigInteger[] point, BigInteger[] other) {
+		if (other[2].signum() == 0)
+			return;
+
+		if (point[2].signum() == 0) {
+			point[0] = other[0];
+			point[1] = other[1];
+			point[2] = other[2];
+			return;
+		}
+
+		BigInteger z1z1 = point[2].multiply(point[2]).mod(p);
+		BigInteger z2z2 = other[2].multiply(other[2]).mod(p);
+		BigInteger u1 = point[0].multiply(z2z2).mod(p);
+		BigInteger u2 = other[0].multiply(z1z1).mod(p);
+		BigInteger s1 = point[1].multiply(other[2]).mod(p).multiply(z2z2).mod(p);
+		BigInteger s2 = other[1].multiply(point[2]).mod(p).multiply(z1z1).mod(p);
+		BigInteger h = u2.subtract(u1).mod(p);
+		BigInteger r = s2.subtract(s1).mod(p);
+
+		if (h.signum() == 0) {
+			if (r.signum() == 0)
+				doublePoint(point);
+			else
+				point[2] = BigInteger.ZERO;
+			return;
+		}
+
+		BigInteger hh = h.multiply(h).mod(p);
+		BigInteger hhh = h.multiply(hh).mod(p);
+		BigInteger v = u1.multiply(hh).mod(p);
+		BigInteger x3 = r.multiply(r).subtract(hhh).subtract(v.shiftLeft(1)).mod(p);
+		BigInteger y3 = r.multiply(v.subtract(x3)).subtract(s1.multiply(hhh)).mod(p);
+		point[2] = point[2].multiply(other[2]).mod(p).multiply(h).mod(p);
+		point[0] = x3;
+		point[1] = y3;
+	}
+
+	private void doublePoint(BigInteger[] point) {
+		if (point[2].signum() == 0 || point[1].signum() == 0) {
+			point[2] = BigInteger.ZERO;
+			return;
+		}
+
+		BigInteger xx = point[0].multiply(point[0]).mod(p);
+		BigInteger yy = point[1].multiply(point[1]).mod(p);
+		BigInteger yyyy = yy.multiply(yy).mod(p);
+		BigInteger zz = point[2].multiply(point[2]).mod(p);
+		BigInteger s = point[0].multiply(yy).shiftLeft(2).mod(p);
+		BigInteger m = xx.multiply(BigInteger.valueOf(3)).add(a.multiply(zz.multiply(zz).mod(p))).mod(p);
+		BigInteger x3 = m.multiply(m).subtract(s.shiftLeft(1)).mod(p);
+		BigInteger y3 = m.multiply(s.subtract(x3)).subtract(yyyy.shiftLeft(3)).mod(p);
+		point[2] = point[1].multiply(point[2]).shiftLeft(1).mod(p);
+		point[0] = x3;
+		point[1] = y3;
+	}
+
+	/*
+	 * The precomputed multiples of a point in affine coordinates.
+	 */
+	private class Table {
+		private final BigInteger[] xs;
+		private final BigInteger[] ys;
+
+		private Table(ECPoint base, int windows) {
+			xs = new BigInteger[windows * DIGITS];
+			ys = new BigInteger[windows * DIGITS];
+			BigInteger[] zs = new BigInteger[windows * DIGITS];
+
+			BigInteger[] windowBase = new BigInteger[] { base.getAffineX(), base.getAffineY(), BigInteger.ONE };
+			for (int i = 0; i < windows; i++) {
+				BigInteger[] multiple = windowBase.clone();
+				for (int j = 1; j < DIGITS; j++) {
+					xs[i * DIGITS + j] = multiple[0];
+					ys[i * DIGITS + j] = multiple[1];
+					zs[i * DIGITS + j] = multiple[2];
+					addJacobian(multiple, windowBase);
+				}
+
+				for (int k = 0; k < WINDOW; k++) {
+					doublePoint(windowBase);
+				}
+			}
+
+			toAffine(zs);
+		}
+
+		/*
+		 * Converts all points to affine coordinates with a single inversion
+		 * (Montgomery's trick).
+		 */
+		private void toAffine(BigInteger[] zs) {
+			BigInteger[] prefixes = new BigInteger[zs.length];
+			BigInteger product = BigInteger.ONE;
+			for (int i = 0; i < zs.length; i++) {
+				if (zs[i] != null) {
+					prefixes[i] = product;
+					product = product.multiply(zs[i]).mod(p);
+				}
+			}
+
+			BigInteger inverse = product.modInverse(p);
+			for (int i = zs.length - 1; i >= 0; i--) {
+				if (zs[i] == null)
+					continue;
+
+				BigInteger zInv = inverse.multiply(prefixes[i]).mod(p);
+				inverse = inverse.multiply(zs[i]).mod(p);
+
+				BigInteger zInv2 = zInv.multiply(zInv).mod(p);
+				xs[i] = xs[i].multiply(zInv2).mod(p);
+				ys[i] = ys[i].multiply(zInv2).mod(p).multiply(zInv).mod(p);
+			}
+		}
+
+		/*
+		 * Adds k times the base of this table to the given point.
+		 */
+		private void multiplyAdd(BigInteger k, BigInteger[] point) {
+			byte[] bytes = k.toByteArray();
+			int windows = xs.length / DIGITS;
+			for (int i = 0; i < windows; i++) {
+				int byteIndex = bytes.length - 1 - i / 2;
+				if (byteIndex < 0)
+					break;
+
+				int digit = (i % 2 == 0) ? bytes[byteIndex] & 0x0F : (bytes[byteIndex] >>> 4) & 0x0F;
+				if (digit != 0)
+					addAffine(point, xs[i * DIGITS + digit], ys[i * DIGITS + digit]);
+			}
+		}
+	}
+
+}
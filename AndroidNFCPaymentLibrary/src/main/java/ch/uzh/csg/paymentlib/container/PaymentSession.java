@@ -0,0 +1,301 @@
+package ch.uzh.csg.paymentlib.container;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Arrays;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import ch.uzh.csg.mbps.customserialization.Currency;
+import ch.uzh.csg.mbps.customserialization.PKIAlgorithm;
+import ch.uzh.csg.mbps.customserialization.PaymentResponse;
+import ch.uzh.csg.paymentlib.util.Config;
+
+/**
+ * This class represents a short-lived session between a payer and a payee,
+ * which is established after a payment has been accepted by the server.
+ * Follow-up payments between the same users within the session are
+ * authenticated with a MAC instead of a signature, which is much cheaper to
+ * compute and to verify.
+ * 
+ * The session is identified by a key id, which is derived from the server's
+ * signature of the payer's {@link PaymentResponse}. Hence, the payer, the
+ * payee, and the server derive the same key id without exchanging further
+ * messages. Each device derives its own MAC key by an ECDH key agreement
+ * between its private key and the server's public key (see
+ * {@link #deriveKey(PrivateKey, PublicKey, byte[], boolean)}). The server
+ * derives the same keys from its private key and the users' public keys, so
+ * the keys never have to be transmitted.
+ * 
+ * A session expires after {@link Config#SESSION_LIFETIME} and allows payments
+ * in the currency of the first payment up to a total of
+ * {@link Config#SESSION_AMOUNT_CAP}.
+ */
+public final class PaymentSession {
+	
+	/**
+	 * The length of a key id in bytes.
+	 */
+	public static final int KEY_ID_LENGTH = 8;
+	
+	/**
+	 * The length of a MAC in bytes.
+	 */
+	public static final int MAC_LENGTH = 32;
+	
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+	private static final byte[] KDF_LABEL = "paymentlib-session".getBytes(Charset.forName("UTF-8"));
+	private static final byte ROLE_PAYER = 0x01;
+	private static final byte ROLE_PAYEE = 0x02;
+	
+	private final byte[] keyId;
+	private final SecretKey key;
+	private final String usernamePayer;
+	private final String usernamePayee;
+	private final PKIAlgorithm pkiAlgorithmPayer;
+	private final int keyNumberPayer;
+	private final Currency currency;
+	private final long expiry;
+	private long remaining;
+	
+	private PaymentSession(byte[] keyId, SecretKey key, String usernamePayer, String usernamePayee, PKIAlgorithm pkiAlgorithmPayer, int keyNumberPayer, Currency currency, long expiry, long remaining) {
+		this.keyId = keyId;
+		this.key = key;
+		this.usernamePayer = usernamePayer;
+		this.usernamePayee = usernamePayee;
+		this.pkiAlgorithmPayer = pkiAlgorithmPayer;
+		this.keyNumberPayer = keyNumberPayer;
+		this.currency = currency;
+		this.expiry = expiry;
+		this.remaining = remaining;
+	}
+	
+	/**
+	 * Establishes a new session after a successful payment.
+	 * 
+	 * @param paymentResponse
+	 *            the payer's {@link PaymentResponse} signed by the server
+	 * @param pkiAlgorithmPayer
+	 *            the {@link PKIAlgorithm} of the payer's key, which is part of
+	 *            the payer's payment requests
+	 * @param keyNumberPayer
+	 *            the key number of the payer's key
+	 * @param privateKey
+	 *            the private key of this device's user
+	 * @param serverPublicKey
+	 *            the server's public key
+	 * @param payer
+	 *            true if this device's user is the payer, false if it is the
+	 *            payee
+	 * @throws GeneralSecurityException
+	 *             if the key agreement is not supported for the given keys
+	 *             (e.g., no EC keys)
+	 */
+	public static PaymentSession establish(PaymentResponse paymentResponse, PKIAlgorithm pkiAlgorithmPayer, int keyNumberPayer, PrivateKey privateKey, PublicKey serverPublicKey, boolean payer) throws GeneralSecurityException {
+		byte[] keyId = keyId(paymentResponse);
+		SecretKey key = deriveKey(privateKey, serverPublicKey, keyId, payer);
+		return new PaymentSession(keyId, key, paymentResponse.getUsernamePayer(), paymentResponse.getUsernamePayee(), pkiAlgorithmPayer, keyNumberPayer, paymentResponse.getCurrency(), paymentResponse.getTimestamp() + Config.SESSION_LIFETIME, Config.SESSION_AMOUNT_CAP);
+	}
+	
+	/**
+	 * Returns the key id of the session which is established by the given
+	 * {@link PaymentResponse}.
+	 * 
+	 * @param paymentResponse
+	 *            the payer's {@link PaymentResponse} signed by the server
+	 * @throws GeneralSecurityException
+	 *             if the response is not signed
+	 */
+	public static byte[] keyId(PaymentResponse paymentResponse) throws GeneralSecurityException {
+		if (paymentResponse.getSignature() == null)
+			throw new GeneralSecurityException("The payment response is not signed.");
+		
+		byte[] digest = MessageDigest.getInstance("SHA-256").digest(paymentResponse.getSignature());
+		return Arrays.copyOf(digest, KEY_ID_LENGTH);
+	}
+	
+	/**
+	 * Derives the MAC key of the payer or payee of a session. The devices
+	 * pass their own private key and the server's public key, the server
+	 * passes its private key and the user's public key.
+	 * 
+	 * @param privateKey
+	 *            the private key of one party
+	 * @param publicKey
+	 *            the public key of the other party
+	 * @param keyId
+	 *            the key id of the session
+	 * @param payer
+	 *            true to derive the payer's key, false to derive the payee's
+	 *            key
+	 * @throws GeneralSecurityException
+	 *             if the key agreement is not supported for the given keys
+	 */
+	public static SecretKey deriveKey(PrivateKey privateKey, PublicKey publicKey, byte[] keyId, boolean payer) throws GeneralSecurityException {
+		KeyAgreement keyAgreement = KeyAgreement.getInstance("ECDH");
+		keyAgreement.init(privateKey);
+		keyAgreement.doPhase(publicKey, true);
+		byte[] secret = keyAgreement.generateSecret();
+		
+		Mac mac = Mac.getInstance(MAC_ALGORITHM);
+		mac.init(new SecretKeySpec(secret, MAC_ALGORITHM));
+		mac.update(KDF_LABEL);
+		mac.update(payer ? ROLE_PAYER : ROLE_PAYEE);
+		mac.update(keyId);
+		byte[] key = mac.doFinal();
+		Arrays.fill(secret, (byte) 0);
+		return new SecretKeySpec(key, MAC_ALGORITHM);
+	}
+	
+	/**
+	 * Returns the MAC of the given data.
+	 * 
+	 * @param key
+	 *            the MAC key of the payer or payee
+	 * @param data
+	 *            the data to authenticate (e.g., the payload of a payment
+	 *            request)
+	 * @throws GeneralSecurityException
+	 *             if the MAC algorithm is not supported
+	 */
+	public static byte[] mac(SecretKey key, byte[] data) throws GeneralSecurityException {
+		Mac mac = Mac.getInstance(MAC_ALGORITHM);
+		mac.init(key);
+		return mac.doFinal(data);
+	}
+	
+	/**
+	 * Returns true if the given MAC of the given data is valid.
+	 * 
+	 * @param key
+	 *            the MAC key of the payer or payee
+	 * @param data
+	 *            the authenticated data
+	 * @param mac
+	 *            the received MAC
+	 * @throws GeneralSecurityException
+	 *             if the MAC algorithm is not supported
+	 */
+	public static boolean verify(SecretKey key, byte[] data, byte[] mac) throws GeneralSecurityException {
+		// constant time, so the MAC cannot be guessed byte by byte
+		return MessageDigest.isEqual(mac(key, data), mac);
+	}
+	
+	/**
+	 * Returns the MAC of the given data with this device's key.
+	 * 
+	 * @throws GeneralSecurityException
+	 *             if the MAC algorithm is not supported
+	 */
+	public byte[] mac(byte[] data) throws GeneralSecurityException {
+		return mac(key, data);
+	}
+	
+	/**
+	 * Returns true if a payment of the given amount is allowed within this
+	 * session at the given time.
+	 * 
+	 * @param currency
+	 *            the currency of the payment
+	 * @param amount
+	 *            the amount of the payment
+	 * @param now
+	 *            the current time in ms
+	 */
+	public synchronized boolean permits(Currency currency, long amount, long now) {
+		return now < expiry && currency.getCode() == this.currency.getCode() && amount > 0 && amount <= remaining;
+	}
+	
+	/**
+	 * Deducts the amount of a successful payment from the remaining amount of
+	 * this session.
+	 */
+	public synchronized void charge(long amount) {
+		remaining -= Math.min(amount, remaining);
+	}
+	
+	/**
+	 * Returns true if this session is expired at the given time.
+	 */
+	public boolean isExpired(long now) {
+		return now >= expiry;
+	}
+	
+	/**
+	 * Returns a copy of the key id.
+	 */
+	public byte[] getKeyId() {
+		return keyId.clone();
+	}
+	
+	/*
+	 * Returns the key id as number, which is used to look up the session.
+	 */
+	long getId() {
+		return id(keyId, 0);
+	}
+	
+	static long id(byte[] keyId, int offset) {
+		long id = 0;
+		for (int i = 0; i < KEY_ID_LENGTH; i++) {
+			id = id << 8 | (keyId[offset + i] & 0xFF);
+		}
+		return id;
+	}
+	
+	/**
+	 * Returns the username of the payer.
+	 */
+	public String getUsernamePayer() {
+		return usernamePayer;
+	}
+	
+	/**
+	 * Returns the username of the payee.
+	 */
+	public String getUsernamePayee() {
+		return usernamePayee;
+	}
+	
+	/**
+	 * Returns the {@link PKIAlgorithm} of the payer's key.
+	 */
+	public PKIAlgorithm getPKIAlgorithmPayer() {
+		return pkiAlgorithmPayer;
+	}
+	
+	/**
+	 * Returns the key number of the payer's key.
+	 */
+	public int getKeyNumberPayer() {
+		return keyNumberPayer;
+	}
+	
+	/**
+	 * Returns the currency of the payments within this session.
+	 */
+	public Currency getCurrency() {
+		return currency;
+	}
+	
+	/**
+	 * Returns the time in ms when this session expires.
+	 */
+	public long getExpiry() {
+		return expiry;
+	}
+	
+	/**
+	 * Returns the amount which may still be paid within this session.
+	 */
+	public synchronized long getRemaining() {
+		return remaining;
+	}
+	
+}
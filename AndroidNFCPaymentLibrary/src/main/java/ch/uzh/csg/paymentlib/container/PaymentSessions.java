@@ -0,0 +1,99 @@
+package ch.uzh.csg.paymentlib.container;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import ch.uzh.csg.mbps.customserialization.Currency;
+
+/**
+ * This class holds the {@link PaymentSession}s of this device. The same
+ * instance should be passed to every {@link ch.uzh.csg.paymentlib.PaymentRequestHandler}
+ * and {@link ch.uzh.csg.paymentlib.PaymentRequestInitializer} of the
+ * application, so that sessions survive the single payment.
+ * 
+ * Expired sessions are removed on every access. At most one session is kept
+ * per payer and payee, i.e., a new session replaces the previous one.
+ * 
+ * This class is thread-safe.
+ */
+public final class PaymentSessions {
+	
+	private final Map<Long, PaymentSession> sessions = new HashMap<Long, PaymentSession>();
+	
+	/**
+	 * Adds the given session and removes a previous session between the same
+	 * users.
+	 */
+	public synchronized void add(PaymentSession session) {
+		Iterator<PaymentSession> it = sessions.values().iterator();
+		while (it.hasNext()) {
+			PaymentSession existing = it.next();
+			if (existing.getUsernamePayer().equals(session.getUsernamePayer()) && existing.getUsernamePayee().equals(session.getUsernamePayee()))
+				it.remove();
+		}
+		sessions.put(session.getId(), session);
+	}
+	
+	/**
+	 * Removes the given session (e.g., if the other device does not know the
+	 * session anymore).
+	 */
+	public synchronized void remove(PaymentSession session) {
+		sessions.remove(session.getId());
+	}
+	
+	/**
+	 * Returns the session with the given key id, or null if there is no such
+	 * session or it is expired.
+	 * 
+	 * @param keyId
+	 *            the array containing the key id
+	 * @param offset
+	 *            the position where the key id starts
+	 */
+	public synchronized PaymentSession get(byte[] keyId, int offset) {
+		removeExpired(System.currentTimeMillis());
+		return sessions.get(PaymentSession.id(keyId, offset));
+	}
+	
+	/**
+	 * Returns the session between the given users which permits a payment of
+	 * the given amount, or null if there is no such session.
+	 * 
+	 * @param usernamePayer
+	 *            the username of the payer
+	 * @param usernamePayee
+	 *            the username of the payee
+	 * @param currency
+	 *            the currency of the payment
+	 * @param amount
+	 *            the amount of the payment
+	 */
+	public synchronized PaymentSession find(String usernamePayer, String usernamePayee, Currency currency, long amount) {
+		long now = System.currentTimeMillis();
+		removeExpired(now);
+		for (PaymentSession session : sessions.values()) {
+			if (session.getUsernamePayer().equals(usernamePayer) && session.getUsernamePayee().equals(usernamePayee) && session.permits(currency, amount, now))
+				return session;
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns the number of sessions which are not expired.
+	 */
+	public synchronized int size() {
+		removeExpired(System.currentTimeMillis());
+		return sessions.size();
+	}
+	
+	private void removeExpired(long now) {
+		Iterator<PaymentSession> it = sessions.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().isExpired(now))
+				it.remove();
+		}
+	}
+	
+}
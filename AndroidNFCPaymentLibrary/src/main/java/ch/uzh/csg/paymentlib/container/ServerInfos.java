@@ -1,20 +1,44 @@
 package ch.uzh.csg.paymentlib.container;
 
 import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
+import ch.uzh.csg.mbps.customserialization.PKIAlgorithm;
+import ch.uzh.csg.mbps.customserialization.SignedSerializableObject;
 import ch.uzh.csg.paymentlib.exceptions.IllegalArgumentException;
+import ch.uzh.csg.paymentlib.util.Config;
 
 /**
  * This class contains the server information of this user's main server (where
  * he has registered an account for payments). The server is responsible for
  * definitely accepting or refusing a payment.
  * 
+ * The server may sign with several keys, e.g., while its key is rotated. Each
+ * key has a key number, which the server writes into every signed object
+ * (see {@link SignedSerializableObject#getKeyNumber()}), the same way the
+ * users do (see {@link UserInfos}). The key ring maps the key numbers to the
+ * keys and their verifiers, which are initialized once per key. A signed
+ * object is hence verified with exactly one key, without trying the others.
+ * 
  * @author Jeton Memeti
  * 
  */
 public class ServerInfos {
 	
-	private PublicKey publicKey;
+	private static final int MAX_KEY_NUMBER = 255;
+	
+	private final ServerKey primary;
+	private final boolean anyKeyNumber;
+	private final boolean precompute;
+	// copy on write, indexed by the key number
+	private volatile ServerKey[] keyRing = new ServerKey[MAX_KEY_NUMBER + 1];
 	
 	/**
 	 * Instantiates a new object.
@@ -25,17 +49,277 @@ public class ServerInfos {
 	 *             if the public key is null
 	 */
 	public ServerInfos(PublicKey publicKey) throws IllegalArgumentException {
+		this(publicKey, false);
+	}
+	
+	/**
+	 * Instantiates a new object.
+	 * 
+	 * @param publicKey
+	 *            the server's public key, which is used for every key number
+	 *            which is not added to the key ring (see
+	 *            {@link #addPublicKey(int, PublicKey)})
+	 * @param precompute
+	 *            if true, the multiples of the server's public key needed to
+	 *            verify the server responses are computed once here, which
+	 *            takes some ten milliseconds and some hundred kilobytes of memory,
+	 *            but speeds up every verification. This is only supported for
+	 *            EC keys over prime fields. Other keys are verified as usual.
+	 * @throws IllegalArgumentException
+	 *             if the public key is null
+	 */
+	public ServerInfos(PublicKey publicKey, boolean precompute) throws IllegalArgumentException {
 		if (publicKey == null)
 			throw new IllegalArgumentException("The privatekey cannot be null.");
 		
-		this.publicKey = publicKey;
+		this.primary = new ServerKey(publicKey, precompute);
+		this.anyKeyNumber = true;
+		this.precompute = precompute;
+	}
+	
+	/**
+	 * Instantiates a new object with a key ring. Only objects signed with the
+	 * key number of a key in the key ring are accepted.
+	 * 
+	 * @param keyNumber
+	 *            the key number of the given public key
+	 * @param publicKey
+	 *            the server's current public key
+	 * @param precompute
+	 *            if true, the multiples of every key in the key ring are
+	 *            computed when the key is added (see
+	 *            {@link #ServerInfos(PublicKey, boolean)})
+	 * @throws IllegalArgumentException
+	 *             if the public key is null or the key number is not valid
+	 */
+	public ServerInfos(int keyNumber, PublicKey publicKey, boolean precompute) throws IllegalArgumentException {
+		checkParams(keyNumber, publicKey);
+		
+		this.primary = new ServerKey(publicKey, precompute);
+		this.anyKeyNumber = false;
+		this.precompute = precompute;
+		this.keyRing[keyNumber] = primary;
+	}
+	
+	private void checkParams(int keyNumber, PublicKey publicKey) throws IllegalArgumentException {
+		if (publicKey == null)
+			throw new IllegalArgumentException("The publickey cannot be null.");
+		
+		if (keyNumber <= 0 || keyNumber > MAX_KEY_NUMBER)
+			throw new IllegalArgumentException("The key number must be between 1 and "+MAX_KEY_NUMBER+".");
+	}
+	
+	/**
+	 * Adds the given key to the key ring (e.g., the server's next key before
+	 * it is rotated), or replaces the key with the same key number.
+	 * 
+	 * @param keyNumber
+	 *            the key number of the given public key
+	 * @param publicKey
+	 *            the server's public key
+	 * @throws IllegalArgumentException
+	 *             if the public key is null or the key number is not valid
+	 */
+	public synchronized void addPublicKey(int keyNumber, PublicKey publicKey) throws IllegalArgumentException {
+		checkParams(keyNumber, publicKey);
+		
+		ServerKey[] copy = keyRing.clone();
+		copy[keyNumber] = new ServerKey(publicKey, precompute);
+		keyRing = copy;
+	}
+	
+	/**
+	 * Removes the key with the given key number from the key ring (e.g., the
+	 * server's previous key after it has been rotated). Objects signed with
+	 * this key number are not accepted anymore, unless this object has been
+	 * instantiated with {@link #ServerInfos(PublicKey, boolean)}.
+	 * 
+	 * @param keyNumber
+	 *            the key number of the key to remove
+	 */
+	public synchronized void removePublicKey(int keyNumber) {
+		if (keyNumber <= 0 || keyNumber > MAX_KEY_NUMBER || keyRing[keyNumber] == null)
+			return;
+		
+		ServerKey[] copy = keyRing.clone();
+		copy[keyNumber] = null;
+		keyRing = copy;
 	}
 
 	/**
-	 * Returns the server's public key.
+	 * Returns the server's public key given to the constructor.
 	 */
 	public PublicKey getPublicKey() {
-		return publicKey;
+		return primary.publicKey;
+	}
+	
+	/**
+	 * Returns the server's public key used to verify objects with the given
+	 * key number, or null if there is no such key.
+	 */
+	public PublicKey getPublicKey(int keyNumber) {
+		ServerKey key = lookup(keyNumber);
+		return key == null ? null : key.publicKey;
+	}
+	
+	private ServerKey lookup(int keyNumber) {
+		ServerKey key = (keyNumber >= 0 && keyNumber <= MAX_KEY_NUMBER) ? keyRing[keyNumber] : null;
+		if (key == null && anyKeyNumber)
+			return primary;
+		return key;
+	}
+	
+	/**
+	 * Verifies the signature of the given object (e.g., a PaymentResponse)
+	 * with the server's public key of the object's key number. In contrast to
+	 * {@link SignedSerializableObject#verify(PublicKey)}, the signature engine
+	 * is initialized only once per key and thread and reused for every
+	 * payment.
+	 * 
+	 * @param signedObject
+	 *            the object signed by the server
+	 * @return true if the signature is valid, false otherwise (e.g., the key
+	 *         number is not known)
+	 * @throws Exception
+	 *             if the signature cannot be verified (e.g., the
+	 *             {@link PKIAlgorithm} is not supported)
+	 */
+	public boolean verify(SignedSerializableObject signedObject) throws Exception {
+		if (signedObject.getSignature() == null)
+			return false;
+		
+		ServerKey key = lookup(signedObject.getKeyNumber());
+		if (key == null)
+			return false;
+		
+		return key.verify(signedObject);
 	}
 
+	/**
+	 * Verifies the signatures of the given objects (e.g., the PaymentResponses
+	 * received for the payments which are still pending in the
+	 * IPersistencyHandler) with the server's public key. The objects are
+	 * distributed over all available cores, with the calling thread taking a
+	 * share as well. If there are at least
+	 * {@link Config#BATCH_PRECOMPUTE_THRESHOLD} objects, the multiples of the
+	 * server's public keys used are computed first (see
+	 * {@link #ServerInfos(PublicKey, boolean)}) and kept for later
+	 * verifications.
+	 * 
+	 * @param signedObjects
+	 *            the objects signed by the server
+	 * @return an array with the same length as signedObjects, which is true at
+	 *         position i if the signature of signedObjects[i] is valid and
+	 *         false if it is not valid or cannot be verified
+	 */
+	public boolean[] verify(final SignedSerializableObject[] signedObjects) {
+		final boolean[] result = new boolean[signedObjects.length];
+		if (signedObjects.length >= Config.BATCH_PRECOMPUTE_THRESHOLD) {
+			for (SignedSerializableObject signedObject : signedObjects) {
+				ServerKey key = signedObject == null ? null : lookup(signedObject.getKeyNumber());
+				if (key != null)
+					key.precompute();
+			}
+		}
+		
+		final int nofParts = Math.min(signedObjects.length, Runtime.getRuntime().availableProcessors());
+		if (nofParts <= 1) {
+			verify(signedObjects, result, 0, 1);
+			return result;
+		}
+		
+		List<Future<?>> futures = new ArrayList<Future<?>>(nofParts - 1);
+		try {
+			for (int i = 1; i < nofParts; i++) {
+				final int part = i;
+				futures.add(Workers.EXECUTOR.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						verify(signedObjects, result, part, nofParts);
+						return null;
+					}
+				}));
+			}
+			verify(signedObjects, result, 0, nofParts);
+			
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			// the objects which have not been verified yet are reported as invalid
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// not possible, since verify(SignedSerializableObject[], boolean[], int, int) does not throw
+		} finally {
+			for (Future<?> future : futures) {
+				future.cancel(false);
+			}
+		}
+		return result;
+	}
+	
+	/*
+	 * Verifies every nofParts-th object, starting at the given part. The
+	 * results are written to disjoint positions, which are visible to the
+	 * caller once the Future has completed.
+	 */
+	private void verify(SignedSerializableObject[] signedObjects, boolean[] result, int part, int nofParts) {
+		for (int i = part; i < signedObjects.length; i += nofParts) {
+			try {
+				result[i] = signedObjects[i] != null && verify(signedObjects[i]);
+			} catch (Exception e) {
+				result[i] = false;
+			}
+		}
+	}
+	
+	/*
+	 * A key of the key ring with its verifiers.
+	 */
+	private static class ServerKey {
+		private final PublicKey publicKey;
+		private final SignatureEngines signatureEngines;
+		private volatile FixedBaseVerifier fixedBaseVerifier;
+		private boolean precomputed;
+		
+		private ServerKey(PublicKey publicKey, boolean precompute) {
+			this.publicKey = publicKey;
+			this.signatureEngines = new SignatureEngines(publicKey);
+			if (precompute)
+				precompute();
+		}
+		
+		private boolean verify(SignedSerializableObject signedObject) throws Exception {
+			PKIAlgorithm pkiAlgorithm = signedObject.getPKIAlgorithm();
+			FixedBaseVerifier fixedBaseVerifier = this.fixedBaseVerifier;
+			if (fixedBaseVerifier != null && FixedBaseVerifier.supports(pkiAlgorithm.getSignatureAlgorithm()))
+				return fixedBaseVerifier.verify(pkiAlgorithm.getSignatureAlgorithm(), signedObject.getPayload(), signedObject.getSignature());
+			
+			return signatureEngines.verify(pkiAlgorithm, signedObject.getPayload(), signedObject.getSignature());
+		}
+		
+		private synchronized void precompute() {
+			if (precomputed)
+				return;
+			
+			precomputed = true;
+			fixedBaseVerifier = FixedBaseVerifier.create(publicKey);
+		}
+	}
+	
+	/*
+	 * The threads are only started when the first batch is verified and are
+	 * shared by all ServerInfos.
+	 */
+	private static class Workers {
+		private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ServerInfos-verify");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
 }
@@ -0,0 +1,66 @@
+package ch.uzh.csg.paymentlib.container;
+
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.EnumMap;
+import java.util.Map;
+
+import ch.uzh.csg.mbps.customserialization.PKIAlgorithm;
+
+/**
+ * This class caches the {@link Signature} engines used to verify signatures
+ * with a given public key. Looking up the provider and initializing a new
+ * engine for every signature takes several milliseconds on older devices. An
+ * initialized engine is therefore kept per thread and per {@link PKIAlgorithm}
+ * and reused: after verifying a signature, an engine is reset to the state
+ * after its initialization.
+ * 
+ * Since {@link Signature} is not thread-safe, every thread gets its own
+ * engines.
+ */
+final class SignatureEngines {
+	
+	private final PublicKey publicKey;
+	
+	private final ThreadLocal<Map<PKIAlgorithm, Signature>> engines = new ThreadLocal<Map<PKIAlgorithm, Signature>>() {
+		@Override
+		protected Map<PKIAlgorithm, Signature> initialValue() {
+			return new EnumMap<PKIAlgorithm, Signature>(PKIAlgorithm.class);
+		}
+	};
+	
+	SignatureEngines(PublicKey publicKey) {
+		this.publicKey = publicKey;
+	}
+	
+	/**
+	 * Verifies the signature of the given data.
+	 * 
+	 * @param pkiAlgorithm
+	 *            the algorithm used to create the signature
+	 * @param data
+	 *            the signed data
+	 * @param signature
+	 *            the signature
+	 * @return true if the signature is valid
+	 * @throws GeneralSecurityException
+	 *             if the algorithm is not supported or the signature is not
+	 *             encoded properly
+	 */
+	boolean verify(PKIAlgorithm pkiAlgorithm, byte[] data, byte[] signature) throws GeneralSecurityException {
+		Map<PKIAlgorithm, Signature> map = engines.get();
+		Signature engine = map.remove(pkiAlgorithm);
+		if (engine == null) {
+			engine = Signature.getInstance(pkiAlgorithm.getSignatureAlgorithm());
+			engine.initVerify(publicKey);
+		}
+		
+		engine.update(data);
+		boolean valid = engine.verify(signature);
+		// only put back if no exception occurred, since the state would be undefined
+		map.put(pkiAlgorithm, engine);
+		return valid;
+	}
+	
+}
@@ -0,0 +1,230 @@
+package ch.uzh.csg.paymentlib.messages;
+
+import ch.uzh.csg.mbps.customserialization.PKIAlgorithm;
+import ch.uzh.csg.paymentlib.util.Config;
+
+/**
+ * This class represents the capabilities of a device, which are exchanged
+ * during the first message of a payment if both devices set the NEGOTIATE flag
+ * of the {@link PaymentMessage}. Both devices then use the common capabilities
+ * (see {@link #negotiate(Capabilities)}) for the rest of the session.
+ *
+ * The capabilities are encoded in a compact block, which is prefixed with its
+ * length (without the length byte itself). Fields which are added in a later
+ * version are appended to the block and skipped by older devices.
+ *
+ * <pre>
+ * | length | flags | max frame length (2 bytes) | PKIAlgorithm bitmap |
+ * </pre>
+ */
+public final class Capabilities {
+
+	public static final int COMPRESSION = 0x01; // the payload may be compressed (see PayloadCompressor)
+	public static final int FRAGMENTATION = 0x02; // large payloads may be fragmented (see Fragmenter)
+	public static final int BATCH = 0x04; // several payments may be sent at once
+	public static final int SESSION = 0x08; // payments may be authenticated within a PaymentSession
+
+	private static final int BLOCK_LENGTH = 4;
+
+	/**
+	 * The capabilities of a device which does not take part in the
+	 * negotiation. This corresponds to the baseline protocol.
+	 */
+	public static final Capabilities NONE = new Capabilities(0, 0, 0);
+
+	private static final Capabilities LOCAL = new Capabilities(COMPRESSION | FRAGMENTATION | BATCH, Config.MAX_FRAME_LENGTH, pkiAlgorithms(PKIAlgorithm.values()));
+
+	private final int flags;
+	private final int maxFrameLength;
+	private final int pkiAlgorithms;
+
+	/**
+	 * Instantiates new capabilities.
+	 *
+	 * @param flags
+	 *            the supported features (e.g., {@link #COMPRESSION})
+	 * @param maxFrameLength
+	 *            the maximum length of a frame which can be received, or 0 if
+	 *            there is no limit
+	 * @param pkiAlgorithms
+	 *            the bitmap of the supported {@link PKIAlgorithm}s, where bit
+	 *            n corresponds to the algorithm with code n
+	 */
+	public Capabilities(int flags, int maxFrameLength, int pkiAlgorithms) {
+		if (maxFrameLength < 0 || maxFrameLength > 0xFFFF)
+			throw new IllegalArgumentException("The max frame length must be between 0 and "+0xFFFF+".");
+
+		this.flags = flags & 0xFF;
+		this.maxFrameLength = maxFrameLength;
+		this.pkiAlgorithms = pkiAlgorithms & 0xFF;
+	}
+
+	/**
+	 * Returns the capabilities of this library.
+	 */
+	public static Capabilities local() {
+		return LOCAL;
+	}
+
+	/**
+	 * Returns these capabilities with the given features added.
+	 * 
+	 * @param flag
+	 *            the features (e.g., {@link #SESSION})
+	 */
+	public Capabilities with(int flag) {
+		return new Capabilities(flags | flag, maxFrameLength, pkiAlgorithms);
+	}
+	
+	/**
+	 * Returns these capabilities with the given features removed.
+	 * 
+	 * @param flag
+	 *            the features (e.g., {@link #SESSION})
+	 */
+	public Capabilities without(int flag) {
+		return new Capabilities(flags & ~flag, maxFrameLength, pkiAlgorithms);
+	}
+	
+	/**
+	 * Returns these capabilities with the given maximum frame length.
+	 * 
+	 * @param maxFrameLength
+	 *            the maximum length of a frame which can be received, or 0 if
+	 *            there is no limit
+	 */
+	public Capabilities withMaxFrameLength(int maxFrameLength) {
+		return new Capabilities(flags, maxFrameLength, pkiAlgorithms);
+	}
+	
+	/**
+	 * Returns the bitmap of the given {@link PKIAlgorithm}s.
+	 */
+	public static int pkiAlgorithms(PKIAlgorithm... algorithms) {
+		int bitmap = 0;
+		for (PKIAlgorithm algorithm : algorithms) {
+			int code = algorithm.getCode() & 0xFF;
+			if (code < 8)
+				bitmap |= 1 << code;
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Returns if the given feature is supported.
+	 *
+	 * @param flag
+	 *            the feature (e.g., {@link #COMPRESSION})
+	 */
+	public boolean supports(int flag) {
+		return (flags & flag) == flag;
+	}
+
+	/**
+	 * Returns if the given {@link PKIAlgorithm} is supported.
+	 */
+	public boolean supports(PKIAlgorithm algorithm) {
+		int code = algorithm.getCode() & 0xFF;
+		return code < 8 && (pkiAlgorithms & (1 << code)) != 0;
+	}
+
+	/**
+	 * Returns the maximum length of a frame which can be received, or 0 if
+	 * there is no limit.
+	 */
+	public int getMaxFrameLength() {
+		return maxFrameLength;
+	}
+
+	/**
+	 * Returns the common capabilities of this and the remote device. These
+	 * are the fastest capabilities both devices support.
+	 *
+	 * @param remote
+	 *            the capabilities of the remote device
+	 */
+	public Capabilities negotiate(Capabilities remote) {
+		int max;
+		if (maxFrameLength == 0)
+			max = remote.maxFrameLength;
+		else if (remote.maxFrameLength == 0)
+			max = maxFrameLength;
+		else
+			max = Math.min(maxFrameLength, remote.maxFrameLength);
+
+		return new Capabilities(flags & remote.flags, max, pkiAlgorithms & remote.pkiAlgorithms);
+	}
+
+	/**
+	 * Returns the length of the encoded block, including the length byte.
+	 */
+	public int encodedLength() {
+		return 1 + BLOCK_LENGTH;
+	}
+
+	/**
+	 * Writes the encoded block to the given array.
+	 *
+	 * @param dest
+	 *            the destination array
+	 * @param offset
+	 *            the position where the block starts
+	 * @return the position after the block
+	 */
+	public int encode(byte[] dest, int offset) {
+		dest[offset] = BLOCK_LENGTH;
+		dest[offset + 1] = (byte) flags;
+		dest[offset + 2] = (byte) (maxFrameLength >>> 8);
+		dest[offset + 3] = (byte) maxFrameLength;
+		dest[offset + 4] = (byte) pkiAlgorithms;
+		return offset + 1 + BLOCK_LENGTH;
+	}
+
+	/**
+	 * Returns the encoded block.
+	 */
+	public byte[] encode() {
+		byte[] result = new byte[encodedLength()];
+		encode(result, 0);
+		return result;
+	}
+
+	/**
+	 * Returns the length of the block (including the length byte) which
+	 * starts at the given position of the payload. This has to be used to
+	 * skip the block, since it might contain fields unknown to this version.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the block is not complete
+	 */
+	public static int blockLength(PaymentMessage pm, int offset) {
+		if (offset >= pm.payloadLength())
+			throw new IllegalArgumentException("The capabilities are missing.");
+
+		int len = 1 + (pm.payloadAt(offset) & 0xFF);
+		if (len - 1 < BLOCK_LENGTH || offset + len > pm.payloadLength())
+			throw new IllegalArgumentException("The capabilities are not complete.");
+
+		return len;
+	}
+
+	/**
+	 * Decodes the block which starts at the given position of the payload.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the block is not complete
+	 */
+	public static Capabilities decode(PaymentMessage pm, int offset) {
+		blockLength(pm, offset);
+		int flags = pm.payloadAt(offset + 1) & 0xFF;
+		int maxFrameLength = (pm.payloadAt(offset + 2) & 0xFF) << 8 | (pm.payloadAt(offset + 3) & 0xFF);
+		int pkiAlgorithms = pm.payloadAt(offset + 4) & 0xFF;
+		return new Capabilities(flags, maxFrameLength, pkiAlgorithms);
+	}
+
+	@Override
+	public String toString() {
+		return "Capabilities: flags: "+flags+", maxFrameLength: "+maxFrameLength+", pkiAlgorithms: "+pkiAlgorithms;
+	}
+
+}
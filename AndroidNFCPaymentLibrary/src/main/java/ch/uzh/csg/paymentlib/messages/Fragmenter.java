@@ -0,0 +1,156 @@
+package ch.uzh.csg.paymentlib.messages;
+
+/**
+ * This class splits a payload which is too large for a single
+ * {@link PaymentMessage} into several fragments. The fragments are created one
+ * by one, so that each fragment can be sent as soon as it is created. On the
+ * other device, the fragments are put together by a {@link Reassembler}.
+ * 
+ * Every fragment has the header flags of the original message and the
+ * FRAGMENT flag set, all but the last fragment also the MORE_FRAGMENTS flag.
+ * The payload of a fragment starts with a sequence number (one byte, starting
+ * at 0). The first fragment additionally contains the length of the whole
+ * payload (four bytes) after the sequence number, so that the receiver can
+ * allocate the buffer at once.
+ * 
+ * The fragments are exchanged like any other message: the receiver answers
+ * every fragment but the last one with an empty fragment (a message with only
+ * the FRAGMENT flag set), and the sender then sends the next fragment. A message is only fragmented if both devices support
+ * {@link Capabilities#FRAGMENTATION} and the receiver has announced a maximum
+ * frame length.
+ */
+public class Fragmenter {
+	
+	/**
+	 * The number of bytes of the first fragment which are not part of the
+	 * payload.
+	 */
+	public static final int FIRST_FRAGMENT_OVERHEAD = PaymentMessage.HEADER_LENGTH + 1 + 4;
+	
+	/**
+	 * The number of bytes of every other fragment which are not part of the
+	 * payload.
+	 */
+	public static final int FRAGMENT_OVERHEAD = PaymentMessage.HEADER_LENGTH + 1;
+	
+	private final byte[] data;
+	private final int offset;
+	private final int length;
+	private final int maxFrameLength;
+	private final byte header;
+	private final byte headerMoreFragments;
+	
+	private int position = 0;
+	private int sequence = 0;
+	
+	/**
+	 * Instantiates a new fragmenter.
+	 * 
+	 * @param payload
+	 *            the payload to be split
+	 * @param payer
+	 *            true if the fragments are sent by the payer, false if they
+	 *            are sent by the payee
+	 * @param maxFrameLength
+	 *            the maximum length of a fragment (header and payload)
+	 */
+	public Fragmenter(byte[] payload, boolean payer, int maxFrameLength) {
+		this(payload, 0, payload == null ? 0 : payload.length, payer ? PaymentMessage.PAYER : 0, maxFrameLength);
+	}
+	
+	/**
+	 * Instantiates a new fragmenter for a serialized {@link PaymentMessage}.
+	 * The fragments carry the header flags of the message (e.g., COMPRESSED),
+	 * so the receiver reassembles the same message.
+	 * 
+	 * @param message
+	 *            the serialized message to be split
+	 * @param maxFrameLength
+	 *            the maximum length of a fragment (header and payload)
+	 */
+	public Fragmenter(byte[] message, int maxFrameLength) {
+		this(message, PaymentMessage.HEADER_LENGTH, message == null ? 0 : message.length - PaymentMessage.HEADER_LENGTH, message == null ? 0 : message[0], maxFrameLength);
+	}
+	
+	private Fragmenter(byte[] data, int offset, int length, int header, int maxFrameLength) {
+		if (data == null || length <= 0)
+			throw new IllegalArgumentException("payload cannot be null or empty");
+		
+		if (maxFrameLength <= FIRST_FRAGMENT_OVERHEAD)
+			throw new IllegalArgumentException("The maximum frame length must be greater than "+FIRST_FRAGMENT_OVERHEAD+".");
+		
+		this.data = data;
+		this.offset = offset;
+		this.length = length;
+		this.maxFrameLength = maxFrameLength;
+		this.header = (byte) ((header & ~PaymentMessage.MORE_FRAGMENTS) | PaymentMessage.FRAGMENT);
+		this.headerMoreFragments = (byte) (this.header | PaymentMessage.MORE_FRAGMENTS);
+	}
+	
+	/**
+	 * Returns true if a payload of the given length does not fit into a single
+	 * {@link PaymentMessage} of the given maximum length.
+	 * 
+	 * @param payloadLength
+	 *            the length of the payload
+	 * @param maxFrameLength
+	 *            the maximum length of a message (header and payload) or 0 if
+	 *            there is no limit
+	 */
+	public static boolean needsFragmentation(int payloadLength, int maxFrameLength) {
+		return maxFrameLength > 0 && PaymentMessage.HEADER_LENGTH + payloadLength > maxFrameLength;
+	}
+	
+	/**
+	 * Returns the number of fragments the payload is split into.
+	 */
+	public int getNofFragments() {
+		int first = maxFrameLength - FIRST_FRAGMENT_OVERHEAD;
+		if (length <= first)
+			return 1;
+		
+		int other = maxFrameLength - FRAGMENT_OVERHEAD;
+		return 1 + (length - first + other - 1) / other;
+	}
+	
+	/**
+	 * Returns true if not all fragments have been created yet.
+	 */
+	public boolean hasNext() {
+		return position < length;
+	}
+	
+	/**
+	 * Creates the next fragment and returns the serialized
+	 * {@link PaymentMessage}.
+	 * 
+	 * @throws IllegalStateException
+	 *             if all fragments have already been created
+	 */
+	public byte[] next() {
+		if (!hasNext())
+			throw new IllegalStateException("All fragments have already been created.");
+		
+		final boolean first = position == 0;
+		final int overhead = first ? FIRST_FRAGMENT_OVERHEAD : FRAGMENT_OVERHEAD;
+		final int len = Math.min(maxFrameLength - overhead, length - position);
+		final boolean last = position + len == length;
+		
+		byte[] output = new byte[overhead + len];
+		output[0] = last ? header : headerMoreFragments;
+		output[1] = (byte) sequence;
+		if (first) {
+			final int total = length;
+			output[2] = (byte) (total >>> 24);
+			output[3] = (byte) (total >>> 16);
+			output[4] = (byte) (total >>> 8);
+			output[5] = (byte) total;
+		}
+		System.arraycopy(data, offset + position, output, overhead, len);
+		
+		position += len;
+		sequence++;
+		return output;
+	}
+
+}
@@ -0,0 +1,233 @@
+package ch.uzh.csg.paymentlib.messages;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import ch.uzh.csg.mbps.customserialization.Currency;
+import ch.uzh.csg.mbps.customserialization.PKIAlgorithm;
+
+/**
+ * This class compresses and decompresses the payload of a
+ * {@link PaymentMessage} which has the COMPRESSED flag set.
+ * 
+ * The payload is compressed with raw deflate using a preset dictionary. The
+ * dictionary has to be known by both devices without sending it. It consists
+ * of a fixed part, which contains the byte sequences every encoded
+ * PaymentResponse and ServerPaymentResponse starts or ends with (the leading
+ * version, algorithm, and key number bytes, the currency codes followed by the
+ * high bytes of the amount, the high bytes of the timestamp, and the DER
+ * prefixes of the signatures), and of the payee's username. The username is
+ * known by both devices at the time a payment request or a server response is
+ * sent, and it is put at the end of the dictionary, since deflate encodes
+ * closer matches with fewer bits.
+ * 
+ * Compression only pays off for larger payloads. Therefore,
+ * {@link #compress(byte[], byte[])} returns null if the compressed payload is
+ * not smaller than the original one, in which case the payload has to be sent
+ * uncompressed.
+ */
+public class PayloadCompressor {
+	
+	private static final int BUFFER_LENGTH = 256;
+	
+	/*
+	 * Never change this without increasing the version of the PaymentMessage,
+	 * since a device with a different dictionary cannot decompress the
+	 * payloads.
+	 */
+	private static final byte[] LAYOUT = layout();
+	
+	private PayloadCompressor() {
+	}
+	
+	private static byte[] layout() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		
+		// DER encoded ECDSA signature: SEQUENCE, INTEGER r, INTEGER s
+		out.write(0x30); out.write(0x45); out.write(0x02); out.write(0x21); out.write(0x00);
+		out.write(0x30); out.write(0x44); out.write(0x02); out.write(0x20);
+		out.write(0x02); out.write(0x21); out.write(0x00);
+		
+		// the timestamp (in ms) starts with 0x00 0x00 0x01 until 2039
+		for (Currency currency : Currency.values()) {
+			// the currency code, followed by the amount and the timestamp
+			out.write(currency.getCode());
+			for (int i = 0; i < 5; i++)
+				out.write(0x00);
+			out.write(0x00); out.write(0x00); out.write(0x01);
+		}
+		
+		// ServerPaymentResponse: version, number of PaymentResponses
+		out.write(0x01); out.write(0x01);
+		for (PKIAlgorithm pkiAlgorithm : PKIAlgorithm.values()) {
+			// PaymentResponse: version, algorithm, key number, status
+			out.write(0x01); out.write(pkiAlgorithm.getCode()); out.write(0x01); out.write(0x01);
+		}
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Returns the preset dictionary used by the payment protocol.
+	 * 
+	 * @param usernamePayee
+	 *            the payee's username
+	 */
+	public static byte[] dictionary(String usernamePayee) {
+		byte[] username = usernamePayee.getBytes(Charset.forName("UTF-8"));
+		byte[] dictionary = new byte[LAYOUT.length + username.length];
+		System.arraycopy(LAYOUT, 0, dictionary, 0, LAYOUT.length);
+		System.arraycopy(username, 0, dictionary, LAYOUT.length, username.length);
+		return dictionary;
+	}
+	
+	/**
+	 * Compresses the given payload.
+	 * 
+	 * @param payload
+	 *            the payload to be compressed
+	 * @param dictionary
+	 *            the preset dictionary (may be null)
+	 * @return the compressed payload or null if compressing does not reduce
+	 *         the length of the payload
+	 */
+	public static byte[] compress(byte[] payload, byte[] dictionary) {
+		if (payload == null || payload.length == 0)
+			throw new IllegalArgumentException("payload cannot be null or empty");
+		
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+		try {
+			if (dictionary != null && dictionary.length > 0)
+				deflater.setDictionary(dictionary);
+			
+			deflater.setInput(payload);
+			deflater.finish();
+			
+			// the output must be smaller than the input, otherwise compressing is useless
+			byte[] output = new byte[payload.length - 1];
+			int len = 0;
+			while (!deflater.finished()) {
+				if (len == output.length)
+					return null;
+				
+				len += deflater.deflate(output, len, output.length - len);
+			}
+			
+			byte[] result = new byte[len];
+			System.arraycopy(output, 0, result, 0, len);
+			return result;
+		} finally {
+			deflater.end();
+		}
+	}
+	
+	/**
+	 * Decompresses the given payload. The output buffer is grown as needed, but
+	 * never beyond the given maximum length.
+	 * 
+	 * @param payload
+	 *            the compressed payload
+	 * @param dictionary
+	 *            the preset dictionary which has been used for compressing
+	 *            (may be null)
+	 * @param maxLength
+	 *            the maximum length of the decompressed payload
+	 * @return the decompressed payload
+	 * @throws IllegalArgumentException
+	 *             if the payload cannot be decompressed or the decompressed
+	 *             payload exceeds the maximum length
+	 */
+	public static byte[] decompress(byte[] payload, byte[] dictionary, int maxLength) {
+		if (payload == null || payload.length == 0)
+			throw new IllegalArgumentException("payload cannot be null or empty");
+		
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(payload);
+			if (dictionary != null && dictionary.length > 0)
+				inflater.setDictionary(dictionary);
+			
+			byte[] output = new byte[Math.min(maxLength, Math.max(BUFFER_LENGTH, 2 * payload.length))];
+			int len = 0;
+			while (!inflater.finished()) {
+				if (len == output.length) {
+					if (len == maxLength)
+						throw new IllegalArgumentException("The decompressed payload exceeds the maximum length of "+maxLength+" bytes.");
+					
+					byte[] tmp = new byte[Math.min(maxLength, 2 * output.length)];
+					System.arraycopy(output, 0, tmp, 0, len);
+					output = tmp;
+				}
+				
+				int n = inflater.inflate(output, len, output.length - len);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new IllegalArgumentException("The compressed payload is not complete.");
+				
+				len += n;
+			}
+			
+			if (len == output.length)
+				return output;
+			
+			byte[] result = new byte[len];
+			System.arraycopy(output, 0, result, 0, len);
+			return result;
+		} catch (DataFormatException e) {
+			throw new IllegalArgumentException("The payload cannot be decompressed: "+e.getMessage());
+		} finally {
+			inflater.end();
+		}
+	}
+	
+	/**
+	 * Returns the payload of the given message, which is decompressed if the
+	 * message has the COMPRESSED flag set.
+	 * 
+	 * @param pm
+	 *            the received message
+	 * @param dictionary
+	 *            the preset dictionary (may be null)
+	 * @param maxLength
+	 *            the maximum length of the decompressed payload
+	 * @throws IllegalArgumentException
+	 *             if the payload cannot be decompressed
+	 */
+	public static byte[] payload(PaymentMessage pm, byte[] dictionary, int maxLength) {
+		if (pm.isCompressed())
+			return decompress(pm.payload(), dictionary, maxLength);
+		else
+			return pm.payload();
+	}
+	
+	/**
+	 * Returns the payload of the given message starting at the given
+	 * position, which is decompressed if the message has the COMPRESSED flag
+	 * set. This has to be used if the payload is prefixed (e.g., with the
+	 * {@link Capabilities}), since the prefix is never compressed.
+	 * 
+	 * @param pm
+	 *            the received message
+	 * @param offset
+	 *            the position where the (compressed) payload starts
+	 * @param dictionary
+	 *            the preset dictionary (may be null)
+	 * @param maxLength
+	 *            the maximum length of the decompressed payload
+	 * @throws IllegalArgumentException
+	 *             if the payload cannot be decompressed
+	 */
+	public static byte[] payload(PaymentMessage pm, int offset, byte[] dictionary, int maxLength) {
+		if (offset == 0)
+			return payload(pm, dictionary, maxLength);
+		
+		byte[] payload = new byte[pm.payloadLength() - offset];
+		pm.copyPayload(offset, payload, 0, payload.length);
+		if (pm.isCompressed())
+			return decompress(payload, dictionary, maxLength);
+		else
+			return payload;
+	}
+
+}
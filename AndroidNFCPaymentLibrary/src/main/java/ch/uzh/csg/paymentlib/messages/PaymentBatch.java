@@ -0,0 +1,146 @@
+package ch.uzh.csg.paymentlib.messages;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class is the container for several encoded payment objects (e.g.,
+ * InitMessagePayee, PaymentRequest, or PaymentResponse), which are
+ * transferred within a single {@link PaymentMessage}. This allows settling
+ * several payments between the same devices in one NFC session.
+ *
+ * A batch starts with the {@link #TAG}, which tells it apart from a single
+ * encoded payment object (these start with the version of the serialization).
+ * A batch is only sent in messages of version 1 or higher, since devices of
+ * version 0 would not be able to decode it and answer with
+ * {@link PaymentError}.INCOMPATIBLE_VERSIONS instead.
+ *
+ * <pre>
+ * | TAG | number of items | length of item 1 (2 bytes) | item 1 | ... | length of item n (2 bytes) | item n |
+ * </pre>
+ */
+public class PaymentBatch {
+
+	/**
+	 * The first byte of every batch.
+	 */
+	public static final byte TAG = (byte) 0xBA;
+
+	/**
+	 * The maximum number of items in a batch.
+	 */
+	public static final int MAX_ITEMS = 0xFF;
+
+	private static final int MAX_ITEM_LENGTH = 0xFFFF;
+
+	private PaymentBatch() {
+	}
+
+	/**
+	 * Encodes the given items into a batch.
+	 *
+	 * @param items
+	 *            the encoded payment objects
+	 * @return the batch, which can be used as payload of a
+	 *         {@link PaymentMessage}
+	 * @throws IllegalArgumentException
+	 *             if the number of items or the length of an item is not valid
+	 */
+	public static byte[] encode(List<byte[]> items) {
+		if (items == null || items.isEmpty() || items.size() > MAX_ITEMS)
+			throw new IllegalArgumentException("A batch must contain between 1 and "+MAX_ITEMS+" items.");
+
+		int length = 2;
+		for (byte[] item : items) {
+			if (item == null || item.length == 0 || item.length > MAX_ITEM_LENGTH)
+				throw new IllegalArgumentException("The length of an item must be between 1 and "+MAX_ITEM_LENGTH+" bytes.");
+
+			length += 2 + item.length;
+		}
+
+		byte[] result = new byte[length];
+		result[0] = TAG;
+		result[1] = (byte) items.size();
+		int index = 2;
+		for (byte[] item : items) {
+			result[index++] = (byte) (item.length >>> 8);
+			result[index++] = (byte) item.length;
+			System.arraycopy(item, 0, result, index, item.length);
+			index += item.length;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns true if the payload contains a batch at the given position.
+	 *
+	 * @param pm
+	 *            the received message
+	 * @param offset
+	 *            the position where the batch would start
+	 */
+	public static boolean isBatch(PaymentMessage pm, int offset) {
+		return offset < pm.payloadLength() && pm.payloadAt(offset) == TAG;
+	}
+
+	/**
+	 * Decodes the batch which starts at the given position of the payload.
+	 *
+	 * @param pm
+	 *            the received message
+	 * @param offset
+	 *            the position where the batch starts
+	 * @return the encoded payment objects
+	 * @throws IllegalArgumentException
+	 *             if the payload does not contain a batch, or if the batch is
+	 *             not complete or contains further bytes
+	 */
+	public static List<byte[]> decode(PaymentMessage pm, int offset) {
+		if (!isBatch(pm, offset))
+			throw new IllegalArgumentException("The payload does not contain a batch.");
+
+		if (offset + 1 >= pm.payloadLength())
+			throw new IllegalArgumentException("The batch is empty.");
+
+		int nofItems = pm.payloadAt(offset + 1) & 0xFF;
+		if (nofItems == 0)
+			throw new IllegalArgumentException("The batch is empty.");
+
+		List<byte[]> items = new ArrayList<byte[]>(nofItems);
+		int index = offset + 2;
+		for (int i = 0; i < nofItems; i++) {
+			if (index + 2 > pm.payloadLength())
+				throw new IllegalArgumentException("The batch is not complete.");
+
+			int length = (pm.payloadAt(index) & 0xFF) << 8 | (pm.payloadAt(index + 1) & 0xFF);
+			index += 2;
+			if (length == 0 || index + length > pm.payloadLength())
+				throw new IllegalArgumentException("The batch is not complete.");
+
+			byte[] item = new byte[length];
+			pm.copyPayload(index, item, 0, length);
+			items.add(item);
+			index += length;
+		}
+
+		if (index != pm.payloadLength())
+			throw new IllegalArgumentException("The batch contains "+(pm.payloadLength() - index)+" unexpected bytes.");
+
+		return items;
+	}
+
+	/**
+	 * Decodes the given batch.
+	 *
+	 * @param batch
+	 *            the batch (e.g., a decompressed payload)
+	 * @return the encoded payment objects
+	 * @throws IllegalArgumentException
+	 *             if the payload does not contain a batch, or if the batch is
+	 *             not complete or contains further bytes
+	 */
+	public static List<byte[]> decode(byte[] batch) {
+		return decode(new PaymentMessage().payload(batch), 0);
+	}
+
+}
@@ -1,8 +1,5 @@
 package ch.uzh.csg.paymentlib.messages;
 
-import java.util.HashMap;
-import java.util.Map;
-
 import ch.uzh.csg.paymentlib.exceptions.UnknownPaymentErrorException;
 
 /**
@@ -11,6 +8,10 @@ import ch.uzh.csg.paymentlib.exceptions.UnknownPaymentErrorException;
  * payload is set to one of the codes below to provide more information why a
  * payment was not successful.
  * 
+ * The errors are singletons shared by all payments. The cause of error of a
+ * specific payment is therefore not stored here but in a
+ * {@link PaymentErrorResult}.
+ * 
  * @author Jeton Memeti
  * 
  */
@@ -22,14 +23,14 @@ public enum PaymentError {
 	NO_SERVER_RESPONSE((byte) 0x05), //when no server response received (neither ok nor nok) --> show on gui
 	UNEXPECTED_ERROR((byte) 0x06),
 	INCOMPATIBLE_VERSIONS((byte) 0x07),
-	INIT_FAILED((byte) 0x08);
+	INIT_FAILED((byte) 0x08),
+	INVALID_SIGNATURE((byte) 0x09), //the payer's signature has been rejected locally, before contacting the server
+	INVALID_SESSION((byte) 0x0A); //the PaymentSession is not known (anymore) or does not permit the payment
 	
-	private byte code;
-	private String errorCause;
+	private final byte code;
 	
 	private PaymentError(byte code) {
 		this.code = code;
-		this.errorCause = null;
 	}
 	
 	/**
@@ -39,26 +40,17 @@ public enum PaymentError {
 		return code;
 	}
 	
-	/**
-	 * Sets the cause of error description for this event. This is only
-	 * reasonable for the SERVER_REFUSED event.
-	 * 
-	 * @param errorCause
-	 *            the cause of error or description
+	/*
+	 * Indexed by the unsigned code, so that a received code can be resolved
+	 * without boxing it.
 	 */
-	public PaymentError setErrorCause(String errorCause) {
-		this.errorCause = errorCause;
-		return this;
-	}
-
-	/**
-	 * Returns the cause of error description if one is set or null.
-	 */
-	public String getErrorCause() {
-		return errorCause;
-	}
+	private static final PaymentError[] CODES = new PaymentError[256];
 	
-	private static Map<Byte, PaymentError> codeErrorMap = null;
+	static {
+		for (PaymentError err : values()) {
+			CODES[err.getCode() & 0xFF] = err;
+		}
+	}
 	
 	/**
 	 * Returns the PaymentError from the code.
@@ -69,21 +61,24 @@ public enum PaymentError {
 	 *             if the given code is not known
 	 */
 	public static PaymentError getPaymentError(byte b) throws UnknownPaymentErrorException {
-		if (codeErrorMap == null)
-			initMap();
-		
-		PaymentError err = codeErrorMap.get(b);
+		PaymentError err = lookup(b);
 		if (err == null)
 			throw new UnknownPaymentErrorException();
 		else
 			return err;
 	}
-
-	private static void initMap() {
-		codeErrorMap = new HashMap<Byte, PaymentError>();
-		for (PaymentError err : values()) {
-			codeErrorMap.put(err.getCode(), err);
-		}
+	
+	/**
+	 * Returns the PaymentError from the code, or null if the given code is not
+	 * known. In contrast to {@link #getPaymentError(byte)}, no exception is
+	 * created for unknown codes, which are received from malformed or
+	 * manipulated messages.
+	 * 
+	 * @param b
+	 *            the code
+	 */
+	public static PaymentError lookup(byte b) {
+		return CODES[b & 0xFF];
 	}
 
 }
@@ -0,0 +1,89 @@
+package ch.uzh.csg.paymentlib.messages;
+
+/**
+ * This class is the immutable outcome of an aborted payment. It is passed
+ * along with every PaymentEvent.ERROR and contains the {@link PaymentError}
+ * as well as an optional cause of error description (e.g., the reason
+ * provided by the server if the payment has been refused).
+ * 
+ * In contrast to the {@link PaymentError} singletons, an instance of this
+ * class belongs to a single payment and can therefore be passed between
+ * threads safely.
+ */
+public final class PaymentErrorResult {
+	
+	private static final PaymentErrorResult[] RESULTS;
+	
+	static {
+		PaymentError[] errors = PaymentError.values();
+		RESULTS = new PaymentErrorResult[errors.length];
+		for (PaymentError err : errors) {
+			RESULTS[err.ordinal()] = new PaymentErrorResult(err, null);
+		}
+	}
+	
+	private final PaymentError error;
+	private final String errorCause;
+	
+	private PaymentErrorResult(PaymentError error, String errorCause) {
+		this.error = error;
+		this.errorCause = errorCause;
+	}
+	
+	/**
+	 * Returns the result for the given error without a cause of error
+	 * description. Since the result is immutable, the same instance is
+	 * returned on every call.
+	 * 
+	 * @param error
+	 *            the {@link PaymentError}
+	 */
+	public static PaymentErrorResult of(PaymentError error) {
+		if (error == null)
+			throw new IllegalArgumentException("The error cannot be null.");
+		
+		return RESULTS[error.ordinal()];
+	}
+	
+	/**
+	 * Returns a new result for the given error and cause of error description.
+	 * This is only reasonable for PaymentError.SERVER_REFUSED.
+	 * 
+	 * @param error
+	 *            the {@link PaymentError}
+	 * @param errorCause
+	 *            the cause of error or description (may be null)
+	 */
+	public static PaymentErrorResult of(PaymentError error, String errorCause) {
+		if (errorCause == null)
+			return of(error);
+		
+		if (error == null)
+			throw new IllegalArgumentException("The error cannot be null.");
+		
+		return new PaymentErrorResult(error, errorCause);
+	}
+	
+	/**
+	 * Returns the {@link PaymentError}.
+	 */
+	public PaymentError getError() {
+		return error;
+	}
+	
+	/**
+	 * Returns the cause of error description if one is set or null.
+	 */
+	public String getErrorCause() {
+		return errorCause;
+	}
+	
+	@Override
+	public String toString() {
+		if (errorCause == null)
+			return error.toString();
+		else
+			return error + ": " + errorCause;
+	}
+
+}
@@ -1,5 +1,7 @@
 package ch.uzh.csg.paymentlib.messages;
 
+import java.nio.ByteBuffer;
+
 /**
  * This class represents a protocol message. This and only this message is send
  * between the two devices in order to accomplish a payment.
@@ -10,6 +12,10 @@ package ch.uzh.csg.paymentlib.messages;
  * If the header is set to ERROR, then the payload contains a code corresponding
  * to an {@link PaymentError}.
  * 
+ * A message can either own its payload or be a read-only view on a received
+ * frame (see {@link #view(byte[])}). A view does not copy the frame, so the
+ * header and the payload can be inspected without any allocation.
+ * 
  * @author Jeton Memeti
  * 
  */
@@ -19,20 +25,27 @@ public class PaymentMessage {
 	 * The number of the first version is 0. Future versions might be 1, 2, or
 	 * 3. Afterwards, a new byte has to be allocated for to contain the version
 	 * number.
+	 * 
+	 * Version 1 adds batch payments (see PaymentBatch), which devices of
+	 * version 0 reject. New messages are always created with version 0 and
+	 * only raised for a batch, so that devices of version 0 keep accepting
+	 * every other message.
 	 */
-	private static final int VERSION = 0;
+	private static final int VERSION = 1;
 
 	public static final int HEADER_LENGTH = 1;
 	
 	public static final byte ERROR = 0x01; // if not set, then PROCEED
 	public static final byte PAYER = 0x02; // if not set, then PAYEE
-	public static final byte UNUSED_1 = 0x04;
-	public static final byte UNUSED_2 = 0x08;
-	public static final byte UNUSED_3 = 0x10;
-	public static final byte UNUSED_4 = 0x20;
+	public static final byte FRAGMENT = 0x04; // if set, the payload is a part of a larger payload (see Fragmenter)
+	public static final byte MORE_FRAGMENTS = 0x08; // if set, further fragments of the same payload follow
+	public static final byte COMPRESSED = 0x10; // if set, the payload is compressed (see PayloadCompressor)
+	public static final byte NEGOTIATE = 0x20; // if set, the sender takes part in the capability negotiation (see Capabilities)
 
 	private byte[] payload = new byte[0];
-	private int header = VERSION << 6;
+	private int payloadOffset = 0;
+	private int payloadLength = 0;
+	private int header = 0;
 	
 	/**
 	 * Returns the version of this message.
@@ -42,6 +55,22 @@ public class PaymentMessage {
 		return ((header) & 0xC0) >>> 6;
 	}
 	
+	/**
+	 * Sets the version of this message (other flags are preserved!).
+	 * 
+	 * @param version
+	 *            the version, which must be between 0 and the supported
+	 *            version
+	 * @return this object with the new version
+	 */
+	public PaymentMessage version(int version) {
+		if (version < 0 || version > VERSION)
+			throw new IllegalArgumentException("The version must be between 0 and "+VERSION+".");
+		
+		header = (header & 0x3F) | (version << 6);
+		return this;
+	}
+	
 	/**
 	 * Returns the highest supported version of Payment Messages. If version()
 	 * returns an higher version that this method, we cannot process that
@@ -109,6 +138,86 @@ public class PaymentMessage {
 		return (header & PAYER) != PAYER;
 	}
 
+	/**
+	 * Sets the header of this message to fragment (other flags are
+	 * preserved!). This has to be used only if the payload of this message is
+	 * a part of a larger payload (see {@link Fragmenter}).
+	 * 
+	 * @return this object with the new flag
+	 */
+	public PaymentMessage fragment() {
+		header = header | FRAGMENT;
+		return this;
+	}
+	
+	/**
+	 * Returns if the flag in the header is FRAGMENT, this means if the payload
+	 * has to be passed to a {@link Reassembler}.
+	 */
+	public boolean isFragment() {
+		return (header & FRAGMENT) == FRAGMENT;
+	}
+	
+	/**
+	 * Sets the header of this message to more fragments (other flags are
+	 * preserved!). This has to be used on every fragment but the last one.
+	 * 
+	 * @return this object with the new flag
+	 */
+	public PaymentMessage moreFragments() {
+		header = header | MORE_FRAGMENTS;
+		return this;
+	}
+	
+	/**
+	 * Returns if the flag in the header is MORE_FRAGMENTS, this means if
+	 * further fragments of the same payload follow this message.
+	 */
+	public boolean hasMoreFragments() {
+		return (header & MORE_FRAGMENTS) == MORE_FRAGMENTS;
+	}
+
+	/**
+	 * Sets the header of this message to compressed (other flags are
+	 * preserved!). This has to be used only if the payload has been
+	 * compressed with the {@link PayloadCompressor}.
+	 * 
+	 * @return this object with the new flag
+	 */
+	public PaymentMessage compressed() {
+		header = header | COMPRESSED;
+		return this;
+	}
+	
+	/**
+	 * Returns if the flag in the header is COMPRESSED, this means if the
+	 * payload has to be decompressed before it can be decoded.
+	 */
+	public boolean isCompressed() {
+		return (header & COMPRESSED) == COMPRESSED;
+	}
+
+	/**
+	 * Sets the header of this message to negotiate (other flags are
+	 * preserved!). This has to be used on the first message of a payment in
+	 * order to announce that the {@link Capabilities} can be exchanged.
+	 * Devices which do not support the negotiation ignore this flag.
+	 * 
+	 * @return this object with the new flag
+	 */
+	public PaymentMessage negotiate() {
+		header = header | NEGOTIATE;
+		return this;
+	}
+	
+	/**
+	 * Returns if the flag in the header is NEGOTIATE, this means if the sender
+	 * takes part in the capability negotiation.
+	 */
+	public boolean isNegotiate() {
+		return (header & NEGOTIATE) == NEGOTIATE;
+	}
+	
 	/**
 	 * Sets the payload of this message. The header flags are preserved.
 	 * 
@@ -121,24 +230,88 @@ public class PaymentMessage {
 			throw new IllegalArgumentException("payload cannot be null or empty");
 		
 		this.payload = payload;
+		this.payloadOffset = 0;
+		this.payloadLength = payload.length;
 		return this;
 	}
 
 	/**
-	 * Returns the payload of this message.
+	 * Returns the payload of this message. If this message is a view on a
+	 * received frame, the payload is copied out of the frame on the first call
+	 * (the decoders need a dedicated array). Use {@link #payloadLength()},
+	 * {@link #payloadAt(int)}, or {@link #payloadBuffer()} to inspect the
+	 * payload without copying it.
 	 */
 	public byte[] payload() {
+		if (payloadOffset != 0 || payloadLength != payload.length) {
+			byte[] copy = new byte[payloadLength];
+			System.arraycopy(payload, payloadOffset, copy, 0, payloadLength);
+			payload = copy;
+			payloadOffset = 0;
+		}
 		return payload;
 	}
 	
+	/**
+	 * Returns the length of the payload.
+	 */
+	public int payloadLength() {
+		return payloadLength;
+	}
+	
+	/**
+	 * Returns the byte at the given position of the payload.
+	 * 
+	 * @param index
+	 *            the position within the payload
+	 * @throws IndexOutOfBoundsException
+	 *             if the index is negative or not smaller than
+	 *             {@link #payloadLength()}
+	 */
+	public byte payloadAt(int index) {
+		if (index < 0 || index >= payloadLength)
+			throw new IndexOutOfBoundsException("index: "+index+", payload length: "+payloadLength);
+		
+		return payload[payloadOffset + index];
+	}
+	
+	/**
+	 * Copies a part of the payload to the given array.
+	 * 
+	 * @param index
+	 *            the position within the payload to start copying from
+	 * @param dest
+	 *            the destination array
+	 * @param destOffset
+	 *            the position within the destination array
+	 * @param length
+	 *            the number of bytes to copy
+	 * @throws IndexOutOfBoundsException
+	 *             if the range is not within the payload or the destination
+	 */
+	public void copyPayload(int index, byte[] dest, int destOffset, int length) {
+		if (index < 0 || length < 0 || index + length > payloadLength)
+			throw new IndexOutOfBoundsException("index: "+index+", length: "+length+", payload length: "+payloadLength);
+		
+		System.arraycopy(payload, payloadOffset + index, dest, destOffset, length);
+	}
+	
+	/**
+	 * Returns a read-only {@link ByteBuffer} on the payload. The payload is not
+	 * copied, the buffer is backed by the received frame.
+	 */
+	public ByteBuffer payloadBuffer() {
+		return ByteBuffer.wrap(payload, payloadOffset, payloadLength).slice().asReadOnlyBuffer();
+	}
+	
 	/**
 	 * Serializes this message and returns the byte array.
 	 */
 	public byte[] bytes() {
-		final int len = payload.length;
+		final int len = payloadLength;
 		byte[] output = new byte[HEADER_LENGTH + len];
 		output[0] = (byte) header;
-		System.arraycopy(payload, 0, output, HEADER_LENGTH, len);
+		System.arraycopy(payload, payloadOffset, output, HEADER_LENGTH, len);
 		return output;
 	}
 
@@ -154,30 +327,131 @@ public class PaymentMessage {
 	 *            the serialized data to be deserialized into a payment message
 	 */
 	public PaymentMessage bytes(byte[] input) {
-		final int len = input.length;
 		if (!isEmpty())
 			throw new IllegalArgumentException("This message is not empty. You cannot overwrite the content. Instantiate a new object.");
 		
-		if (input == null || len < HEADER_LENGTH)
+		if (input == null || input.length < HEADER_LENGTH)
 			throw new IllegalArgumentException("The input is null or does not contain enough data.");
-
+		
+		final int len = input.length;
 		header = input[0];
 		if (len > HEADER_LENGTH) {
 			payload = new byte[len - HEADER_LENGTH];
 			System.arraycopy(input, HEADER_LENGTH, payload, 0, len - HEADER_LENGTH);
+			payloadOffset = 0;
+			payloadLength = payload.length;
 		}
 		return this;
 	}
 	
+	/**
+	 * Instantiates a new read-only view on the input. In contrast to
+	 * {@link #bytes(byte[])}, the input is not copied. Changes to the input are
+	 * therefore visible in this message, so the input must not be modified as
+	 * long as this message is used.
+	 * 
+	 * If this message is not empty (e.g., edited before) an
+	 * IllegalArgumentException is thrown. Instantiate a new object before
+	 * calling this method.
+	 * 
+	 * @param input
+	 *            the serialized data to be wrapped into a payment message
+	 */
+	public PaymentMessage view(byte[] input) {
+		if (input == null)
+			throw new IllegalArgumentException("The input is null or does not contain enough data.");
+		
+		return view(input, 0, input.length);
+	}
+	
+	/**
+	 * Instantiates a new read-only view on the given range of the input. See
+	 * {@link #view(byte[])}.
+	 * 
+	 * @param input
+	 *            the array containing the serialized data
+	 * @param offset
+	 *            the position of the header within the input
+	 * @param length
+	 *            the number of bytes of the message (header and payload)
+	 */
+	public PaymentMessage view(byte[] input, int offset, int length) {
+		if (!isEmpty())
+			throw new IllegalArgumentException("This message is not empty. You cannot overwrite the content. Instantiate a new object.");
+		
+		if (input == null || length < HEADER_LENGTH || offset < 0 || length > input.length - offset)
+			throw new IllegalArgumentException("The input is null or does not contain enough data.");
+		
+		header = input[offset];
+		payload = input;
+		payloadOffset = offset + HEADER_LENGTH;
+		payloadLength = length - HEADER_LENGTH;
+		return this;
+	}
+	
+	/**
+	 * Returns the version of the given serialized message without
+	 * instantiating a {@link PaymentMessage}. Together with
+	 * {@link #isError(byte[])} and {@link #error(byte[])}, this allows
+	 * rejecting malformed messages without allocating anything.
+	 * 
+	 * @param frame
+	 *            the serialized message, containing at least the header
+	 */
+	public static int version(byte[] frame) {
+		return (frame[0] & 0xC0) >>> 6;
+	}
+	
+	/**
+	 * Returns if the flag in the header of the given serialized message is
+	 * ERROR. See {@link #version(byte[])}.
+	 * 
+	 * @param frame
+	 *            the serialized message, containing at least the header
+	 */
+	public static boolean isError(byte[] frame) {
+		return (frame[0] & ERROR) == ERROR;
+	}
+	
+	/**
+	 * Returns if the flag in the header of the given serialized message is
+	 * FRAGMENT. See {@link #version(byte[])}.
+	 * 
+	 * @param frame
+	 *            the serialized message, containing at least the header
+	 */
+	public static boolean isFragment(byte[] frame) {
+		return (frame[0] & FRAGMENT) == FRAGMENT;
+	}
+	
+	/**
+	 * Returns the {@link PaymentError} contained in the payload of the given
+	 * serialized error message, or null if the payload is empty or contains an
+	 * unknown code. See {@link #version(byte[])}.
+	 * 
+	 * @param frame
+	 *            the serialized message, containing at least the header
+	 */
+	public static PaymentError error(byte[] frame) {
+		return frame.length > HEADER_LENGTH ? PaymentError.lookup(frame[HEADER_LENGTH]) : null;
+	}
+	
+	/*
+	 * Returns the header byte.
+	 */
+	byte header() {
+		return (byte) header;
+	}
+	
 	private boolean isEmpty() {
-		return (header << 2) == 0 && payload.length == 0;
+		return (header << 2) == 0 && payloadLength == 0;
 	}
 
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder("PaymentMsg: ");
 		sb.append("head: ").append(Integer.toHexString(header));
-		sb.append(", len:").append(payload.length);
+		sb.append(", len:").append(payloadLength);
 		return sb.toString();
 	}
 	
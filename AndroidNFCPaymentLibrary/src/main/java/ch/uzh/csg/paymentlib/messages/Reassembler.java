@@ -0,0 +1,141 @@
+package ch.uzh.csg.paymentlib.messages;
+
+import java.util.Arrays;
+
+/**
+ * This class puts the fragments created by a {@link Fragmenter} together. The
+ * fragments are copied into a single buffer as they arrive, which is allocated
+ * as soon as the first fragment (containing the total length) is received.
+ * The buffer holds the reassembled {@link PaymentMessage} (header and
+ * payload), so it can be processed like a message which has not been
+ * fragmented.
+ */
+public class Reassembler {
+	
+	private final int maxPayloadLength;
+	
+	private byte[] buffer = null;
+	private int position = 0;
+	private int sequence = 0;
+	private boolean complete = false;
+	
+	/**
+	 * Instantiates a new reassembler.
+	 * 
+	 * @param maxPayloadLength
+	 *            the maximum length of the reassembled payload which is
+	 *            accepted, in order to not allocate arbitrary large buffers
+	 */
+	public Reassembler(int maxPayloadLength) {
+		if (maxPayloadLength <= 0)
+			throw new IllegalArgumentException("The maximum payload length must be greater than 0.");
+		
+		this.maxPayloadLength = maxPayloadLength;
+	}
+	
+	/**
+	 * Appends the given fragment to the payload.
+	 * 
+	 * @param fragment
+	 *            the received {@link PaymentMessage}, which must have the
+	 *            FRAGMENT flag set
+	 * @return true if this was the last fragment and the payload is complete,
+	 *         false if further fragments are expected
+	 * @throws IllegalArgumentException
+	 *             if the fragment is malformed, out of order, or does not
+	 *             correspond to the announced length. This object has to
+	 *             be reset afterwards.
+	 */
+	public boolean append(PaymentMessage fragment) {
+		if (complete)
+			throw new IllegalArgumentException("The payload is already complete. Reset this object first.");
+		
+		if (!fragment.isFragment())
+			throw new IllegalArgumentException("The message is not a fragment.");
+		
+		final boolean first = sequence == 0;
+		final int overhead = (first ? Fragmenter.FIRST_FRAGMENT_OVERHEAD : Fragmenter.FRAGMENT_OVERHEAD) - PaymentMessage.HEADER_LENGTH;
+		final int len = fragment.payloadLength() - overhead;
+		if (len <= 0)
+			throw new IllegalArgumentException("The fragment does not contain enough data.");
+		
+		if ((fragment.payloadAt(0) & 0xFF) != (sequence & 0xFF))
+			throw new IllegalArgumentException("Expected fragment "+(sequence & 0xFF)+" but was "+(fragment.payloadAt(0) & 0xFF)+".");
+		
+		if (first) {
+			final int total = (fragment.payloadAt(1) & 0xFF) << 24
+					| (fragment.payloadAt(2) & 0xFF) << 16
+					| (fragment.payloadAt(3) & 0xFF) << 8
+					| (fragment.payloadAt(4) & 0xFF);
+			
+			if (total <= 0 || total > maxPayloadLength)
+				throw new IllegalArgumentException("The announced payload length "+total+" is not valid.");
+			
+			buffer = new byte[PaymentMessage.HEADER_LENGTH + total];
+		}
+		
+		if (len > buffer.length - PaymentMessage.HEADER_LENGTH - position)
+			throw new IllegalArgumentException("The fragments exceed the announced payload length.");
+		
+		fragment.copyPayload(overhead, buffer, PaymentMessage.HEADER_LENGTH + position, len);
+		position += len;
+		sequence++;
+		
+		if (fragment.hasMoreFragments())
+			return false;
+		
+		if (PaymentMessage.HEADER_LENGTH + position != buffer.length)
+			throw new IllegalArgumentException("The last fragment has been received before the announced payload length was reached.");
+		
+		// the fragments carry the header flags of the original message
+		buffer[0] = (byte) (fragment.header() & ~(PaymentMessage.FRAGMENT | PaymentMessage.MORE_FRAGMENTS));
+		complete = true;
+		return true;
+	}
+	
+	/**
+	 * Returns true if the last fragment has been appended.
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+	
+	/**
+	 * Returns the reassembled payload.
+	 * 
+	 * @throws IllegalStateException
+	 *             if not all fragments have been appended yet
+	 */
+	public byte[] payload() {
+		if (!complete)
+			throw new IllegalStateException("The payload is not complete yet.");
+		
+		return Arrays.copyOfRange(buffer, PaymentMessage.HEADER_LENGTH, buffer.length);
+	}
+	
+	/**
+	 * Returns the reassembled message, serialized like the message which has
+	 * been passed to the {@link Fragmenter}. In contrast to {@link #payload()},
+	 * the buffer is not copied.
+	 * 
+	 * @throws IllegalStateException
+	 *             if not all fragments have been appended yet
+	 */
+	public byte[] message() {
+		if (!complete)
+			throw new IllegalStateException("The payload is not complete yet.");
+		
+		return buffer;
+	}
+	
+	/**
+	 * Resets this object so that it can be used for the next payload.
+	 */
+	public void reset() {
+		buffer = null;
+		position = 0;
+		sequence = 0;
+		complete = false;
+	}
+
+}
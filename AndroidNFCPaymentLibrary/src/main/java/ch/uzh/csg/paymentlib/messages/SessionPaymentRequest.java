@@ -0,0 +1,191 @@
+package ch.uzh.csg.paymentlib.messages;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+
+import ch.uzh.csg.mbps.customserialization.PaymentRequest;
+import ch.uzh.csg.mbps.customserialization.ServerPaymentRequest;
+import ch.uzh.csg.paymentlib.container.PaymentSession;
+
+/**
+ * This class is the counterpart of a {@link ServerPaymentRequest} for
+ * payments within a {@link PaymentSession}. Instead of the signed payment
+ * requests, it contains the payloads of the payer's and the payee's
+ * {@link PaymentRequest} (see {@link PaymentRequest#getPayload()}), each
+ * authenticated with the MAC key of the respective user.
+ * 
+ * The server looks up the session by the key id, derives the MAC keys of both
+ * users (see
+ * {@link PaymentSession#deriveKey(java.security.PrivateKey, java.security.PublicKey, byte[], boolean)}),
+ * verifies the MACs (see {@link #verify(SecretKey, SecretKey)}), and checks
+ * that the payment is within the session's limits.
+ * 
+ * <pre>
+ * | type | key id (8 bytes) | length (2 bytes) | payload payer | MAC payer (32 bytes) | length (2 bytes) | payload payee | MAC payee (32 bytes) |
+ * </pre>
+ */
+public final class SessionPaymentRequest {
+	
+	/**
+	 * The first byte of an encoded session payment request, which allows the
+	 * server to distinguish it from other requests.
+	 */
+	public static final byte TYPE = 0x53;
+	
+	private static final int MAX_PAYLOAD_LENGTH = 0xFFFF;
+	
+	private final byte[] keyId;
+	private final byte[] payloadPayer;
+	private final byte[] macPayer;
+	private final byte[] payloadPayee;
+	private final byte[] macPayee;
+	
+	/**
+	 * Instantiates a new session payment request.
+	 * 
+	 * @param keyId
+	 *            the key id of the session
+	 * @param payloadPayer
+	 *            the payload of the payer's payment request
+	 * @param macPayer
+	 *            the payer's MAC of the payload
+	 * @param payloadPayee
+	 *            the payload of the payee's payment request
+	 * @param macPayee
+	 *            the payee's MAC of the payload
+	 * @throws IllegalArgumentException
+	 *             if any parameter has not the expected length
+	 */
+	public SessionPaymentRequest(byte[] keyId, byte[] payloadPayer, byte[] macPayer, byte[] payloadPayee, byte[] macPayee) {
+		if (keyId == null || keyId.length != PaymentSession.KEY_ID_LENGTH)
+			throw new IllegalArgumentException("The key id must have "+PaymentSession.KEY_ID_LENGTH+" bytes.");
+		if (macPayer == null || macPayer.length != PaymentSession.MAC_LENGTH || macPayee == null || macPayee.length != PaymentSession.MAC_LENGTH)
+			throw new IllegalArgumentException("The MAC must have "+PaymentSession.MAC_LENGTH+" bytes.");
+		if (payloadPayer == null || payloadPayer.length == 0 || payloadPayer.length > MAX_PAYLOAD_LENGTH
+				|| payloadPayee == null || payloadPayee.length == 0 || payloadPayee.length > MAX_PAYLOAD_LENGTH)
+			throw new IllegalArgumentException("The length of a payload must be between 1 and "+MAX_PAYLOAD_LENGTH+" bytes.");
+		
+		this.keyId = keyId;
+		this.payloadPayer = payloadPayer;
+		this.macPayer = macPayer;
+		this.payloadPayee = payloadPayee;
+		this.macPayee = macPayee;
+	}
+	
+	/**
+	 * Returns the encoded session payment request, which has to be forwarded
+	 * to the server.
+	 */
+	public byte[] encode() {
+		byte[] result = new byte[1 + keyId.length + 2 + payloadPayer.length + macPayer.length + 2 + payloadPayee.length + macPayee.length];
+		result[0] = TYPE;
+		int index = copy(keyId, result, 1);
+		index = copy(payloadPayer, result, writeLength(payloadPayer.length, result, index));
+		index = copy(macPayer, result, index);
+		index = copy(payloadPayee, result, writeLength(payloadPayee.length, result, index));
+		copy(macPayee, result, index);
+		return result;
+	}
+	
+	private static int writeLength(int length, byte[] dest, int index) {
+		dest[index] = (byte) (length >>> 8);
+		dest[index + 1] = (byte) length;
+		return index + 2;
+	}
+	
+	private static int copy(byte[] src, byte[] dest, int index) {
+		System.arraycopy(src, 0, dest, index, src.length);
+		return index + src.length;
+	}
+	
+	/**
+	 * Decodes the given session payment request.
+	 * 
+	 * @param encoded
+	 *            the encoded session payment request
+	 * @throws IllegalArgumentException
+	 *             if the request is not complete or contains further bytes
+	 */
+	public static SessionPaymentRequest decode(byte[] encoded) {
+		if (encoded == null || encoded.length < 1 + PaymentSession.KEY_ID_LENGTH || encoded[0] != TYPE)
+			throw new IllegalArgumentException("This is not a session payment request.");
+		
+		int index = 1;
+		byte[] keyId = Arrays.copyOfRange(encoded, index, index + PaymentSession.KEY_ID_LENGTH);
+		index += PaymentSession.KEY_ID_LENGTH;
+		
+		byte[] payloadPayer = readPayload(encoded, index);
+		index += 2 + payloadPayer.length;
+		byte[] macPayer = readMac(encoded, index);
+		index += macPayer.length;
+		
+		byte[] payloadPayee = readPayload(encoded, index);
+		index += 2 + payloadPayee.length;
+		byte[] macPayee = readMac(encoded, index);
+		index += macPayee.length;
+		
+		if (index != encoded.length)
+			throw new IllegalArgumentException("The session payment request contains "+(encoded.length - index)+" unexpected bytes.");
+		
+		return new SessionPaymentRequest(keyId, payloadPayer, macPayer, payloadPayee, macPayee);
+	}
+	
+	private static byte[] readPayload(byte[] encoded, int index) {
+		if (index + 2 > encoded.length)
+			throw new IllegalArgumentException("The session payment request is not complete.");
+		
+		int length = (encoded[index] & 0xFF) << 8 | (encoded[index + 1] & 0xFF);
+		if (index + 2 + length > encoded.length)
+			throw new IllegalArgumentException("The session payment request is not complete.");
+		
+		return Arrays.copyOfRange(encoded, index + 2, index + 2 + length);
+	}
+	
+	private static byte[] readMac(byte[] encoded, int index) {
+		if (index + PaymentSession.MAC_LENGTH > encoded.length)
+			throw new IllegalArgumentException("The session payment request is not complete.");
+		
+		return Arrays.copyOfRange(encoded, index, index + PaymentSession.MAC_LENGTH);
+	}
+	
+	/**
+	 * Returns true if both MACs are valid.
+	 * 
+	 * @param keyPayer
+	 *            the payer's MAC key of the session
+	 * @param keyPayee
+	 *            the payee's MAC key of the session
+	 * @throws GeneralSecurityException
+	 *             if the MAC algorithm is not supported
+	 */
+	public boolean verify(SecretKey keyPayer, SecretKey keyPayee) throws GeneralSecurityException {
+		// both MACs are always computed, so the time does not reveal which one is invalid
+		boolean validPayer = PaymentSession.verify(keyPayer, payloadPayer, macPayer);
+		boolean validPayee = PaymentSession.verify(keyPayee, payloadPayee, macPayee);
+		return validPayer & validPayee;
+	}
+	
+	/**
+	 * Returns the key id of the session.
+	 */
+	public byte[] getKeyId() {
+		return keyId.clone();
+	}
+	
+	/**
+	 * Returns the payload of the payer's payment request.
+	 */
+	public byte[] getPayloadPayer() {
+		return payloadPayer.clone();
+	}
+	
+	/**
+	 * Returns the payload of the payee's payment request.
+	 */
+	public byte[] getPayloadPayee() {
+		return payloadPayee.clone();
+	}
+	
+}
@@ -0,0 +1,119 @@
+package ch.uzh.csg.paymentlib.messages;
+
+import java.util.Arrays;
+
+import ch.uzh.csg.mbps.customserialization.PaymentRequest;
+import ch.uzh.csg.paymentlib.container.PaymentSession;
+
+/**
+ * This class contains the payer's authentication of a payment request within
+ * a {@link PaymentSession}, which is sent to the payee instead of the signed
+ * {@link PaymentRequest}. The payee knows all other fields of the payment
+ * request and reconstructs it (see {@link SessionPaymentRequest}).
+ * 
+ * If the payer announces {@link Capabilities#SESSION}, the payload of its
+ * payment request message starts with {@link #SIGNATURE} (followed by the
+ * signed payment request) or {@link #MAC} (followed by the token).
+ * 
+ * <pre>
+ * | key id (8 bytes) | timestamp (8 bytes) | MAC (32 bytes) |
+ * </pre>
+ */
+public final class SessionToken {
+	
+	public static final byte SIGNATURE = 0x00; // a signed payment request follows
+	public static final byte MAC = 0x01; // a token follows
+	
+	/**
+	 * The length of an encoded token.
+	 */
+	public static final int LENGTH = PaymentSession.KEY_ID_LENGTH + 8 + PaymentSession.MAC_LENGTH;
+	
+	private final byte[] keyId;
+	private final long timestamp;
+	private final byte[] mac;
+	
+	/**
+	 * Instantiates a new token.
+	 * 
+	 * @param keyId
+	 *            the key id of the session
+	 * @param timestamp
+	 *            the timestamp of the payer's payment request
+	 * @param mac
+	 *            the payer's MAC of the payload of its payment request
+	 * @throws IllegalArgumentException
+	 *             if the key id or the MAC has not the expected length
+	 */
+	public SessionToken(byte[] keyId, long timestamp, byte[] mac) {
+		if (keyId == null || keyId.length != PaymentSession.KEY_ID_LENGTH)
+			throw new IllegalArgumentException("The key id must have "+PaymentSession.KEY_ID_LENGTH+" bytes.");
+		if (mac == null || mac.length != PaymentSession.MAC_LENGTH)
+			throw new IllegalArgumentException("The MAC must have "+PaymentSession.MAC_LENGTH+" bytes.");
+		
+		this.keyId = keyId;
+		this.timestamp = timestamp;
+		this.mac = mac;
+	}
+	
+	/**
+	 * Returns the encoded token, prefixed with {@link #MAC}.
+	 */
+	public byte[] encode() {
+		byte[] result = new byte[1 + LENGTH];
+		result[0] = MAC;
+		System.arraycopy(keyId, 0, result, 1, keyId.length);
+		int index = 1 + keyId.length;
+		for (int i = 7; i >= 0; i--) {
+			result[index++] = (byte) (timestamp >>> (i * 8));
+		}
+		System.arraycopy(mac, 0, result, index, mac.length);
+		return result;
+	}
+	
+	/**
+	 * Decodes the token which starts at the given position.
+	 * 
+	 * @param payload
+	 *            the payload of the payer's message
+	 * @param offset
+	 *            the position where the token starts
+	 * @throws IllegalArgumentException
+	 *             if the token is not complete or further bytes follow
+	 */
+	public static SessionToken decode(byte[] payload, int offset) {
+		if (payload.length - offset != LENGTH)
+			throw new IllegalArgumentException("The session token must have "+LENGTH+" bytes.");
+		
+		byte[] keyId = Arrays.copyOfRange(payload, offset, offset + PaymentSession.KEY_ID_LENGTH);
+		int index = offset + PaymentSession.KEY_ID_LENGTH;
+		long timestamp = 0;
+		for (int i = 0; i < 8; i++) {
+			timestamp = timestamp << 8 | (payload[index++] & 0xFF);
+		}
+		byte[] mac = Arrays.copyOfRange(payload, index, index + PaymentSession.MAC_LENGTH);
+		return new SessionToken(keyId, timestamp, mac);
+	}
+	
+	/**
+	 * Returns the key id of the session.
+	 */
+	public byte[] getKeyId() {
+		return keyId.clone();
+	}
+	
+	/**
+	 * Returns the timestamp of the payer's payment request.
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+	
+	/**
+	 * Returns the payer's MAC.
+	 */
+	public byte[] getMac() {
+		return mac.clone();
+	}
+	
+}
@@ -0,0 +1,62 @@
+package ch.uzh.csg.paymentlib.signer;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import ch.uzh.csg.mbps.customserialization.SignedSerializableObject;
+import ch.uzh.csg.paymentlib.exceptions.IllegalArgumentException;
+
+/**
+ * This {@link IPaymentSigner} delays another signer by a fixed time and
+ * notifies the listener on a background thread, as a signer backed by a
+ * secure store (e.g., a secure element) would. It is intended for testing
+ * the payment with slow signers, and must not be used in production.
+ */
+public class DelayedSigner implements IPaymentSigner {
+	
+	private IPaymentSigner signer;
+	private long delay;
+	private ScheduledExecutorService scheduler;
+	
+	/**
+	 * Instantiates a new signer.
+	 * 
+	 * @param signer
+	 *            the signer which actually signs the objects (e.g., a
+	 *            {@link SoftwareSigner})
+	 * @param delay
+	 *            the time (in ms) to wait before signing each object
+	 * @throws IllegalArgumentException
+	 *             if the signer is null or the delay is negative
+	 */
+	public DelayedSigner(IPaymentSigner signer, long delay) throws IllegalArgumentException {
+		if (signer == null)
+			throw new IllegalArgumentException("The signer cannot be null.");
+		if (delay < 0)
+			throw new IllegalArgumentException("The delay cannot be negative.");
+		
+		this.signer = signer;
+		this.delay = delay;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "DelayedSigner");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	@Override
+	public void sign(final SignedSerializableObject signedObject, final ISignatureListener listener) {
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				signer.sign(signedObject, listener);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+	
+}
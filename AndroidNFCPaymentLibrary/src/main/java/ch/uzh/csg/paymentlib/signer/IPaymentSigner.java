@@ -0,0 +1,33 @@
+package ch.uzh.csg.paymentlib.signer;
+
+import ch.uzh.csg.mbps.customserialization.SignedSerializableObject;
+
+/**
+ * This interface has to be implemented by the class responsible for signing
+ * the user's payment requests, e.g., with a key which is held in a secure
+ * store and never leaves it. Since such stores may take some hundred
+ * milliseconds, signing is asynchronous: the NFC thread is not blocked, and
+ * the signed message is sent once the {@link ISignatureListener} is
+ * notified.
+ * 
+ * If no signer is set, the private key of the UserInfos is used (see
+ * {@link SoftwareSigner}).
+ */
+public interface IPaymentSigner {
+	
+	/**
+	 * Signs the given object (e.g., a PaymentRequest) with the user's private
+	 * key, i.e., calls {@link SignedSerializableObject#sign(java.security.PrivateKey)}
+	 * with the key matching the object's PKIAlgorithm and key number. The
+	 * listener has to be notified exactly once, either on the calling thread
+	 * or on any other thread.
+	 * 
+	 * @param signedObject
+	 *            the object to sign
+	 * @param listener
+	 *            the listener to notify when the object has been signed or
+	 *            signing has failed
+	 */
+	public void sign(SignedSerializableObject signedObject, ISignatureListener listener);
+	
+}
@@ -0,0 +1,28 @@
+package ch.uzh.csg.paymentlib.signer;
+
+import ch.uzh.csg.mbps.customserialization.SignedSerializableObject;
+
+/**
+ * The {@link IPaymentSigner} notifies the implementation of this interface
+ * once the signature is available.
+ */
+public interface ISignatureListener {
+	
+	/**
+	 * Is called when the object has been signed.
+	 * 
+	 * @param signedObject
+	 *            the object passed to the {@link IPaymentSigner}, which is
+	 *            signed now
+	 */
+	public void onSigned(SignedSerializableObject signedObject);
+	
+	/**
+	 * Is called when the object could not be signed. The payment is aborted.
+	 * 
+	 * @param e
+	 *            the reason (e.g., the key is not available)
+	 */
+	public void onSignatureFailed(Exception e);
+	
+}
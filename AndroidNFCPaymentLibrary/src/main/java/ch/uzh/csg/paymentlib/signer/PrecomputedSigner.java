@@ -0,0 +1,397 @@
+package ch.uzh.csg.paymentlib.signer;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.InvalidParameterException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.SignatureException;
+import java.security.SignatureSpi;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import ch.uzh.csg.mbps.customserialization.SignedSerializableObject;
+import ch.uzh.csg.paymentlib.exceptions.IllegalArgumentException;
+import ch.uzh.csg.paymentlib.util.Config;
+
+/**
+ * This {@link IPaymentSigner} signs with an EC private key held in memory and
+ * moves the expensive part of ECDSA off the payment. A signature (r, s) needs
+ * a fresh random nonce k, the point k*G, and the inverse of k. These do not
+ * depend on the signed data and are computed ahead of time on a background
+ * thread, which keeps a pool of {@link Config#NONCE_POOL_SIZE} entries filled
+ * and idles while the pool is full. Signing then only hashes the data and
+ * computes s = k^-1 * (e + d*r) mod n.
+ *
+ * The arithmetic is done with {@link BigInteger}, which is not constant-time.
+ * To keep the timing of a signature from depending on the private key d, d is
+ * split into two random shares d1 + d2 = d (mod n) for every nonce, and s is
+ * computed as k^-1 * (e + d1*r + d2*r) mod n. This makes the key dependent
+ * multiplications operate on fresh random values, but it is no replacement
+ * for a constant-time implementation. Use a hardware-backed signer (e.g., the
+ * Android KeyStore) where timing side channels are a concern.
+ *
+ * Every pool entry is removed from the pool before it is used and is never
+ * used again, since reusing a nonce discloses the private key. If the pool is
+ * empty, a nonce is computed on the calling thread.
+ *
+ * The serialization library creates the signature itself (see
+ * {@link SignedSerializableObject#sign(PrivateKey)}). Hence, the signatures
+ * are only created with the pool if the app has registered the security
+ * provider returned by {@link #getProvider()}, which only accepts the key
+ * handle of this class:
+ *
+ * <pre>
+ * Security.addProvider(PrecomputedSigner.getProvider());
+ * </pre>
+ *
+ * The signer does not register the provider itself, so that the app stays in
+ * control of the installed providers. If the provider is not registered or
+ * the serialization library uses another provider, the object is signed with
+ * the private key as usual.
+ *
+ * Call {@link #shutdown()} when the signer is not needed anymore.
+ */
+public class PrecomputedSigner implements IPaymentSigner {
+
+	private static final String PROVIDER_NAME = "PaymentLibPrecomputed";
+	private static final String[] DIGEST_BITS = { "1", "224", "256", "384", "512" };
+
+	private static Provider provider;
+
+	private ECPrivateKey privateKey;
+	private ECParameterSpec params;
+	private BigInteger n;
+	private ThreadLocal<KeyPairGenerator> keyPairGenerator;
+	private SecureRandom random;
+	private SigningKey signingKey;
+
+	private BlockingQueue<Nonce> pool;
+	private Thread refillThread;
+
+	/**
+	 * Instantiates a new signer and starts filling the pool.
+	 *
+	 * @param privateKey
+	 *            the user's private key, which must be an EC key
+	 * @throws IllegalArgumentException
+	 *             if the private key is null or not an EC key
+	 * @throws GeneralSecurityException
+	 *             if no EC key pairs can be generated on the key's curve
+	 */
+	public PrecomputedSigner(PrivateKey privateKey) throws IllegalArgumentException, GeneralSecurityException {
+		if (privateKey == null)
+			throw new IllegalArgumentException("The private key cannot be null.");
+		if (!(privateKey instanceof ECPrivateKey))
+			throw new IllegalArgumentException("The private key must be an EC key.");
+
+		this.privateKey = (ECPrivateKey) privateKey;
+		this.params = this.privateKey.getParams();
+		this.n = params.getOrder();
+		// fails early if no EC key pairs can be generated on the key's curve
+		createKeyPairGenerator(params);
+		this.keyPairGenerator = new ThreadLocal<KeyPairGenerator>() {
+			@Override
+			protected KeyPairGenerator initialValue() {
+				try {
+					return createKeyPairGenerator(PrecomputedSigner.this.params);
+				} catch (GeneralSecurityException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+		this.random = new SecureRandom();
+		this.signingKey = new SigningKey(this);
+		this.pool = new ArrayBlockingQueue<Nonce>(Config.NONCE_POOL_SIZE);
+
+		this.refillThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (!Thread.currentThread().isInterrupted()) {
+						// blocks while the pool is full
+						pool.put(createNonce());
+					}
+				} catch (InterruptedException e) {
+					// shut down
+				}
+			}
+		}, "PrecomputedSigner");
+		this.refillThread.setDaemon(true);
+		this.refillThread.setPriority(Thread.MIN_PRIORITY);
+		this.refillThread.start();
+	}
+
+	private static KeyPairGenerator createKeyPairGenerator(ECParameterSpec params) throws GeneralSecurityException {
+		KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+		keyPairGenerator.initialize(params);
+		return keyPairGenerator;
+	}
+
+	/**
+	 * Returns the security provider which signs with the pools of the
+	 * PrecomputedSigners. The app has to register it (e.g., with
+	 * {@link java.security.Security#addProvider(Provider)}) before the
+	 * signatures are created with the pool. Other keys than the ones of this
+	 * class are not accepted by the provider.
+	 */
+	public static synchronized Provider getProvider() {
+		if (provider == null)
+			provider = new PrecomputedProvider();
+
+		return provider;
+	}
+
+	@Override
+	public void sign(SignedSerializableObject signedObject, ISignatureListener listener) {
+		try {
+			try {
+				signedObject.sign(signingKey);
+			} catch (InvalidKeyException e) {
+				// the serialization library does not use our provider
+				signedObject.sign(privateKey);
+			}
+		} catch (Exception e) {
+			listener.onSignatureFailed(e);
+			return;
+		}
+		listener.onSigned(signedObject);
+	}
+
+	/**
+	 * Stops filling the pool. Payments can still be signed, but the nonces are
+	 * computed on the calling thread.
+	 */
+	public void shutdown() {
+		refillThread.interrupt();
+		pool.clear();
+	}
+
+	/*
+	 * only for test purposes
+	 */
+	int available() {
+		return pool.size();
+	}
+
+	/*
+	 * only for test purposes
+	 */
+	PrivateKey getSigningKey() {
+		return signingKey;
+	}
+
+	/*
+	 * Is called by the refill thread and by signing threads if the pool is
+	 * empty, hence every thread uses its own key pair generator.
+	 */
+	private Nonce createNonce() {
+		KeyPair keyPair = keyPairGenerator.get().generateKeyPair();
+		BigInteger k = ((ECPrivateKey) keyPair.getPrivate()).getS();
+		BigInteger r = ((ECPublicKey) keyPair.getPublic()).getW().getAffineX().mod(n);
+		// blinds the private key: d1 + d2 = d (mod n)
+		BigInteger d1 = new BigInteger(n.bitLength() + 64, random).mod(n);
+		BigInteger d2 = privateKey.getS().subtract(d1).mod(n);
+		return new Nonce(r, k.modInverse(n), d1, d2);
+	}
+
+	/*
+	 * Returns the DER encoded signature of the given hash.
+	 */
+	private byte[] sign(byte[] hash) {
+		BigInteger e = truncate(hash);
+		while (true) {
+			// removing the nonce from the pool guarantees that it is used only once
+			Nonce nonce = pool.poll();
+			if (nonce == null)
+				nonce = createNonce();
+
+			if (nonce.r.signum() == 0)
+				continue;
+
+			BigInteger s = nonce.kInv.multiply(e.add(nonce.d1.multiply(nonce.r)).add(nonce.d2.multiply(nonce.r))).mod(n);
+			if (s.signum() != 0)
+				return encodeSignature(nonce.r, s);
+		}
+	}
+
+	/*
+	 * Returns the leftmost bits of the hash, as many as the order has.
+	 */
+	private BigInteger truncate(byte[] hash) {
+		BigInteger e = new BigInteger(1, hash);
+		int excess = hash.length * 8 - n.bitLength();
+		return excess > 0 ? e.shiftRight(excess) : e;
+	}
+
+	/*
+	 * Encodes the two integers r and s as DER sequence.
+	 */
+	private static byte[] encodeSignature(BigInteger r, BigInteger s) {
+		byte[] rBytes = r.toByteArray();
+		byte[] sBytes = s.toByteArray();
+		int contentLength = 2 + rBytes.length + 2 + sBytes.length;
+		int lengthBytes = contentLength < 0x80 ? 1 : 2;
+
+		byte[] result = new byte[1 + lengthBytes + contentLength];
+		int index = 0;
+		result[index++] = 0x30;
+		if (lengthBytes == 2)
+			result[index++] = (byte) 0x81;
+		result[index++] = (byte) contentLength;
+		result[index++] = 0x02;
+		result[index++] = (byte) rBytes.length;
+		System.arraycopy(rBytes, 0, result, index, rBytes.length);
+		index += rBytes.length;
+		result[index++] = 0x02;
+		result[index++] = (byte) sBytes.length;
+		System.arraycopy(sBytes, 0, result, index, sBytes.length);
+		return result;
+	}
+
+	/*
+	 * The precomputed values of one signature and the shares of the private
+	 * key it is used with.
+	 */
+	private static class Nonce {
+		private final BigInteger r;
+		private final BigInteger kInv;
+		private final BigInteger d1;
+		private final BigInteger d2;
+
+		private Nonce(BigInteger r, BigInteger kInv, BigInteger d1, BigInteger d2) {
+			this.r = r;
+			this.kInv = kInv;
+			this.d1 = d1;
+			this.d2 = d2;
+		}
+	}
+
+	/*
+	 * The handle passed to the serialization library instead of the private
+	 * key. It is only accepted by the PrecomputedProvider.
+	 */
+	private static final class SigningKey implements PrivateKey {
+		private static final long serialVersionUID = 5133547839423163475L;
+
+		private final transient PrecomputedSigner signer;
+
+		private SigningKey(PrecomputedSigner signer) {
+			this.signer = signer;
+		}
+
+		@Override
+		public String getAlgorithm() {
+			return "EC";
+		}
+
+		@Override
+		public String getFormat() {
+			return null;
+		}
+
+		@Override
+		public byte[] getEncoded() {
+			return null;
+		}
+	}
+
+	private static final class PrecomputedProvider extends Provider {
+		private static final long serialVersionUID = -2408263416325836651L;
+
+		private PrecomputedProvider() {
+			super(PROVIDER_NAME, 1.0, "ECDSA with precomputed nonces (see PrecomputedSigner)");
+
+			for (final String bits : DIGEST_BITS) {
+				final String digestAlgorithm = bits.equals("1") ? "SHA-1" : "SHA-" + bits;
+				putService(new Service(this, "Signature", "SHA" + bits + "withECDSA", PrecomputedSpi.class.getName(), null, null) {
+					@Override
+					public boolean supportsParameter(Object parameter) {
+						return parameter instanceof SigningKey;
+					}
+
+					@Override
+					public Object newInstance(Object constructorParameter) throws NoSuchAlgorithmException {
+						return new PrecomputedSpi(MessageDigest.getInstance(digestAlgorithm));
+					}
+				});
+			}
+		}
+	}
+
+	private static final class PrecomputedSpi extends SignatureSpi {
+		private final MessageDigest digest;
+		private PrecomputedSigner signer;
+
+		private PrecomputedSpi(MessageDigest digest) {
+			this.digest = digest;
+		}
+
+		@Override
+		protected void engineInitSign(PrivateKey privateKey) throws InvalidKeyException {
+			if (!(privateKey instanceof SigningKey))
+				throw new InvalidKeyException("Only keys of the PrecomputedSigner are supported.");
+
+			signer = ((SigningKey) privateKey).signer;
+			digest.reset();
+		}
+
+		@Override
+		protected void engineInitVerify(PublicKey publicKey) throws InvalidKeyException {
+			throw new InvalidKeyException("Verifying is not supported.");
+		}
+
+		@Override
+		protected void engineUpdate(byte b) throws SignatureException {
+			digest.update(b);
+		}
+
+		@Override
+		protected void engineUpdate(byte[] b, int off, int len) throws SignatureException {
+			digest.update(b, off, len);
+		}
+
+		@Override
+		protected byte[] engineSign() throws SignatureException {
+			if (signer == null)
+				throw new SignatureException("Not initialized for signing.");
+
+			return signer.sign(digest.digest());
+		}
+
+		@Override
+		protected boolean engineVerify(byte[] sigBytes) throws SignatureException {
+			throw new SignatureException("Verifying is not supported.");
+		}
+
+		@Override
+		@Deprecated
+		protected void engineSetParameter(String param, Object value) throws InvalidParameterException {
+			throw new InvalidParameterException("No parameters are supported.");
+		}
+
+		@Override
+		protected void engineSetParameter(AlgorithmParameterSpec params) throws InvalidAlgorithmParameterException {
+			throw new InvalidAlgorithmParameterException("No parameters are supported.");
+		}
+
+		@Override
+		@Deprecated
+		protected Object engineGetParameter(String param) throws InvalidParameterException {
+			throw new InvalidParameterException("No parameters are supported.");
+		}
+	}
+
+}
@@ -0,0 +1,44 @@
+package ch.uzh.csg.paymentlib.signer;
+
+import java.security.PrivateKey;
+
+import ch.uzh.csg.mbps.customserialization.SignedSerializableObject;
+import ch.uzh.csg.paymentlib.exceptions.IllegalArgumentException;
+
+/**
+ * This {@link IPaymentSigner} signs with a private key held in memory. Since
+ * this takes about a millisecond, the object is signed on the calling
+ * thread, and the listener is notified before {@link #sign(SignedSerializableObject, ISignatureListener)}
+ * returns.
+ */
+public class SoftwareSigner implements IPaymentSigner {
+	
+	private PrivateKey privateKey;
+	
+	/**
+	 * Instantiates a new signer.
+	 * 
+	 * @param privateKey
+	 *            the user's private key
+	 * @throws IllegalArgumentException
+	 *             if the private key is null
+	 */
+	public SoftwareSigner(PrivateKey privateKey) throws IllegalArgumentException {
+		if (privateKey == null)
+			throw new IllegalArgumentException("The private key cannot be null.");
+		
+		this.privateKey = privateKey;
+	}
+	
+	@Override
+	public void sign(SignedSerializableObject signedObject, ISignatureListener listener) {
+		try {
+			signedObject.sign(privateKey);
+		} catch (Exception e) {
+			listener.onSignatureFailed(e);
+			return;
+		}
+		listener.onSigned(signedObject);
+	}
+	
+}
@@ -11,6 +11,25 @@ public class Config {
 	public static final long SERVER_CALL_TIMEOUT = 3 * 1000; //in ms - server call
 	public static final long SERVER_RESPONSE_TIMEOUT = 4 * 1000; //in ms - PaymentRequestHandler waiting for server response
 	
+	public static final long TIMER_TICK = 10; //in ms - resolution of the HashedWheelTimer holding the timeouts above
+	public static final int TIMER_WHEEL_SIZE = 512; //number of buckets of the HashedWheelTimer, must be a power of two
+	
+	public static final int MAX_PAYLOAD_LENGTH = 16 * 1024; //in bytes - upper bound for decompressed payloads
+	public static final int MAX_FRAME_LENGTH = 0; //in bytes - announced to the other device unless set with PaymentRequestHandler.setMaxFrameLength, 0 if there is no limit (the NFC library splits frames into APDUs)
+	
+	public static final int WARM_UP_ITERATIONS = 10; //PaymentWarmUp running through the messages of a dummy payment
+	
+	public static final int NONCE_POOL_SIZE = 16; //PrecomputedSigner - number of signatures prepared ahead of time
+	
+	public static final int PIPELINE_THREADS = 2; //PaymentRequestInitializer signing and verifying payment requests in parallel (see enablePipelining)
+	
+	public static final int BATCH_PRECOMPUTE_THRESHOLD = 16; //ServerInfos precomputing the server's key before verifying this many signatures at once
+	
+	public static final long SESSION_LIFETIME = 15 * 60 * 1000; //in ms - validity of a PaymentSession after the payment establishing it
+	public static final long SESSION_AMOUNT_CAP = 100 * 1000; //in the smallest unit of the session's currency - total of the payments within a PaymentSession
+	
+	public static final int EVENT_BUFFER_SIZE = 64; //PaymentEventDispatcher - number of events waiting for the app's handler, must be a power of two
+	
 	/*
 	 * This flag is needed to check if debug logs should be written or not. For
 	 * a release, this should always be false! Before you log something, check
@@ -0,0 +1,290 @@
+package ch.uzh.csg.paymentlib.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+import ch.uzh.csg.paymentlib.exceptions.IllegalArgumentException;
+
+/**
+ * This class holds the deadlines of all pending payments of a process on a
+ * single thread. The deadlines are kept in a wheel of
+ * {@link Config#TIMER_WHEEL_SIZE} buckets, each covering
+ * {@link Config#TIMER_TICK} ms. Scheduling appends the timeout to a queue and
+ * cancelling flips its state, both in constant time and without a lock. The
+ * worker thread moves new timeouts into their bucket and runs the expired ones
+ * once per tick. A timeout is therefore executed up to one tick later than
+ * requested, but never earlier. While no timeout is scheduled, the worker
+ * thread is parked instead of ticking, and the next call to
+ * {@link #schedule(Runnable, long)} wakes it up.
+ *
+ * The tasks are executed on the worker thread and must not block, since they
+ * delay all other timeouts of the process. A task which has to call the app or
+ * the NFC library hands this work to the executor returned by
+ * {@link #getCallbackExecutor()}.
+ */
+public class HashedWheelTimer {
+
+	private static final String TAG = "ch.uzh.csg.paymentlib.util.HashedWheelTimer";
+
+	private static final HashedWheelTimer SHARED = createShared();
+	private static final Executor CALLBACKS = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "HashedWheelTimer-callback");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final long tickDuration;
+	private final int mask;
+	private final Timeout[] wheel;
+	private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+
+	private volatile long startTime;
+	private Thread worker;
+	private volatile boolean idle = false;
+
+	// only accessed by the worker thread
+	private long tick = 0;
+	private int size = 0;
+
+	/**
+	 * Returns the timer shared by all payments of this process.
+	 */
+	public static HashedWheelTimer getShared() {
+		return SHARED;
+	}
+
+	/**
+	 * Returns the executor for the work of the expired tasks which might
+	 * block, e.g., notifying the app. A thread is created for every callback
+	 * running at the same time, so a slow callback of one payment does not
+	 * delay the callbacks of the others. Idle threads end after 60 s.
+	 */
+	public static Executor getCallbackExecutor() {
+		return CALLBACKS;
+	}
+
+	private static HashedWheelTimer createShared() {
+		try {
+			return new HashedWheelTimer(Config.TIMER_TICK, Config.TIMER_WHEEL_SIZE);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalStateException("Invalid timer settings in Config.", e);
+		}
+	}
+
+	/**
+	 * Instantiates a new timer. The worker thread is started with the first
+	 * timeout.
+	 *
+	 * @param tickDuration
+	 *            the duration of a tick in ms
+	 * @param wheelSize
+	 *            the number of buckets, which must be a power of two
+	 * @throws IllegalArgumentException
+	 *             if one of the parameters is not positive or the wheel size
+	 *             is not a power of two
+	 */
+	public HashedWheelTimer(long tickDuration, int wheelSize) throws IllegalArgumentException {
+		if (tickDuration <= 0)
+			throw new IllegalArgumentException("The tick duration must be positive.");
+		if (wheelSize <= 0 || (wheelSize & (wheelSize - 1)) != 0)
+			throw new IllegalArgumentException("The wheel size must be a power of two.");
+
+		this.tickDuration = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+		this.mask = wheelSize - 1;
+		this.wheel = new Timeout[wheelSize];
+	}
+
+	/**
+	 * Schedules the given task to be executed once after the given delay.
+	 *
+	 * @param task
+	 *            the task to be executed on the timer's thread
+	 * @param delay
+	 *            the delay in ms
+	 * @return the handle to cancel the task
+	 */
+	public Timeout schedule(Runnable task, long delay) {
+		start();
+		long deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(delay, 0));
+		Timeout timeout = new Timeout(task, deadline);
+		pending.add(timeout);
+		if (idle)
+			LockSupport.unpark(worker);
+		return timeout;
+	}
+
+	private synchronized void start() {
+		if (worker != null)
+			return;
+
+		startTime = System.nanoTime();
+		worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					if (size == 0)
+						awaitTimeouts();
+					waitForNextTick();
+					transferPending();
+					expire(wheel[(int) (tick & mask)]);
+					tick++;
+				}
+			}
+		}, "HashedWheelTimer");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/*
+	 * Parks the worker until a timeout is scheduled. The ticks missed in the
+	 * meantime are skipped, since the wheel is empty.
+	 */
+	private void awaitTimeouts() {
+		if (!pending.isEmpty())
+			return;
+
+		// schedule() unparks the worker if it sees the flag after adding the timeout
+		idle = true;
+		while (pending.isEmpty()) {
+			LockSupport.park(this);
+		}
+		idle = false;
+		tick = Math.max(tick, (System.nanoTime() - startTime) / tickDuration);
+	}
+
+	private void waitForNextTick() {
+		long deadline = tickDuration * (tick + 1);
+		while (true) {
+			long sleep = deadline - (System.nanoTime() - startTime);
+			if (sleep <= 0)
+				return;
+
+			try {
+				TimeUnit.NANOSECONDS.sleep(sleep);
+			} catch (InterruptedException e) {
+				// the worker is never stopped
+			}
+		}
+	}
+
+	/*
+	 * Moves the timeouts scheduled since the last tick into their bucket.
+	 */
+	private void transferPending() {
+		Timeout timeout;
+		while ((timeout = pending.poll()) != null) {
+			if (timeout.isCancelled())
+				continue;
+
+			long ticks = Math.max(timeout.deadline / tickDuration, tick);
+			timeout.remainingRounds = (ticks - tick) / wheel.length;
+			int index = (int) (ticks & mask);
+			timeout.next = wheel[index];
+			wheel[index] = timeout;
+			size++;
+		}
+	}
+
+	/*
+	 * Runs the due timeouts of the given bucket and removes them together with
+	 * the cancelled ones.
+	 */
+	private void expire(Timeout head) {
+		int index = (int) (tick & mask);
+		Timeout previous = null;
+		Timeout timeout = head;
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			boolean remove;
+			if (timeout.isCancelled()) {
+				remove = true;
+			} else if (timeout.remainingRounds <= 0) {
+				remove = true;
+				timeout.expire();
+			} else {
+				remove = false;
+				timeout.remainingRounds--;
+			}
+
+			if (remove) {
+				if (previous == null)
+					wheel[index] = next;
+				else
+					previous.next = next;
+				timeout.next = null;
+				size--;
+			} else {
+				previous = timeout;
+			}
+			timeout = next;
+		}
+	}
+
+	/*
+	 * only for test purposes
+	 */
+	boolean isIdle() {
+		return idle;
+	}
+
+	/**
+	 * The handle of a scheduled task.
+	 */
+	public static final class Timeout {
+		private static final int PENDING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+		private final Runnable task;
+		private final long deadline;
+
+		// only accessed by the worker thread
+		private long remainingRounds;
+		private Timeout next;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels the task if it has not been executed yet.
+		 *
+		 * @return true if the task will not be executed, false if it has
+		 *         already been executed or cancelled
+		 */
+		public boolean cancel() {
+			return state.compareAndSet(PENDING, CANCELLED);
+		}
+
+		public boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+
+		private void expire() {
+			if (!state.compareAndSet(PENDING, EXPIRED))
+				return;
+
+			try {
+				task.run();
+			} catch (Throwable t) {
+				Log.e(TAG, "error in timeout task", t);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,323 @@
+package ch.uzh.csg.paymentlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import android.app.Activity;
+import android.util.Log;
+import ch.uzh.csg.mbps.customserialization.Currency;
+import ch.uzh.csg.mbps.customserialization.DecoderFactory;
+import ch.uzh.csg.mbps.customserialization.InitMessagePayee;
+import ch.uzh.csg.mbps.customserialization.PKIAlgorithm;
+import ch.uzh.csg.mbps.customserialization.PaymentRequest;
+import ch.uzh.csg.mbps.customserialization.PaymentResponse;
+import ch.uzh.csg.mbps.customserialization.ServerPaymentRequest;
+import ch.uzh.csg.mbps.customserialization.ServerPaymentResponse;
+import ch.uzh.csg.mbps.customserialization.ServerResponseStatus;
+import ch.uzh.csg.nfclib.NfcInitiator;
+import ch.uzh.csg.nfclib.NfcLibException;
+import ch.uzh.csg.nfclib.events.INfcEventHandler;
+import ch.uzh.csg.nfclib.events.NfcEvent;
+import ch.uzh.csg.paymentlib.PaymentRequestInitializer.PaymentType;
+import ch.uzh.csg.paymentlib.container.PaymentInfos;
+import ch.uzh.csg.paymentlib.container.ServerInfos;
+import ch.uzh.csg.paymentlib.container.UserInfos;
+import ch.uzh.csg.paymentlib.exceptions.IllegalArgumentException;
+import ch.uzh.csg.paymentlib.messages.PaymentMessage;
+import ch.uzh.csg.paymentlib.testutils.TestUtils;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore("javax.crypto.*")
+@PrepareForTest(Log.class)
+public class MultiReaderInitializerTest {
+
+	private Activity hostActivity = Mockito.mock(Activity.class);
+
+	private KeyPair keyPairServer;
+	private MultiReaderInitializer<String> mri;
+
+	private Map<String, INfcEventHandler> nfcEventHandlers = new ConcurrentHashMap<String, INfcEventHandler>();
+	private Map<String, NfcInitiator> transceivers = new ConcurrentHashMap<String, NfcInitiator>();
+
+	/*
+	 * Every reader is connected to another payer, which answers with a signed
+	 * payment request and acknowledges the server response.
+	 */
+	private INfcInitiatorFactory<String> nfcInitiatorFactory = new INfcInitiatorFactory<String>() {
+
+		@Override
+		public NfcInitiator createNfcInitiator(final String reader, final INfcEventHandler nfcEventHandler) throws NfcLibException {
+			NfcInitiator transceiver = mock(NfcInitiator.class);
+
+			doAnswer(new Answer<Integer>() {
+				@Override
+				public Integer answer(InvocationOnMock invocation) throws Throwable {
+					PaymentMessage pm = new PaymentMessage().bytes((byte[]) invocation.getArguments()[0]);
+					assertFalse(pm.isError());
+
+					KeyPair keyPairPayer = TestUtils.generateKeyPair();
+					InitMessagePayee initMessage = DecoderFactory.decode(InitMessagePayee.class, pm.payload());
+					PaymentRequest pr = new PaymentRequest(PKIAlgorithm.DEFAULT, 1, "buyer-"+reader, initMessage.getUsername(), initMessage.getCurrency(), initMessage.getAmount(), System.currentTimeMillis());
+					pr.sign(keyPairPayer.getPrivate());
+
+					nfcEventHandler.handleMessage(NfcEvent.MESSAGE_RECEIVED, new PaymentMessage().payload(pr.encode()).bytes());
+					return null;
+				}
+			}).when(transceiver).transceive(any(byte[].class));
+
+			doAnswer(new Answer<Integer>() {
+				@Override
+				public Integer answer(InvocationOnMock invocation) throws Throwable {
+					PaymentMessage pm = new PaymentMessage().bytes((byte[]) invocation.getArguments()[0]);
+					assertFalse(pm.isError());
+
+					nfcEventHandler.handleMessage(NfcEvent.MESSAGE_RECEIVED, new PaymentMessage().payload(PaymentRequestHandler.ACK).bytes());
+					return null;
+				}
+			}).when(transceiver).sendLater(any(byte[].class));
+
+			nfcEventHandlers.put(reader, nfcEventHandler);
+			transceivers.put(reader, transceiver);
+			return transceiver;
+		}
+
+	};
+
+	/*
+	 * Records the events of the given reader and answers as the server.
+	 */
+	private IPaymentEventHandler createPaymentEventHandler(final String reader, final List<PaymentEvent> events, final List<Object> objects) {
+		return new IPaymentEventHandler() {
+
+			@Override
+			public void handleMessage(PaymentEvent event, Object object, IServerResponseListener caller) {
+				events.add(event);
+				objects.add(object);
+
+				if (event != PaymentEvent.FORWARD_TO_SERVER)
+					return;
+
+				try {
+					PaymentRequest paymentRequestPayer = DecoderFactory.decode(ServerPaymentRequest.class, (byte[]) object).getPaymentRequestPayer();
+					PaymentResponse pr = new PaymentResponse(PKIAlgorithm.DEFAULT, 1, ServerResponseStatus.SUCCESS, null, paymentRequestPayer.getUsernamePayer(), paymentRequestPayer.getUsernamePayee(), paymentRequestPayer.getCurrency(), paymentRequestPayer.getAmount(), paymentRequestPayer.getTimestamp());
+					pr.sign(keyPairServer.getPrivate());
+					// the response must reach the payment of this reader
+					assertSame(mri.get(reader), caller);
+					caller.onServerResponse(new ServerPaymentResponse(pr));
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+
+		};
+	}
+
+	@Before
+	public void before() throws Exception {
+		PowerMockito.mockStatic(Log.class);
+		Answer<Integer> answer = new Answer<Integer>() {
+			@Override
+			public Integer answer(InvocationOnMock invocation) throws Throwable {
+				System.err.println(Arrays.toString(invocation.getArguments()));
+				return 0;
+			}
+		};
+		PowerMockito.when(Log.i(Mockito.anyString(), Mockito.anyString())).then(answer);
+		PowerMockito.when(Log.d(Mockito.anyString(), Mockito.anyString())).then(answer);
+		PowerMockito.when(Log.e(Mockito.anyString(), Mockito.anyString())).then(answer);
+
+		keyPairServer = TestUtils.generateKeyPair();
+		KeyPair keyPairPayee = TestUtils.generateKeyPair();
+		UserInfos userInfos = new UserInfos("seller", keyPairPayee.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
+		mri = new MultiReaderInitializer<String>(hostActivity, userInfos, serverInfos, null, nfcInitiatorFactory);
+	}
+
+	@Test
+	public void testOpenAndClose() throws Exception {
+		List<PaymentEvent> events = new ArrayList<PaymentEvent>();
+		List<Object> objects = new ArrayList<Object>();
+
+		PaymentRequestInitializer a = mri.open("a", createPaymentEventHandler("a", events, objects), new PaymentInfos(Currency.BTC, 1), PaymentType.REQUEST_PAYMENT);
+		PaymentRequestInitializer b = mri.open("b", createPaymentEventHandler("b", events, objects), new PaymentInfos(Currency.BTC, 2), PaymentType.REQUEST_PAYMENT);
+		assertSame(a, mri.get("a"));
+		assertSame(b, mri.get("b"));
+		assertEquals(2, mri.getReaders().size());
+		verify(transceivers.get("a")).enable(hostActivity);
+
+		try {
+			mri.open("a", createPaymentEventHandler("a", events, objects), new PaymentInfos(Currency.BTC, 1), PaymentType.REQUEST_PAYMENT);
+			assertTrue(false);
+		} catch (IllegalArgumentException e) {
+			// a payment is already open on reader a
+		}
+
+		mri.close("a");
+		verify(transceivers.get("a")).disable(hostActivity);
+		assertNull(mri.get("a"));
+		assertEquals(Collections.singleton("b"), mri.getReaders());
+
+		mri.shutdown();
+		verify(transceivers.get("b")).disable(hostActivity);
+		assertTrue(mri.getReaders().isEmpty());
+	}
+
+	@Test
+	public void testConcurrentOpen() throws Exception {
+		/*
+		 * The second thread opens the reader while the first one is still
+		 * creating the reader's NFC initiator.
+		 */
+		final CountDownLatch creating = new CountDownLatch(1);
+		final CountDownLatch proceed = new CountDownLatch(1);
+		final AtomicInteger nofCreated = new AtomicInteger(0);
+		KeyPair keyPairPayee = TestUtils.generateKeyPair();
+		UserInfos userInfos = new UserInfos("seller", keyPairPayee.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		final MultiReaderInitializer<String> multiReader = new MultiReaderInitializer<String>(hostActivity, userInfos, new ServerInfos(keyPairServer.getPublic()), null, new INfcInitiatorFactory<String>() {
+
+			@Override
+			public NfcInitiator createNfcInitiator(String reader, INfcEventHandler nfcEventHandler) throws NfcLibException {
+				if (nofCreated.incrementAndGet() == 1) {
+					creating.countDown();
+					try {
+						proceed.await(5, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+					}
+				}
+				return nfcInitiatorFactory.createNfcInitiator(reader, nfcEventHandler);
+			}
+
+		});
+
+		final List<PaymentEvent> events = new ArrayList<PaymentEvent>();
+		final List<Object> objects = new ArrayList<Object>();
+		final PaymentRequestInitializer[] opened = new PaymentRequestInitializer[1];
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					opened[0] = multiReader.open("a", createPaymentEventHandler("a", events, objects), new PaymentInfos(Currency.BTC, 1), PaymentType.REQUEST_PAYMENT);
+				} catch (Throwable t) {
+					failures.add(t);
+				}
+			}
+		});
+		thread.start();
+		assertTrue(creating.await(5, TimeUnit.SECONDS));
+
+		try {
+			multiReader.open("a", createPaymentEventHandler("a", events, objects), new PaymentInfos(Currency.BTC, 1), PaymentType.REQUEST_PAYMENT);
+			assertTrue(false);
+		} catch (IllegalArgumentException e) {
+			// the reader is reserved by the other thread
+		}
+		proceed.countDown();
+		thread.join();
+		assertTrue(failures.isEmpty());
+
+		// the losing thread did neither create nor disable the winner's reader
+		assertEquals(1, nofCreated.get());
+		assertSame(opened[0], multiReader.get("a"));
+		NfcInitiator transceiver = transceivers.get("a");
+		verify(transceiver).enable(hostActivity);
+		verify(transceiver, never()).disable(hostActivity);
+
+		// the reader can be opened again once it has been closed
+		multiReader.close("a");
+		verify(transceiver).disable(hostActivity);
+		PaymentRequestInitializer reopened = multiReader.open("a", createPaymentEventHandler("a", events, objects), new PaymentInfos(Currency.BTC, 1), PaymentType.REQUEST_PAYMENT);
+		assertSame(reopened, multiReader.get("a"));
+
+		multiReader.shutdown();
+	}
+
+	@Test
+	public void testConcurrentReaders() throws Exception {
+		/*
+		 * Simulates a payment on every reader at the same time.
+		 */
+		final int nofReaders = 8;
+		mri.enablePipelining(null);
+
+		List<List<PaymentEvent>> events = new ArrayList<List<PaymentEvent>>();
+		List<List<Object>> objects = new ArrayList<List<Object>>();
+		for (int i = 0; i < nofReaders; i++) {
+			events.add(Collections.synchronizedList(new ArrayList<PaymentEvent>()));
+			objects.add(Collections.synchronizedList(new ArrayList<Object>()));
+			String reader = "lane-"+i;
+			mri.open(reader, createPaymentEventHandler(reader, events.get(i), objects.get(i)), new PaymentInfos(Currency.BTC, i + 1), PaymentType.REQUEST_PAYMENT);
+		}
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+		Thread[] threads = new Thread[nofReaders];
+		for (int i = 0; i < nofReaders; i++) {
+			final String reader = "lane-"+i;
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						//start test case manually, since this would be started on an nfc contact!
+						nfcEventHandlers.get(reader).handleMessage(NfcEvent.INITIALIZED, null);
+					} catch (Throwable t) {
+						failures.add(t);
+					}
+				}
+			}, reader);
+			threads[i].start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(failures.isEmpty());
+
+		// every reader completed its own payment (forwarded by the pipeline's worker threads)
+		for (int i = 0; i < nofReaders; i++) {
+			long end = System.currentTimeMillis() + 5000;
+			while (events.get(i).size() < 3 && System.currentTimeMillis() < end) {
+				Thread.sleep(10);
+			}
+			assertEquals(Arrays.asList(PaymentEvent.INITIALIZED, PaymentEvent.FORWARD_TO_SERVER, PaymentEvent.SUCCESS), events.get(i));
+			PaymentResponse pr = (PaymentResponse) objects.get(i).get(2);
+			assertEquals("buyer-lane-"+i, pr.getUsernamePayer());
+			assertEquals("seller", pr.getUsernamePayee());
+			assertEquals(i + 1, pr.getAmount());
+		}
+
+		mri.shutdown();
+	}
+
+}
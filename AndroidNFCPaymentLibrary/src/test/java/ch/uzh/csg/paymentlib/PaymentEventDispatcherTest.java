@@ -0,0 +1,215 @@
+package ch.uzh.csg.paymentlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import android.util.Log;
+import ch.uzh.csg.paymentlib.PaymentEventDispatcher.OverflowPolicy;
+import ch.uzh.csg.paymentlib.PaymentEventDispatcher.WaitStrategy;
+import ch.uzh.csg.paymentlib.exceptions.IllegalArgumentException;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(Log.class)
+public class PaymentEventDispatcherTest {
+
+	private List<PaymentEvent> events = Collections.synchronizedList(new ArrayList<PaymentEvent>());
+	private List<Object> objects = Collections.synchronizedList(new ArrayList<Object>());
+	private List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+
+	private IPaymentEventHandler paymentEventHandler = new IPaymentEventHandler() {
+
+		@Override
+		public void handleMessage(PaymentEvent event, Object object, IServerResponseListener caller) {
+			events.add(event);
+			objects.add(object);
+			threads.add(Thread.currentThread());
+		}
+
+	};
+
+	@Before
+	public void before() {
+		PowerMockito.mockStatic(Log.class);
+	}
+
+	private void awaitEvents(int count) throws InterruptedException {
+		long end = System.currentTimeMillis() + 5000;
+		while (objects.size() < count && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void testDispatch() throws Exception {
+		PaymentEventDispatcher dispatcher = new PaymentEventDispatcher(paymentEventHandler);
+		dispatcher.start();
+
+		for (int i = 0; i < 1000; i++) {
+			dispatcher.handleMessage(PaymentEvent.SUCCESS, i, null);
+		}
+		awaitEvents(1000);
+		dispatcher.stop();
+
+		assertEquals(1000, objects.size());
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(i, objects.get(i));
+			// the app's handler is not called on the thread firing the events
+			assertFalse(threads.get(i) == Thread.currentThread());
+		}
+		assertEquals(0, dispatcher.getDroppedEvents());
+	}
+
+	@Test
+	public void testDispatch_SeveralProducers() throws Exception {
+		/*
+		 * The NFC thread, the timeout, and the server response fire events at
+		 * the same time into a small buffer.
+		 */
+		final int nofProducers = 3;
+		final int nofEvents = 2000;
+		for (WaitStrategy waitStrategy : new WaitStrategy[] { WaitStrategy.YIELDING, WaitStrategy.SLEEPING, WaitStrategy.BLOCKING }) {
+			objects.clear();
+			final PaymentEventDispatcher dispatcher = new PaymentEventDispatcher(paymentEventHandler, 8, waitStrategy, OverflowPolicy.BLOCK);
+			dispatcher.start();
+
+			Thread[] producers = new Thread[nofProducers];
+			for (int i = 0; i < nofProducers; i++) {
+				final int producer = i;
+				producers[i] = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						for (int j = 0; j < nofEvents; j++) {
+							dispatcher.handleMessage(PaymentEvent.SUCCESS, new int[] { producer, j }, null);
+						}
+					}
+				});
+				producers[i].start();
+			}
+			for (Thread producer : producers) {
+				producer.join();
+			}
+			dispatcher.stop();
+
+			// no event is lost and the events of every producer are in order
+			assertEquals(nofProducers * nofEvents, objects.size());
+			int[] next = new int[nofProducers];
+			for (Object object : objects) {
+				int[] value = (int[]) object;
+				assertEquals(next[value[0]]++, value[1]);
+			}
+			assertEquals(0, dispatcher.getDroppedEvents());
+		}
+	}
+
+	@Test
+	public void testDrain_Drop() throws Exception {
+		PaymentEventDispatcher dispatcher = new PaymentEventDispatcher(paymentEventHandler, 4, WaitStrategy.BLOCKING, OverflowPolicy.DROP);
+
+		for (int i = 0; i < 10; i++) {
+			dispatcher.handleMessage(PaymentEvent.SUCCESS, i, null);
+		}
+		assertEquals(6, dispatcher.getDroppedEvents());
+		assertEquals(0, objects.size());
+
+		// the app dispatches the events on its own thread
+		assertEquals(4, dispatcher.drain());
+		assertEquals(Arrays.<Object> asList(0, 1, 2, 3), objects);
+		assertTrue(threads.get(0) == Thread.currentThread());
+		assertEquals(0, dispatcher.drain());
+
+		dispatcher.handleMessage(PaymentEvent.ERROR, 10, null);
+		assertEquals(1, dispatcher.drain());
+		assertEquals(10, objects.get(4));
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void testDrain_Started() throws Exception {
+		PaymentEventDispatcher dispatcher = new PaymentEventDispatcher(paymentEventHandler);
+		dispatcher.start();
+		try {
+			dispatcher.drain();
+		} finally {
+			dispatcher.stop();
+		}
+	}
+
+	@Test(timeout=10000)
+	public void testReentrant() throws Exception {
+		/*
+		 * The app's handler passes the server response synchronously, which
+		 * fires an event while the buffer is full.
+		 */
+		final CountDownLatch forwarded = new CountDownLatch(1);
+		final CountDownLatch full = new CountDownLatch(1);
+		final PaymentEventDispatcher[] dispatcher = new PaymentEventDispatcher[1];
+		dispatcher[0] = new PaymentEventDispatcher(new IPaymentEventHandler() {
+
+			@Override
+			public void handleMessage(PaymentEvent event, Object object, IServerResponseListener caller) {
+				events.add(event);
+				if (event == PaymentEvent.FORWARD_TO_SERVER) {
+					forwarded.countDown();
+					try {
+						assertTrue(full.await(5, TimeUnit.SECONDS));
+					} catch (InterruptedException e) {
+					}
+					dispatcher[0].handleMessage(PaymentEvent.SUCCESS, null, null);
+				}
+			}
+
+		}, 1, WaitStrategy.BLOCKING, OverflowPolicy.BLOCK);
+		dispatcher[0].start();
+
+		dispatcher[0].handleMessage(PaymentEvent.FORWARD_TO_SERVER, null, null);
+		assertTrue(forwarded.await(5, TimeUnit.SECONDS));
+		dispatcher[0].handleMessage(PaymentEvent.INITIALIZED, null, null);
+		full.countDown();
+		dispatcher[0].stop();
+
+		assertEquals(Arrays.asList(PaymentEvent.FORWARD_TO_SERVER, PaymentEvent.SUCCESS, PaymentEvent.INITIALIZED), events);
+	}
+
+	@Test
+	public void testFailingHandler() throws Exception {
+		PaymentEventDispatcher dispatcher = new PaymentEventDispatcher(new IPaymentEventHandler() {
+
+			@Override
+			public void handleMessage(PaymentEvent event, Object object, IServerResponseListener caller) {
+				if (event == PaymentEvent.ERROR)
+					throw new RuntimeException("failing handler");
+
+				paymentEventHandler.handleMessage(event, object, caller);
+			}
+
+		});
+		dispatcher.start();
+
+		dispatcher.handleMessage(PaymentEvent.ERROR, null, null);
+		dispatcher.handleMessage(PaymentEvent.SUCCESS, null, null);
+		awaitEvents(1);
+		dispatcher.stop();
+
+		assertEquals(Collections.singletonList(PaymentEvent.SUCCESS), events);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidBufferSize() throws Exception {
+		new PaymentEventDispatcher(paymentEventHandler, 3, WaitStrategy.BLOCKING, OverflowPolicy.BLOCK);
+	}
+
+}
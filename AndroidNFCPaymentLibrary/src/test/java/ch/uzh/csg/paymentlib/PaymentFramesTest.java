@@ -0,0 +1,43 @@
+package ch.uzh.csg.paymentlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import ch.uzh.csg.paymentlib.messages.PaymentError;
+import ch.uzh.csg.paymentlib.messages.PaymentMessage;
+
+public class PaymentFramesTest {
+	
+	@Test
+	public void testFrames() {
+		for (PaymentError err : PaymentError.values()) {
+			PaymentMessage m = new PaymentMessage().view(PaymentFrames.error(err, true));
+			assertTrue(m.isError());
+			assertTrue(m.isPayer());
+			assertEquals(err.getCode(), m.payloadAt(0));
+			
+			m = new PaymentMessage().view(PaymentFrames.error(err, false));
+			assertTrue(m.isError());
+			assertTrue(m.isPayee());
+			assertEquals(err.getCode(), m.payloadAt(0));
+		}
+		
+		PaymentMessage m = new PaymentMessage().view(PaymentFrames.ack(false));
+		assertFalse(m.isError());
+		assertEquals(1, m.payloadLength());
+		assertEquals(PaymentFrames.ACK, m.payloadAt(0));
+	}
+	
+	@Test
+	public void testNextFragment() {
+		assertTrue(PaymentFrames.isNextFragment(PaymentFrames.nextFragment(true)));
+		assertTrue(PaymentFrames.isNextFragment(PaymentFrames.nextFragment(false)));
+		assertTrue(new PaymentMessage().view(PaymentFrames.nextFragment(true)).isPayer());
+		assertFalse(PaymentFrames.isNextFragment(PaymentFrames.ack(true)));
+		assertFalse(PaymentFrames.isNextFragment(PaymentFrames.error(PaymentError.UNEXPECTED_ERROR, true)));
+	}
+	
+}
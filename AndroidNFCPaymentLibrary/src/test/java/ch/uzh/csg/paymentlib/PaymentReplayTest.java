@@ -0,0 +1,259 @@
+package ch.uzh.csg.paymentlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import java.nio.charset.Charset;
+import java.security.KeyPair;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import android.app.Activity;
+import ch.uzh.csg.mbps.customserialization.Currency;
+import ch.uzh.csg.mbps.customserialization.PKIAlgorithm;
+import ch.uzh.csg.mbps.customserialization.PaymentResponse;
+import ch.uzh.csg.mbps.customserialization.ServerResponseStatus;
+import ch.uzh.csg.nfclib.ISendLater;
+import ch.uzh.csg.nfclib.NfcInitiator;
+import ch.uzh.csg.nfclib.events.NfcEvent;
+import ch.uzh.csg.paymentlib.PaymentRequestHandler.MessageHandler;
+import ch.uzh.csg.paymentlib.PaymentRequestInitializer.PaymentType;
+import ch.uzh.csg.paymentlib.container.PaymentInfos;
+import ch.uzh.csg.paymentlib.container.ServerInfos;
+import ch.uzh.csg.paymentlib.container.UserInfos;
+import ch.uzh.csg.paymentlib.messages.Capabilities;
+import ch.uzh.csg.paymentlib.messages.PaymentError;
+import ch.uzh.csg.paymentlib.messages.PaymentMessage;
+import ch.uzh.csg.paymentlib.testutils.PersistencyHandler;
+import ch.uzh.csg.paymentlib.testutils.TestUtils;
+
+/**
+ * Replays recorded and mutated messages against the
+ * {@link PaymentRequestHandler.MessageHandler} and the INfcEventHandler of the
+ * {@link PaymentRequestInitializer}, and checks that every message is answered
+ * as expected, also if the same session handles it several times. The
+ * throughput, the latency, and the allocations of the same replay are
+ * measured by the PaymentReplayBenchmark of the benchmarks module.
+ * 
+ * In contrast to the other tests, this test does not run with PowerMock. Log
+ * is therefore not mocked, which is fine as long as Config.DEBUG is false,
+ * since the replayed messages are rejected without logging.
+ */
+public class PaymentReplayTest {
+
+	private static final int VALID = 5;
+	private static final int MALFORMED = 100;
+
+	private Activity hostActivity = Mockito.mock(Activity.class);
+
+	private int[] events = new int[PaymentEvent.values().length];
+	private byte[] transceived = null;
+
+	@Before
+	public void before() {
+		Arrays.fill(events, 0);
+		transceived = null;
+	}
+
+	private IPaymentEventHandler paymentEventHandler = new IPaymentEventHandler() {
+		@Override
+		public void handleMessage(PaymentEvent event, Object object, IServerResponseListener caller) {
+			events[event.ordinal()]++;
+		}
+	};
+
+	private ISendLater sendLater = new ISendLater() {
+		@Override
+		public void sendLater(byte[] arg0) {
+		}
+	};
+
+	private IUserPromptPaymentRequest userPrompt = new IUserPromptPaymentRequest() {
+		@Override
+		public boolean isPaymentAccepted() {
+			return true;
+		}
+
+		@Override
+		public void promptUserPaymentRequest(String username, Currency currency, long amount, IUserPromptAnswer answer) {
+			answer.acceptPayment();
+		}
+	};
+
+	private NfcInitiator transceiver() {
+		NfcInitiator transceiver = mock(NfcInitiator.class);
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				transceived = (byte[]) invocation.getArguments()[0];
+				return null;
+			}
+		}).when(transceiver).transceive(any(byte[].class));
+		return transceiver;
+	}
+
+	/*
+	 * The truncated, wrong version, and error messages which are replayed.
+	 * The payer flag is set if the messages are sent by the payer.
+	 */
+	private static byte[][] malformedFrames(boolean payer) {
+		byte flag = payer ? PaymentMessage.PAYER : 0;
+		return new byte[][] {
+				new byte[0],
+				new byte[] { (byte) (0xC0 | flag) },
+				new byte[] { (byte) (0x80 | flag), 0x01, 0x02, 0x03 },
+				new byte[] { (byte) (PaymentMessage.ERROR | flag) },
+				new byte[] { (byte) (PaymentMessage.ERROR | flag), (byte) 0x7F },
+				new byte[] { (byte) (PaymentMessage.ERROR | flag), (byte) 0xFF, 0x00 },
+				new byte[] { (byte) (PaymentMessage.ERROR | flag), PaymentError.PAYER_REFUSED.getCode() }
+		};
+	}
+
+	private static final PaymentError[] MALFORMED_ERRORS = new PaymentError[] {
+		PaymentError.UNEXPECTED_ERROR,
+		PaymentError.INCOMPATIBLE_VERSIONS,
+		PaymentError.INCOMPATIBLE_VERSIONS,
+		PaymentError.UNEXPECTED_ERROR,
+		PaymentError.UNEXPECTED_ERROR,
+		PaymentError.UNEXPECTED_ERROR,
+		PaymentError.PAYER_REFUSED
+	};
+
+	@Test
+	public void testReplay_Payee_Valid() throws Exception {
+		/*
+		 * Replays the messages of the payer during a send payment
+		 */
+		KeyPair keyPairPayee = TestUtils.generateKeyPair();
+		KeyPair keyPairServer = TestUtils.generateKeyPair();
+		UserInfos userInfosPayee = new UserInfos("seller", keyPairPayee.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
+
+		PaymentRequestHandler prh = new PaymentRequestHandler(hostActivity, paymentEventHandler, userInfosPayee, serverInfos, userPrompt, new PersistencyHandler());
+		MessageHandler messageHandler = prh.getMessageHandler();
+
+		Capabilities local = Capabilities.local();
+		byte[] payload = new byte[1 + local.encodedLength()];
+		local.encode(payload, 1);
+		byte[] versionFrame = new PaymentMessage().payer().negotiate().payload(payload).bytes();
+
+		PaymentResponse pr = new PaymentResponse(PKIAlgorithm.DEFAULT, 1, ServerResponseStatus.SUCCESS, null, "buyer", userInfosPayee.getUsername(), Currency.BTC, 1, System.currentTimeMillis());
+		pr.sign(keyPairServer.getPrivate());
+		byte[] responseFrame = new PaymentMessage().payer().payload(pr.encode()).bytes();
+
+		for (int i = 0; i < VALID; i++) {
+			prh.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+			byte[] username = messageHandler.handleMessage(versionFrame, sendLater);
+			byte[] ack = messageHandler.handleMessage(responseFrame, sendLater);
+
+			if (new PaymentMessage().bytes(username).isError() || ack != PaymentFrames.ack(false))
+				fail("unexpected response in iteration "+i);
+		}
+
+		assertEquals(VALID, events[PaymentEvent.SUCCESS.ordinal()]);
+		assertEquals(0, events[PaymentEvent.ERROR.ordinal()]);
+	}
+
+	@Test
+	public void testReplay_Payee_Malformed() throws Exception {
+		/*
+		 * Replays malformed messages, which must be rejected with the
+		 * preallocated error frames
+		 */
+		KeyPair keyPairPayer = TestUtils.generateKeyPair();
+		KeyPair keyPairServer = TestUtils.generateKeyPair();
+		UserInfos userInfosPayer = new UserInfos("buyer", keyPairPayer.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
+
+		PaymentRequestHandler prh = new PaymentRequestHandler(hostActivity, paymentEventHandler, userInfosPayer, serverInfos, userPrompt, new PersistencyHandler());
+		MessageHandler messageHandler = prh.getMessageHandler();
+
+		byte[][] frames = malformedFrames(false);
+		byte[][] expected = new byte[frames.length][];
+		for (int i = 0; i < frames.length; i++) {
+			expected[i] = PaymentFrames.error(MALFORMED_ERRORS[i], false);
+		}
+
+		for (int i = 0; i < MALFORMED; i++) {
+			int index = i % frames.length;
+			prh.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+			byte[] response = messageHandler.handleMessage(frames[index], sendLater);
+
+			if (response != expected[index])
+				fail("unexpected response in iteration "+i);
+		}
+
+		assertEquals(MALFORMED, events[PaymentEvent.INITIALIZED.ordinal()]);
+		assertEquals(MALFORMED, events[PaymentEvent.ERROR.ordinal()]);
+	}
+
+	@Test
+	public void testReplay_Payer_Valid() throws Exception {
+		/*
+		 * Replays the messages of the payee during a send payment
+		 */
+		KeyPair keyPairPayer = TestUtils.generateKeyPair();
+		KeyPair keyPairServer = TestUtils.generateKeyPair();
+		UserInfos userInfosPayer = new UserInfos("buyer", keyPairPayer.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		PaymentInfos paymentInfos = new PaymentInfos(Currency.BTC, 1);
+		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
+
+		PaymentRequestInitializer pri = new PaymentRequestInitializer(hostActivity, transceiver(), paymentEventHandler, userInfosPayer, paymentInfos, serverInfos, new PersistencyHandler(), PaymentType.SEND_PAYMENT);
+
+		byte[] usernameFrame = new PaymentMessage().payee().payload("seller".getBytes(Charset.forName("UTF-8"))).bytes();
+		byte[] ackFrame = PaymentFrames.ack(false);
+
+		for (int i = 0; i < VALID; i++) {
+			pri.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+			pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, usernameFrame);
+			pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, ackFrame);
+		}
+
+		assertEquals(VALID, events[PaymentEvent.FORWARD_TO_SERVER.ordinal()]);
+		assertEquals(0, events[PaymentEvent.ERROR.ordinal()]);
+	}
+
+	@Test
+	public void testReplay_Payer_Malformed() throws Exception {
+		/*
+		 * Replays malformed messages. Received error messages do not abort
+		 * the session, so they can be replayed without initializing the
+		 * session again.
+		 */
+		KeyPair keyPairPayee = TestUtils.generateKeyPair();
+		KeyPair keyPairServer = TestUtils.generateKeyPair();
+		UserInfos userInfosPayee = new UserInfos("seller", keyPairPayee.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		PaymentInfos paymentInfos = new PaymentInfos(Currency.BTC, 1);
+		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
+
+		PaymentRequestInitializer pri = new PaymentRequestInitializer(hostActivity, transceiver(), paymentEventHandler, userInfosPayee, paymentInfos, serverInfos, new PersistencyHandler(), PaymentType.REQUEST_PAYMENT);
+
+		// the session has to be initialized again after every aborting message
+		byte[][] frames = malformedFrames(true);
+		for (int i = 0; i < MALFORMED; i++) {
+			int index = i % frames.length;
+			pri.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+			pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, frames[index]);
+
+			if (index < 3 && transceived != PaymentFrames.error(MALFORMED_ERRORS[index], false))
+				fail("unexpected response in iteration "+i);
+		}
+		assertEquals(MALFORMED, events[PaymentEvent.ERROR.ordinal()]);
+
+		byte[][] errorFrames = Arrays.copyOfRange(frames, 3, frames.length);
+		pri.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+		for (int i = 0; i < MALFORMED; i++) {
+			pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, errorFrames[i % errorFrames.length]);
+		}
+		assertEquals(2 * MALFORMED, events[PaymentEvent.ERROR.ordinal()]);
+	}
+
+}
@@ -1,15 +1,23 @@
 package ch.uzh.csg.paymentlib;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.nio.charset.Charset;
 import java.security.KeyPair;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -18,6 +26,7 @@ import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
@@ -32,19 +41,34 @@ import ch.uzh.csg.mbps.customserialization.PaymentResponse;
 import ch.uzh.csg.mbps.customserialization.ServerPaymentRequest;
 import ch.uzh.csg.mbps.customserialization.ServerPaymentResponse;
 import ch.uzh.csg.mbps.customserialization.ServerResponseStatus;
+import ch.uzh.csg.mbps.customserialization.SignedSerializableObject;
 import ch.uzh.csg.nfclib.ISendLater;
 import ch.uzh.csg.nfclib.events.NfcEvent;
 import ch.uzh.csg.paymentlib.PaymentRequestHandler.MessageHandler;
 import ch.uzh.csg.paymentlib.container.PaymentInfos;
+import ch.uzh.csg.paymentlib.container.PaymentSession;
+import ch.uzh.csg.paymentlib.container.PaymentSessions;
 import ch.uzh.csg.paymentlib.container.ServerInfos;
 import ch.uzh.csg.paymentlib.container.UserInfos;
+import ch.uzh.csg.paymentlib.exceptions.IllegalArgumentException;
+import ch.uzh.csg.paymentlib.messages.Capabilities;
+import ch.uzh.csg.paymentlib.messages.Fragmenter;
+import ch.uzh.csg.paymentlib.messages.PayloadCompressor;
+import ch.uzh.csg.paymentlib.messages.PaymentBatch;
 import ch.uzh.csg.paymentlib.messages.PaymentError;
+import ch.uzh.csg.paymentlib.messages.PaymentErrorResult;
 import ch.uzh.csg.paymentlib.messages.PaymentMessage;
+import ch.uzh.csg.paymentlib.messages.SessionToken;
+import ch.uzh.csg.paymentlib.signer.DelayedSigner;
+import ch.uzh.csg.paymentlib.signer.IPaymentSigner;
+import ch.uzh.csg.paymentlib.signer.ISignatureListener;
+import ch.uzh.csg.paymentlib.signer.SoftwareSigner;
 import ch.uzh.csg.paymentlib.testutils.PersistencyHandler;
 import ch.uzh.csg.paymentlib.testutils.TestUtils;
 import ch.uzh.csg.paymentlib.util.Config;
 
 @RunWith(PowerMockRunner.class)
+@PowerMockIgnore("javax.crypto.*")
 @PrepareForTest(Log.class)
 public class PaymentRequestHandlerTest {
 	
@@ -63,7 +87,8 @@ public class PaymentRequestHandlerTest {
 		}
 	}
 	
-	private List<State> states = new ArrayList<State>();
+	// the timeouts fire their events on another thread
+	private List<State> states = Collections.synchronizedList(new ArrayList<State>());
 	private PersistencyHandler persistencyHandler = null;
 	private byte[] sendLaterBytes = null;
 
@@ -191,9 +216,10 @@ public class PaymentRequestHandlerTest {
 		state = states.get(1);
 		assertEquals(PaymentEvent.ERROR, state.event);
 		assertNotNull(state.object);
-		assertTrue(state.object instanceof PaymentError);
-		PaymentError err = (PaymentError) state.object;
+		assertTrue(state.object instanceof PaymentErrorResult);
+		PaymentError err = ((PaymentErrorResult) state.object).getError();
 		assertEquals(PaymentError.SERVER_REFUSED, err);
+		assertEquals(reason, ((PaymentErrorResult) state.object).getErrorCause());
 	}
 	
 	@Test
@@ -322,11 +348,79 @@ public class PaymentRequestHandlerTest {
 		state = states.get(1);
 		assertEquals(PaymentEvent.ERROR, state.event);
 		assertNotNull(state.object);
-		assertTrue(state.object instanceof PaymentError);
-		PaymentError err = (PaymentError) state.object;
+		assertTrue(state.object instanceof PaymentErrorResult);
+		PaymentError err = ((PaymentErrorResult) state.object).getError();
 		assertEquals(PaymentError.NO_SERVER_RESPONSE, err);
 	}
 	
+	@Test
+	public void testPaymentRequestHandler_Payee_ServerResponseTimeout_SlowEventHandler() throws Exception {
+		/*
+		 * Simulates two readers whose server responses time out at the same
+		 * time, where the app blocks while handling the error of the first
+		 * one
+		 */
+		reset();
+		
+		KeyPair keyPairServer = TestUtils.generateKeyPair();
+		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
+		UserInfos userInfosPayee = new UserInfos("seller", TestUtils.generateKeyPair().getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		PaymentInfos paymentInfos = new PaymentInfos(Currency.BTC, 1);
+		
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch timedOut = new CountDownLatch(1);
+		final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+		IPaymentEventHandler slowHandler = new IPaymentEventHandler() {
+			@Override
+			public void handleMessage(PaymentEvent event, Object object, IServerResponseListener caller) {
+				if (event != PaymentEvent.ERROR)
+					return;
+				
+				threads.add(Thread.currentThread());
+				blocked.countDown();
+				try {
+					release.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+		IPaymentEventHandler otherHandler = new IPaymentEventHandler() {
+			@Override
+			public void handleMessage(PaymentEvent event, Object object, IServerResponseListener caller) {
+				if (event != PaymentEvent.ERROR)
+					return;
+				
+				threads.add(Thread.currentThread());
+				timedOut.countDown();
+			}
+		};
+		
+		InitMessagePayee initMessage = new InitMessagePayee(userInfosPayee.getUsername(), paymentInfos.getCurrency(), paymentInfos.getAmount());
+		byte[] data = new PaymentMessage().payee().payload(initMessage.encode()).bytes();
+		
+		// the server responses of both readers are outstanding
+		for (IPaymentEventHandler handler : Arrays.asList(slowHandler, otherHandler)) {
+			UserInfos userInfosPayer = new UserInfos("buyer", TestUtils.generateKeyPair().getPrivate(), PKIAlgorithm.DEFAULT, 1);
+			PaymentRequestHandler prh = new PaymentRequestHandler(hostActivity, handler, userInfosPayer, serverInfos, defaultUserPrompt, persistencyHandler);
+			prh.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+			assertNull(prh.getMessageHandler().handleMessage(data, sendLater));
+			assertNotNull(sendLaterBytes);
+			sendLaterBytes = null;
+		}
+		
+		// the app blocks while handling the first timeout, which does not delay the second one
+		assertTrue(blocked.await(Config.SERVER_RESPONSE_TIMEOUT+1000, TimeUnit.MILLISECONDS));
+		assertTrue(timedOut.await(1000, TimeUnit.MILLISECONDS));
+		release.countDown();
+		
+		// the app is not notified on the timer's thread
+		assertEquals(2, threads.size());
+		for (Thread thread : threads) {
+			assertFalse("HashedWheelTimer".equals(thread.getName()));
+		}
+	}
+	
 	@Test
 	public void testPaymentRequestHandler_Payee_ServerResponseTimeout_interruptConnection() throws Exception {
 		/*
@@ -406,8 +500,8 @@ public class PaymentRequestHandlerTest {
 		state = states.get(2);
 		assertEquals(PaymentEvent.ERROR, state.event);
 		assertNotNull(state.object);
-		assertTrue(state.object instanceof PaymentError);
-		PaymentError err = (PaymentError) state.object;
+		assertTrue(state.object instanceof PaymentErrorResult);
+		PaymentError err = ((PaymentErrorResult) state.object).getError();
 		assertEquals(PaymentError.NO_SERVER_RESPONSE, err);
 	}
 	
@@ -657,8 +751,8 @@ public class PaymentRequestHandlerTest {
 		state = states.get(1);
 		assertEquals(PaymentEvent.ERROR, state.event);
 		assertNotNull(state.object);
-		assertTrue(state.object instanceof PaymentError);
-		PaymentError err = (PaymentError) state.object;
+		assertTrue(state.object instanceof PaymentErrorResult);
+		PaymentError err = ((PaymentErrorResult) state.object).getError();
 		assertEquals(PaymentError.SERVER_REFUSED, err);
 	}
 	
@@ -730,6 +824,561 @@ public class PaymentRequestHandlerTest {
 		assertEquals(userInfosPayee.getUsername(), pr1.getUsernamePayee());
 	}
 	
+	@Test
+	public void testPaymentRequestHandler_Payer_Success_Compressed() throws Exception {
+		/*
+		 * Simulates a successful payment where the server response is
+		 * forwarded compressed
+		 */
+		reset();
+
+		KeyPair keyPairPayer = TestUtils.generateKeyPair();
+		UserInfos userInfosPayer = new UserInfos("payer", keyPairPayer.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		PaymentInfos paymentInfos = new PaymentInfos(Currency.BTC, 1);
+		
+		KeyPair keyPairPayee = TestUtils.generateKeyPair();
+		KeyPair keyPairServer = TestUtils.generateKeyPair();
+		UserInfos userInfosPayee = new UserInfos("payee", keyPairPayee.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
+		
+		PaymentRequestHandler prh = new PaymentRequestHandler(hostActivity, paymentEventHandler, userInfosPayee, serverInfos, defaultUserPrompt, persistencyHandler);
+		MessageHandler messageHandler = prh.getMessageHandler();
+		prh.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+		
+		// receive request to send username
+		PaymentMessage pm = new PaymentMessage().payer().payload(new byte[] { 0x00 });
+		assertTrue(pm.isPayer());
+		
+		byte[] handleMessage = messageHandler.handleMessage(pm.bytes(), sendLater);
+		assertNull(sendLaterBytes);
+		pm = new PaymentMessage().bytes(handleMessage);
+		
+		assertFalse(pm.isError());
+		
+		// receive payment response
+		PaymentRequest paymentRequestPayer = new PaymentRequest(userInfosPayer.getPKIAlgorithm(), userInfosPayer.getKeyNumber(), userInfosPayer.getUsername(), userInfosPayee.getUsername(), paymentInfos.getCurrency(), paymentInfos.getAmount(), paymentInfos.getTimestamp());
+		paymentRequestPayer.sign(userInfosPayer.getPrivateKey());
+		ServerPaymentRequest spr = new ServerPaymentRequest(paymentRequestPayer);
+		
+		ServerPaymentRequest decode = DecoderFactory.decode(ServerPaymentRequest.class, spr.encode());
+		PaymentRequest paymentRequestPayer2 = decode.getPaymentRequestPayer();
+		
+		PaymentResponse pr = new PaymentResponse(PKIAlgorithm.DEFAULT, 1, ServerResponseStatus.SUCCESS, null, paymentRequestPayer2.getUsernamePayer(), paymentRequestPayer2.getUsernamePayee(), paymentRequestPayer2.getCurrency(), paymentRequestPayer2.getAmount(), paymentRequestPayer2.getTimestamp());
+		pr.sign(keyPairServer.getPrivate());
+		ServerPaymentResponse spr2 = new ServerPaymentResponse(pr);
+		byte[] encode = spr2.encode();
+		
+		ServerPaymentResponse serverPaymentResponse = DecoderFactory.decode(ServerPaymentResponse.class, encode);
+		byte[] encode2 = serverPaymentResponse.getPaymentResponsePayer().encode();
+		
+		byte[] compressed = PayloadCompressor.compress(encode2, PayloadCompressor.dictionary(userInfosPayee.getUsername()));
+		assertNotNull(compressed);
+		byte[] data = new PaymentMessage().payer().compressed().payload(compressed).bytes();
+		
+		byte[] handleMessage2 = messageHandler.handleMessage(data, sendLater);
+		assertNull(sendLaterBytes);
+		
+		PaymentMessage pm2 = new PaymentMessage().bytes(handleMessage2);
+		assertFalse(pm2.isError());
+		assertEquals(1, pm2.payload().length);
+		assertEquals(PaymentRequestHandler.ACK[0], pm2.payload()[0]);
+		
+		assertEquals(2, states.size());
+		State state = states.get(0);
+		assertEquals(PaymentEvent.INITIALIZED, state.event);
+		state = states.get(1);
+		assertEquals(PaymentEvent.SUCCESS, state.event);
+		assertNotNull(state.object);
+		assertTrue(state.object instanceof PaymentResponse);
+		PaymentResponse pr1 = (PaymentResponse) state.object;
+		assertEquals(userInfosPayer.getUsername(), pr1.getUsernamePayer());
+		assertEquals(userInfosPayee.getUsername(), pr1.getUsernamePayee());
+	}
+	
+	@Test
+	public void testPaymentRequestHandler_Payer_Success_Fragmented() throws Exception {
+		/*
+		 * Simulates a successful payment where the compressed server
+		 * response is forwarded in several fragments
+		 */
+		reset();
+
+		KeyPair keyPairPayer = TestUtils.generateKeyPair();
+		UserInfos userInfosPayer = new UserInfos("payer", keyPairPayer.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		PaymentInfos paymentInfos = new PaymentInfos(Currency.BTC, 1);
+		
+		KeyPair keyPairPayee = TestUtils.generateKeyPair();
+		KeyPair keyPairServer = TestUtils.generateKeyPair();
+		UserInfos userInfosPayee = new UserInfos("payee", keyPairPayee.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
+		
+		PaymentRequestHandler prh = new PaymentRequestHandler(hostActivity, paymentEventHandler, userInfosPayee, serverInfos, defaultUserPrompt, persistencyHandler);
+		MessageHandler messageHandler = prh.getMessageHandler();
+		prh.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+		
+		// receive request to send username
+		PaymentMessage pm = new PaymentMessage().payer().payload(new byte[] { 0x00 });
+		assertTrue(pm.isPayer());
+		
+		byte[] handleMessage = messageHandler.handleMessage(pm.bytes(), sendLater);
+		assertNull(sendLaterBytes);
+		pm = new PaymentMessage().bytes(handleMessage);
+		
+		assertFalse(pm.isError());
+		
+		// receive payment response
+		PaymentRequest paymentRequestPayer = new PaymentRequest(userInfosPayer.getPKIAlgorithm(), userInfosPayer.getKeyNumber(), userInfosPayer.getUsername(), userInfosPayee.getUsername(), paymentInfos.getCurrency(), paymentInfos.getAmount(), paymentInfos.getTimestamp());
+		paymentRequestPayer.sign(userInfosPayer.getPrivateKey());
+		ServerPaymentRequest spr = new ServerPaymentRequest(paymentRequestPayer);
+		
+		ServerPaymentRequest decode = DecoderFactory.decode(ServerPaymentRequest.class, spr.encode());
+		PaymentRequest paymentRequestPayer2 = decode.getPaymentRequestPayer();
+		
+		PaymentResponse pr = new PaymentResponse(PKIAlgorithm.DEFAULT, 1, ServerResponseStatus.SUCCESS, null, paymentRequestPayer2.getUsernamePayer(), paymentRequestPayer2.getUsernamePayee(), paymentRequestPayer2.getCurrency(), paymentRequestPayer2.getAmount(), paymentRequestPayer2.getTimestamp());
+		pr.sign(keyPairServer.getPrivate());
+		ServerPaymentResponse spr2 = new ServerPaymentResponse(pr);
+		byte[] encode = spr2.encode();
+		
+		ServerPaymentResponse serverPaymentResponse = DecoderFactory.decode(ServerPaymentResponse.class, encode);
+		byte[] encode2 = serverPaymentResponse.getPaymentResponsePayer().encode();
+		
+		byte[] compressed = PayloadCompressor.compress(encode2, PayloadCompressor.dictionary(userInfosPayee.getUsername()));
+		assertNotNull(compressed);
+		byte[] data = new PaymentMessage().payer().compressed().payload(compressed).bytes();
+		
+		Fragmenter fragmenter = new Fragmenter(data, 32);
+		assertTrue(fragmenter.getNofFragments() > 2);
+		byte[] handleMessage2 = null;
+		while (fragmenter.hasNext()) {
+			handleMessage2 = messageHandler.handleMessage(fragmenter.next(), sendLater);
+			if (fragmenter.hasNext())
+				assertArrayEquals(PaymentFrames.nextFragment(false), handleMessage2);
+		}
+		assertNull(sendLaterBytes);
+		
+		PaymentMessage pm2 = new PaymentMessage().bytes(handleMessage2);
+		assertFalse(pm2.isError());
+		assertEquals(1, pm2.payload().length);
+		assertEquals(PaymentRequestHandler.ACK[0], pm2.payload()[0]);
+		
+		assertEquals(2, states.size());
+		State state = states.get(0);
+		assertEquals(PaymentEvent.INITIALIZED, state.event);
+		state = states.get(1);
+		assertEquals(PaymentEvent.SUCCESS, state.event);
+		assertNotNull(state.object);
+		assertTrue(state.object instanceof PaymentResponse);
+		PaymentResponse pr1 = (PaymentResponse) state.object;
+		assertEquals(userInfosPayer.getUsername(), pr1.getUsernamePayer());
+		assertEquals(userInfosPayee.getUsername(), pr1.getUsernamePayee());
+	}
+	
+	@Test
+	public void testPaymentRequestHandler_Payer_Username() throws Exception {
+		/*
+		 * Simulates the first message of a SEND_PAYMENT with a payer which
+		 * does not negotiate its capabilities
+		 */
+		reset();
+		
+		KeyPair keyPairPayee = TestUtils.generateKeyPair();
+		KeyPair keyPairServer = TestUtils.generateKeyPair();
+		UserInfos userInfosPayee = new UserInfos("payee", keyPairPayee.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
+		
+		PaymentRequestHandler prh = new PaymentRequestHandler(hostActivity, paymentEventHandler, userInfosPayee, serverInfos, defaultUserPrompt, persistencyHandler);
+		MessageHandler messageHandler = prh.getMessageHandler();
+		prh.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+		
+		PaymentMessage pm = new PaymentMessage().payer().payload(new byte[] { 0x00 });
+		PaymentMessage response = new PaymentMessage().bytes(messageHandler.handleMessage(pm.bytes(), sendLater));
+		assertFalse(response.isError());
+		assertFalse(response.isNegotiate());
+		assertEquals(0, response.version());
+		
+		byte[] username = userInfosPayee.getUsername().getBytes(Charset.forName("UTF-8"));
+		assertArrayEquals(username, response.payload());
+		
+		assertNull(sendLaterBytes);
+	}
+	
+	@Test
+	public void testPaymentRequestHandler_Payee_Batch() throws Exception {
+		/*
+		 * Simulates a successful batch payment, where the payer is prompted
+		 * once with the total amount
+		 */
+		reset();
+
+		KeyPair keyPairPayee = TestUtils.generateKeyPair();
+		UserInfos userInfosPayee = new UserInfos("seller", keyPairPayee.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		
+		KeyPair keyPairPayer = TestUtils.generateKeyPair();
+		KeyPair keyPairServer = TestUtils.generateKeyPair();
+		UserInfos userInfosPayer = new UserInfos("buyer", keyPairPayer.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
+		
+		final List<Long> prompted = new ArrayList<Long>();
+		IUserPromptPaymentRequest userPrompt = new IUserPromptPaymentRequest() {
+			
+			@Override
+			public boolean isPaymentAccepted() {
+				return true;
+			}
+			
+			@Override
+			public void promptUserPaymentRequest(String username, Currency currency, long amount, IUserPromptAnswer answer) {
+				prompted.add(amount);
+				answer.acceptPayment();
+			}
+		};
+		
+		PaymentRequestHandler prh = new PaymentRequestHandler(hostActivity, paymentEventHandler, userInfosPayer, serverInfos, userPrompt, persistencyHandler);
+		MessageHandler messageHandler = prh.getMessageHandler();
+		prh.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+		
+		// receive batch payment request
+		List<byte[]> items = new ArrayList<byte[]>();
+		items.add(new InitMessagePayee(userInfosPayee.getUsername(), Currency.BTC, 3).encode());
+		items.add(new InitMessagePayee(userInfosPayee.getUsername(), Currency.BTC, 4).encode());
+		byte[] data = new PaymentMessage().version(1).payee().negotiate().payload(PaymentBatch.encode(items)).bytes();
+		
+		byte[] handleMessage = messageHandler.handleMessage(data, sendLater);
+		assertNull(handleMessage);
+		assertEquals(1, prompted.size());
+		assertEquals(7, prompted.get(0).longValue());
+		assertEquals(2, persistencyHandler.getList().size());
+		
+		assertNotNull(sendLaterBytes);
+		PaymentMessage pm = new PaymentMessage().bytes(sendLaterBytes);
+		assertFalse(pm.isError());
+		assertEquals(1, pm.version());
+		assertTrue(pm.isNegotiate());
+		sendLaterBytes = null;
+		
+		List<byte[]> requests = PaymentBatch.decode(pm, Capabilities.blockLength(pm, 0));
+		assertEquals(2, requests.size());
+		
+		// receive batch payment response
+		List<byte[]> responses = new ArrayList<byte[]>();
+		for (int i = 0; i < requests.size(); i++) {
+			PaymentRequest paymentRequestPayer = DecoderFactory.decode(PaymentRequest.class, requests.get(i));
+			assertEquals(userInfosPayer.getUsername(), paymentRequestPayer.getUsernamePayer());
+			assertEquals(userInfosPayee.getUsername(), paymentRequestPayer.getUsernamePayee());
+			assertEquals(i + 3, paymentRequestPayer.getAmount());
+			
+			PaymentResponse pr = new PaymentResponse(PKIAlgorithm.DEFAULT, 1, ServerResponseStatus.SUCCESS, null, paymentRequestPayer.getUsernamePayer(), paymentRequestPayer.getUsernamePayee(), paymentRequestPayer.getCurrency(), paymentRequestPayer.getAmount(), paymentRequestPayer.getTimestamp());
+			pr.sign(keyPairServer.getPrivate());
+			responses.add(pr.encode());
+		}
+		data = new PaymentMessage().version(1).payee().payload(PaymentBatch.encode(responses)).bytes();
+		
+		byte[] handleMessage2 = messageHandler.handleMessage(data, sendLater);
+		assertNotNull(handleMessage2);
+		assertNull(sendLaterBytes);
+		
+		PaymentMessage pm2 = new PaymentMessage().bytes(handleMessage2);
+		assertFalse(pm2.isError());
+		assertEquals(PaymentRequestHandler.ACK[0], pm2.payload()[0]);
+		assertEquals(0, persistencyHandler.getList().size());
+		
+		assertEquals(3, states.size());
+		assertEquals(PaymentEvent.INITIALIZED, states.get(0).event);
+		for (int i = 1; i < 3; i++) {
+			State state = states.get(i);
+			assertEquals(PaymentEvent.SUCCESS, state.event);
+			assertEquals(i + 2, ((PaymentResponse) state.object).getAmount());
+		}
+	}
+	
+	@Test
+	public void testPaymentRequestHandler_Payer_Negotiate() throws Exception {
+		/*
+		 * Simulates the capability negotiation on the first message of a
+		 * SEND_PAYMENT
+		 */
+		reset();
+		
+		KeyPair keyPairPayee = TestUtils.generateKeyPair();
+		KeyPair keyPairServer = TestUtils.generateKeyPair();
+		UserInfos userInfosPayee = new UserInfos("payee", keyPairPayee.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
+		
+		PaymentRequestHandler prh = new PaymentRequestHandler(hostActivity, paymentEventHandler, userInfosPayee, serverInfos, defaultUserPrompt, persistencyHandler);
+		MessageHandler messageHandler = prh.getMessageHandler();
+		prh.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+		
+		Capabilities payer = new Capabilities(Capabilities.COMPRESSION, 0, Capabilities.pkiAlgorithms(PKIAlgorithm.DEFAULT));
+		byte[] payload = new byte[1 + payer.encodedLength()];
+		payload[0] = 0x01;
+		payer.encode(payload, 1);
+		PaymentMessage pm = new PaymentMessage().payer().negotiate().payload(payload);
+		
+		PaymentMessage response = new PaymentMessage().bytes(messageHandler.handleMessage(pm.bytes(), sendLater));
+		assertFalse(response.isError());
+		assertTrue(response.isNegotiate());
+		assertEquals(0, response.version());
+		
+		Capabilities payee = Capabilities.decode(response, 0);
+		assertTrue(payee.supports(Capabilities.COMPRESSION));
+		assertTrue(payee.supports(PKIAlgorithm.DEFAULT));
+		
+		// the username follows the capabilities
+		byte[] username = userInfosPayee.getUsername().getBytes(Charset.forName("UTF-8"));
+		assertArrayEquals(username, Arrays.copyOfRange(response.payload(), Capabilities.blockLength(response, 0), response.payloadLength()));
+		
+		// a truncated capabilities block is rejected
+		prh.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+		pm = new PaymentMessage().payer().negotiate().payload(new byte[] { 0x01, 0x04 });
+		response = new PaymentMessage().bytes(messageHandler.handleMessage(pm.bytes(), sendLater));
+		assertTrue(response.isError());
+	}
+	
+	@Test
+	public void testPaymentRequestHandler_Payer_MaxFrameLength() throws Exception {
+		/*
+		 * Simulates a payee announcing the maximum frame length set by the
+		 * app, which the payer has to fragment larger messages for
+		 */
+		reset();
+		
+		KeyPair keyPairPayee = TestUtils.generateKeyPair();
+		KeyPair keyPairServer = TestUtils.generateKeyPair();
+		UserInfos userInfosPayee = new UserInfos("payee", keyPairPayee.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
+		
+		PaymentRequestHandler prh = new PaymentRequestHandler(hostActivity, paymentEventHandler, userInfosPayee, serverInfos, defaultUserPrompt, persistencyHandler);
+		for (int invalid : new int[] { -1, Fragmenter.FIRST_FRAGMENT_OVERHEAD, 0x10000 }) {
+			try {
+				prh.setMaxFrameLength(invalid);
+				fail("The max frame length "+invalid+" must be rejected.");
+			} catch (IllegalArgumentException e) {
+			}
+		}
+		prh.setMaxFrameLength(64);
+		
+		MessageHandler messageHandler = prh.getMessageHandler();
+		prh.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+		
+		Capabilities payer = Capabilities.local();
+		byte[] payload = new byte[1 + payer.encodedLength()];
+		payload[0] = 0x01;
+		payer.encode(payload, 1);
+		PaymentMessage pm = new PaymentMessage().payer().negotiate().payload(payload);
+		
+		PaymentMessage response = new PaymentMessage().bytes(messageHandler.handleMessage(pm.bytes(), sendLater));
+		assertFalse(response.isError());
+		
+		Capabilities payee = Capabilities.decode(response, 0);
+		assertTrue(payee.supports(Capabilities.FRAGMENTATION));
+		assertEquals(64, payee.getMaxFrameLength());
+	}
+	
+	@Test
+	public void testPaymentRequestHandler_Payee_Negotiate() throws Exception {
+		/*
+		 * Simulates a payee taking part in the capability negotiation on the
+		 * first message of a REQUEST_PAYMENT
+		 */
+		reset();
+
+		KeyPair keyPairPayee = TestUtils.generateKeyPair();
+		UserInfos userInfosPayee = new UserInfos("seller", keyPairPayee.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		PaymentInfos paymentInfos = new PaymentInfos(Currency.BTC, 1);
+		
+		KeyPair keyPairPayer = TestUtils.generateKeyPair();
+		KeyPair keyPairServer = TestUtils.generateKeyPair();
+		UserInfos userInfosPayer = new UserInfos("buyer", keyPairPayer.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
+		
+		PaymentRequestHandler prh = new PaymentRequestHandler(hostActivity, paymentEventHandler, userInfosPayer, serverInfos, defaultUserPrompt, persistencyHandler);
+		MessageHandler messageHandler = prh.getMessageHandler();
+		prh.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+		
+		InitMessagePayee initMessage = new InitMessagePayee(userInfosPayee.getUsername(), paymentInfos.getCurrency(), paymentInfos.getAmount());
+		byte[] data = new PaymentMessage().payee().negotiate().payload(initMessage.encode()).bytes();
+		
+		byte[] handleMessage = messageHandler.handleMessage(data, sendLater);
+		assertNull(handleMessage);
+		
+		assertNotNull(sendLaterBytes);
+		PaymentMessage pm = new PaymentMessage().bytes(sendLaterBytes);
+		assertFalse(pm.isError());
+		assertTrue(pm.isNegotiate());
+		
+		Capabilities payer = Capabilities.decode(pm, 0);
+		assertTrue(payer.supports(Capabilities.COMPRESSION));
+		
+		byte[] payload = PayloadCompressor.payload(pm, Capabilities.blockLength(pm, 0), null, Config.MAX_PAYLOAD_LENGTH);
+		PaymentRequest paymentRequestPayer = DecoderFactory.decode(PaymentRequest.class, payload);
+		assertEquals(userInfosPayer.getUsername(), paymentRequestPayer.getUsernamePayer());
+		assertEquals(userInfosPayee.getUsername(), paymentRequestPayer.getUsernamePayee());
+	}
+	
+	@Test
+	public void testPaymentRequestHandler_Payee_Session() throws Exception {
+		/*
+		 * Simulates a payment establishing a session, a follow-up payment
+		 * authenticated within the session, and a payee which does not know
+		 * the session anymore
+		 */
+		reset();
+
+		KeyPair keyPairPayee = TestUtils.generateKeyPair();
+		UserInfos userInfosPayee = new UserInfos("seller", keyPairPayee.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		PaymentInfos paymentInfos = new PaymentInfos(Currency.BTC, 1);
+		
+		KeyPair keyPairPayer = TestUtils.generateKeyPair();
+		KeyPair keyPairServer = TestUtils.generateKeyPair();
+		UserInfos userInfosPayer = new UserInfos("buyer", keyPairPayer.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
+		
+		PaymentSessions sessions = new PaymentSessions();
+		PaymentRequestHandler prh = new PaymentRequestHandler(hostActivity, paymentEventHandler, userInfosPayer, serverInfos, defaultUserPrompt, persistencyHandler);
+		prh.enableSessions(sessions);
+		MessageHandler messageHandler = prh.getMessageHandler();
+		
+		InitMessagePayee initMessage = new InitMessagePayee(userInfosPayee.getUsername(), paymentInfos.getCurrency(), paymentInfos.getAmount());
+		byte[] init = new PaymentMessage().payee().negotiate().payload(initMessage.encode()).bytes();
+		byte[] sessionCapabilities = Capabilities.local().with(Capabilities.SESSION).encode();
+		
+		// 1st payment: signed, the payee confirms the session
+		prh.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+		assertNull(messageHandler.handleMessage(init, sendLater));
+		PaymentMessage pm = new PaymentMessage().bytes(sendLaterBytes);
+		assertFalse(pm.isError());
+		assertTrue(Capabilities.decode(pm, 0).supports(Capabilities.SESSION));
+		byte[] payload = PayloadCompressor.payload(pm, Capabilities.blockLength(pm, 0), null, Config.MAX_PAYLOAD_LENGTH);
+		assertEquals(SessionToken.SIGNATURE, payload[0]);
+		PaymentRequest paymentRequestPayer = DecoderFactory.decode(PaymentRequest.class, Arrays.copyOfRange(payload, 1, payload.length));
+		assertTrue(paymentRequestPayer.verify(keyPairPayer.getPublic()));
+		
+		PaymentResponse pr = new PaymentResponse(PKIAlgorithm.DEFAULT, 1, ServerResponseStatus.SUCCESS, null, paymentRequestPayer.getUsernamePayer(), paymentRequestPayer.getUsernamePayee(), paymentRequestPayer.getCurrency(), paymentRequestPayer.getAmount(), System.currentTimeMillis());
+		pr.sign(keyPairServer.getPrivate());
+		byte[] encoded = pr.encode();
+		byte[] prefixed = new byte[sessionCapabilities.length + encoded.length];
+		System.arraycopy(sessionCapabilities, 0, prefixed, 0, sessionCapabilities.length);
+		System.arraycopy(encoded, 0, prefixed, sessionCapabilities.length, encoded.length);
+		byte[] ack = messageHandler.handleMessage(new PaymentMessage().payee().negotiate().payload(prefixed).bytes(), sendLater);
+		assertEquals(PaymentRequestHandler.ACK[0], new PaymentMessage().bytes(ack).payload()[0]);
+		assertEquals(1, sessions.size());
+		
+		// 2nd payment: authenticated with the MAC, which the server can verify
+		sendLaterBytes = null;
+		prh.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+		assertNull(messageHandler.handleMessage(init, sendLater));
+		pm = new PaymentMessage().bytes(sendLaterBytes);
+		assertFalse(pm.isError());
+		payload = PayloadCompressor.payload(pm, Capabilities.blockLength(pm, 0), null, Config.MAX_PAYLOAD_LENGTH);
+		assertEquals(SessionToken.MAC, payload[0]);
+		SessionToken token = SessionToken.decode(payload, 1);
+		assertArrayEquals(PaymentSession.keyId(pr), token.getKeyId());
+		
+		PaymentRequest reconstructed = new PaymentRequest(PKIAlgorithm.DEFAULT, 1, userInfosPayer.getUsername(), userInfosPayee.getUsername(), paymentInfos.getCurrency(), paymentInfos.getAmount(), token.getTimestamp());
+		SecretKey keyPayer = PaymentSession.deriveKey(keyPairServer.getPrivate(), keyPairPayer.getPublic(), token.getKeyId(), true);
+		assertTrue(PaymentSession.verify(keyPayer, reconstructed.getPayload(), token.getMac()));
+		
+		PaymentResponse pr2 = new PaymentResponse(PKIAlgorithm.DEFAULT, 1, ServerResponseStatus.SUCCESS, null, userInfosPayer.getUsername(), userInfosPayee.getUsername(), paymentInfos.getCurrency(), paymentInfos.getAmount(), System.currentTimeMillis());
+		pr2.sign(keyPairServer.getPrivate());
+		ack = messageHandler.handleMessage(new PaymentMessage().payee().payload(pr2.encode()).bytes(), sendLater);
+		assertEquals(PaymentRequestHandler.ACK[0], new PaymentMessage().bytes(ack).payload()[0]);
+		PaymentSession session = sessions.get(token.getKeyId(), 0);
+		assertEquals(Config.SESSION_AMOUNT_CAP - paymentInfos.getAmount(), session.getRemaining());
+		
+		// 3rd payment: the payee rejects the session, so the next payment is signed again
+		sendLaterBytes = null;
+		prh.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+		assertNull(messageHandler.handleMessage(init, sendLater));
+		byte[] error = messageHandler.handleMessage(new PaymentMessage().payee().error().payload(new byte[] { PaymentError.INVALID_SESSION.getCode() }).bytes(), sendLater);
+		assertTrue(new PaymentMessage().bytes(error).isError());
+		assertEquals(0, sessions.size());
+		
+		State state = states.get(states.size() - 1);
+		assertEquals(PaymentEvent.ERROR, state.event);
+		assertEquals(PaymentError.INVALID_SESSION, ((PaymentErrorResult) state.object).getError());
+	}
+	
+	@Test
+	public void testPaymentRequestHandler_Payee_DelayedSigner() throws Exception {
+		/*
+		 * Simulates a payer whose key is held in a slow secure store: the
+		 * NFC thread is not blocked, and the payment request is sent as soon
+		 * as it is signed
+		 */
+		reset();
+		
+		KeyPair keyPairPayer = TestUtils.generateKeyPair();
+		KeyPair keyPairServer = TestUtils.generateKeyPair();
+		UserInfos userInfosPayer = new UserInfos("buyer", keyPairPayer.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
+		
+		PaymentRequestHandler prh = new PaymentRequestHandler(hostActivity, paymentEventHandler, userInfosPayer, serverInfos, defaultUserPrompt, persistencyHandler);
+		prh.setPaymentSigner(new DelayedSigner(new SoftwareSigner(keyPairPayer.getPrivate()), 200));
+		MessageHandler messageHandler = prh.getMessageHandler();
+		prh.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+		
+		final CountDownLatch latch = new CountDownLatch(1);
+		ISendLater sendLater = new ISendLater() {
+			@Override
+			public void sendLater(byte[] arg0) {
+				sendLaterBytes = arg0;
+				latch.countDown();
+			}
+		};
+		
+		InitMessagePayee initMessage = new InitMessagePayee("seller", Currency.BTC, 1);
+		byte[] data = new PaymentMessage().payee().payload(initMessage.encode()).bytes();
+		
+		assertNull(messageHandler.handleMessage(data, sendLater));
+		assertNull(sendLaterBytes);
+		assertNull(persistencyHandler.getPersistedPaymentRequest("seller", Currency.BTC, 1));
+		
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		PaymentMessage pm = new PaymentMessage().bytes(sendLaterBytes);
+		assertFalse(pm.isError());
+		
+		PaymentRequest paymentRequestPayer = DecoderFactory.decode(PaymentRequest.class, pm.payload());
+		assertEquals("seller", paymentRequestPayer.getUsernamePayee());
+		assertTrue(paymentRequestPayer.verify(keyPairPayer.getPublic()));
+		assertNotNull(persistencyHandler.getPersistedPaymentRequest("seller", Currency.BTC, 1));
+	}
+	
+	@Test
+	public void testPaymentRequestHandler_Payee_SignatureFailed() throws Exception {
+		/*
+		 * Simulates a secure store which refuses to sign
+		 */
+		reset();
+		
+		KeyPair keyPairPayer = TestUtils.generateKeyPair();
+		KeyPair keyPairServer = TestUtils.generateKeyPair();
+		UserInfos userInfosPayer = new UserInfos("buyer", keyPairPayer.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
+		
+		PaymentRequestHandler prh = new PaymentRequestHandler(hostActivity, paymentEventHandler, userInfosPayer, serverInfos, defaultUserPrompt, persistencyHandler);
+		prh.setPaymentSigner(new IPaymentSigner() {
+			@Override
+			public void sign(SignedSerializableObject signedObject, ISignatureListener listener) {
+				listener.onSignatureFailed(new Exception("key not available"));
+			}
+		});
+		MessageHandler messageHandler = prh.getMessageHandler();
+		prh.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+		
+		InitMessagePayee initMessage = new InitMessagePayee("seller", Currency.BTC, 1);
+		byte[] data = new PaymentMessage().payee().payload(initMessage.encode()).bytes();
+		
+		assertNull(messageHandler.handleMessage(data, sendLater));
+		assertNotNull(sendLaterBytes);
+		PaymentMessage pm = new PaymentMessage().bytes(sendLaterBytes);
+		assertTrue(pm.isError());
+		assertEquals(PaymentError.UNEXPECTED_ERROR.getCode(), pm.payload()[0]);
+		assertNull(persistencyHandler.getPersistedPaymentRequest("seller", Currency.BTC, 1));
+		
+		assertEquals(2, states.size());
+		assertEquals(PaymentEvent.ERROR, states.get(1).event);
+	}
+	
 	@Test
 	public void testPaymentRequestHandler_IllegalVersion() throws Exception {
 		/*
@@ -769,8 +1418,8 @@ public class PaymentRequestHandlerTest {
 		state = states.get(1);
 		assertEquals(PaymentEvent.ERROR, state.event);
 		assertNotNull(state.object);
-		assertTrue(state.object instanceof PaymentError);
-		PaymentError err = (PaymentError) state.object;
+		assertTrue(state.object instanceof PaymentErrorResult);
+		PaymentError err = ((PaymentErrorResult) state.object).getError();
 		assertEquals(PaymentError.INCOMPATIBLE_VERSIONS, err);
 	}
 	
@@ -1,9 +1,11 @@
 package ch.uzh.csg.paymentlib;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
@@ -12,10 +14,14 @@ import static org.mockito.Mockito.verify;
 
 import java.nio.charset.Charset;
 import java.security.KeyPair;
+import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
+import javax.crypto.SecretKey;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -24,6 +30,7 @@ import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.mockito.stubbing.Stubber;
 import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
@@ -42,15 +49,28 @@ import ch.uzh.csg.nfclib.NfcInitiator;
 import ch.uzh.csg.nfclib.events.NfcEvent;
 import ch.uzh.csg.paymentlib.PaymentRequestInitializer.PaymentType;
 import ch.uzh.csg.paymentlib.container.PaymentInfos;
+import ch.uzh.csg.paymentlib.container.PaymentSession;
+import ch.uzh.csg.paymentlib.container.PaymentSessions;
 import ch.uzh.csg.paymentlib.container.ServerInfos;
 import ch.uzh.csg.paymentlib.container.UserInfos;
+import ch.uzh.csg.paymentlib.exceptions.IllegalArgumentException;
+import ch.uzh.csg.paymentlib.messages.Capabilities;
+import ch.uzh.csg.paymentlib.messages.PayloadCompressor;
+import ch.uzh.csg.paymentlib.messages.PaymentBatch;
 import ch.uzh.csg.paymentlib.messages.PaymentError;
+import ch.uzh.csg.paymentlib.messages.PaymentErrorResult;
 import ch.uzh.csg.paymentlib.messages.PaymentMessage;
+import ch.uzh.csg.paymentlib.messages.Reassembler;
+import ch.uzh.csg.paymentlib.messages.SessionPaymentRequest;
+import ch.uzh.csg.paymentlib.messages.SessionToken;
+import ch.uzh.csg.paymentlib.signer.DelayedSigner;
+import ch.uzh.csg.paymentlib.signer.SoftwareSigner;
 import ch.uzh.csg.paymentlib.testutils.PersistencyHandler;
 import ch.uzh.csg.paymentlib.testutils.TestUtils;
 import ch.uzh.csg.paymentlib.util.Config;
 
 @RunWith(PowerMockRunner.class)
+@PowerMockIgnore("javax.crypto.*")
 @PrepareForTest(Log.class)
 public class PaymentRequestInitializerTest {
 	
@@ -69,7 +89,7 @@ public class PaymentRequestInitializerTest {
 		}
 	}
 	
-	private List<State> states = new ArrayList<State>();
+	private List<State> states = Collections.synchronizedList(new ArrayList<State>());
 	private PersistencyHandler persistencyHandler;
 	
 	private KeyPair keyPairServer;
@@ -77,6 +97,11 @@ public class PaymentRequestInitializerTest {
 	
 	private boolean serverRefuse;
 	private boolean serverTimeout;
+	private boolean serverBatch;
+	
+	private PaymentResponse sessionEstablished;
+	private PublicKey sessionPublicKeyPayer;
+	private PublicKey sessionPublicKeyPayee;
 	
 	private void reset() {
 		states.clear();
@@ -84,6 +109,29 @@ public class PaymentRequestInitializerTest {
 		
 		serverRefuse = false;
 		serverTimeout = false;
+		serverBatch = false;
+	}
+	
+	private int countThreads(String name) {
+		int count = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().equals(name) && thread.isAlive())
+				count++;
+		}
+		return count;
+	}
+	
+	/*
+	 * Waits until no thread with the given name is alive anymore, and fails
+	 * if such a thread is still alive after one second.
+	 */
+	private void assertNoThreads(String name) throws InterruptedException {
+		long end = System.currentTimeMillis() + 1000;
+		while (countThreads(name) > 0) {
+			if (System.currentTimeMillis() > end)
+				fail("A thread "+name+" is still alive.");
+			Thread.sleep(10);
+		}
 	}
 	
 	private IPaymentEventHandler paymentEventHandler = new IPaymentEventHandler() {
@@ -100,7 +148,23 @@ public class PaymentRequestInitializerTest {
 					}
 				}
 				
-				if (serverRefuse) {
+				if (serverBatch) {
+					try {
+						assertTrue(object instanceof byte[]);
+						List<byte[]> requests = PaymentBatch.decode((byte[]) object);
+						ServerPaymentResponse[] responses = new ServerPaymentResponse[requests.size()];
+						for (int i = 0; i < responses.length; i++) {
+							PaymentRequest paymentRequestPayer = DecoderFactory.decode(ServerPaymentRequest.class, requests.get(i)).getPaymentRequestPayer();
+							
+							PaymentResponse pr = new PaymentResponse(PKIAlgorithm.DEFAULT, 1, ServerResponseStatus.SUCCESS, null, paymentRequestPayer.getUsernamePayer(), paymentRequestPayer.getUsernamePayee(), paymentRequestPayer.getCurrency(), paymentRequestPayer.getAmount(), paymentRequestPayer.getTimestamp());
+							pr.sign(keyPairServer.getPrivate());
+							responses[i] = new ServerPaymentResponse(pr);
+						}
+						pri.onBatchServerResponse(responses);
+					} catch (Exception e) {
+						assertTrue(false);
+					}
+				} else if (serverRefuse) {
 					try {
 						assertTrue(object instanceof byte[]);
 						ServerPaymentRequest decode = DecoderFactory.decode(ServerPaymentRequest.class, (byte[]) object);
@@ -126,6 +190,23 @@ public class PaymentRequestInitializerTest {
 						assertTrue(false);
 					}
 				}
+			} else if (event == PaymentEvent.FORWARD_SESSION_TO_SERVER) {
+				// the server stand-in looks up the session by its key id and verifies both MACs
+				try {
+					assertTrue(object instanceof byte[]);
+					SessionPaymentRequest spr = SessionPaymentRequest.decode((byte[]) object);
+					assertArrayEquals(PaymentSession.keyId(sessionEstablished), spr.getKeyId());
+					
+					SecretKey keyPayer = PaymentSession.deriveKey(keyPairServer.getPrivate(), sessionPublicKeyPayer, spr.getKeyId(), true);
+					SecretKey keyPayee = PaymentSession.deriveKey(keyPairServer.getPrivate(), sessionPublicKeyPayee, spr.getKeyId(), false);
+					ServerResponseStatus status = spr.verify(keyPayer, keyPayee) ? ServerResponseStatus.SUCCESS : ServerResponseStatus.FAILURE;
+					
+					PaymentResponse pr = new PaymentResponse(PKIAlgorithm.DEFAULT, 1, status, null, sessionEstablished.getUsernamePayer(), sessionEstablished.getUsernamePayee(), sessionEstablished.getCurrency(), sessionEstablished.getAmount(), System.currentTimeMillis());
+					pr.sign(keyPairServer.getPrivate());
+					pri.onServerResponse(new ServerPaymentResponse(pr));
+				} catch (Exception e) {
+					assertTrue(false);
+				}
 			}
 		}
 	};
@@ -192,8 +273,8 @@ public class PaymentRequestInitializerTest {
 		state = states.get(1);
 		assertEquals(PaymentEvent.ERROR, state.event);
 		assertNotNull(state.object);
-		assertTrue(state.object instanceof PaymentError);
-		PaymentError err = (PaymentError) state.object;
+		assertTrue(state.object instanceof PaymentErrorResult);
+		PaymentError err = ((PaymentErrorResult) state.object).getError();
 		assertEquals(PaymentError.PAYER_REFUSED, err);
 	}
 	
@@ -267,8 +348,8 @@ public class PaymentRequestInitializerTest {
 		state = states.get(1);
 		assertEquals(PaymentEvent.ERROR, state.event);
 		assertNotNull(state.object);
-		assertTrue(state.object instanceof PaymentError);
-		PaymentError err = (PaymentError) state.object;
+		assertTrue(state.object instanceof PaymentErrorResult);
+		PaymentError err = ((PaymentErrorResult) state.object).getError();
 		assertEquals(PaymentError.REQUESTS_NOT_IDENTIC, err);
 	}
 	
@@ -353,8 +434,8 @@ public class PaymentRequestInitializerTest {
 		assertNotNull(state.object);
 		state = states.get(2);
 		assertEquals(PaymentEvent.ERROR, state.event);
-		assertTrue(state.object instanceof PaymentError);
-		PaymentError err = (PaymentError) state.object;
+		assertTrue(state.object instanceof PaymentErrorResult);
+		PaymentError err = ((PaymentErrorResult) state.object).getError();
 		assertEquals(PaymentError.SERVER_REFUSED, err);
 	}
 	
@@ -449,12 +530,13 @@ public class PaymentRequestInitializerTest {
 	}
 	
 	@Test
-	public void testPaymentRequestInitializer_Payee_ServerCallTimeout() throws Exception {
+	public void testPaymentRequestInitializer_Payee_Success_Pipelined() throws Exception {
 		/*
-		 * Simulates a server timeout
+		 * Simulates a successful payment, where the payer's signature is
+		 * verified while the payee's payment request is signed
 		 */
 		reset();
-		serverTimeout = true;
+		serverRefuse = false;
 		
 		KeyPair keyPairPayee = TestUtils.generateKeyPair();
 		keyPairServer = TestUtils.generateKeyPair();
@@ -463,13 +545,22 @@ public class PaymentRequestInitializerTest {
 		PaymentInfos paymentInfos = new PaymentInfos(Currency.BTC, 1);
 		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
 		
-		KeyPair keyPairPayer = TestUtils.generateKeyPair();
+		final KeyPair keyPairPayer = TestUtils.generateKeyPair();
 		final UserInfos userInfosPayer = new UserInfos("buyer", keyPairPayer.getPrivate(), PKIAlgorithm.DEFAULT, 1);
 		
 		NfcInitiator transceiver = mock(NfcInitiator.class);
 		
 		pri = new PaymentRequestInitializer(hostActivity, transceiver, paymentEventHandler, userInfosPayee, paymentInfos, serverInfos, persistencyHandler, PaymentType.REQUEST_PAYMENT);
 		
+		pri.enablePipelining(new IPublicKeyProvider() {
+			@Override
+			public PublicKey getPublicKey(String username, PKIAlgorithm pkiAlgorithm, int keyNumber) {
+				assertEquals(userInfosPayer.getUsername(), username);
+				assertEquals(userInfosPayer.getKeyNumber(), keyNumber);
+				return keyPairPayer.getPublic();
+			}
+		});
+		
 		Stubber stubber = doAnswer(new Answer<Integer>() {
 			@Override
 			public Integer answer(InvocationOnMock invocation) throws Throwable {
@@ -489,37 +580,41 @@ public class PaymentRequestInitializerTest {
 				pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, response);
 				return null;
 			}
-		}).doAnswer(new Answer<Integer>() {
+		});
+		stubber.when(transceiver).transceive(any(byte[].class));
+		
+		Stubber stubber2 = doAnswer(new Answer<Integer>() {
 			@Override
 			public Integer answer(InvocationOnMock invocation) throws Throwable {
 				Object[] arguments = invocation.getArguments();
 				
 				PaymentMessage pm = new PaymentMessage().bytes((byte[]) arguments[0]);
-				assertTrue(pm.isError());
-				assertEquals(1, pm.payload().length);
-				assertEquals(PaymentError.NO_SERVER_RESPONSE.getCode(), pm.payload()[0]);
+				assertFalse(pm.isError());
 				
-				byte[] response = new PaymentMessage().error().payload(new byte[] { pm.payload()[0] }).bytes();
+				PaymentResponse pr = DecoderFactory.decode(PaymentResponse.class, pm.payload());
+				assertNotNull(pr);
+				assertEquals(ServerResponseStatus.SUCCESS, pr.getStatus());
+				
+				byte[] response = new PaymentMessage().payload(PaymentRequestHandler.ACK).bytes();
 				assertNotNull(response);
 				
 				pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, response);
 				return null;
 			}
 		});
-		stubber.when(transceiver).transceive(any(byte[].class));
+		stubber2.when(transceiver).sendLater(any(byte[].class));
 		
 		//start test case manually, since this would be started on an nfc contact!
 		pri.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
 		
-		Thread.sleep(Config.SERVER_CALL_TIMEOUT+500);
-		
-		// simulate a response which comes to late, if this runs through its
-		// fine, if a NPE is thrown, than something is not ok
-		pri.onServerResponse(null);
-		
 		assertEquals(0, persistencyHandler.getList().size());
 		
-		verify(transceiver, times(2)).transceive(any(byte[].class));
+		//assure that the timeout is not thrown
+		Thread.sleep(Config.SERVER_CALL_TIMEOUT+500);
+		
+		// the payment request is forwarded by a worker thread
+		verify(transceiver, times(1)).transceive(any(byte[].class));
+		verify(transceiver, times(1)).sendLater(any(byte[].class));
 		
 		assertEquals(3, states.size());
 		State state = states.get(0);
@@ -528,34 +623,50 @@ public class PaymentRequestInitializerTest {
 		assertEquals(PaymentEvent.FORWARD_TO_SERVER, state.event);
 		assertNotNull(state.object);
 		state = states.get(2);
-		assertEquals(PaymentEvent.ERROR, state.event);
-		assertNotNull(state.object);
-		assertTrue(state.object instanceof PaymentError);
-		PaymentError err = (PaymentError) state.object;
-		assertEquals(PaymentError.NO_SERVER_RESPONSE, err);
+		assertEquals(PaymentEvent.SUCCESS, state.event);
+		assertTrue(state.object instanceof PaymentResponse);
+		PaymentResponse pr = (PaymentResponse) state.object;
+		assertEquals(userInfosPayer.getUsername(), pr.getUsernamePayer());
+		assertEquals(userInfosPayee.getUsername(), pr.getUsernamePayee());
+		
+		// the worker threads do not survive
+		assertTrue(countThreads("PaymentRequestInitializer-pipeline") > 0);
+		pri.disable();
+		assertNoThreads("PaymentRequestInitializer-pipeline");
 	}
 	
 	@Test
-	public void testPaymentRequestInitializer_Payer_ServerRefuses() throws Exception {
+	public void testPaymentRequestInitializer_Payee_InvalidSignature_Pipelined() throws Exception {
 		/*
-		 * Simulates server refuses the payment for any reason
+		 * Simulates a payment, where the payer's signature is rejected before
+		 * the payment request is forwarded to the server
 		 */
 		reset();
-		serverRefuse = true;
+		serverRefuse = false;
 		
-		KeyPair keyPairPayer = TestUtils.generateKeyPair();
+		KeyPair keyPairPayee = TestUtils.generateKeyPair();
 		keyPairServer = TestUtils.generateKeyPair();
 		
-		UserInfos userInfosPayer = new UserInfos("payer", keyPairPayer.getPrivate(), PKIAlgorithm.DEFAULT, 1);
-		PaymentInfos paymentInfos = new PaymentInfos(Currency.BTC, 1, System.currentTimeMillis());
+		UserInfos userInfosPayee = new UserInfos("seller", keyPairPayee.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		PaymentInfos paymentInfos = new PaymentInfos(Currency.BTC, 1);
 		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
 		
-		KeyPair keyPairPayee = TestUtils.generateKeyPair();
-		final UserInfos userInfosPayee = new UserInfos("payee", keyPairPayee.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		KeyPair keyPairPayer = TestUtils.generateKeyPair();
+		final KeyPair keyPairOther = TestUtils.generateKeyPair();
+		final UserInfos userInfosPayer = new UserInfos("buyer", keyPairPayer.getPrivate(), PKIAlgorithm.DEFAULT, 1);
 		
 		NfcInitiator transceiver = mock(NfcInitiator.class);
 		
-		pri = new PaymentRequestInitializer(hostActivity, transceiver, paymentEventHandler, userInfosPayer, paymentInfos, serverInfos, persistencyHandler, PaymentType.SEND_PAYMENT);
+		pri = new PaymentRequestInitializer(hostActivity, transceiver, paymentEventHandler, userInfosPayee, paymentInfos, serverInfos, persistencyHandler, PaymentType.REQUEST_PAYMENT);
+		
+		pri.enablePipelining(new IPublicKeyProvider() {
+			@Override
+			public PublicKey getPublicKey(String username, PKIAlgorithm pkiAlgorithm, int keyNumber) {
+				assertEquals(userInfosPayer.getUsername(), username);
+				assertEquals(userInfosPayer.getKeyNumber(), keyNumber);
+				return keyPairOther.getPublic();
+			}
+		});
 		
 		Stubber stubber = doAnswer(new Answer<Integer>() {
 			@Override
@@ -564,98 +675,93 @@ public class PaymentRequestInitializerTest {
 				
 				PaymentMessage pm = new PaymentMessage().bytes((byte[]) arguments[0]);
 				assertFalse(pm.isError());
-				assertTrue(pm.isPayer());
 				
-				byte[] bytes = userInfosPayee.getUsername().getBytes(Charset.forName("UTF-8"));
-				byte[] response = new PaymentMessage().payee().payload(bytes).bytes();
+				InitMessagePayee initMessage = DecoderFactory.decode(InitMessagePayee.class, pm.payload());
+				
+				PaymentRequest pr = new PaymentRequest(userInfosPayer.getPKIAlgorithm(), userInfosPayer.getKeyNumber(), userInfosPayer.getUsername(), initMessage.getUsername(), initMessage.getCurrency(), initMessage.getAmount(), System.currentTimeMillis());
+				pr.sign(userInfosPayer.getPrivateKey());
+				
+				byte[] response = new PaymentMessage().payload(pr.encode()).bytes();
 				assertNotNull(response);
 				
 				pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, response);
 				return null;
 			}
-		});
-		stubber.when(transceiver).transceive(any(byte[].class));
-		
-		Stubber stubber2 = doAnswer(new Answer<Integer>() {
+		}).doAnswer(new Answer<Integer>() {
 			@Override
 			public Integer answer(InvocationOnMock invocation) throws Throwable {
 				Object[] arguments = invocation.getArguments();
 				
 				PaymentMessage pm = new PaymentMessage().bytes((byte[]) arguments[0]);
-				assertFalse(pm.isError());
-				assertTrue(pm.isPayer());
-				
-				PaymentResponse pr = DecoderFactory.decode(PaymentResponse.class, pm.payload());
-				assertNotNull(pr);
-				assertEquals(ServerResponseStatus.FAILURE, pr.getStatus());
+				assertTrue(pm.isError());
+				assertEquals(PaymentError.INVALID_SIGNATURE.getCode(), pm.payload()[0]);
 				
-				byte[] response = new PaymentMessage().payload(PaymentRequestHandler.ACK).bytes();
+				byte[] response = new PaymentMessage().error().payload(new byte[] { pm.payload()[0] }).bytes();
 				assertNotNull(response);
 				
 				pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, response);
 				return null;
 			}
 		});
-		stubber2.when(transceiver).sendLater(any(byte[].class));
+		stubber.when(transceiver).transceive(any(byte[].class));
 		
 		//start test case manually, since this would be started on an nfc contact!
 		pri.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
 		
 		assertEquals(0, persistencyHandler.getList().size());
 		
-		verify(transceiver, times(1)).transceive(any(byte[].class));
-		verify(transceiver, times(1)).sendLater(any(byte[].class));
+		verify(transceiver, times(2)).transceive(any(byte[].class));
+		verify(transceiver, times(0)).sendLater(any(byte[].class));
 		
-		assertEquals(3, states.size());
+		assertEquals(2, states.size());
 		State state = states.get(0);
 		assertEquals(PaymentEvent.INITIALIZED, state.event);
 		state = states.get(1);
-		assertEquals(PaymentEvent.FORWARD_TO_SERVER, state.event);
-		assertNotNull(state.object);
-		state = states.get(2);
 		assertEquals(PaymentEvent.ERROR, state.event);
-		assertNotNull(state.object);
-		assertTrue(state.object instanceof PaymentError);
-		PaymentError err = (PaymentError) state.object;
-		assertEquals(PaymentError.SERVER_REFUSED, err);
+		assertTrue(state.object instanceof PaymentErrorResult);
+		PaymentError err = ((PaymentErrorResult) state.object).getError();
+		assertEquals(PaymentError.INVALID_SIGNATURE, err);
 	}
 	
 	@Test
-	public void testPaymentRequestInitializer_Payer_Success() throws Exception {
+	public void testPaymentRequestInitializer_Payee_EstablishSession() throws Exception {
 		/*
-		 * Simulates a successful payment
+		 * Simulates a signed payment with a payer supporting sessions, where
+		 * both devices establish a session
 		 */
 		reset();
-		serverRefuse = false;
 		
-		KeyPair keyPairPayer = TestUtils.generateKeyPair();
+		KeyPair keyPairPayee = TestUtils.generateKeyPair();
 		keyPairServer = TestUtils.generateKeyPair();
 		
-		UserInfos userInfosPayer = new UserInfos("seller", keyPairPayer.getPrivate(), PKIAlgorithm.DEFAULT, 1);
-		PaymentInfos paymentInfos = new PaymentInfos(Currency.BTC, 1, System.currentTimeMillis());
+		UserInfos userInfosPayee = new UserInfos("seller", keyPairPayee.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		PaymentInfos paymentInfos = new PaymentInfos(Currency.BTC, 1);
 		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
 		
-		KeyPair keyPairPayee = TestUtils.generateKeyPair();
-		final UserInfos userInfosPayee = new UserInfos("buyer", keyPairPayee.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		KeyPair keyPairPayer = TestUtils.generateKeyPair();
+		final UserInfos userInfosPayer = new UserInfos("buyer", keyPairPayer.getPrivate(), PKIAlgorithm.DEFAULT, 1);
 		
 		NfcInitiator transceiver = mock(NfcInitiator.class);
 		
-		pri = new PaymentRequestInitializer(hostActivity, transceiver, paymentEventHandler, userInfosPayer, paymentInfos, serverInfos, persistencyHandler, PaymentType.SEND_PAYMENT);
+		PaymentSessions sessions = new PaymentSessions();
+		pri = new PaymentRequestInitializer(hostActivity, transceiver, paymentEventHandler, userInfosPayee, paymentInfos, serverInfos, persistencyHandler, PaymentType.REQUEST_PAYMENT);
+		pri.enableSessions(sessions);
 		
 		Stubber stubber = doAnswer(new Answer<Integer>() {
 			@Override
 			public Integer answer(InvocationOnMock invocation) throws Throwable {
-				Object[] arguments = invocation.getArguments();
-				
-				PaymentMessage pm = new PaymentMessage().bytes((byte[]) arguments[0]);
+				PaymentMessage pm = new PaymentMessage().bytes((byte[]) invocation.getArguments()[0]);
 				assertFalse(pm.isError());
-				assertTrue(pm.isPayer());
 				
-				byte[] bytes = userInfosPayee.getUsername().getBytes(Charset.forName("UTF-8"));
-				byte[] response = new PaymentMessage().payee().payload(bytes).bytes();
-				assertNotNull(response);
+				InitMessagePayee initMessage = DecoderFactory.decode(InitMessagePayee.class, pm.payload());
+				PaymentRequest pr = new PaymentRequest(userInfosPayer.getPKIAlgorithm(), userInfosPayer.getKeyNumber(), userInfosPayer.getUsername(), initMessage.getUsername(), initMessage.getCurrency(), initMessage.getAmount(), System.currentTimeMillis());
+				pr.sign(userInfosPayer.getPrivateKey());
 				
-				pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, response);
+				byte[] token = new byte[1 + pr.encode().length];
+				token[0] = SessionToken.SIGNATURE;
+				System.arraycopy(pr.encode(), 0, token, 1, token.length - 1);
+				
+				pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, getSessionMessage(token));
 				return null;
 			}
 		});
@@ -664,20 +770,17 @@ public class PaymentRequestInitializerTest {
 		Stubber stubber2 = doAnswer(new Answer<Integer>() {
 			@Override
 			public Integer answer(InvocationOnMock invocation) throws Throwable {
-				Object[] arguments = invocation.getArguments();
-				
-				PaymentMessage pm = new PaymentMessage().bytes((byte[]) arguments[0]);
+				PaymentMessage pm = new PaymentMessage().bytes((byte[]) invocation.getArguments()[0]);
 				assertFalse(pm.isError());
-				assertTrue(pm.isPayer());
 				
-				PaymentResponse pr = DecoderFactory.decode(PaymentResponse.class, pm.payload());
-				assertNotNull(pr);
+				// the payee confirms the session with its capabilities
+				assertTrue(pm.isNegotiate());
+				assertTrue(Capabilities.decode(pm, 0).supports(Capabilities.SESSION));
+				byte[] payload = PayloadCompressor.payload(pm, Capabilities.blockLength(pm, 0), PayloadCompressor.dictionary("seller"), Config.MAX_PAYLOAD_LENGTH);
+				PaymentResponse pr = DecoderFactory.decode(PaymentResponse.class, payload);
 				assertEquals(ServerResponseStatus.SUCCESS, pr.getStatus());
 				
-				byte[] response = new PaymentMessage().payload(PaymentRequestHandler.ACK).bytes();
-				assertNotNull(response);
-				
-				pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, response);
+				pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, new PaymentMessage().payload(PaymentRequestHandler.ACK).bytes());
 				return null;
 			}
 		});
@@ -686,27 +789,1142 @@ public class PaymentRequestInitializerTest {
 		//start test case manually, since this would be started on an nfc contact!
 		pri.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
 		
-		assertEquals(0, persistencyHandler.getList().size());
-		
 		verify(transceiver, times(1)).transceive(any(byte[].class));
 		verify(transceiver, times(1)).sendLater(any(byte[].class));
 		
-		//assure that the timeout is not thrown
-		Thread.sleep(Config.SERVER_CALL_TIMEOUT+500);
+		assertEquals(3, states.size());
+		assertEquals(PaymentEvent.FORWARD_TO_SERVER, states.get(1).event);
+		assertEquals(PaymentEvent.SUCCESS, states.get(2).event);
+		assertEquals(1, sessions.size());
+		assertNotNull(sessions.find(userInfosPayer.getUsername(), userInfosPayee.getUsername(), paymentInfos.getCurrency(), paymentInfos.getAmount()));
+	}
+	
+	@Test
+	public void testPaymentRequestInitializer_Payee_Session() throws Exception {
+		/*
+		 * Simulates a payment authenticated within a session, where the
+		 * server verifies the MACs instead of the signatures
+		 */
+		reset();
+		
+		KeyPair keyPairPayee = TestUtils.generateKeyPair();
+		keyPairServer = TestUtils.generateKeyPair();
+		
+		UserInfos userInfosPayee = new UserInfos("seller", keyPairPayee.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		PaymentInfos paymentInfos = new PaymentInfos(Currency.BTC, 1);
+		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
+		
+		KeyPair keyPairPayer = TestUtils.generateKeyPair();
+		final UserInfos userInfosPayer = new UserInfos("buyer", keyPairPayer.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		
+		// the payment which established the session
+		sessionEstablished = new PaymentResponse(PKIAlgorithm.DEFAULT, 1, ServerResponseStatus.SUCCESS, null, userInfosPayer.getUsername(), userInfosPayee.getUsername(), paymentInfos.getCurrency(), paymentInfos.getAmount(), System.currentTimeMillis());
+		sessionEstablished.sign(keyPairServer.getPrivate());
+		sessionPublicKeyPayer = keyPairPayer.getPublic();
+		sessionPublicKeyPayee = keyPairPayee.getPublic();
+		
+		PaymentSessions sessions = new PaymentSessions();
+		sessions.add(PaymentSession.establish(sessionEstablished, PKIAlgorithm.DEFAULT, 1, keyPairPayee.getPrivate(), keyPairServer.getPublic(), false));
+		final PaymentSession sessionPayer = PaymentSession.establish(sessionEstablished, PKIAlgorithm.DEFAULT, 1, keyPairPayer.getPrivate(), keyPairServer.getPublic(), true);
+		
+		NfcInitiator transceiver = mock(NfcInitiator.class);
+		
+		pri = new PaymentRequestInitializer(hostActivity, transceiver, paymentEventHandler, userInfosPayee, paymentInfos, serverInfos, persistencyHandler, PaymentType.REQUEST_PAYMENT);
+		pri.enableSessions(sessions);
+		
+		Stubber stubber = doAnswer(new Answer<Integer>() {
+			@Override
+			public Integer answer(InvocationOnMock invocation) throws Throwable {
+				PaymentMessage pm = new PaymentMessage().bytes((byte[]) invocation.getArguments()[0]);
+				assertFalse(pm.isError());
+				
+				InitMessagePayee initMessage = DecoderFactory.decode(InitMessagePayee.class, pm.payload());
+				long timestamp = System.currentTimeMillis();
+				PaymentRequest pr = new PaymentRequest(userInfosPayer.getPKIAlgorithm(), userInfosPayer.getKeyNumber(), userInfosPayer.getUsername(), initMessage.getUsername(), initMessage.getCurrency(), initMessage.getAmount(), timestamp);
+				byte[] token = new SessionToken(sessionPayer.getKeyId(), timestamp, sessionPayer.mac(pr.getPayload())).encode();
+				
+				pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, getSessionMessage(token));
+				return null;
+			}
+		});
+		stubber.when(transceiver).transceive(any(byte[].class));
+		
+		Stubber stubber2 = doAnswer(new Answer<Integer>() {
+			@Override
+			public Integer answer(InvocationOnMock invocation) throws Throwable {
+				PaymentMessage pm = new PaymentMessage().bytes((byte[]) invocation.getArguments()[0]);
+				assertFalse(pm.isError());
+				assertFalse(pm.isNegotiate());
+				
+				PaymentResponse pr = DecoderFactory.decode(PaymentResponse.class, PayloadCompressor.payload(pm, PayloadCompressor.dictionary("seller"), Config.MAX_PAYLOAD_LENGTH));
+				assertEquals(ServerResponseStatus.SUCCESS, pr.getStatus());
+				
+				pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, new PaymentMessage().payload(PaymentRequestHandler.ACK).bytes());
+				return null;
+			}
+		});
+		stubber2.when(transceiver).sendLater(any(byte[].class));
+		
+		//start test case manually, since this would be started on an nfc contact!
+		pri.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+		
+		verify(transceiver, times(1)).transceive(any(byte[].class));
+		verify(transceiver, times(1)).sendLater(any(byte[].class));
 		
 		assertEquals(3, states.size());
-		State state = states.get(0);
-		assertEquals(PaymentEvent.INITIALIZED, state.event);
-		state = states.get(1);
-		assertEquals(PaymentEvent.FORWARD_TO_SERVER, state.event);
-		assertNotNull(state.object);
-		state = states.get(2);
-		assertEquals(PaymentEvent.SUCCESS, state.event);
-		assertNotNull(state.object);
-		assertTrue(state.object instanceof PaymentResponse);
-		PaymentResponse pr = (PaymentResponse) state.object;
-		assertEquals(userInfosPayer.getUsername(), pr.getUsernamePayer());
-		assertEquals(userInfosPayee.getUsername(), pr.getUsernamePayee());
+		assertEquals(PaymentEvent.INITIALIZED, states.get(0).event);
+		assertEquals(PaymentEvent.FORWARD_SESSION_TO_SERVER, states.get(1).event);
+		assertEquals(PaymentEvent.SUCCESS, states.get(2).event);
+		assertEquals(Config.SESSION_AMOUNT_CAP - paymentInfos.getAmount(), sessions.get(sessionPayer.getKeyId(), 0).getRemaining());
+	}
+	
+	@Test
+	public void testPaymentRequestInitializer_Payee_UnknownSession() throws Exception {
+		/*
+		 * Simulates a payer using a session which the payee does not know
+		 */
+		reset();
+		
+		KeyPair keyPairPayee = TestUtils.generateKeyPair();
+		keyPairServer = TestUtils.generateKeyPair();
+		
+		UserInfos userInfosPayee = new UserInfos("seller", keyPairPayee.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		PaymentInfos paymentInfos = new PaymentInfos(Currency.BTC, 1);
+		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
+		
+		NfcInitiator transceiver = mock(NfcInitiator.class);
+		
+		pri = new PaymentRequestInitializer(hostActivity, transceiver, paymentEventHandler, userInfosPayee, paymentInfos, serverInfos, persistencyHandler, PaymentType.REQUEST_PAYMENT);
+		pri.enableSessions(new PaymentSessions());
+		
+		Stubber stubber = doAnswer(new Answer<Integer>() {
+			@Override
+			public Integer answer(InvocationOnMock invocation) throws Throwable {
+				byte[] token = new SessionToken(new byte[PaymentSession.KEY_ID_LENGTH], System.currentTimeMillis(), new byte[PaymentSession.MAC_LENGTH]).encode();
+				pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, getSessionMessage(token));
+				return null;
+			}
+		}).doAnswer(new Answer<Integer>() {
+			@Override
+			public Integer answer(InvocationOnMock invocation) throws Throwable {
+				PaymentMessage pm = new PaymentMessage().bytes((byte[]) invocation.getArguments()[0]);
+				assertTrue(pm.isError());
+				assertEquals(PaymentError.INVALID_SESSION.getCode(), pm.payload()[0]);
+				return null;
+			}
+		});
+		stubber.when(transceiver).transceive(any(byte[].class));
+		
+		//start test case manually, since this would be started on an nfc contact!
+		pri.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+		
+		verify(transceiver, times(2)).transceive(any(byte[].class));
+		
+		assertEquals(2, states.size());
+		assertEquals(PaymentEvent.ERROR, states.get(1).event);
+		assertEquals(PaymentError.INVALID_SESSION, ((PaymentErrorResult) states.get(1).object).getError());
+	}
+	
+	/*
+	 * Returns the payer's message announcing sessions, which contains the
+	 * given payload.
+	 */
+	private byte[] getSessionMessage(byte[] payload) {
+		byte[] capabilities = Capabilities.local().with(Capabilities.SESSION).encode();
+		byte[] prefixed = new byte[capabilities.length + payload.length];
+		System.arraycopy(capabilities, 0, prefixed, 0, capabilities.length);
+		System.arraycopy(payload, 0, prefixed, capabilities.length, payload.length);
+		return new PaymentMessage().negotiate().payload(prefixed).bytes();
+	}
+	
+	@Test
+	public void testPaymentRequestInitializer_Payee_Batch() throws Exception {
+		/*
+		 * Simulates a successful batch payment
+		 */
+		reset();
+		serverBatch = true;
+		
+		KeyPair keyPairPayee = TestUtils.generateKeyPair();
+		keyPairServer = TestUtils.generateKeyPair();
+		
+		UserInfos userInfosPayee = new UserInfos("seller", keyPairPayee.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		List<PaymentInfos> batch = new ArrayList<PaymentInfos>();
+		batch.add(new PaymentInfos(Currency.BTC, 3));
+		batch.add(new PaymentInfos(Currency.BTC, 4));
+		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
+		
+		KeyPair keyPairPayer = TestUtils.generateKeyPair();
+		final UserInfos userInfosPayer = new UserInfos("buyer", keyPairPayer.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		
+		NfcInitiator transceiver = mock(NfcInitiator.class);
+		
+		pri = new PaymentRequestInitializer(hostActivity, transceiver, paymentEventHandler, userInfosPayee, batch, serverInfos);
+		
+		Stubber stubber = doAnswer(new Answer<Integer>() {
+			@Override
+			public Integer answer(InvocationOnMock invocation) throws Throwable {
+				Object[] arguments = invocation.getArguments();
+				
+				PaymentMessage pm = new PaymentMessage().bytes((byte[]) arguments[0]);
+				assertFalse(pm.isError());
+				assertEquals(1, pm.version());
+				
+				List<byte[]> requests = new ArrayList<byte[]>();
+				for (byte[] item : PaymentBatch.decode(pm, 0)) {
+					InitMessagePayee initMessage = DecoderFactory.decode(InitMessagePayee.class, item);
+					PaymentRequest pr = new PaymentRequest(userInfosPayer.getPKIAlgorithm(), userInfosPayer.getKeyNumber(), userInfosPayer.getUsername(), initMessage.getUsername(), initMessage.getCurrency(), initMessage.getAmount(), System.currentTimeMillis());
+					pr.sign(userInfosPayer.getPrivateKey());
+					requests.add(pr.encode());
+				}
+				
+				byte[] response = new PaymentMessage().version(1).payload(PaymentBatch.encode(requests)).bytes();
+				pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, response);
+				return null;
+			}
+		});
+		stubber.when(transceiver).transceive(any(byte[].class));
+		
+		Stubber stubber2 = doAnswer(new Answer<Integer>() {
+			@Override
+			public Integer answer(InvocationOnMock invocation) throws Throwable {
+				Object[] arguments = invocation.getArguments();
+				
+				PaymentMessage pm = new PaymentMessage().bytes((byte[]) arguments[0]);
+				assertFalse(pm.isError());
+				assertEquals(1, pm.version());
+				
+				List<byte[]> responses = PaymentBatch.decode(pm, 0);
+				assertEquals(2, responses.size());
+				for (byte[] item : responses) {
+					PaymentResponse pr = DecoderFactory.decode(PaymentResponse.class, item);
+					assertEquals(ServerResponseStatus.SUCCESS, pr.getStatus());
+				}
+				
+				byte[] response = new PaymentMessage().payload(PaymentRequestHandler.ACK).bytes();
+				pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, response);
+				return null;
+			}
+		});
+		stubber2.when(transceiver).sendLater(any(byte[].class));
+		
+		//start test case manually, since this would be started on an nfc contact!
+		pri.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+		
+		verify(transceiver, times(1)).transceive(any(byte[].class));
+		verify(transceiver, times(1)).sendLater(any(byte[].class));
+		
+		assertEquals(4, states.size());
+		assertEquals(PaymentEvent.INITIALIZED, states.get(0).event);
+		assertEquals(PaymentEvent.FORWARD_TO_SERVER, states.get(1).event);
+		for (int i = 2; i < 4; i++) {
+			State state = states.get(i);
+			assertEquals(PaymentEvent.SUCCESS, state.event);
+			PaymentResponse pr = (PaymentResponse) state.object;
+			assertEquals(userInfosPayer.getUsername(), pr.getUsernamePayer());
+			assertEquals(i + 1, pr.getAmount());
+		}
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testPaymentRequestInitializer_Batch_SamePayments() throws Exception {
+		List<PaymentInfos> batch = new ArrayList<PaymentInfos>();
+		batch.add(new PaymentInfos(Currency.BTC, 3));
+		batch.add(new PaymentInfos(Currency.BTC, 3));
+		new PaymentRequestInitializer(hostActivity, mock(NfcInitiator.class), paymentEventHandler, new UserInfos("seller", TestUtils.generateKeyPair().getPrivate(), PKIAlgorithm.DEFAULT, 1), batch, new ServerInfos(TestUtils.generateKeyPair().getPublic()));
+	}
+	
+	@Test
+	public void testPaymentRequestInitializer_Payee_ServerCallTimeout() throws Exception {
+		/*
+		 * Simulates a server timeout
+		 */
+		reset();
+		serverTimeout = true;
+		
+		KeyPair keyPairPayee = TestUtils.generateKeyPair();
+		keyPairServer = TestUtils.generateKeyPair();
+		
+		UserInfos userInfosPayee = new UserInfos("seller", keyPairPayee.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		PaymentInfos paymentInfos = new PaymentInfos(Currency.BTC, 1);
+		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
+		
+		KeyPair keyPairPayer = TestUtils.generateKeyPair();
+		final UserInfos userInfosPayer = new UserInfos("buyer", keyPairPayer.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		
+		NfcInitiator transceiver = mock(NfcInitiator.class);
+		
+		pri = new PaymentRequestInitializer(hostActivity, transceiver, paymentEventHandler, userInfosPayee, paymentInfos, serverInfos, persistencyHandler, PaymentType.REQUEST_PAYMENT);
+		
+		Stubber stubber = doAnswer(new Answer<Integer>() {
+			@Override
+			public Integer answer(InvocationOnMock invocation) throws Throwable {
+				Object[] arguments = invocation.getArguments();
+				
+				PaymentMessage pm = new PaymentMessage().bytes((byte[]) arguments[0]);
+				assertFalse(pm.isError());
+				
+				InitMessagePayee initMessage = DecoderFactory.decode(InitMessagePayee.class, pm.payload());
+				
+				PaymentRequest pr = new PaymentRequest(userInfosPayer.getPKIAlgorithm(), userInfosPayer.getKeyNumber(), userInfosPayer.getUsername(), initMessage.getUsername(), initMessage.getCurrency(), initMessage.getAmount(), System.currentTimeMillis());
+				pr.sign(userInfosPayer.getPrivateKey());
+				
+				byte[] response = new PaymentMessage().payload(pr.encode()).bytes();
+				assertNotNull(response);
+				
+				pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, response);
+				return null;
+			}
+		}).doAnswer(new Answer<Integer>() {
+			@Override
+			public Integer answer(InvocationOnMock invocation) throws Throwable {
+				Object[] arguments = invocation.getArguments();
+				
+				PaymentMessage pm = new PaymentMessage().bytes((byte[]) arguments[0]);
+				assertTrue(pm.isError());
+				assertEquals(1, pm.payload().length);
+				assertEquals(PaymentError.NO_SERVER_RESPONSE.getCode(), pm.payload()[0]);
+				
+				byte[] response = new PaymentMessage().error().payload(new byte[] { pm.payload()[0] }).bytes();
+				assertNotNull(response);
+				
+				pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, response);
+				return null;
+			}
+		});
+		stubber.when(transceiver).transceive(any(byte[].class));
+		
+		//start test case manually, since this would be started on an nfc contact!
+		pri.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+		
+		Thread.sleep(Config.SERVER_CALL_TIMEOUT+500);
+		
+		// simulate a response which comes to late, if this runs through its
+		// fine, if a NPE is thrown, than something is not ok
+		pri.onServerResponse(null);
+		
+		assertEquals(0, persistencyHandler.getList().size());
+		
+		verify(transceiver, times(2)).transceive(any(byte[].class));
+		
+		assertEquals(3, states.size());
+		State state = states.get(0);
+		assertEquals(PaymentEvent.INITIALIZED, state.event);
+		state = states.get(1);
+		assertEquals(PaymentEvent.FORWARD_TO_SERVER, state.event);
+		assertNotNull(state.object);
+		state = states.get(2);
+		assertEquals(PaymentEvent.ERROR, state.event);
+		assertNotNull(state.object);
+		assertTrue(state.object instanceof PaymentErrorResult);
+		PaymentError err = ((PaymentErrorResult) state.object).getError();
+		assertEquals(PaymentError.NO_SERVER_RESPONSE, err);
+	}
+	
+	@Test
+	public void testPaymentRequestInitializer_Payer_ServerRefuses() throws Exception {
+		/*
+		 * Simulates server refuses the payment for any reason
+		 */
+		reset();
+		serverRefuse = true;
+		
+		KeyPair keyPairPayer = TestUtils.generateKeyPair();
+		keyPairServer = TestUtils.generateKeyPair();
+		
+		UserInfos userInfosPayer = new UserInfos("payer", keyPairPayer.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		PaymentInfos paymentInfos = new PaymentInfos(Currency.BTC, 1, System.currentTimeMillis());
+		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
+		
+		KeyPair keyPairPayee = TestUtils.generateKeyPair();
+		final UserInfos userInfosPayee = new UserInfos("payee", keyPairPayee.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		
+		NfcInitiator transceiver = mock(NfcInitiator.class);
+		
+		pri = new PaymentRequestInitializer(hostActivity, transceiver, paymentEventHandler, userInfosPayer, paymentInfos, serverInfos, persistencyHandler, PaymentType.SEND_PAYMENT);
+		
+		Stubber stubber = doAnswer(new Answer<Integer>() {
+			@Override
+			public Integer answer(InvocationOnMock invocation) throws Throwable {
+				Object[] arguments = invocation.getArguments();
+				
+				PaymentMessage pm = new PaymentMessage().bytes((byte[]) arguments[0]);
+				assertFalse(pm.isError());
+				assertTrue(pm.isPayer());
+				
+				byte[] bytes = userInfosPayee.getUsername().getBytes(Charset.forName("UTF-8"));
+				byte[] response = new PaymentMessage().payee().payload(bytes).bytes();
+				assertNotNull(response);
+				
+				pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, response);
+				return null;
+			}
+		});
+		stubber.when(transceiver).transceive(any(byte[].class));
+		
+		Stubber stubber2 = doAnswer(new Answer<Integer>() {
+			@Override
+			public Integer answer(InvocationOnMock invocation) throws Throwable {
+				Object[] arguments = invocation.getArguments();
+				
+				PaymentMessage pm = new PaymentMessage().bytes((byte[]) arguments[0]);
+				assertFalse(pm.isError());
+				assertTrue(pm.isPayer());
+				
+				PaymentResponse pr = DecoderFactory.decode(PaymentResponse.class, pm.payload());
+				assertNotNull(pr);
+				assertEquals(ServerResponseStatus.FAILURE, pr.getStatus());
+				
+				byte[] response = new PaymentMessage().payload(PaymentRequestHandler.ACK).bytes();
+				assertNotNull(response);
+				
+				pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, response);
+				return null;
+			}
+		});
+		stubber2.when(transceiver).sendLater(any(byte[].class));
+		
+		//start test case manually, since this would be started on an nfc contact!
+		pri.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+		
+		assertEquals(0, persistencyHandler.getList().size());
+		
+		verify(transceiver, times(1)).transceive(any(byte[].class));
+		verify(transceiver, times(1)).sendLater(any(byte[].class));
+		
+		assertEquals(3, states.size());
+		State state = states.get(0);
+		assertEquals(PaymentEvent.INITIALIZED, state.event);
+		state = states.get(1);
+		assertEquals(PaymentEvent.FORWARD_TO_SERVER, state.event);
+		assertNotNull(state.object);
+		state = states.get(2);
+		assertEquals(PaymentEvent.ERROR, state.event);
+		assertNotNull(state.object);
+		assertTrue(state.object instanceof PaymentErrorResult);
+		PaymentError err = ((PaymentErrorResult) state.object).getError();
+		assertEquals(PaymentError.SERVER_REFUSED, err);
+	}
+	
+	@Test
+	public void testPaymentRequestInitializer_Payer_Success() throws Exception {
+		/*
+		 * Simulates a successful payment
+		 */
+		reset();
+		serverRefuse = false;
+		
+		KeyPair keyPairPayer = TestUtils.generateKeyPair();
+		keyPairServer = TestUtils.generateKeyPair();
+		
+		UserInfos userInfosPayer = new UserInfos("seller", keyPairPayer.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		PaymentInfos paymentInfos = new PaymentInfos(Currency.BTC, 1, System.currentTimeMillis());
+		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
+		
+		KeyPair keyPairPayee = TestUtils.generateKeyPair();
+		final UserInfos userInfosPayee = new UserInfos("buyer", keyPairPayee.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		
+		NfcInitiator transceiver = mock(NfcInitiator.class);
+		
+		pri = new PaymentRequestInitializer(hostActivity, transceiver, paymentEventHandler, userInfosPayer, paymentInfos, serverInfos, persistencyHandler, PaymentType.SEND_PAYMENT);
+		
+		Stubber stubber = doAnswer(new Answer<Integer>() {
+			@Override
+			public Integer answer(InvocationOnMock invocation) throws Throwable {
+				Object[] arguments = invocation.getArguments();
+				
+				PaymentMessage pm = new PaymentMessage().bytes((byte[]) arguments[0]);
+				assertFalse(pm.isError());
+				assertTrue(pm.isPayer());
+				
+				byte[] bytes = userInfosPayee.getUsername().getBytes(Charset.forName("UTF-8"));
+				byte[] response = new PaymentMessage().payee().payload(bytes).bytes();
+				assertNotNull(response);
+				
+				pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, response);
+				return null;
+			}
+		});
+		stubber.when(transceiver).transceive(any(byte[].class));
+		
+		Stubber stubber2 = doAnswer(new Answer<Integer>() {
+			@Override
+			public Integer answer(InvocationOnMock invocation) throws Throwable {
+				Object[] arguments = invocation.getArguments();
+				
+				PaymentMessage pm = new PaymentMessage().bytes((byte[]) arguments[0]);
+				assertFalse(pm.isError());
+				assertTrue(pm.isPayer());
+				
+				PaymentResponse pr = DecoderFactory.decode(PaymentResponse.class, pm.payload());
+				assertNotNull(pr);
+				assertEquals(ServerResponseStatus.SUCCESS, pr.getStatus());
+				
+				byte[] response = new PaymentMessage().payload(PaymentRequestHandler.ACK).bytes();
+				assertNotNull(response);
+				
+				pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, response);
+				return null;
+			}
+		});
+		stubber2.when(transceiver).sendLater(any(byte[].class));
+		
+		//start test case manually, since this would be started on an nfc contact!
+		pri.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+		
+		assertEquals(0, persistencyHandler.getList().size());
+		
+		verify(transceiver, times(1)).transceive(any(byte[].class));
+		verify(transceiver, times(1)).sendLater(any(byte[].class));
+		
+		//assure that the timeout is not thrown
+		Thread.sleep(Config.SERVER_CALL_TIMEOUT+500);
+		
+		assertEquals(3, states.size());
+		State state = states.get(0);
+		assertEquals(PaymentEvent.INITIALIZED, state.event);
+		state = states.get(1);
+		assertEquals(PaymentEvent.FORWARD_TO_SERVER, state.event);
+		assertNotNull(state.object);
+		state = states.get(2);
+		assertEquals(PaymentEvent.SUCCESS, state.event);
+		assertNotNull(state.object);
+		assertTrue(state.object instanceof PaymentResponse);
+		PaymentResponse pr = (PaymentResponse) state.object;
+		assertEquals(userInfosPayer.getUsername(), pr.getUsernamePayer());
+		assertEquals(userInfosPayee.getUsername(), pr.getUsernamePayee());
+	}
+	
+	@Test
+	public void testPaymentRequestInitializer_Payer_Success_Presigned() throws Exception {
+		/*
+		 * Simulates a successful payment, where the payment request has been
+		 * signed before the devices were connected
+		 */
+		reset();
+		serverRefuse = false;
+		
+		KeyPair keyPairPayer = TestUtils.generateKeyPair();
+		keyPairServer = TestUtils.generateKeyPair();
+		
+		UserInfos userInfosPayer = new UserInfos("seller", keyPairPayer.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		PaymentInfos paymentInfos = new PaymentInfos(Currency.BTC, 1, System.currentTimeMillis());
+		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
+		
+		KeyPair keyPairPayee = TestUtils.generateKeyPair();
+		final UserInfos userInfosPayee = new UserInfos("buyer", keyPairPayee.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		
+		NfcInitiator transceiver = mock(NfcInitiator.class);
+		
+		pri = new PaymentRequestInitializer(hostActivity, transceiver, paymentEventHandler, userInfosPayer, paymentInfos, serverInfos, persistencyHandler, PaymentType.SEND_PAYMENT);
+		
+		Stubber stubber = doAnswer(new Answer<Integer>() {
+			@Override
+			public Integer answer(InvocationOnMock invocation) throws Throwable {
+				Object[] arguments = invocation.getArguments();
+				
+				PaymentMessage pm = new PaymentMessage().bytes((byte[]) arguments[0]);
+				assertFalse(pm.isError());
+				assertTrue(pm.isPayer());
+				
+				byte[] bytes = userInfosPayee.getUsername().getBytes(Charset.forName("UTF-8"));
+				byte[] response = new PaymentMessage().payee().payload(bytes).bytes();
+				assertNotNull(response);
+				
+				pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, response);
+				return null;
+			}
+		});
+		stubber.when(transceiver).transceive(any(byte[].class));
+		
+		Stubber stubber2 = doAnswer(new Answer<Integer>() {
+			@Override
+			public Integer answer(InvocationOnMock invocation) throws Throwable {
+				Object[] arguments = invocation.getArguments();
+				
+				PaymentMessage pm = new PaymentMessage().bytes((byte[]) arguments[0]);
+				assertFalse(pm.isError());
+				assertTrue(pm.isPayer());
+				
+				PaymentResponse pr = DecoderFactory.decode(PaymentResponse.class, pm.payload());
+				assertNotNull(pr);
+				assertEquals(ServerResponseStatus.SUCCESS, pr.getStatus());
+				
+				byte[] response = new PaymentMessage().payload(PaymentRequestHandler.ACK).bytes();
+				assertNotNull(response);
+				
+				pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, response);
+				return null;
+			}
+		});
+		stubber2.when(transceiver).sendLater(any(byte[].class));
+		
+		pri.presign("buyer");
+		Thread.sleep(50);
+		long beforeContact = System.currentTimeMillis();
+		
+		//start test case manually, since this would be started on an nfc contact!
+		pri.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+		
+		//assure that the timeout is not thrown
+		Thread.sleep(Config.SERVER_CALL_TIMEOUT+500);
+		
+		assertEquals(0, persistencyHandler.getList().size());
+		
+		verify(transceiver, times(1)).transceive(any(byte[].class));
+		verify(transceiver, times(1)).sendLater(any(byte[].class));
+		
+		assertEquals(3, states.size());
+		State state = states.get(0);
+		assertEquals(PaymentEvent.INITIALIZED, state.event);
+		state = states.get(1);
+		assertEquals(PaymentEvent.FORWARD_TO_SERVER, state.event);
+		assertNotNull(state.object);
+		PaymentRequest paymentRequestPayer = DecoderFactory.decode(ServerPaymentRequest.class, (byte[]) state.object).getPaymentRequestPayer();
+		assertEquals(userInfosPayee.getUsername(), paymentRequestPayer.getUsernamePayee());
+		assertTrue(paymentRequestPayer.verify(keyPairPayer.getPublic()));
+		assertTrue(paymentRequestPayer.getTimestamp() < beforeContact);
+		state = states.get(2);
+		assertEquals(PaymentEvent.SUCCESS, state.event);
+		assertNotNull(state.object);
+		assertTrue(state.object instanceof PaymentResponse);
+		PaymentResponse pr = (PaymentResponse) state.object;
+		assertEquals(userInfosPayer.getUsername(), pr.getUsernamePayer());
+		assertEquals(userInfosPayee.getUsername(), pr.getUsernamePayee());
+		
+		// the presigning thread does not survive
+		pri.presign("buyer");
+		assertTrue(countThreads("PaymentRequestInitializer-presign") > 0);
+		pri.disable();
+		assertNoThreads("PaymentRequestInitializer-presign");
+	}
+	
+	@Test
+	public void testPaymentRequestInitializer_Payer_Success_PresignedNewPaymentInfos() throws Exception {
+		/*
+		 * Simulates a successful payment, where the input currency and amount
+		 * have been changed after the payment request has been presigned
+		 */
+		reset();
+		serverRefuse = false;
+		
+		KeyPair keyPairPayer = TestUtils.generateKeyPair();
+		keyPairServer = TestUtils.generateKeyPair();
+		
+		UserInfos userInfosPayer = new UserInfos("seller", keyPairPayer.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		PaymentInfos paymentInfos = new PaymentInfos(Currency.BTC, 1, System.currentTimeMillis());
+		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
+		
+		KeyPair keyPairPayee = TestUtils.generateKeyPair();
+		final UserInfos userInfosPayee = new UserInfos("buyer", keyPairPayee.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		
+		NfcInitiator transceiver = mock(NfcInitiator.class);
+		
+		pri = new PaymentRequestInitializer(hostActivity, transceiver, paymentEventHandler, userInfosPayer, paymentInfos, serverInfos, persistencyHandler, PaymentType.SEND_PAYMENT);
+		
+		Stubber stubber = doAnswer(new Answer<Integer>() {
+			@Override
+			public Integer answer(InvocationOnMock invocation) throws Throwable {
+				Object[] arguments = invocation.getArguments();
+				
+				PaymentMessage pm = new PaymentMessage().bytes((byte[]) arguments[0]);
+				assertFalse(pm.isError());
+				assertTrue(pm.isPayer());
+				
+				byte[] bytes = userInfosPayee.getUsername().getBytes(Charset.forName("UTF-8"));
+				byte[] response = new PaymentMessage().payee().payload(bytes).bytes();
+				assertNotNull(response);
+				
+				pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, response);
+				return null;
+			}
+		});
+		stubber.when(transceiver).transceive(any(byte[].class));
+		
+		Stubber stubber2 = doAnswer(new Answer<Integer>() {
+			@Override
+			public Integer answer(InvocationOnMock invocation) throws Throwable {
+				Object[] arguments = invocation.getArguments();
+				
+				PaymentMessage pm = new PaymentMessage().bytes((byte[]) arguments[0]);
+				assertFalse(pm.isError());
+				assertTrue(pm.isPayer());
+				
+				PaymentResponse pr = DecoderFactory.decode(PaymentResponse.class, pm.payload());
+				assertNotNull(pr);
+				assertEquals(ServerResponseStatus.SUCCESS, pr.getStatus());
+				
+				byte[] response = new PaymentMessage().payload(PaymentRequestHandler.ACK).bytes();
+				assertNotNull(response);
+				
+				pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, response);
+				return null;
+			}
+		});
+		stubber2.when(transceiver).sendLater(any(byte[].class));
+		
+		pri.presign("buyer");
+		Thread.sleep(50);
+		pri.setPaymentInfos(new PaymentInfos(Currency.BTC, 1, Currency.CHF, 5));
+		Thread.sleep(50);
+		long beforeContact = System.currentTimeMillis();
+		
+		//start test case manually, since this would be started on an nfc contact!
+		pri.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+		
+		//assure that the timeout is not thrown
+		Thread.sleep(Config.SERVER_CALL_TIMEOUT+500);
+		
+		assertEquals(0, persistencyHandler.getList().size());
+		
+		verify(transceiver, times(1)).transceive(any(byte[].class));
+		verify(transceiver, times(1)).sendLater(any(byte[].class));
+		
+		assertEquals(3, states.size());
+		State state = states.get(0);
+		assertEquals(PaymentEvent.INITIALIZED, state.event);
+		state = states.get(1);
+		assertEquals(PaymentEvent.FORWARD_TO_SERVER, state.event);
+		assertNotNull(state.object);
+		PaymentRequest paymentRequestPayer = DecoderFactory.decode(ServerPaymentRequest.class, (byte[]) state.object).getPaymentRequestPayer();
+		assertEquals(userInfosPayee.getUsername(), paymentRequestPayer.getUsernamePayee());
+		assertTrue(paymentRequestPayer.verify(keyPairPayer.getPublic()));
+		// the payment request has been presigned again with the new payment infos
+		assertTrue(paymentRequestPayer.getTimestamp() < beforeContact);
+		assertEquals(Currency.CHF, paymentRequestPayer.getInputCurrency());
+		assertEquals(5, paymentRequestPayer.getInputAmount());
+		state = states.get(2);
+		assertEquals(PaymentEvent.SUCCESS, state.event);
+		assertNotNull(state.object);
+		assertTrue(state.object instanceof PaymentResponse);
+		PaymentResponse pr = (PaymentResponse) state.object;
+		assertEquals(userInfosPayer.getUsername(), pr.getUsernamePayer());
+		assertEquals(userInfosPayee.getUsername(), pr.getUsernamePayee());
+		
+		pri.disable();
+	}
+	
+	@Test
+	public void testPaymentRequestInitializer_Payer_LateServerResponse() throws Exception {
+		/*
+		 * Simulates a server response which arrives after the timeout, when
+		 * the devices have already been connected again
+		 */
+		reset();
+		
+		KeyPair keyPairPayer = TestUtils.generateKeyPair();
+		keyPairServer = TestUtils.generateKeyPair();
+		
+		UserInfos userInfosPayer = new UserInfos("seller", keyPairPayer.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		PaymentInfos paymentInfos = new PaymentInfos(Currency.BTC, 1, System.currentTimeMillis());
+		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
+		
+		final UserInfos userInfosPayee = new UserInfos("buyer", TestUtils.generateKeyPair().getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		
+		final List<State> events = Collections.synchronizedList(new ArrayList<State>());
+		IPaymentEventHandler eventHandler = new IPaymentEventHandler() {
+			@Override
+			public void handleMessage(PaymentEvent event, Object object, IServerResponseListener caller) {
+				// the server does not answer in time
+				events.add(new State(event, object, caller));
+			}
+		};
+		
+		NfcInitiator transceiver = mock(NfcInitiator.class);
+		pri = new PaymentRequestInitializer(hostActivity, transceiver, eventHandler, userInfosPayer, paymentInfos, serverInfos, persistencyHandler, PaymentType.SEND_PAYMENT);
+		
+		// only the first contact receives the payee's username
+		doAnswer(new Answer<Integer>() {
+			@Override
+			public Integer answer(InvocationOnMock invocation) throws Throwable {
+				byte[] bytes = userInfosPayee.getUsername().getBytes(Charset.forName("UTF-8"));
+				pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, new PaymentMessage().payee().payload(bytes).bytes());
+				return null;
+			}
+		}).doNothing().when(transceiver).transceive(any(byte[].class));
+		
+		//start test case manually, since this would be started on an nfc contact!
+		pri.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+		assertEquals(PaymentEvent.FORWARD_TO_SERVER, events.get(1).event);
+		PaymentRequest paymentRequestPayer = DecoderFactory.decode(ServerPaymentRequest.class, (byte[]) events.get(1).object).getPaymentRequestPayer();
+		
+		Thread.sleep(Config.SERVER_CALL_TIMEOUT+500);
+		assertEquals(PaymentEvent.ERROR, events.get(2).event);
+		assertEquals(PaymentError.NO_SERVER_RESPONSE, ((PaymentErrorResult) events.get(2).object).getError());
+		verify(transceiver, times(1)).sendLater(any(byte[].class));
+		
+		// the devices are connected again, then the response of the first payment arrives
+		pri.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+		PaymentResponse pr = new PaymentResponse(PKIAlgorithm.DEFAULT, 1, ServerResponseStatus.SUCCESS, null, paymentRequestPayer.getUsernamePayer(), paymentRequestPayer.getUsernamePayee(), paymentRequestPayer.getCurrency(), paymentRequestPayer.getAmount(), paymentRequestPayer.getTimestamp());
+		pr.sign(keyPairServer.getPrivate());
+		pri.onServerResponse(new ServerPaymentResponse(pr));
+		
+		verify(transceiver, times(1)).sendLater(any(byte[].class));
+		assertEquals(4, events.size());
+		assertEquals(PaymentEvent.INITIALIZED, events.get(3).event);
+		
+		pri.disable();
+	}
+	
+	@Test
+	public void testPaymentRequestInitializer_Payer_DelayedSigner() throws Exception {
+		/*
+		 * Simulates a payer whose key is held in a slow secure store: the
+		 * NFC thread is not blocked, and the payment request is forwarded to
+		 * the server as soon as it is signed
+		 */
+		reset();
+		serverRefuse = false;
+		
+		KeyPair keyPairPayer = TestUtils.generateKeyPair();
+		keyPairServer = TestUtils.generateKeyPair();
+		
+		UserInfos userInfosPayer = new UserInfos("seller", keyPairPayer.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		PaymentInfos paymentInfos = new PaymentInfos(Currency.BTC, 1, System.currentTimeMillis());
+		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
+		
+		KeyPair keyPairPayee = TestUtils.generateKeyPair();
+		final UserInfos userInfosPayee = new UserInfos("buyer", keyPairPayee.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		
+		NfcInitiator transceiver = mock(NfcInitiator.class);
+		
+		pri = new PaymentRequestInitializer(hostActivity, transceiver, paymentEventHandler, userInfosPayer, paymentInfos, serverInfos, persistencyHandler, PaymentType.SEND_PAYMENT);
+		pri.setPaymentSigner(new DelayedSigner(new SoftwareSigner(keyPairPayer.getPrivate()), 200));
+		
+		Stubber stubber = doAnswer(new Answer<Integer>() {
+			@Override
+			public Integer answer(InvocationOnMock invocation) throws Throwable {
+				byte[] bytes = userInfosPayee.getUsername().getBytes(Charset.forName("UTF-8"));
+				byte[] response = new PaymentMessage().payee().payload(bytes).bytes();
+				pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, response);
+				return null;
+			}
+		});
+		stubber.when(transceiver).transceive(any(byte[].class));
+		
+		Stubber stubber2 = doAnswer(new Answer<Integer>() {
+			@Override
+			public Integer answer(InvocationOnMock invocation) throws Throwable {
+				Object[] arguments = invocation.getArguments();
+				
+				PaymentMessage pm = new PaymentMessage().bytes((byte[]) arguments[0]);
+				assertFalse(pm.isError());
+				
+				byte[] response = new PaymentMessage().payload(PaymentRequestHandler.ACK).bytes();
+				pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, response);
+				return null;
+			}
+		});
+		stubber2.when(transceiver).sendLater(any(byte[].class));
+		
+		//start test case manually, since this would be started on an nfc contact!
+		pri.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+		
+		// the NFC thread returns before the payment request is signed
+		verify(transceiver, times(1)).startPolling();
+		verify(transceiver, times(0)).sendLater(any(byte[].class));
+		assertEquals(1, states.size());
+		
+		//assure that the timeout is not thrown
+		Thread.sleep(Config.SERVER_CALL_TIMEOUT+500);
+		
+		verify(transceiver, times(1)).sendLater(any(byte[].class));
+		assertEquals(3, states.size());
+		State state = states.get(1);
+		assertEquals(PaymentEvent.FORWARD_TO_SERVER, state.event);
+		PaymentRequest paymentRequestPayer = DecoderFactory.decode(ServerPaymentRequest.class, (byte[]) state.object).getPaymentRequestPayer();
+		assertTrue(paymentRequestPayer.verify(keyPairPayer.getPublic()));
+		state = states.get(2);
+		assertEquals(PaymentEvent.SUCCESS, state.event);
+	}
+	
+	@Test
+	public void testPaymentRequestInitializer_Payer_Success_PresignedOtherPayee() throws Exception {
+		/*
+		 * Simulates a successful payment, where the payment request has been
+		 * signed for another payee and has to be discarded
+		 */
+		reset();
+		serverRefuse = false;
+		
+		KeyPair keyPairPayer = TestUtils.generateKeyPair();
+		keyPairServer = TestUtils.generateKeyPair();
+		
+		UserInfos userInfosPayer = new UserInfos("seller", keyPairPayer.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		PaymentInfos paymentInfos = new PaymentInfos(Currency.BTC, 1, System.currentTimeMillis());
+		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
+		
+		KeyPair keyPairPayee = TestUtils.generateKeyPair();
+		final UserInfos userInfosPayee = new UserInfos("buyer", keyPairPayee.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		
+		NfcInitiator transceiver = mock(NfcInitiator.class);
+		
+		pri = new PaymentRequestInitializer(hostActivity, transceiver, paymentEventHandler, userInfosPayer, paymentInfos, serverInfos, persistencyHandler, PaymentType.SEND_PAYMENT);
+		
+		Stubber stubber = doAnswer(new Answer<Integer>() {
+			@Override
+			public Integer answer(InvocationOnMock invocation) throws Throwable {
+				Object[] arguments = invocation.getArguments();
+				
+				PaymentMessage pm = new PaymentMessage().bytes((byte[]) arguments[0]);
+				assertFalse(pm.isError());
+				assertTrue(pm.isPayer());
+				
+				byte[] bytes = userInfosPayee.getUsername().getBytes(Charset.forName("UTF-8"));
+				byte[] response = new PaymentMessage().payee().payload(bytes).bytes();
+				assertNotNull(response);
+				
+				pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, response);
+				return null;
+			}
+		});
+		stubber.when(transceiver).transceive(any(byte[].class));
+		
+		Stubber stubber2 = doAnswer(new Answer<Integer>() {
+			@Override
+			public Integer answer(InvocationOnMock invocation) throws Throwable {
+				Object[] arguments = invocation.getArguments();
+				
+				PaymentMessage pm = new PaymentMessage().bytes((byte[]) arguments[0]);
+				assertFalse(pm.isError());
+				assertTrue(pm.isPayer());
+				
+				PaymentResponse pr = DecoderFactory.decode(PaymentResponse.class, pm.payload());
+				assertNotNull(pr);
+				assertEquals(ServerResponseStatus.SUCCESS, pr.getStatus());
+				
+				byte[] response = new PaymentMessage().payload(PaymentRequestHandler.ACK).bytes();
+				assertNotNull(response);
+				
+				pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, response);
+				return null;
+			}
+		});
+		stubber2.when(transceiver).sendLater(any(byte[].class));
+		
+		pri.presign("somebody");
+		Thread.sleep(50);
+		long beforeContact = System.currentTimeMillis();
+		
+		//start test case manually, since this would be started on an nfc contact!
+		pri.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+		
+		assertEquals(0, persistencyHandler.getList().size());
+		
+		verify(transceiver, times(1)).transceive(any(byte[].class));
+		verify(transceiver, times(1)).sendLater(any(byte[].class));
+		
+		//assure that the timeout is not thrown
+		Thread.sleep(Config.SERVER_CALL_TIMEOUT+500);
+		
+		assertEquals(3, states.size());
+		State state = states.get(0);
+		assertEquals(PaymentEvent.INITIALIZED, state.event);
+		state = states.get(1);
+		assertEquals(PaymentEvent.FORWARD_TO_SERVER, state.event);
+		assertNotNull(state.object);
+		PaymentRequest paymentRequestPayer = DecoderFactory.decode(ServerPaymentRequest.class, (byte[]) state.object).getPaymentRequestPayer();
+		assertEquals(userInfosPayee.getUsername(), paymentRequestPayer.getUsernamePayee());
+		assertTrue(paymentRequestPayer.verify(keyPairPayer.getPublic()));
+		assertTrue(paymentRequestPayer.getTimestamp() >= beforeContact);
+		state = states.get(2);
+		assertEquals(PaymentEvent.SUCCESS, state.event);
+		assertNotNull(state.object);
+		assertTrue(state.object instanceof PaymentResponse);
+		PaymentResponse pr = (PaymentResponse) state.object;
+		assertEquals(userInfosPayer.getUsername(), pr.getUsernamePayer());
+		assertEquals(userInfosPayee.getUsername(), pr.getUsernamePayee());
+		
+		pri.disable();
+	}
+	
+	@Test
+	public void testPaymentRequestInitializer_Payer_Success_Negotiate() throws Exception {
+		/*
+		 * Simulates a successful payment where both devices negotiate their
+		 * capabilities
+		 */
+		reset();
+		serverRefuse = false;
+		
+		KeyPair keyPairPayer = TestUtils.generateKeyPair();
+		keyPairServer = TestUtils.generateKeyPair();
+		
+		UserInfos userInfosPayer = new UserInfos("seller", keyPairPayer.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		PaymentInfos paymentInfos = new PaymentInfos(Currency.BTC, 1, System.currentTimeMillis());
+		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
+		
+		KeyPair keyPairPayee = TestUtils.generateKeyPair();
+		final UserInfos userInfosPayee = new UserInfos("buyer", keyPairPayee.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		
+		NfcInitiator transceiver = mock(NfcInitiator.class);
+		
+		pri = new PaymentRequestInitializer(hostActivity, transceiver, paymentEventHandler, userInfosPayer, paymentInfos, serverInfos, persistencyHandler, PaymentType.SEND_PAYMENT);
+		
+		Stubber stubber = doAnswer(new Answer<Integer>() {
+			@Override
+			public Integer answer(InvocationOnMock invocation) throws Throwable {
+				Object[] arguments = invocation.getArguments();
+				
+				PaymentMessage pm = new PaymentMessage().bytes((byte[]) arguments[0]);
+				assertFalse(pm.isError());
+				assertTrue(pm.isPayer());
+				assertEquals(0x00, pm.payload()[0]);
+				assertTrue(pm.isNegotiate());
+				assertTrue(Capabilities.decode(pm, 1).supports(Capabilities.COMPRESSION));
+				
+				// the payee's capabilities precede its username
+				Capabilities payee = new Capabilities(Capabilities.COMPRESSION, 0, Capabilities.pkiAlgorithms(PKIAlgorithm.DEFAULT));
+				byte[] username = userInfosPayee.getUsername().getBytes(Charset.forName("UTF-8"));
+				byte[] bytes = new byte[payee.encodedLength() + username.length];
+				int offset = payee.encode(bytes, 0);
+				System.arraycopy(username, 0, bytes, offset, username.length);
+				byte[] response = new PaymentMessage().payee().negotiate().payload(bytes).bytes();
+				assertNotNull(response);
+				
+				pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, response);
+				return null;
+			}
+		});
+		stubber.when(transceiver).transceive(any(byte[].class));
+		
+		Stubber stubber2 = doAnswer(new Answer<Integer>() {
+			@Override
+			public Integer answer(InvocationOnMock invocation) throws Throwable {
+				Object[] arguments = invocation.getArguments();
+				
+				PaymentMessage pm = new PaymentMessage().bytes((byte[]) arguments[0]);
+				assertFalse(pm.isError());
+				assertTrue(pm.isPayer());
+				
+				byte[] dictionary = PayloadCompressor.dictionary(userInfosPayee.getUsername());
+				byte[] payload = PayloadCompressor.payload(pm, dictionary, Config.MAX_PAYLOAD_LENGTH);
+				assertEquals(PayloadCompressor.compress(payload, dictionary) != null, pm.isCompressed());
+				
+				PaymentResponse pr = DecoderFactory.decode(PaymentResponse.class, payload);
+				assertNotNull(pr);
+				assertEquals(ServerResponseStatus.SUCCESS, pr.getStatus());
+				
+				byte[] response = new PaymentMessage().payload(PaymentRequestHandler.ACK).bytes();
+				assertNotNull(response);
+				
+				pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, response);
+				return null;
+			}
+		});
+		stubber2.when(transceiver).sendLater(any(byte[].class));
+		
+		//start test case manually, since this would be started on an nfc contact!
+		pri.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+		
+		assertEquals(0, persistencyHandler.getList().size());
+		
+		verify(transceiver, times(1)).transceive(any(byte[].class));
+		verify(transceiver, times(1)).sendLater(any(byte[].class));
+		
+		//assure that the timeout is not thrown
+		Thread.sleep(Config.SERVER_CALL_TIMEOUT+500);
+		
+		assertEquals(3, states.size());
+		State state = states.get(0);
+		assertEquals(PaymentEvent.INITIALIZED, state.event);
+		state = states.get(1);
+		assertEquals(PaymentEvent.FORWARD_TO_SERVER, state.event);
+		assertNotNull(state.object);
+		state = states.get(2);
+		assertEquals(PaymentEvent.SUCCESS, state.event);
+		assertNotNull(state.object);
+		assertTrue(state.object instanceof PaymentResponse);
+		PaymentResponse pr = (PaymentResponse) state.object;
+		assertEquals(userInfosPayer.getUsername(), pr.getUsernamePayer());
+		assertEquals(userInfosPayee.getUsername(), pr.getUsernamePayee());
+	}
+	
+	@Test
+	public void testPaymentRequestInitializer_Payer_Success_Fragmented() throws Exception {
+		/*
+		 * Simulates a successful payment where the payee announces a small
+		 * maximum frame length, so the server response is forwarded in
+		 * several fragments
+		 */
+		reset();
+		serverRefuse = false;
+		
+		KeyPair keyPairPayer = TestUtils.generateKeyPair();
+		keyPairServer = TestUtils.generateKeyPair();
+		
+		UserInfos userInfosPayer = new UserInfos("seller", keyPairPayer.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		PaymentInfos paymentInfos = new PaymentInfos(Currency.BTC, 1, System.currentTimeMillis());
+		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
+		
+		KeyPair keyPairPayee = TestUtils.generateKeyPair();
+		final UserInfos userInfosPayee = new UserInfos("buyer", keyPairPayee.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		
+		NfcInitiator transceiver = mock(NfcInitiator.class);
+		
+		pri = new PaymentRequestInitializer(hostActivity, transceiver, paymentEventHandler, userInfosPayer, paymentInfos, serverInfos, persistencyHandler, PaymentType.SEND_PAYMENT);
+		
+		final Reassembler reassembler = new Reassembler(Config.MAX_PAYLOAD_LENGTH);
+		final int[] nofFragments = new int[1];
+		Answer<Integer> payee = new Answer<Integer>() {
+			@Override
+			public Integer answer(InvocationOnMock invocation) throws Throwable {
+				byte[] frame = (byte[]) invocation.getArguments()[0];
+				assertTrue(frame.length <= 32);
+				
+				PaymentMessage pm = new PaymentMessage().bytes(frame);
+				assertFalse(pm.isError());
+				assertTrue(pm.isPayer());
+				
+				if (!pm.isFragment()) {
+					// the payee announces a maximum frame length of 32 bytes
+					Capabilities payee = new Capabilities(Capabilities.COMPRESSION | Capabilities.FRAGMENTATION, 32, Capabilities.pkiAlgorithms(PKIAlgorithm.DEFAULT));
+					byte[] username = userInfosPayee.getUsername().getBytes(Charset.forName("UTF-8"));
+					byte[] bytes = new byte[payee.encodedLength() + username.length];
+					int offset = payee.encode(bytes, 0);
+					System.arraycopy(username, 0, bytes, offset, username.length);
+					pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, new PaymentMessage().payee().negotiate().payload(bytes).bytes());
+					return null;
+				}
+				
+				nofFragments[0]++;
+				if (!reassembler.append(pm)) {
+					pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, PaymentFrames.nextFragment(false));
+					return null;
+				}
+				
+				pm = new PaymentMessage().bytes(reassembler.message());
+				assertFalse(pm.isFragment());
+				assertTrue(pm.isPayer());
+				
+				byte[] dictionary = PayloadCompressor.dictionary(userInfosPayee.getUsername());
+				byte[] payload = PayloadCompressor.payload(pm, dictionary, Config.MAX_PAYLOAD_LENGTH);
+				PaymentResponse pr = DecoderFactory.decode(PaymentResponse.class, payload);
+				assertNotNull(pr);
+				assertEquals(ServerResponseStatus.SUCCESS, pr.getStatus());
+				
+				pri.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, new PaymentMessage().payload(PaymentRequestHandler.ACK).bytes());
+				return null;
+			}
+		};
+		doAnswer(payee).when(transceiver).transceive(any(byte[].class));
+		doAnswer(payee).when(transceiver).sendLater(any(byte[].class));
+		
+		//start test case manually, since this would be started on an nfc contact!
+		pri.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+		
+		assertEquals(0, persistencyHandler.getList().size());
+		assertTrue(reassembler.isComplete());
+		assertTrue(nofFragments[0] > 2);
+		
+		// the first fragment is sent once the payee polls, the others on its request
+		verify(transceiver, times(1)).sendLater(any(byte[].class));
+		verify(transceiver, times(nofFragments[0])).transceive(any(byte[].class));
+		
+		assertEquals(3, states.size());
+		assertEquals(PaymentEvent.INITIALIZED, states.get(0).event);
+		assertEquals(PaymentEvent.FORWARD_TO_SERVER, states.get(1).event);
+		assertEquals(PaymentEvent.SUCCESS, states.get(2).event);
 	}
 	
 	@Test
@@ -784,8 +2002,8 @@ public class PaymentRequestInitializerTest {
 		state = states.get(2);
 		assertEquals(PaymentEvent.ERROR, state.event);
 		assertNotNull(state.object);
-		assertTrue(state.object instanceof PaymentError);
-		PaymentError err = (PaymentError) state.object;
+		assertTrue(state.object instanceof PaymentErrorResult);
+		PaymentError err = ((PaymentErrorResult) state.object).getError();
 		assertEquals(PaymentError.NO_SERVER_RESPONSE, err);
 	}
 	
@@ -850,8 +2068,8 @@ public class PaymentRequestInitializerTest {
 		state = states.get(1);
 		assertEquals(PaymentEvent.ERROR, state.event);
 		assertNotNull(state.object);
-		assertTrue(state.object instanceof PaymentError);
-		PaymentError err = (PaymentError) state.object;
+		assertTrue(state.object instanceof PaymentErrorResult);
+		PaymentError err = ((PaymentErrorResult) state.object).getError();
 		assertEquals(PaymentError.INCOMPATIBLE_VERSIONS, err);
 	}
 	
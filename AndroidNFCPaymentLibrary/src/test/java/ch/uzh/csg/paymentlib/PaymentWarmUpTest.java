@@ -0,0 +1,59 @@
+package ch.uzh.csg.paymentlib;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.security.KeyPair;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import android.util.Log;
+import ch.uzh.csg.mbps.customserialization.PKIAlgorithm;
+import ch.uzh.csg.paymentlib.container.ServerInfos;
+import ch.uzh.csg.paymentlib.container.UserInfos;
+import ch.uzh.csg.paymentlib.exceptions.IllegalArgumentException;
+import ch.uzh.csg.paymentlib.testutils.TestUtils;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(Log.class)
+public class PaymentWarmUpTest {
+	
+	@Test
+	public void testWarmUp() throws Exception {
+		KeyPair keyPairUser = TestUtils.generateKeyPair();
+		KeyPair keyPairServer = TestUtils.generateKeyPair();
+		UserInfos userInfos = new UserInfos("buyer", keyPairUser.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
+		
+		Future<Long> future = PaymentWarmUp.start(userInfos, serverInfos);
+		long duration = future.get(30, TimeUnit.SECONDS);
+		assertTrue(duration >= 0);
+		
+		// the warm-up may be repeated on any thread
+		assertTrue(PaymentWarmUp.run(userInfos, serverInfos) >= 0);
+	}
+	
+	@Test
+	public void testWarmUp_MissingParameters() throws Exception {
+		KeyPair keyPair = TestUtils.generateKeyPair();
+		UserInfos userInfos = new UserInfos("buyer", keyPair.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		
+		try {
+			PaymentWarmUp.start(userInfos, null);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		
+		try {
+			PaymentWarmUp.run(null, new ServerInfos(keyPair.getPublic()));
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+	
+}
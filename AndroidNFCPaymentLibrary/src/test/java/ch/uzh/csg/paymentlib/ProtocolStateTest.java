@@ -0,0 +1,431 @@
+package ch.uzh.csg.paymentlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import android.app.Activity;
+import android.util.Log;
+import ch.uzh.csg.mbps.customserialization.Currency;
+import ch.uzh.csg.mbps.customserialization.DecoderFactory;
+import ch.uzh.csg.mbps.customserialization.PKIAlgorithm;
+import ch.uzh.csg.mbps.customserialization.PaymentRequest;
+import ch.uzh.csg.mbps.customserialization.PaymentResponse;
+import ch.uzh.csg.mbps.customserialization.ServerPaymentRequest;
+import ch.uzh.csg.mbps.customserialization.ServerPaymentResponse;
+import ch.uzh.csg.mbps.customserialization.ServerResponseStatus;
+import ch.uzh.csg.nfclib.ISendLater;
+import ch.uzh.csg.nfclib.NfcInitiator;
+import ch.uzh.csg.nfclib.events.NfcEvent;
+import ch.uzh.csg.paymentlib.PaymentRequestInitializer.PaymentType;
+import ch.uzh.csg.paymentlib.container.PaymentInfos;
+import ch.uzh.csg.paymentlib.container.ServerInfos;
+import ch.uzh.csg.paymentlib.container.UserInfos;
+import ch.uzh.csg.paymentlib.messages.Fragmenter;
+import ch.uzh.csg.paymentlib.testutils.PersistencyHandler;
+import ch.uzh.csg.paymentlib.testutils.TestUtils;
+import ch.uzh.csg.paymentlib.util.Config;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore("javax.crypto.*")
+@PrepareForTest(Log.class)
+public class ProtocolStateTest {
+
+	private Activity hostActivity = Mockito.mock(Activity.class);
+	private List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+
+	@Before
+	public void before() {
+		// the library logs on the NFC, timer, and server threads
+		PowerMockito.mockStatic(Log.class);
+	}
+
+	@Test
+	public void testTransitions() {
+		ProtocolState state = new ProtocolState();
+		int generation = state.begin();
+		assertTrue(state.isCurrent(generation));
+
+		assertEquals(1, state.nextMessage());
+		assertEquals(2, state.nextMessage());
+		assertEquals(2, state.messages());
+
+		// a new connection keeps the payment
+		assertEquals(generation, state.begin());
+		assertEquals(0, state.messages());
+		assertEquals(1, state.nextMessage());
+
+		assertTrue(state.abort(generation));
+		assertTrue(state.isAborted());
+		assertFalse(state.isCurrent(generation));
+		assertFalse(state.abort());
+		assertEquals(-1, state.nextMessage());
+
+		// the aborted flag is kept until the next connection
+		state.reset();
+		assertTrue(state.isAborted());
+		int next = state.begin();
+		assertFalse(state.isAborted());
+		assertTrue(next != generation);
+		assertEquals(1, state.nextMessage());
+	}
+
+	@Test
+	public void testStaleGeneration() {
+		ProtocolState state = new ProtocolState();
+		int generation = state.begin();
+
+		// the payment succeeded, but its timeout could not be cancelled in time
+		state.reset();
+		int next = state.begin();
+		assertFalse(state.abort(generation));
+		assertTrue(state.isCurrent(next));
+		assertFalse(state.isCurrent(generation));
+	}
+
+	@Test
+	public void testStillAborted() {
+		ProtocolState state = new ProtocolState();
+		int generation = state.begin();
+		assertFalse(state.isStillAborted(generation));
+
+		// the timeout aborted the payment, which is reset later on another thread
+		assertTrue(state.abort(generation));
+		assertTrue(state.isStillAborted(generation));
+
+		// the devices have been connected again in the meantime
+		state.begin();
+		assertFalse(state.isStillAborted(generation));
+
+		int next = state.generation();
+		assertTrue(state.abort(next));
+		state.reset();
+		assertFalse(state.isStillAborted(next));
+	}
+
+	@Test
+	public void testNextMessage_Concurrent() throws Exception {
+		final ProtocolState state = new ProtocolState();
+		final int nofThreads = 4;
+		final int nofMessages = 10000;
+		final AtomicIntegerArray seen = new AtomicIntegerArray(nofThreads * nofMessages + 1);
+		final AtomicInteger accepted = new AtomicInteger(0);
+
+		Thread[] threads = new Thread[nofThreads];
+		for (int i = 0; i < nofThreads; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < nofMessages; j++) {
+						int count = state.nextMessage();
+						if (count > 0) {
+							seen.incrementAndGet(count);
+							accepted.incrementAndGet();
+						}
+					}
+				}
+			});
+			threads[i].start();
+		}
+		Thread.sleep(5);
+		state.abort();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		// every accepted message has been counted exactly once
+		for (int i = 1; i <= accepted.get(); i++) {
+			assertEquals(1, seen.get(i));
+		}
+		assertEquals(-1, state.nextMessage());
+	}
+
+	/*
+	 * Runs many payments between a PaymentRequestInitializer (payer) and a
+	 * PaymentRequestHandler (payee) on several lanes at the same time. The
+	 * frames of a lane are looped back on its own NFC thread, the server
+	 * answers on a pool of server threads, and the server timeout runs on the
+	 * timer's thread. Some answers arrive around the server timeout, so that
+	 * the timeout and the server response race. Every payment must end
+	 * exactly once on both devices, and a timeout must never end the next
+	 * payment.
+	 */
+	@Test
+	public void testStress() throws Exception {
+		final int nofLanes = 8;
+		final int nofPayments = 20;
+		final KeyPair keyPairServer = TestUtils.generateKeyPair();
+		final ScheduledExecutorService server = Executors.newScheduledThreadPool(4);
+
+		final Loopback[] lanes = new Loopback[nofLanes];
+		Thread[] threads = new Thread[nofLanes];
+		for (int i = 0; i < nofLanes; i++) {
+			lanes[i] = new Loopback(i, keyPairServer, server);
+			final Loopback lane = lanes[i];
+			final Random random = new Random(i);
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < nofPayments; j++) {
+							// every 8th answer arrives within two ticks of the timeout
+							boolean fast = j % 8 != 7;
+							long delay = fast ? random.nextInt(20) : Config.SERVER_CALL_TIMEOUT - 2 * Config.TIMER_TICK + random.nextInt(4 * (int) Config.TIMER_TICK + 1);
+							PaymentEvent outcome = lane.pay(delay);
+							assertNotNull("payment "+j+" did not end", outcome);
+							if (fast)
+								assertEquals(PaymentEvent.SUCCESS, outcome);
+						}
+					} catch (Throwable t) {
+						failures.add(t);
+					}
+				}
+			}, "lane-"+i);
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		// no payment ends twice, e.g., by a late timeout
+		Thread.sleep(Config.SERVER_CALL_TIMEOUT + 500);
+		server.shutdown();
+		assertTrue(server.awaitTermination(5, TimeUnit.SECONDS));
+		assertEquals(Collections.emptyList(), failures);
+
+		for (Loopback lane : lanes) {
+			lane.shutdown();
+			assertNull(lane.outcomes.poll());
+			assertEquals(nofPayments, lane.successes.get() + lane.errors.get());
+			// the payee has processed the server response of every successful payment
+			assertEquals(lane.successes.get(), lane.payeeSuccesses.get());
+			assertEquals(lane.errors.get(), lane.payeeErrors.get());
+		}
+	}
+
+	/*
+	 * A payee which can only receive small frames makes the payer forward the
+	 * server response in several fragments, which are put together before
+	 * the payee processes the response.
+	 */
+	@Test
+	public void testFragmented() throws Exception {
+		KeyPair keyPairServer = TestUtils.generateKeyPair();
+		ScheduledExecutorService server = Executors.newSingleThreadScheduledExecutor();
+
+		Loopback lane = new Loopback(0, keyPairServer, server);
+		assertEquals(PaymentEvent.SUCCESS, lane.pay(0));
+		// the payer ends the payment once the response is sent, the payee once it has arrived
+		lane.awaitPayee(1);
+		int unfragmented = lane.frames.getAndSet(0);
+
+		lane.payee.setMaxFrameLength(Fragmenter.FIRST_FRAGMENT_OVERHEAD + 16);
+		assertEquals(PaymentEvent.SUCCESS, lane.pay(0));
+		lane.awaitPayee(2);
+		assertTrue(lane.frames.get() > unfragmented);
+
+		server.shutdown();
+		lane.shutdown();
+		assertEquals(Collections.emptyList(), failures);
+		assertEquals(2, lane.successes.get());
+		assertEquals(2, lane.payeeSuccesses.get());
+	}
+
+	/*
+	 * A payer and a payee connected over a loopback, which delivers the
+	 * frames in order on a single NFC thread.
+	 */
+	private class Loopback {
+		private final ExecutorService nfc = Executors.newSingleThreadExecutor();
+		private final BlockingQueue<PaymentEvent> outcomes = new LinkedBlockingQueue<PaymentEvent>();
+		private final Semaphore answered = new Semaphore(0);
+		private final AtomicInteger successes = new AtomicInteger(0);
+		private final AtomicInteger errors = new AtomicInteger(0);
+		private final AtomicInteger payeeSuccesses = new AtomicInteger(0);
+		private final AtomicInteger payeeErrors = new AtomicInteger(0);
+		private final AtomicInteger frames = new AtomicInteger(0);
+		private final KeyPair keyPairServer;
+		private final ScheduledExecutorService server;
+		private final PaymentRequestInitializer payer;
+		private final PaymentRequestHandler payee;
+		private volatile long serverDelay;
+
+		private final ISendLater sendLater = new ISendLater() {
+			@Override
+			public void sendLater(final byte[] bytes) {
+				nfc.execute(new Runnable() {
+					@Override
+					public void run() {
+						payer.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, bytes);
+					}
+				});
+			}
+		};
+
+		private Loopback(int lane, KeyPair keyPairServer, ScheduledExecutorService server) throws Exception {
+			this.keyPairServer = keyPairServer;
+			this.server = server;
+
+			ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
+			UserInfos userInfosPayer = new UserInfos("buyer-"+lane, TestUtils.generateKeyPair().getPrivate(), PKIAlgorithm.DEFAULT, 1);
+			UserInfos userInfosPayee = new UserInfos("seller-"+lane, TestUtils.generateKeyPair().getPrivate(), PKIAlgorithm.DEFAULT, 1);
+
+			NfcInitiator transceiver = mock(NfcInitiator.class);
+			Answer<Void> transceive = new Answer<Void>() {
+				@Override
+				public Void answer(InvocationOnMock invocation) throws Throwable {
+					final byte[] bytes = (byte[]) invocation.getArguments()[0];
+					frames.incrementAndGet();
+					nfc.execute(new Runnable() {
+						@Override
+						public void run() {
+							byte[] response = payee.getMessageHandler().handleMessage(bytes, sendLater);
+							if (response != null)
+								payer.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, response);
+						}
+					});
+					return null;
+				}
+			};
+			doAnswer(transceive).when(transceiver).transceive(any(byte[].class));
+			doAnswer(transceive).when(transceiver).sendLater(any(byte[].class));
+
+			payer = new PaymentRequestInitializer(hostActivity, transceiver, new IPaymentEventHandler() {
+				@Override
+				public void handleMessage(PaymentEvent event, Object object, IServerResponseListener caller) {
+					switch (event) {
+					case FORWARD_TO_SERVER:
+						answer((byte[]) object, caller);
+						break;
+					case SUCCESS:
+						successes.incrementAndGet();
+						outcomes.add(event);
+						break;
+					case ERROR:
+						errors.incrementAndGet();
+						outcomes.add(event);
+						break;
+					default:
+						break;
+					}
+				}
+			}, userInfosPayer, new PaymentInfos(Currency.BTC, lane + 1), serverInfos, new PersistencyHandler(), PaymentType.SEND_PAYMENT);
+
+			payee = new PaymentRequestHandler(hostActivity, new IPaymentEventHandler() {
+				@Override
+				public void handleMessage(PaymentEvent event, Object object, IServerResponseListener caller) {
+					if (event == PaymentEvent.SUCCESS)
+						payeeSuccesses.incrementAndGet();
+					else if (event == PaymentEvent.ERROR)
+						payeeErrors.incrementAndGet();
+				}
+			}, userInfosPayee, serverInfos, new IUserPromptPaymentRequest() {
+				@Override
+				public boolean isPaymentAccepted() {
+					return true;
+				}
+
+				@Override
+				public void promptUserPaymentRequest(String username, Currency currency, long amount, IUserPromptAnswer answer) {
+					answer.acceptPayment();
+				}
+			}, new PersistencyHandler());
+		}
+
+		/*
+		 * Answers the server payment request on a server thread after the
+		 * current delay.
+		 */
+		private void answer(final byte[] serverPaymentRequest, final IServerResponseListener caller) {
+			server.schedule(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						PaymentRequest paymentRequestPayer = DecoderFactory.decode(ServerPaymentRequest.class, serverPaymentRequest).getPaymentRequestPayer();
+						PaymentResponse pr = new PaymentResponse(PKIAlgorithm.DEFAULT, 1, ServerResponseStatus.SUCCESS, null, paymentRequestPayer.getUsernamePayer(), paymentRequestPayer.getUsernamePayee(), paymentRequestPayer.getCurrency(), paymentRequestPayer.getAmount(), paymentRequestPayer.getTimestamp());
+						pr.sign(keyPairServer.getPrivate());
+						caller.onServerResponse(new ServerPaymentResponse(pr));
+					} catch (Throwable t) {
+						failures.add(t);
+					} finally {
+						answered.release();
+					}
+				}
+			}, serverDelay, TimeUnit.MILLISECONDS);
+		}
+
+		/*
+		 * Connects the devices and returns how the payment ended, or null if
+		 * it did not end in time.
+		 */
+		private PaymentEvent pay(long serverDelay) throws InterruptedException {
+			this.serverDelay = serverDelay;
+			nfc.execute(new Runnable() {
+				@Override
+				public void run() {
+					payee.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+					payer.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+				}
+			});
+			PaymentEvent outcome = outcomes.poll(2 * Config.SERVER_CALL_TIMEOUT, TimeUnit.MILLISECONDS);
+
+			/*
+			 * A response cannot be told apart from the response of the next
+			 * payment once that one has been forwarded, hence the next
+			 * payment starts after the server has answered.
+			 */
+			if (!answered.tryAcquire(2 * Config.SERVER_CALL_TIMEOUT, TimeUnit.MILLISECONDS))
+				return null;
+
+			return outcome;
+		}
+
+		/*
+		 * Waits until the payee has ended the given number of payments.
+		 */
+		private void awaitPayee(int nofPayments) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + Config.SERVER_RESPONSE_TIMEOUT;
+			while (payeeSuccesses.get() + payeeErrors.get() < nofPayments && System.currentTimeMillis() < deadline) {
+				Thread.sleep(Config.TIMER_TICK);
+			}
+		}
+
+		private void shutdown() throws InterruptedException {
+			nfc.shutdown();
+			assertTrue(nfc.awaitTermination(5, TimeUnit.SECONDS));
+			payer.disable();
+		}
+	}
+
+}
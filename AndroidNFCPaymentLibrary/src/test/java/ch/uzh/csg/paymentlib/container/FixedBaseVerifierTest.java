@@ -0,0 +1,91 @@
+package ch.uzh.csg.paymentlib.container;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ch.uzh.csg.mbps.customserialization.Currency;
+import ch.uzh.csg.mbps.customserialization.PKIAlgorithm;
+import ch.uzh.csg.mbps.customserialization.PaymentResponse;
+import ch.uzh.csg.mbps.customserialization.ServerResponseStatus;
+import ch.uzh.csg.paymentlib.testutils.TestUtils;
+
+public class FixedBaseVerifierTest {
+	
+	private static final String ALGORITHM = "SHA256withECDSA";
+	
+	private byte[] sign(KeyPair keyPair, byte[] data) throws Exception {
+		Signature signature = Signature.getInstance(ALGORITHM);
+		signature.initSign(keyPair.getPrivate());
+		signature.update(data);
+		return signature.sign();
+	}
+	
+	@Test
+	public void testVerify() throws Exception {
+		KeyPair keyPair = TestUtils.generateKeyPair();
+		KeyPair other = TestUtils.generateKeyPair();
+		FixedBaseVerifier verifier = FixedBaseVerifier.create(keyPair.getPublic());
+		assertNotNull(verifier);
+		
+		Random random = new Random(42);
+		for (int i = 0; i < 20; i++) {
+			byte[] data = new byte[1 + random.nextInt(100)];
+			random.nextBytes(data);
+			
+			assertTrue(verifier.verify(ALGORITHM, data, sign(keyPair, data)));
+			assertFalse(verifier.verify(ALGORITHM, data, sign(other, data)));
+			
+			byte[] modified = data.clone();
+			modified[0] ^= 0x01;
+			assertFalse(verifier.verify(ALGORITHM, modified, sign(keyPair, data)));
+		}
+	}
+	
+	@Test(expected=SignatureException.class)
+	public void testVerify_NotEncodedProperly() throws Exception {
+		KeyPair keyPair = TestUtils.generateKeyPair();
+		FixedBaseVerifier verifier = FixedBaseVerifier.create(keyPair.getPublic());
+		
+		byte[] data = new byte[] { 0x01, 0x02, 0x03 };
+		byte[] signature = sign(keyPair, data);
+		signature[1]++;
+		verifier.verify(ALGORITHM, data, signature);
+	}
+	
+	@Test
+	public void testCreate_NotSupported() throws Exception {
+		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+		keyGen.initialize(1024);
+		assertNull(FixedBaseVerifier.create(keyGen.generateKeyPair().getPublic()));
+		
+		assertTrue(FixedBaseVerifier.supports("SHA256withECDSA"));
+		assertFalse(FixedBaseVerifier.supports("SHA256withRSA"));
+	}
+	
+	@Test
+	public void testServerInfos_Precompute() throws Exception {
+		KeyPair keyPairServer = TestUtils.generateKeyPair();
+		KeyPair keyPairOther = TestUtils.generateKeyPair();
+		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic(), true);
+		
+		PaymentResponse pr = new PaymentResponse(PKIAlgorithm.DEFAULT, 1, ServerResponseStatus.SUCCESS, null, "buyer", "seller", Currency.BTC, 1, System.currentTimeMillis());
+		pr.sign(keyPairServer.getPrivate());
+		assertTrue(serverInfos.verify(pr));
+		assertEquals(pr.verify(keyPairServer.getPublic()), serverInfos.verify(pr));
+		
+		pr.sign(keyPairOther.getPrivate());
+		assertFalse(serverInfos.verify(pr));
+	}
+	
+}
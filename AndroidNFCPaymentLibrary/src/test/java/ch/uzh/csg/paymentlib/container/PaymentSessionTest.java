@@ -0,0 +1,103 @@
+package ch.uzh.csg.paymentlib.container;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+
+import javax.crypto.SecretKey;
+
+import org.junit.Test;
+
+import ch.uzh.csg.mbps.customserialization.Currency;
+import ch.uzh.csg.mbps.customserialization.PKIAlgorithm;
+import ch.uzh.csg.mbps.customserialization.PaymentResponse;
+import ch.uzh.csg.mbps.customserialization.ServerResponseStatus;
+import ch.uzh.csg.paymentlib.testutils.TestUtils;
+import ch.uzh.csg.paymentlib.util.Config;
+
+public class PaymentSessionTest {
+	
+	private PaymentResponse createPaymentResponse(KeyPair keyPairServer, long timestamp) throws Exception {
+		PaymentResponse pr = new PaymentResponse(PKIAlgorithm.DEFAULT, 1, ServerResponseStatus.SUCCESS, null, "buyer", "seller", Currency.BTC, 1, timestamp);
+		pr.sign(keyPairServer.getPrivate());
+		return pr;
+	}
+	
+	@Test
+	public void testEstablish() throws Exception {
+		KeyPair keyPairServer = TestUtils.generateKeyPair();
+		KeyPair keyPairPayer = TestUtils.generateKeyPair();
+		KeyPair keyPairPayee = TestUtils.generateKeyPair();
+		PaymentResponse pr = createPaymentResponse(keyPairServer, System.currentTimeMillis());
+		
+		PaymentSession payer = PaymentSession.establish(pr, PKIAlgorithm.DEFAULT, 1, keyPairPayer.getPrivate(), keyPairServer.getPublic(), true);
+		PaymentSession payee = PaymentSession.establish(pr, PKIAlgorithm.DEFAULT, 1, keyPairPayee.getPrivate(), keyPairServer.getPublic(), false);
+		assertArrayEquals(payer.getKeyId(), payee.getKeyId());
+		assertEquals(PaymentSession.KEY_ID_LENGTH, payer.getKeyId().length);
+		
+		// the server derives the same keys from the users' public keys
+		byte[] data = new byte[] { 0x01, 0x02, 0x03 };
+		SecretKey keyPayer = PaymentSession.deriveKey(keyPairServer.getPrivate(), keyPairPayer.getPublic(), payer.getKeyId(), true);
+		SecretKey keyPayee = PaymentSession.deriveKey(keyPairServer.getPrivate(), keyPairPayee.getPublic(), payee.getKeyId(), false);
+		assertEquals(PaymentSession.MAC_LENGTH, payer.mac(data).length);
+		assertTrue(PaymentSession.verify(keyPayer, data, payer.mac(data)));
+		assertTrue(PaymentSession.verify(keyPayee, data, payee.mac(data)));
+		
+		// the roles use different keys
+		assertFalse(PaymentSession.verify(keyPayee, data, payer.mac(data)));
+		assertFalse(PaymentSession.verify(keyPayer, new byte[] { 0x01, 0x02 }, payer.mac(data)));
+	}
+	
+	@Test
+	public void testPermits() throws Exception {
+		KeyPair keyPairServer = TestUtils.generateKeyPair();
+		KeyPair keyPairPayer = TestUtils.generateKeyPair();
+		long now = System.currentTimeMillis();
+		PaymentSession session = PaymentSession.establish(createPaymentResponse(keyPairServer, now), PKIAlgorithm.DEFAULT, 1, keyPairPayer.getPrivate(), keyPairServer.getPublic(), true);
+		
+		assertTrue(session.permits(Currency.BTC, Config.SESSION_AMOUNT_CAP, now));
+		assertFalse(session.permits(Currency.BTC, Config.SESSION_AMOUNT_CAP + 1, now));
+		assertFalse(session.permits(Currency.BTC, 0, now));
+		assertFalse(session.permits(Currency.BTC, 1, now + Config.SESSION_LIFETIME));
+		
+		session.charge(Config.SESSION_AMOUNT_CAP - 1);
+		assertTrue(session.permits(Currency.BTC, 1, now));
+		assertFalse(session.permits(Currency.BTC, 2, now));
+		session.charge(1);
+		assertFalse(session.permits(Currency.BTC, 1, now));
+	}
+	
+	@Test
+	public void testSessions() throws Exception {
+		KeyPair keyPairServer = TestUtils.generateKeyPair();
+		KeyPair keyPairPayer = TestUtils.generateKeyPair();
+		PaymentSession expired = PaymentSession.establish(createPaymentResponse(keyPairServer, System.currentTimeMillis() - Config.SESSION_LIFETIME), PKIAlgorithm.DEFAULT, 1, keyPairPayer.getPrivate(), keyPairServer.getPublic(), true);
+		PaymentSession first = PaymentSession.establish(createPaymentResponse(keyPairServer, System.currentTimeMillis()), PKIAlgorithm.DEFAULT, 1, keyPairPayer.getPrivate(), keyPairServer.getPublic(), true);
+		PaymentSession second = PaymentSession.establish(createPaymentResponse(keyPairServer, System.currentTimeMillis()), PKIAlgorithm.DEFAULT, 1, keyPairPayer.getPrivate(), keyPairServer.getPublic(), true);
+		
+		PaymentSessions sessions = new PaymentSessions();
+		sessions.add(expired);
+		assertEquals(0, sessions.size());
+		assertNull(sessions.get(expired.getKeyId(), 0));
+		
+		sessions.add(first);
+		assertNotNull(sessions.get(first.getKeyId(), 0));
+		assertNotNull(sessions.find("buyer", "seller", Currency.BTC, 1));
+		assertNull(sessions.find("buyer", "other", Currency.BTC, 1));
+		
+		// a new session between the same users replaces the previous one
+		sessions.add(second);
+		assertEquals(1, sessions.size());
+		assertNull(sessions.get(first.getKeyId(), 0));
+		assertNotNull(sessions.get(second.getKeyId(), 0));
+		
+		sessions.remove(second);
+		assertEquals(0, sessions.size());
+	}
+	
+}
@@ -0,0 +1,156 @@
+package ch.uzh.csg.paymentlib.container;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import ch.uzh.csg.mbps.customserialization.Currency;
+import ch.uzh.csg.mbps.customserialization.PKIAlgorithm;
+import ch.uzh.csg.mbps.customserialization.PaymentResponse;
+import ch.uzh.csg.mbps.customserialization.ServerResponseStatus;
+import ch.uzh.csg.paymentlib.exceptions.IllegalArgumentException;
+import ch.uzh.csg.paymentlib.testutils.TestUtils;
+import ch.uzh.csg.paymentlib.util.Config;
+
+public class ServerInfosTest {
+	
+	private PaymentResponse createPaymentResponse(KeyPair keyPair) throws Exception {
+		return createPaymentResponse(keyPair, 1);
+	}
+	
+	private PaymentResponse createPaymentResponse(KeyPair keyPair, int keyNumber) throws Exception {
+		PaymentResponse pr = new PaymentResponse(PKIAlgorithm.DEFAULT, keyNumber, ServerResponseStatus.SUCCESS, null, "buyer", "seller", Currency.BTC, 1, System.currentTimeMillis());
+		pr.sign(keyPair.getPrivate());
+		return pr;
+	}
+	
+	@Test
+	public void testVerify() throws Exception {
+		KeyPair keyPairServer = TestUtils.generateKeyPair();
+		KeyPair keyPairOther = TestUtils.generateKeyPair();
+		ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
+		
+		PaymentResponse valid = createPaymentResponse(keyPairServer);
+		PaymentResponse invalid = createPaymentResponse(keyPairOther);
+		
+		// the cached engine must be reset after every verification
+		for (int i = 0; i < 3; i++) {
+			assertTrue(serverInfos.verify(valid));
+			assertFalse(serverInfos.verify(invalid));
+		}
+	}
+	
+	@Test
+	public void testVerify_Concurrent() throws Exception {
+		KeyPair keyPairServer = TestUtils.generateKeyPair();
+		final ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
+		final PaymentResponse valid = createPaymentResponse(keyPairServer);
+		
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			Callable<Boolean> task = new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					for (int i = 0; i < 20; i++) {
+						if (!serverInfos.verify(valid))
+							return false;
+					}
+					return true;
+				}
+			};
+			
+			Future<?>[] futures = new Future<?>[4];
+			for (int i = 0; i < futures.length; i++) {
+				futures[i] = executor.submit(task);
+			}
+			for (Future<?> future : futures) {
+				assertTrue((Boolean) future.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	@Test
+	public void testVerify_Batch() throws Exception {
+		KeyPair keyPairServer = TestUtils.generateKeyPair();
+		KeyPair keyPairOther = TestUtils.generateKeyPair();
+		
+		// below and above the threshold for the precomputation
+		int[] sizes = { 5, Config.BATCH_PRECOMPUTE_THRESHOLD + 4 };
+		for (int size : sizes) {
+			ServerInfos serverInfos = new ServerInfos(keyPairServer.getPublic());
+			PaymentResponse[] paymentResponses = new PaymentResponse[size];
+			for (int i = 0; i < size; i++) {
+				paymentResponses[i] = createPaymentResponse(i % 4 == 3 ? keyPairOther : keyPairServer);
+			}
+			paymentResponses[0] = new PaymentResponse(PKIAlgorithm.DEFAULT, 1, ServerResponseStatus.SUCCESS, null, "buyer", "seller", Currency.BTC, 1, System.currentTimeMillis());
+			
+			boolean[] result = serverInfos.verify(paymentResponses);
+			assertEquals(size, result.length);
+			assertFalse(result[0]);
+			for (int i = 1; i < size; i++) {
+				assertEquals(i % 4 != 3, result[i]);
+			}
+		}
+	}
+	
+	@Test
+	public void testVerify_KeyRing() throws Exception {
+		KeyPair keyPair1 = TestUtils.generateKeyPair();
+		KeyPair keyPair2 = TestUtils.generateKeyPair();
+		ServerInfos serverInfos = new ServerInfos(1, keyPair1.getPublic(), false);
+		
+		PaymentResponse signedWithKey1 = createPaymentResponse(keyPair1, 1);
+		PaymentResponse signedWithKey2 = createPaymentResponse(keyPair2, 2);
+		assertTrue(serverInfos.verify(signedWithKey1));
+		assertFalse(serverInfos.verify(signedWithKey2));
+		assertNull(serverInfos.getPublicKey(2));
+		
+		// the server rotates its key
+		serverInfos.addPublicKey(2, keyPair2.getPublic());
+		assertTrue(serverInfos.verify(signedWithKey1));
+		assertTrue(serverInfos.verify(signedWithKey2));
+		assertEquals(keyPair2.getPublic(), serverInfos.getPublicKey(2));
+		
+		// only the key with the object's key number is used
+		assertFalse(serverInfos.verify(createPaymentResponse(keyPair1, 2)));
+		
+		serverInfos.removePublicKey(1);
+		assertFalse(serverInfos.verify(signedWithKey1));
+		assertTrue(serverInfos.verify(signedWithKey2));
+		assertTrue(Arrays.equals(new boolean[] { false, true }, serverInfos.verify(new PaymentResponse[] { signedWithKey1, signedWithKey2 })));
+	}
+	
+	@Test
+	public void testVerify_AnyKeyNumber() throws Exception {
+		KeyPair keyPair1 = TestUtils.generateKeyPair();
+		KeyPair keyPair2 = TestUtils.generateKeyPair();
+		ServerInfos serverInfos = new ServerInfos(keyPair1.getPublic());
+		
+		// without a key ring, the key is used for every key number
+		assertTrue(serverInfos.verify(createPaymentResponse(keyPair1, 1)));
+		assertTrue(serverInfos.verify(createPaymentResponse(keyPair1, 7)));
+		
+		serverInfos.addPublicKey(7, keyPair2.getPublic());
+		assertFalse(serverInfos.verify(createPaymentResponse(keyPair1, 7)));
+		assertTrue(serverInfos.verify(createPaymentResponse(keyPair2, 7)));
+		assertTrue(serverInfos.verify(createPaymentResponse(keyPair1, 1)));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testKeyRing_InvalidKeyNumber() throws Exception {
+		new ServerInfos(0, TestUtils.generateKeyPair().getPublic(), false);
+	}
+	
+}
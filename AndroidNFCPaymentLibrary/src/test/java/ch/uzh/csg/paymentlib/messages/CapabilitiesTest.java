@@ -0,0 +1,81 @@
+package ch.uzh.csg.paymentlib.messages;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import ch.uzh.csg.mbps.customserialization.PKIAlgorithm;
+
+public class CapabilitiesTest {
+	
+	@Test
+	public void testEncodeDecode() {
+		Capabilities c = new Capabilities(Capabilities.COMPRESSION | Capabilities.BATCH, 1024, Capabilities.pkiAlgorithms(PKIAlgorithm.DEFAULT));
+		byte[] payload = new byte[1 + c.encodedLength()];
+		payload[0] = 0x01;
+		assertEquals(payload.length, c.encode(payload, 1));
+		
+		PaymentMessage pm = new PaymentMessage().bytes(new PaymentMessage().payload(payload).bytes());
+		assertEquals(c.encodedLength(), Capabilities.blockLength(pm, 1));
+		
+		Capabilities c2 = Capabilities.decode(pm, 1);
+		assertTrue(c2.supports(Capabilities.COMPRESSION));
+		assertTrue(c2.supports(Capabilities.BATCH));
+		assertFalse(c2.supports(Capabilities.FRAGMENTATION));
+		assertEquals(1024, c2.getMaxFrameLength());
+		assertTrue(c2.supports(PKIAlgorithm.DEFAULT));
+	}
+	
+	@Test
+	public void testDecode_UnknownFields() {
+		// a later version might append fields to the block
+		byte[] payload = new byte[] { 6, Capabilities.COMPRESSION, 0, 0, 0x02, 0x55, 0x55, 0x42 };
+		PaymentMessage pm = new PaymentMessage().payload(payload);
+		
+		assertEquals(7, Capabilities.blockLength(pm, 0));
+		Capabilities c = Capabilities.decode(pm, 0);
+		assertTrue(c.supports(Capabilities.COMPRESSION));
+		assertEquals(0, c.getMaxFrameLength());
+		assertEquals(0x42, pm.payloadAt(Capabilities.blockLength(pm, 0)));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testDecode_NotComplete() {
+		PaymentMessage pm = new PaymentMessage().payload(new byte[] { 4, Capabilities.COMPRESSION, 0 });
+		Capabilities.decode(pm, 0);
+	}
+	
+	@Test
+	public void testNegotiate() {
+		Capabilities local = new Capabilities(Capabilities.COMPRESSION | Capabilities.FRAGMENTATION, 0, 0x03);
+		Capabilities remote = new Capabilities(Capabilities.COMPRESSION | Capabilities.BATCH, 512, 0x06);
+		
+		Capabilities common = local.negotiate(remote);
+		assertTrue(common.supports(Capabilities.COMPRESSION));
+		assertFalse(common.supports(Capabilities.FRAGMENTATION));
+		assertFalse(common.supports(Capabilities.BATCH));
+		assertEquals(512, common.getMaxFrameLength());
+		assertEquals(512, remote.negotiate(new Capabilities(0, 1024, 0)).getMaxFrameLength());
+		
+		Capabilities none = Capabilities.local().negotiate(Capabilities.NONE);
+		assertFalse(none.supports(Capabilities.COMPRESSION));
+		assertFalse(none.supports(PKIAlgorithm.DEFAULT));
+	}
+	
+	@Test
+	public void testWithout_WithMaxFrameLength() {
+		Capabilities c = new Capabilities(Capabilities.COMPRESSION | Capabilities.SESSION, 0, 0x03);
+		
+		Capabilities without = c.without(Capabilities.SESSION);
+		assertTrue(without.supports(Capabilities.COMPRESSION));
+		assertFalse(without.supports(Capabilities.SESSION));
+		
+		Capabilities limited = c.withMaxFrameLength(64);
+		assertEquals(64, limited.getMaxFrameLength());
+		assertTrue(limited.supports(Capabilities.SESSION));
+		assertEquals(0, c.getMaxFrameLength());
+	}
+
+}
@@ -0,0 +1,123 @@
+package ch.uzh.csg.paymentlib.messages;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FragmenterTest {
+	
+	private static final int MAX_FRAME_LENGTH = 64;
+	
+	private byte[] createPayload(int length) {
+		byte[] payload = new byte[length];
+		new Random(length).nextBytes(payload);
+		return payload;
+	}
+	
+	/*
+	 * Sends the payload over a loopback transport, i.e., every fragment is
+	 * deserialized and appended to the reassembler as soon as it is created.
+	 */
+	private byte[] loopback(byte[] payload, int expectedFragments) {
+		Fragmenter fragmenter = new Fragmenter(payload, true, MAX_FRAME_LENGTH);
+		assertEquals(expectedFragments, fragmenter.getNofFragments());
+		
+		Reassembler reassembler = new Reassembler(payload.length);
+		int nofFragments = 0;
+		while (fragmenter.hasNext()) {
+			byte[] frame = fragmenter.next();
+			assertTrue(frame.length <= MAX_FRAME_LENGTH);
+			nofFragments++;
+			
+			PaymentMessage pm = new PaymentMessage().view(frame);
+			assertTrue(pm.isFragment());
+			assertTrue(pm.isPayer());
+			assertEquals(fragmenter.hasNext(), pm.hasMoreFragments());
+			assertEquals(!fragmenter.hasNext(), reassembler.append(pm));
+		}
+		assertEquals(expectedFragments, nofFragments);
+		assertTrue(reassembler.isComplete());
+		return reassembler.payload();
+	}
+	
+	@Test
+	public void testSingleFragment() {
+		byte[] payload = createPayload(MAX_FRAME_LENGTH - Fragmenter.FIRST_FRAGMENT_OVERHEAD);
+		assertArrayEquals(payload, loopback(payload, 1));
+	}
+	
+	@Test
+	public void testMultipleFragments() {
+		int first = MAX_FRAME_LENGTH - Fragmenter.FIRST_FRAGMENT_OVERHEAD;
+		int other = MAX_FRAME_LENGTH - Fragmenter.FRAGMENT_OVERHEAD;
+		
+		byte[] payload = createPayload(first + 1);
+		assertArrayEquals(payload, loopback(payload, 2));
+		
+		payload = createPayload(first + 3 * other);
+		assertArrayEquals(payload, loopback(payload, 4));
+		
+		// more than 256 fragments, the sequence number wraps around
+		payload = createPayload(first + 300 * other + 1);
+		assertArrayEquals(payload, loopback(payload, 302));
+	}
+	
+	@Test
+	public void testMessage() {
+		byte[] message = new PaymentMessage().payer().compressed().version(1).payload(createPayload(200)).bytes();
+		Fragmenter fragmenter = new Fragmenter(message, MAX_FRAME_LENGTH);
+		
+		Reassembler reassembler = new Reassembler(200);
+		while (fragmenter.hasNext()) {
+			PaymentMessage pm = new PaymentMessage().view(fragmenter.next());
+			// every fragment carries the header flags of the message
+			assertTrue(pm.isFragment());
+			assertTrue(pm.isPayer());
+			assertTrue(pm.isCompressed());
+			assertEquals(1, pm.version());
+			reassembler.append(pm);
+		}
+		assertTrue(reassembler.isComplete());
+		assertArrayEquals(message, reassembler.message());
+	}
+	
+	@Test
+	public void testNeedsFragmentation() {
+		assertFalse(Fragmenter.needsFragmentation(1000, 0));
+		assertFalse(Fragmenter.needsFragmentation(MAX_FRAME_LENGTH - PaymentMessage.HEADER_LENGTH, MAX_FRAME_LENGTH));
+		assertTrue(Fragmenter.needsFragmentation(MAX_FRAME_LENGTH, MAX_FRAME_LENGTH));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testFragmentOutOfOrder() {
+		Fragmenter fragmenter = new Fragmenter(createPayload(200), false, MAX_FRAME_LENGTH);
+		List<byte[]> frames = new ArrayList<byte[]>();
+		while (fragmenter.hasNext())
+			frames.add(fragmenter.next());
+		
+		Reassembler reassembler = new Reassembler(200);
+		reassembler.append(new PaymentMessage().view(frames.get(0)));
+		reassembler.append(new PaymentMessage().view(frames.get(2)));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testPayloadTooLarge() {
+		Fragmenter fragmenter = new Fragmenter(createPayload(200), false, MAX_FRAME_LENGTH);
+		Reassembler reassembler = new Reassembler(100);
+		reassembler.append(new PaymentMessage().view(fragmenter.next()));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testNoFragment() {
+		Reassembler reassembler = new Reassembler(100);
+		reassembler.append(new PaymentMessage().payload(new byte[] { 0x00, 0x01 }));
+	}
+
+}
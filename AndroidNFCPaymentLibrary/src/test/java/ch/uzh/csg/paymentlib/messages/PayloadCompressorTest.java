@@ -0,0 +1,97 @@
+package ch.uzh.csg.paymentlib.messages;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PayloadCompressorTest {
+	
+	private byte[] createPayload() {
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i<4; i++) {
+			sb.append("payer").append((char) i).append("seller").append("BTC").append(i);
+		}
+		return sb.toString().getBytes(Charset.forName("UTF-8"));
+	}
+	
+	@Test
+	public void testCompressDecompress() {
+		byte[] payload = createPayload();
+		byte[] dictionary = PayloadCompressor.dictionary("seller");
+		
+		byte[] compressed = PayloadCompressor.compress(payload, dictionary);
+		assertNotNull(compressed);
+		assertTrue(compressed.length < payload.length);
+		assertArrayEquals(payload, PayloadCompressor.decompress(compressed, dictionary, payload.length));
+		
+		PaymentMessage pm = new PaymentMessage().view(new PaymentMessage().compressed().payload(compressed).bytes());
+		assertTrue(pm.isCompressed());
+		assertArrayEquals(payload, PayloadCompressor.payload(pm, dictionary, payload.length));
+		
+		pm = new PaymentMessage().payload(payload);
+		assertFalse(pm.isCompressed());
+		assertArrayEquals(payload, PayloadCompressor.payload(pm, dictionary, payload.length));
+	}
+	
+	@Test
+	public void testDictionary() {
+		byte[] dictionary = PayloadCompressor.dictionary("seller");
+		byte[] username = "seller".getBytes(Charset.forName("UTF-8"));
+		
+		// the username is at the end, after the fixed part
+		assertTrue(dictionary.length > username.length);
+		assertArrayEquals(username, Arrays.copyOfRange(dictionary, dictionary.length - username.length, dictionary.length));
+		assertArrayEquals(dictionary, PayloadCompressor.dictionary("seller"));
+		
+		// a short DER encoded signature is compressed with the fixed part only
+		byte[] signature = new byte[] { 0x30, 0x45, 0x02, 0x21, 0x00, 0x30, 0x44, 0x02, 0x20, 0x02, 0x21, 0x00 };
+		assertNull(PayloadCompressor.compress(signature, null));
+		assertNotNull(PayloadCompressor.compress(signature, dictionary));
+	}
+	
+	@Test
+	public void testCompress_NoGain() {
+		byte[] payload = new byte[32];
+		new Random(0).nextBytes(payload);
+		assertNull(PayloadCompressor.compress(payload, null));
+		assertNull(PayloadCompressor.compress(new byte[] { 0x01 }, null));
+	}
+	
+	@Test
+	public void testDecompress_GrowBuffer() {
+		byte[] payload = new byte[10000];
+		byte[] compressed = PayloadCompressor.compress(payload, null);
+		assertNotNull(compressed);
+		assertArrayEquals(payload, PayloadCompressor.decompress(compressed, null, payload.length));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testDecompress_MaxLengthExceeded() {
+		byte[] payload = createPayload();
+		byte[] compressed = PayloadCompressor.compress(payload, null);
+		PayloadCompressor.decompress(compressed, null, payload.length - 1);
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testDecompress_Truncated() {
+		byte[] payload = createPayload();
+		byte[] compressed = PayloadCompressor.compress(payload, null);
+		byte[] truncated = new byte[compressed.length / 2];
+		System.arraycopy(compressed, 0, truncated, 0, truncated.length);
+		PayloadCompressor.decompress(truncated, null, payload.length);
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testDecompress_Garbage() {
+		PayloadCompressor.decompress(new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF }, null, 100);
+	}
+
+}
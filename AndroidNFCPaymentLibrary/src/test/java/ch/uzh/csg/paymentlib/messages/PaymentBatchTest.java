@@ -0,0 +1,64 @@
+package ch.uzh.csg.paymentlib.messages;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class PaymentBatchTest {
+	
+	@Test
+	public void testEncodeDecode() {
+		List<byte[]> items = new ArrayList<byte[]>();
+		items.add(new byte[] { 0x01 });
+		items.add(new byte[300]);
+		items.add(new byte[] { 0x03, 0x04, 0x05 });
+		
+		byte[] batch = PaymentBatch.encode(items);
+		assertEquals(2 + 3*2 + 1 + 300 + 3, batch.length);
+		
+		PaymentMessage pm = new PaymentMessage().view(new PaymentMessage().version(1).payload(batch).bytes());
+		assertTrue(PaymentBatch.isBatch(pm, 0));
+		List<byte[]> decoded = PaymentBatch.decode(pm, 0);
+		assertEquals(items.size(), decoded.size());
+		for (int i = 0; i < items.size(); i++) {
+			assertArrayEquals(items.get(i), decoded.get(i));
+		}
+		
+		assertEquals(items.size(), PaymentBatch.decode(batch).size());
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testEncode_Empty() {
+		PaymentBatch.encode(new ArrayList<byte[]>());
+	}
+	
+	@Test
+	public void testIsBatch() {
+		// a single payment object in a message of version 1 is not a batch
+		PaymentMessage pm = new PaymentMessage().version(1).payload(new byte[] { 0x01, 0x00, 0x01 });
+		assertFalse(PaymentBatch.isBatch(pm, 0));
+		assertFalse(PaymentBatch.isBatch(new PaymentMessage().version(1), 0));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testDecode_NoBatch() {
+		PaymentBatch.decode(new byte[] { 0x01, 0x00, 0x01, 0x42 });
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testDecode_NotComplete() {
+		PaymentBatch.decode(new byte[] { PaymentBatch.TAG, 0x02, 0x00, 0x01, 0x42, 0x00, 0x02, 0x42 });
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testDecode_UnexpectedBytes() {
+		PaymentBatch.decode(new byte[] { PaymentBatch.TAG, 0x01, 0x00, 0x01, 0x42, 0x42 });
+	}
+
+}
@@ -1,8 +1,12 @@
 package ch.uzh.csg.paymentlib.messages;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.nio.ByteBuffer;
+
 import org.junit.Test;
 
 import ch.uzh.csg.paymentlib.messages.PaymentMessage;
@@ -21,4 +25,55 @@ public class PaymentMessageTest {
 		assertEquals(3, m2.version()); // bits 1+2
 	}
 	
+	@Test
+	public void testVersion() {
+		PaymentMessage m = new PaymentMessage().payer().compressed().version(1);
+		assertEquals(1, m.version());
+		assertTrue(m.isPayer());
+		assertTrue(m.isCompressed());
+		
+		PaymentMessage m2 = new PaymentMessage().bytes(m.payload(new byte[] { 0x01 }).bytes());
+		assertEquals(1, m2.version());
+		assertTrue(m2.isPayer());
+		assertEquals(0, m2.version(0).version());
+		assertTrue(m2.isPayer());
+		assertFalse(m2.isNegotiate());
+		assertTrue(m2.negotiate().isNegotiate());
+		assertEquals(PaymentMessage.NEGOTIATE | PaymentMessage.PAYER | PaymentMessage.COMPRESSED, m2.bytes()[0]);
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testVersion_NotSupported() {
+		new PaymentMessage().version(PaymentMessage.getSupportedVersion()+1);
+	}
+	
+	@Test
+	public void testView() {
+		byte[] frame = new byte[] { 0x05, 0x00, PaymentMessage.PAYER, 0x07, 0x08, 0x09 };
+		PaymentMessage m = new PaymentMessage().view(frame, 2, 3);
+		assertTrue(m.isPayer());
+		assertEquals(2, m.payloadLength());
+		assertEquals(0x07, m.payloadAt(0));
+		assertEquals(0x08, m.payloadAt(1));
+		
+		ByteBuffer buffer = m.payloadBuffer();
+		assertTrue(buffer.isReadOnly());
+		assertEquals(2, buffer.remaining());
+		assertEquals(0x07, buffer.get(0));
+		
+		assertArrayEquals(new byte[] { PaymentMessage.PAYER, 0x07, 0x08 }, m.bytes());
+		assertArrayEquals(new byte[] { 0x07, 0x08 }, m.payload());
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testView_LengthOverflow() {
+		new PaymentMessage().view(new byte[] { PaymentMessage.PAYER, 0x07, 0x08 }, 1, Integer.MAX_VALUE);
+	}
+
+	@Test(expected=IndexOutOfBoundsException.class)
+	public void testView_PayloadOutOfBounds() {
+		PaymentMessage m = new PaymentMessage().view(new byte[] { PaymentMessage.ERROR });
+		m.payloadAt(0);
+	}
+	
 }
@@ -0,0 +1,68 @@
+package ch.uzh.csg.paymentlib.messages;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+
+import org.junit.Test;
+
+import ch.uzh.csg.paymentlib.container.PaymentSession;
+import ch.uzh.csg.paymentlib.testutils.TestUtils;
+
+public class SessionPaymentRequestTest {
+	
+	private static final byte[] KEY_ID = new byte[] { 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08 };
+	
+	@Test
+	public void testEncodeDecode() throws Exception {
+		KeyPair keyPairServer = TestUtils.generateKeyPair();
+		KeyPair keyPairPayer = TestUtils.generateKeyPair();
+		KeyPair keyPairPayee = TestUtils.generateKeyPair();
+		SecretKey keyPayer = PaymentSession.deriveKey(keyPairPayer.getPrivate(), keyPairServer.getPublic(), KEY_ID, true);
+		SecretKey keyPayee = PaymentSession.deriveKey(keyPairPayee.getPrivate(), keyPairServer.getPublic(), KEY_ID, false);
+		
+		byte[] payloadPayer = new byte[] { 0x10, 0x11 };
+		byte[] payloadPayee = new byte[300];
+		SessionPaymentRequest spr = new SessionPaymentRequest(KEY_ID, payloadPayer, PaymentSession.mac(keyPayer, payloadPayer), payloadPayee, PaymentSession.mac(keyPayee, payloadPayee));
+		
+		byte[] encoded = spr.encode();
+		assertEquals(SessionPaymentRequest.TYPE, encoded[0]);
+		
+		SessionPaymentRequest decoded = SessionPaymentRequest.decode(encoded);
+		assertArrayEquals(KEY_ID, decoded.getKeyId());
+		assertArrayEquals(payloadPayer, decoded.getPayloadPayer());
+		assertArrayEquals(payloadPayee, decoded.getPayloadPayee());
+		assertTrue(decoded.verify(keyPayer, keyPayee));
+		assertFalse(decoded.verify(keyPayee, keyPayer));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testDecode_NotComplete() throws Exception {
+		byte[] mac = new byte[PaymentSession.MAC_LENGTH];
+		byte[] encoded = new SessionPaymentRequest(KEY_ID, new byte[] { 0x10 }, mac, new byte[] { 0x11 }, mac).encode();
+		SessionPaymentRequest.decode(Arrays.copyOf(encoded, encoded.length - 1));
+	}
+	
+	@Test
+	public void testToken() {
+		byte[] mac = new byte[PaymentSession.MAC_LENGTH];
+		mac[0] = 0x42;
+		long timestamp = System.currentTimeMillis();
+		
+		byte[] encoded = new SessionToken(KEY_ID, timestamp, mac).encode();
+		assertEquals(1 + SessionToken.LENGTH, encoded.length);
+		assertEquals(SessionToken.MAC, encoded[0]);
+		
+		SessionToken decoded = SessionToken.decode(encoded, 1);
+		assertArrayEquals(KEY_ID, decoded.getKeyId());
+		assertEquals(timestamp, decoded.getTimestamp());
+		assertArrayEquals(mac, decoded.getMac());
+	}
+	
+}
@@ -0,0 +1,154 @@
+package ch.uzh.csg.paymentlib.signer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.Security;
+import java.security.Signature;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import ch.uzh.csg.mbps.customserialization.Currency;
+import ch.uzh.csg.mbps.customserialization.PKIAlgorithm;
+import ch.uzh.csg.mbps.customserialization.PaymentRequest;
+import ch.uzh.csg.mbps.customserialization.SignedSerializableObject;
+import ch.uzh.csg.paymentlib.testutils.TestUtils;
+import ch.uzh.csg.paymentlib.util.Config;
+
+public class PrecomputedSignerTest {
+	
+	private static final String PROVIDER_NAME = "PaymentLibPrecomputed";
+	
+	private static class Listener implements ISignatureListener {
+		private SignedSerializableObject signedObject;
+		private Exception exception;
+		
+		@Override
+		public void onSigned(SignedSerializableObject signedObject) {
+			this.signedObject = signedObject;
+		}
+		
+		@Override
+		public void onSignatureFailed(Exception e) {
+			this.exception = e;
+		}
+	}
+	
+	private static PaymentRequest createPaymentRequest(long amount) throws Exception {
+		return new PaymentRequest(PKIAlgorithm.DEFAULT, 1, "buyer", "seller", Currency.BTC, amount, System.currentTimeMillis());
+	}
+	
+	/*
+	 * Returns r of the DER encoded signature.
+	 */
+	private static BigInteger r(byte[] signature) {
+		byte[] r = new byte[signature[3]];
+		System.arraycopy(signature, 4, r, 0, r.length);
+		return new BigInteger(r);
+	}
+	
+	private static void awaitPool(PrecomputedSigner signer) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10 * 1000;
+		while (signer.available() < Config.NONCE_POOL_SIZE && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+	
+	@BeforeClass
+	public static void installProvider() {
+		Security.addProvider(PrecomputedSigner.getProvider());
+	}
+	
+	@AfterClass
+	public static void removeProvider() {
+		Security.removeProvider(PROVIDER_NAME);
+	}
+	
+	@Test
+	public void testProvider() throws Exception {
+		KeyPair keyPair = TestUtils.generateKeyPair();
+		PrecomputedSigner signer = new PrecomputedSigner(keyPair.getPrivate());
+		try {
+			Signature signature = Signature.getInstance(PKIAlgorithm.DEFAULT.getSignatureAlgorithm());
+			signature.initSign(signer.getSigningKey());
+			assertEquals(PROVIDER_NAME, signature.getProvider().getName());
+			
+			// other keys are still signed by the platform's providers
+			signature = Signature.getInstance(PKIAlgorithm.DEFAULT.getSignatureAlgorithm());
+			signature.initSign(keyPair.getPrivate());
+			assertTrue(!PROVIDER_NAME.equals(signature.getProvider().getName()));
+		} finally {
+			signer.shutdown();
+		}
+	}
+	
+	@Test
+	public void testSign() throws Exception {
+		KeyPair keyPair = TestUtils.generateKeyPair();
+		PrecomputedSigner signer = new PrecomputedSigner(keyPair.getPrivate());
+		try {
+			awaitPool(signer);
+			assertEquals(Config.NONCE_POOL_SIZE, signer.available());
+			
+			// more signatures than the pool holds, every nonce is used only once
+			Set<BigInteger> rs = new HashSet<BigInteger>();
+			int nofSignatures = 2 * Config.NONCE_POOL_SIZE;
+			for (int i = 0; i < nofSignatures; i++) {
+				PaymentRequest paymentRequest = createPaymentRequest(i + 1);
+				Listener listener = new Listener();
+				signer.sign(paymentRequest, listener);
+				assertNull(listener.exception);
+				assertTrue(listener.signedObject == paymentRequest);
+				assertTrue(paymentRequest.verify(keyPair.getPublic()));
+				rs.add(r(paymentRequest.getSignature()));
+			}
+			assertEquals(nofSignatures, rs.size());
+		} finally {
+			signer.shutdown();
+		}
+	}
+	
+	@Test
+	public void testSign_Shutdown() throws Exception {
+		KeyPair keyPair = TestUtils.generateKeyPair();
+		PrecomputedSigner signer = new PrecomputedSigner(keyPair.getPrivate());
+		signer.shutdown();
+		
+		// the nonce is computed on the calling thread
+		PaymentRequest paymentRequest = createPaymentRequest(1);
+		Listener listener = new Listener();
+		signer.sign(paymentRequest, listener);
+		assertNull(listener.exception);
+		assertTrue(paymentRequest.verify(keyPair.getPublic()));
+	}
+	
+	@Test
+	public void testSign_ProviderNotRegistered() throws Exception {
+		KeyPair keyPair = TestUtils.generateKeyPair();
+		PrecomputedSigner signer = new PrecomputedSigner(keyPair.getPrivate());
+		Security.removeProvider(PROVIDER_NAME);
+		try {
+			// the signer does not register the provider itself
+			new PrecomputedSigner(keyPair.getPrivate()).shutdown();
+			assertNull(Security.getProvider(PROVIDER_NAME));
+			
+			// the object is signed with the private key instead
+			PaymentRequest paymentRequest = createPaymentRequest(1);
+			Listener listener = new Listener();
+			signer.sign(paymentRequest, listener);
+			assertNull(listener.exception);
+			assertTrue(paymentRequest.verify(keyPair.getPublic()));
+		} finally {
+			signer.shutdown();
+			Security.addProvider(PrecomputedSigner.getProvider());
+		}
+	}
+	
+}
@@ -11,7 +11,7 @@ public class PersistencyHandler implements IPersistencyHandler {
 	private ArrayList<PersistedPaymentRequest> list = new ArrayList<PersistedPaymentRequest>();
 	
 	@Override
-	public PersistedPaymentRequest getPersistedPaymentRequest(String username, Currency currency, long amount) {
+	public synchronized PersistedPaymentRequest getPersistedPaymentRequest(String username, Currency currency, long amount) {
 		try {
 			for (PersistedPaymentRequest request : list) {
 				if (request.getUsername().equals(username) && request.getCurrency().getCode() == currency.getCode() && request.getAmount() == amount) {
@@ -24,7 +24,7 @@ public class PersistencyHandler implements IPersistencyHandler {
 	}
 	
 	@Override
-	public boolean addPersistedPaymentRequest(PersistedPaymentRequest paymentRequest) {
+	public synchronized boolean addPersistedPaymentRequest(PersistedPaymentRequest paymentRequest) {
 		boolean exists = false;
 		for (PersistedPaymentRequest request : list) {
 			if (request.equals(paymentRequest)) {
@@ -39,7 +39,7 @@ public class PersistencyHandler implements IPersistencyHandler {
 	}
 	
 	@Override
-	public boolean deletePersistedPaymentRequest(PersistedPaymentRequest paymentRequest) {
+	public synchronized boolean deletePersistedPaymentRequest(PersistedPaymentRequest paymentRequest) {
 		for (int i=0; i<list.size(); i++) {
 			PersistedPaymentRequest request = list.get(i);
 			if (request.equals(paymentRequest)) {
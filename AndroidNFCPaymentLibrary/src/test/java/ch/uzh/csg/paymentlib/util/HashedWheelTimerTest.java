@@ -0,0 +1,197 @@
+package ch.uzh.csg.paymentlib.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import android.util.Log;
+import ch.uzh.csg.paymentlib.exceptions.IllegalArgumentException;
+import ch.uzh.csg.paymentlib.util.HashedWheelTimer.Timeout;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(Log.class)
+public class HashedWheelTimerTest {
+
+	@Before
+	public void before() {
+		// the failing task is logged on the timer's thread
+		PowerMockito.mockStatic(Log.class);
+	}
+
+	@Test
+	public void testSchedule() throws Exception {
+		HashedWheelTimer timer = new HashedWheelTimer(10, 8);
+		final CountDownLatch latch = new CountDownLatch(1);
+
+		long start = System.nanoTime();
+		Timeout timeout = timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+		}, 200);
+
+		assertTrue(latch.await(2000, TimeUnit.MILLISECONDS));
+		// the deadline lies several rounds ahead on a wheel of 80 ms, but the task must never run early
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 200);
+		assertTrue(timeout.isExpired());
+		assertFalse(timeout.cancel());
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		HashedWheelTimer timer = new HashedWheelTimer(10, 8);
+		final AtomicInteger executed = new AtomicInteger(0);
+		final CountDownLatch latch = new CountDownLatch(1);
+
+		Runnable increment = new Runnable() {
+			@Override
+			public void run() {
+				executed.incrementAndGet();
+			}
+		};
+
+		List<Timeout> timeouts = new ArrayList<Timeout>();
+		for (int i = 0; i < 100; i++) {
+			timeouts.add(timer.schedule(increment, 50));
+		}
+		for (Timeout timeout : timeouts) {
+			assertTrue(timeout.cancel());
+			assertTrue(timeout.isCancelled());
+			assertFalse(timeout.cancel());
+		}
+
+		// scheduled after the cancelled ones, hence it expires in the same or a later tick
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+		}, 100);
+
+		assertTrue(latch.await(2000, TimeUnit.MILLISECONDS));
+		assertEquals(0, executed.get());
+	}
+
+	@Test
+	public void testConcurrent() throws Exception {
+		final HashedWheelTimer timer = new HashedWheelTimer(10, 8);
+		final int nofThreads = 4;
+		final int nofTimeouts = 500;
+		final AtomicInteger executed = new AtomicInteger(0);
+		final AtomicInteger cancelled = new AtomicInteger(0);
+
+		Thread[] threads = new Thread[nofThreads];
+		for (int i = 0; i < nofThreads; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < nofTimeouts; j++) {
+						Timeout timeout = timer.schedule(new Runnable() {
+							@Override
+							public void run() {
+								executed.incrementAndGet();
+							}
+						}, j % 50);
+						// cancel every second timeout, which fails if it has already expired
+						if (j % 2 == 0 && timeout.cancel())
+							cancelled.incrementAndGet();
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		long end = System.currentTimeMillis() + 5000;
+		while (executed.get() + cancelled.get() < nofThreads * nofTimeouts && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		Thread.sleep(100);
+
+		// every timeout is either executed or cancelled, but never both
+		assertEquals(nofThreads * nofTimeouts, executed.get() + cancelled.get());
+		assertTrue(cancelled.get() > 0);
+	}
+
+	@Test
+	public void testIdle() throws Exception {
+		HashedWheelTimer timer = new HashedWheelTimer(10, 8);
+		final CountDownLatch latch = new CountDownLatch(1);
+		final CountDownLatch latch2 = new CountDownLatch(1);
+
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+		}, 20);
+		assertTrue(latch.await(2000, TimeUnit.MILLISECONDS));
+
+		// the worker is parked while nothing is scheduled
+		long end = System.currentTimeMillis() + 1000;
+		while (!timer.isIdle() && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		assertTrue(timer.isIdle());
+		Thread.sleep(200);
+		assertTrue(timer.isIdle());
+
+		// and woken up by the next timeout, which is still not executed early
+		long start = System.nanoTime();
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				latch2.countDown();
+			}
+		}, 50);
+		assertTrue(latch2.await(2000, TimeUnit.MILLISECONDS));
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue(elapsed >= 50);
+		// the ticks missed while parked are skipped
+		assertTrue(elapsed < 500);
+	}
+
+	@Test
+	public void testFailingTask() throws Exception {
+		HashedWheelTimer timer = new HashedWheelTimer(10, 8);
+		final CountDownLatch latch = new CountDownLatch(1);
+
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				throw new RuntimeException("failing task");
+			}
+		}, 10);
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+		}, 50);
+
+		// the worker must survive a failing task
+		assertTrue(latch.await(2000, TimeUnit.MILLISECONDS));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidWheelSize() throws Exception {
+		new HashedWheelTimer(10, 100);
+	}
+
+}
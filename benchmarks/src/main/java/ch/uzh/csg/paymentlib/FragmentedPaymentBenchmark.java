@@ -0,0 +1,218 @@
+package ch.uzh.csg.paymentlib;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.app.Activity;
+import ch.uzh.csg.mbps.customserialization.Currency;
+import ch.uzh.csg.mbps.customserialization.DecoderFactory;
+import ch.uzh.csg.mbps.customserialization.PKIAlgorithm;
+import ch.uzh.csg.mbps.customserialization.PaymentRequest;
+import ch.uzh.csg.mbps.customserialization.PaymentResponse;
+import ch.uzh.csg.mbps.customserialization.ServerPaymentRequest;
+import ch.uzh.csg.mbps.customserialization.ServerPaymentResponse;
+import ch.uzh.csg.mbps.customserialization.ServerResponseStatus;
+import ch.uzh.csg.nfclib.ISendLater;
+import ch.uzh.csg.nfclib.NfcInitiator;
+import ch.uzh.csg.nfclib.events.NfcEvent;
+import ch.uzh.csg.paymentlib.PaymentRequestInitializer.PaymentType;
+import ch.uzh.csg.paymentlib.benchmarks.Fixtures;
+import ch.uzh.csg.paymentlib.container.PaymentInfos;
+import ch.uzh.csg.paymentlib.container.ServerInfos;
+import ch.uzh.csg.paymentlib.container.UserInfos;
+import ch.uzh.csg.paymentlib.persistency.IPersistencyHandler;
+import ch.uzh.csg.paymentlib.persistency.PersistedPaymentRequest;
+import ch.uzh.csg.paymentlib.util.Config;
+
+/**
+ * Runs complete payments (SEND_PAYMENT) between a
+ * {@link PaymentRequestInitializer} and a {@link PaymentRequestHandler}, which
+ * are connected over a loopback delivering the frames in order on a single
+ * NFC thread. The payee announces the given maximum frame length (see
+ * {@link PaymentRequestHandler#setMaxFrameLength(int)}), so the server
+ * response of about 100 bytes is forwarded in one frame (0) or in several
+ * fragments. Without fragments, a payment takes two round trips: the payee's
+ * username and the server response. Every further fragment adds a round
+ * trip.
+ *
+ * The loopback itself takes no time unless a round trip time is given, which
+ * models the time an NFC round trip takes on a device. The server answers
+ * immediately.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FragmentedPaymentBenchmark {
+
+	@Param({ "0", "64", "32" })
+	private int maxFrameLength;
+
+	@Param({ "0", "1000" })
+	private int roundTripMicros;
+
+	private final ExecutorService nfc = Executors.newSingleThreadExecutor();
+	private final Semaphore paid = new Semaphore(0);
+	private final AtomicInteger errors = new AtomicInteger(0);
+
+	private Fixtures fixtures;
+	private PaymentRequestInitializer payer;
+	private PaymentRequestHandler payee;
+
+	private ISendLater sendLater = new ISendLater() {
+		@Override
+		public void sendLater(final byte[] bytes) {
+			nfc.execute(new Runnable() {
+				@Override
+				public void run() {
+					payer.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, bytes);
+				}
+			});
+		}
+	};
+
+	private IUserPromptPaymentRequest userPrompt = new IUserPromptPaymentRequest() {
+		@Override
+		public boolean isPaymentAccepted() {
+			return true;
+		}
+
+		@Override
+		public void promptUserPaymentRequest(String username, Currency currency, long amount, IUserPromptAnswer answer) {
+			answer.acceptPayment();
+		}
+	};
+
+	private IPersistencyHandler persistencyHandler = new IPersistencyHandler() {
+		@Override
+		public PersistedPaymentRequest getPersistedPaymentRequest(String username, Currency currency, long amount) {
+			return null;
+		}
+
+		@Override
+		public boolean addPersistedPaymentRequest(PersistedPaymentRequest paymentRequest) {
+			return true;
+		}
+
+		@Override
+		public boolean deletePersistedPaymentRequest(PersistedPaymentRequest paymentRequest) {
+			return true;
+		}
+	};
+
+	@Setup
+	public void setup() throws Exception {
+		fixtures = new Fixtures();
+		Activity activity = Mockito.mock(Activity.class);
+		ServerInfos serverInfos = new ServerInfos(fixtures.keyPairServer.getPublic());
+
+		NfcInitiator transceiver = Mockito.mock(NfcInitiator.class);
+		Answer<Void> transceive = new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				final byte[] bytes = (byte[]) invocation.getArguments()[0];
+				nfc.execute(new Runnable() {
+					@Override
+					public void run() {
+						if (roundTripMicros > 0) {
+							try {
+								TimeUnit.MICROSECONDS.sleep(roundTripMicros);
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+							}
+						}
+						byte[] response = payee.getMessageHandler().handleMessage(bytes, sendLater);
+						if (response != null)
+							payer.getNfcEventHandler().handleMessage(NfcEvent.MESSAGE_RECEIVED, response);
+					}
+				});
+				return null;
+			}
+		};
+		Mockito.doAnswer(transceive).when(transceiver).transceive(Mockito.any(byte[].class));
+		Mockito.doAnswer(transceive).when(transceiver).sendLater(Mockito.any(byte[].class));
+
+		UserInfos userInfosPayer = new UserInfos(Fixtures.USERNAME_PAYER, fixtures.keyPairPayer.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		payer = new PaymentRequestInitializer(activity, transceiver, new IPaymentEventHandler() {
+			@Override
+			public void handleMessage(PaymentEvent event, Object object, IServerResponseListener caller) {
+				if (event == PaymentEvent.FORWARD_TO_SERVER)
+					answer((byte[]) object, caller);
+				else if (event == PaymentEvent.ERROR)
+					errors.incrementAndGet();
+			}
+		}, userInfosPayer, new PaymentInfos(Fixtures.CURRENCY, Fixtures.AMOUNT), serverInfos, persistencyHandler, PaymentType.SEND_PAYMENT);
+
+		UserInfos userInfosPayee = new UserInfos(Fixtures.USERNAME_PAYEE, fixtures.keyPairPayee.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		payee = new PaymentRequestHandler(activity, new IPaymentEventHandler() {
+			@Override
+			public void handleMessage(PaymentEvent event, Object object, IServerResponseListener caller) {
+				// the payment ends once the payee has received the complete server response
+				if (event == PaymentEvent.SUCCESS)
+					paid.release();
+				else if (event == PaymentEvent.ERROR)
+					errors.incrementAndGet();
+			}
+		}, userInfosPayee, serverInfos, userPrompt, persistencyHandler);
+		payee.setMaxFrameLength(maxFrameLength);
+	}
+
+	/*
+	 * Answers the server payment request like the server would.
+	 */
+	private void answer(byte[] serverPaymentRequest, IServerResponseListener caller) {
+		try {
+			PaymentRequest paymentRequestPayer = DecoderFactory.decode(ServerPaymentRequest.class, serverPaymentRequest).getPaymentRequestPayer();
+			PaymentResponse pr = new PaymentResponse(PKIAlgorithm.DEFAULT, 1, ServerResponseStatus.SUCCESS, null, paymentRequestPayer.getUsernamePayer(), paymentRequestPayer.getUsernamePayee(), paymentRequestPayer.getCurrency(), paymentRequestPayer.getAmount(), paymentRequestPayer.getTimestamp());
+			pr.sign(fixtures.keyPairServer.getPrivate());
+			caller.onServerResponse(new ServerPaymentResponse(pr));
+		} catch (Exception e) {
+			errors.incrementAndGet();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws InterruptedException {
+		nfc.shutdown();
+		nfc.awaitTermination(5, TimeUnit.SECONDS);
+		payer.disable();
+		if (errors.get() > 0)
+			throw new IllegalStateException(errors.get()+" payments failed.");
+	}
+
+	@Benchmark
+	public void payment() throws InterruptedException {
+		nfc.execute(new Runnable() {
+			@Override
+			public void run() {
+				payee.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+				payer.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+			}
+		});
+		if (!paid.tryAcquire(2 * Config.SERVER_CALL_TIMEOUT, TimeUnit.MILLISECONDS))
+			throw new IllegalStateException("The payment did not end in time.");
+	}
+
+}
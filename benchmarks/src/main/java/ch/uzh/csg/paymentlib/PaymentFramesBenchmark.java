@@ -0,0 +1,43 @@
+package ch.uzh.csg.paymentlib;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.uzh.csg.paymentlib.messages.PaymentError;
+import ch.uzh.csg.paymentlib.messages.PaymentMessage;
+
+/**
+ * Compares the cached error frames of {@link PaymentFrames} with creating a
+ * new error message on every abort.
+ *
+ * This benchmark is in the package of the library, since the cached frames
+ * are not public.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PaymentFramesBenchmark {
+	
+	@Benchmark
+	public byte[] errorFrame() {
+		return PaymentFrames.error(PaymentError.NO_SERVER_RESPONSE, true);
+	}
+	
+	@Benchmark
+	public byte[] errorFrame_Baseline() {
+		return new PaymentMessage().error().payer().payload(new byte[] { PaymentError.NO_SERVER_RESPONSE.getCode() }).bytes();
+	}
+
+}
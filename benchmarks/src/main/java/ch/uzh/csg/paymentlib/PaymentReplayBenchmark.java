@@ -0,0 +1,185 @@
+package ch.uzh.csg.paymentlib;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.app.Activity;
+import ch.uzh.csg.mbps.customserialization.Currency;
+import ch.uzh.csg.mbps.customserialization.PKIAlgorithm;
+import ch.uzh.csg.mbps.customserialization.PaymentResponse;
+import ch.uzh.csg.mbps.customserialization.ServerResponseStatus;
+import ch.uzh.csg.nfclib.ISendLater;
+import ch.uzh.csg.nfclib.NfcInitiator;
+import ch.uzh.csg.nfclib.events.INfcEventHandler;
+import ch.uzh.csg.nfclib.events.NfcEvent;
+import ch.uzh.csg.paymentlib.PaymentRequestHandler.MessageHandler;
+import ch.uzh.csg.paymentlib.PaymentRequestInitializer.PaymentType;
+import ch.uzh.csg.paymentlib.benchmarks.BenchmarkRunner;
+import ch.uzh.csg.paymentlib.benchmarks.Fixtures;
+import ch.uzh.csg.paymentlib.container.PaymentInfos;
+import ch.uzh.csg.paymentlib.container.ServerInfos;
+import ch.uzh.csg.paymentlib.container.UserInfos;
+import ch.uzh.csg.paymentlib.messages.Capabilities;
+import ch.uzh.csg.paymentlib.messages.PaymentError;
+import ch.uzh.csg.paymentlib.messages.PaymentMessage;
+import ch.uzh.csg.paymentlib.persistency.IPersistencyHandler;
+import ch.uzh.csg.paymentlib.persistency.PersistedPaymentRequest;
+
+/**
+ * Replays valid and malformed messages against the
+ * {@link PaymentRequestHandler.MessageHandler} and the INfcEventHandler of the
+ * {@link PaymentRequestInitializer}. Mode.SampleTime reports the percentiles
+ * (e.g., p0.99) of the handling latency, and running the benchmark with the
+ * {@link BenchmarkRunner} reports the allocations per message
+ * (gc.alloc.rate.norm), which stay close to 0 bytes for the malformed
+ * messages.
+ *
+ * This benchmark is in the package of the library, since the message handlers
+ * are not public. The Activity and the NfcInitiator are mocked, and the NFC
+ * library is not used otherwise.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PaymentReplayBenchmark {
+
+	private PaymentRequestHandler payee;
+	private MessageHandler payeeMessageHandler;
+	private byte[] versionFrame;
+	private byte[] responseFrame;
+
+	private PaymentRequestHandler payer;
+	private MessageHandler payerMessageHandler;
+	private byte[][] malformedFrames;
+
+	private INfcEventHandler initializer;
+	private byte[][] errorFrames;
+
+	private int index = 0;
+
+	private IPaymentEventHandler paymentEventHandler = new IPaymentEventHandler() {
+		@Override
+		public void handleMessage(PaymentEvent event, Object object, IServerResponseListener caller) {
+		}
+	};
+
+	private ISendLater sendLater = new ISendLater() {
+		@Override
+		public void sendLater(byte[] bytes) {
+		}
+	};
+
+	private IUserPromptPaymentRequest userPrompt = new IUserPromptPaymentRequest() {
+		@Override
+		public boolean isPaymentAccepted() {
+			return true;
+		}
+
+		@Override
+		public void promptUserPaymentRequest(String username, Currency currency, long amount, IUserPromptAnswer answer) {
+			answer.acceptPayment();
+		}
+	};
+
+	private IPersistencyHandler persistencyHandler = new IPersistencyHandler() {
+		@Override
+		public PersistedPaymentRequest getPersistedPaymentRequest(String username, Currency currency, long amount) {
+			return null;
+		}
+
+		@Override
+		public boolean addPersistedPaymentRequest(PersistedPaymentRequest paymentRequest) {
+			return true;
+		}
+
+		@Override
+		public boolean deletePersistedPaymentRequest(PersistedPaymentRequest paymentRequest) {
+			return true;
+		}
+	};
+
+	@Setup
+	public void setup() throws Exception {
+		Fixtures fixtures = new Fixtures();
+		Activity activity = Mockito.mock(Activity.class);
+		ServerInfos serverInfos = new ServerInfos(fixtures.keyPairServer.getPublic());
+
+		// the payee receives the messages of the payer during a send payment
+		UserInfos userInfosPayee = new UserInfos(Fixtures.USERNAME_PAYEE, fixtures.keyPairPayee.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		payee = new PaymentRequestHandler(activity, paymentEventHandler, userInfosPayee, serverInfos, userPrompt, persistencyHandler);
+		payeeMessageHandler = payee.getMessageHandler();
+
+		Capabilities local = Capabilities.local();
+		byte[] payload = new byte[1 + local.encodedLength()];
+		local.encode(payload, 1);
+		versionFrame = new PaymentMessage().payer().negotiate().payload(payload).bytes();
+
+		PaymentResponse pr = new PaymentResponse(PKIAlgorithm.DEFAULT, 1, ServerResponseStatus.SUCCESS, null, Fixtures.USERNAME_PAYER, Fixtures.USERNAME_PAYEE, Fixtures.CURRENCY, Fixtures.AMOUNT, System.currentTimeMillis());
+		pr.sign(fixtures.keyPairServer.getPrivate());
+		responseFrame = new PaymentMessage().payer().payload(pr.encode()).bytes();
+
+		// the payer receives truncated, wrong version, and error messages
+		UserInfos userInfosPayer = new UserInfos(Fixtures.USERNAME_PAYER, fixtures.keyPairPayer.getPrivate(), PKIAlgorithm.DEFAULT, 1);
+		payer = new PaymentRequestHandler(activity, paymentEventHandler, userInfosPayer, serverInfos, userPrompt, persistencyHandler);
+		payerMessageHandler = payer.getMessageHandler();
+		malformedFrames = new byte[][] {
+				new byte[0],
+				new byte[] { (byte) 0xC0 },
+				new byte[] { (byte) 0x80, 0x01, 0x02, 0x03 },
+				new byte[] { PaymentMessage.ERROR },
+				new byte[] { PaymentMessage.ERROR, (byte) 0x7F },
+				new byte[] { PaymentMessage.ERROR, (byte) 0xFF, 0x00 },
+				new byte[] { PaymentMessage.ERROR, PaymentError.PAYER_REFUSED.getCode() }
+		};
+
+		/*
+		 * Received error messages do not abort the session of the initializer,
+		 * so they can be replayed without initializing the session again.
+		 */
+		PaymentRequestInitializer pri = new PaymentRequestInitializer(activity, Mockito.mock(NfcInitiator.class), paymentEventHandler, userInfosPayee, new PaymentInfos(Fixtures.CURRENCY, Fixtures.AMOUNT), serverInfos, persistencyHandler, PaymentType.REQUEST_PAYMENT);
+		initializer = pri.getNfcEventHandler();
+		initializer.handleMessage(NfcEvent.INITIALIZED, null);
+		errorFrames = new byte[][] {
+				new byte[] { (byte) (PaymentMessage.ERROR | PaymentMessage.PAYER) },
+				new byte[] { (byte) (PaymentMessage.ERROR | PaymentMessage.PAYER), (byte) 0x7F },
+				new byte[] { (byte) (PaymentMessage.ERROR | PaymentMessage.PAYER), (byte) 0xFF, 0x00 },
+				new byte[] { (byte) (PaymentMessage.ERROR | PaymentMessage.PAYER), PaymentError.PAYER_REFUSED.getCode() }
+		};
+	}
+
+	@Benchmark
+	public byte[] handler_Valid() {
+		payee.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+		payeeMessageHandler.handleMessage(versionFrame, sendLater);
+		return payeeMessageHandler.handleMessage(responseFrame, sendLater);
+	}
+
+	@Benchmark
+	public byte[] handler_Malformed() {
+		index = (index + 1) % malformedFrames.length;
+		byte[] frame = malformedFrames[index];
+		payer.getNfcEventHandler().handleMessage(NfcEvent.INITIALIZED, null);
+		return payerMessageHandler.handleMessage(frame, sendLater);
+	}
+
+	@Benchmark
+	public void initializer_ErrorMessages() {
+		index = (index + 1) % errorFrames.length;
+		initializer.handleMessage(NfcEvent.MESSAGE_RECEIVED, errorFrames[index]);
+	}
+
+}
@@ -0,0 +1,92 @@
+package ch.uzh.csg.paymentlib.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.uzh.csg.mbps.customserialization.DecoderFactory;
+import ch.uzh.csg.mbps.customserialization.InitMessagePayee;
+import ch.uzh.csg.mbps.customserialization.PaymentRequest;
+import ch.uzh.csg.mbps.customserialization.PaymentResponse;
+import ch.uzh.csg.mbps.customserialization.ServerPaymentRequest;
+
+/**
+ * Benchmarks encoding and decoding (through the {@link DecoderFactory}) the
+ * payment objects which are sent over NFC or to the server. The objects are
+ * signed once during the setup, so signing is not part of the measurement.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+	
+	private Fixtures fixtures;
+	
+	private byte[] initMessage;
+	private byte[] paymentRequest;
+	private byte[] serverPaymentRequest;
+	private byte[] paymentResponse;
+	
+	@Setup
+	public void setup() throws Exception {
+		fixtures = new Fixtures();
+		
+		initMessage = fixtures.initMessage.encode();
+		paymentRequest = fixtures.paymentRequestPayer.encode();
+		serverPaymentRequest = fixtures.serverPaymentRequest.encode();
+		paymentResponse = fixtures.paymentResponse.encode();
+	}
+	
+	@Benchmark
+	public byte[] encodeInitMessagePayee() throws Exception {
+		return fixtures.initMessage.encode();
+	}
+	
+	@Benchmark
+	public InitMessagePayee decodeInitMessagePayee() throws Exception {
+		return DecoderFactory.decode(InitMessagePayee.class, initMessage);
+	}
+	
+	@Benchmark
+	public byte[] encodePaymentRequest() throws Exception {
+		return fixtures.paymentRequestPayer.encode();
+	}
+	
+	@Benchmark
+	public PaymentRequest decodePaymentRequest() throws Exception {
+		return DecoderFactory.decode(PaymentRequest.class, paymentRequest);
+	}
+	
+	@Benchmark
+	public byte[] encodeServerPaymentRequest() throws Exception {
+		return fixtures.serverPaymentRequest.encode();
+	}
+	
+	@Benchmark
+	public ServerPaymentRequest decodeServerPaymentRequest() throws Exception {
+		return DecoderFactory.decode(ServerPaymentRequest.class, serverPaymentRequest);
+	}
+	
+	@Benchmark
+	public byte[] encodePaymentResponse() throws Exception {
+		return fixtures.paymentResponse.encode();
+	}
+	
+	@Benchmark
+	public PaymentResponse decodePaymentResponse() throws Exception {
+		return DecoderFactory.decode(PaymentResponse.class, paymentResponse);
+	}
+
+}
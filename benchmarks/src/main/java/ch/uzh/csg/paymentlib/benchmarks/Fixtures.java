@@ -0,0 +1,84 @@
+package ch.uzh.csg.paymentlib.benchmarks;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+
+import ch.uzh.csg.mbps.customserialization.Currency;
+import ch.uzh.csg.mbps.customserialization.InitMessagePayee;
+import ch.uzh.csg.mbps.customserialization.PKIAlgorithm;
+import ch.uzh.csg.mbps.customserialization.PaymentRequest;
+import ch.uzh.csg.mbps.customserialization.PaymentResponse;
+import ch.uzh.csg.mbps.customserialization.ServerPaymentRequest;
+import ch.uzh.csg.mbps.customserialization.ServerPaymentResponse;
+import ch.uzh.csg.mbps.customserialization.ServerResponseStatus;
+
+/**
+ * Creates the signed payment objects of a typical payment, which are used as
+ * input of the benchmarks. All keys and signatures use the same
+ * {@link PKIAlgorithm}.
+ */
+public class Fixtures {
+	
+	public static final String USERNAME_PAYER = "buyer";
+	public static final String USERNAME_PAYEE = "seller";
+	public static final Currency CURRENCY = Currency.BTC;
+	public static final long AMOUNT = 100000;
+	
+	public final PKIAlgorithm pkiAlgorithm;
+	
+	public final KeyPair keyPairPayer;
+	public final KeyPair keyPairPayee;
+	public final KeyPair keyPairServer;
+	
+	public final InitMessagePayee initMessage;
+	public final PaymentRequest paymentRequestPayer;
+	public final PaymentRequest paymentRequestPayee;
+	public final ServerPaymentRequest serverPaymentRequest;
+	public final PaymentResponse paymentResponse;
+	public final ServerPaymentResponse serverPaymentResponse;
+	
+	public Fixtures() throws Exception {
+		this(PKIAlgorithm.DEFAULT);
+	}
+	
+	public Fixtures(PKIAlgorithm pkiAlgorithm) throws Exception {
+		this.pkiAlgorithm = pkiAlgorithm;
+		keyPairPayer = generateKeyPair(pkiAlgorithm);
+		keyPairPayee = generateKeyPair(pkiAlgorithm);
+		keyPairServer = generateKeyPair(pkiAlgorithm);
+		
+		long timestamp = System.currentTimeMillis();
+		initMessage = new InitMessagePayee(USERNAME_PAYEE, CURRENCY, AMOUNT);
+		
+		paymentRequestPayer = new PaymentRequest(pkiAlgorithm, 1, USERNAME_PAYER, USERNAME_PAYEE, CURRENCY, AMOUNT, timestamp);
+		paymentRequestPayer.sign(keyPairPayer.getPrivate());
+		
+		paymentRequestPayee = new PaymentRequest(pkiAlgorithm, 1, USERNAME_PAYER, USERNAME_PAYEE, CURRENCY, AMOUNT, timestamp);
+		paymentRequestPayee.sign(keyPairPayee.getPrivate());
+		
+		serverPaymentRequest = new ServerPaymentRequest(paymentRequestPayer, paymentRequestPayee);
+		
+		paymentResponse = new PaymentResponse(pkiAlgorithm, 1, ServerResponseStatus.SUCCESS, null, USERNAME_PAYER, USERNAME_PAYEE, CURRENCY, AMOUNT, timestamp);
+		paymentResponse.sign(keyPairServer.getPrivate());
+		
+		serverPaymentResponse = new ServerPaymentResponse(paymentResponse);
+	}
+	
+	public static KeyPair generateKeyPair() throws Exception {
+		return generateKeyPair(PKIAlgorithm.DEFAULT);
+	}
+	
+	/**
+	 * Generates a key pair for the given {@link PKIAlgorithm}. EC keys are
+	 * generated on a 256 bit curve, other keys with the provider's default
+	 * size.
+	 */
+	public static KeyPair generateKeyPair(PKIAlgorithm pkiAlgorithm) throws Exception {
+		KeyPairGenerator keyGen = KeyPairGenerator.getInstance(pkiAlgorithm.getKeyPairAlgorithm());
+		if (pkiAlgorithm.getKeyPairAlgorithm().equals("EC"))
+			keyGen.initialize(256, new SecureRandom());
+		return keyGen.generateKeyPair();
+	}
+
+}
@@ -0,0 +1,76 @@
+package ch.uzh.csg.paymentlib.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ch.uzh.csg.paymentlib.messages.Fragmenter;
+import ch.uzh.csg.paymentlib.messages.PaymentMessage;
+import ch.uzh.csg.paymentlib.messages.Reassembler;
+import ch.uzh.csg.paymentlib.util.Config;
+
+/**
+ * Benchmarks splitting a payload into fragments and reassembling it. The frame
+ * length of 245 bytes corresponds to a short APDU. The
+ * ch.uzh.csg.paymentlib.FragmentedPaymentBenchmark compares complete payments
+ * with and without fragments.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FragmenterBenchmark {
+	
+	@Param({ "1024", "8192" })
+	private int payloadLength;
+	
+	@Param({ "245" })
+	private int maxFrameLength;
+	
+	private byte[] payload;
+	private byte[][] frames;
+	
+	@Setup
+	public void setup() {
+		payload = new byte[payloadLength];
+		new Random(42).nextBytes(payload);
+		
+		Fragmenter fragmenter = new Fragmenter(payload, true, maxFrameLength);
+		frames = new byte[fragmenter.getNofFragments()][];
+		for (int i = 0; fragmenter.hasNext(); i++) {
+			frames[i] = fragmenter.next();
+		}
+	}
+	
+	@Benchmark
+	public void fragment(Blackhole blackhole) {
+		Fragmenter fragmenter = new Fragmenter(payload, true, maxFrameLength);
+		while (fragmenter.hasNext()) {
+			blackhole.consume(fragmenter.next());
+		}
+	}
+	
+	@Benchmark
+	public byte[] reassemble() {
+		Reassembler reassembler = new Reassembler(Config.MAX_PAYLOAD_LENGTH);
+		for (byte[] frame : frames) {
+			reassembler.append(new PaymentMessage().view(frame));
+		}
+		return reassembler.message();
+	}
+
+}
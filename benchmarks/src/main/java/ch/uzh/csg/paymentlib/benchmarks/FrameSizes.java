@@ -0,0 +1,92 @@
+package ch.uzh.csg.paymentlib.benchmarks;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import ch.uzh.csg.mbps.customserialization.PKIAlgorithm;
+import ch.uzh.csg.paymentlib.messages.PayloadCompressor;
+import ch.uzh.csg.paymentlib.messages.PaymentMessage;
+
+/**
+ * Prints the sizes (in bytes) of the messages of a payment for every
+ * {@link PKIAlgorithm}, next to the results of {@link PKIAlgorithmBenchmark}.
+ * This allows weighing the cost of the cryptographic operations against the
+ * time needed to transfer the frames over NFC. The NFC frames include the
+ * header of the {@link PaymentMessage}, the compressed frames are only sent
+ * if both devices negotiated compression. The ServerPaymentRequest is sent
+ * to the server and not over NFC.
+ * 
+ * The second table compares the preset dictionary of the
+ * {@link PayloadCompressor} with the payee's username alone: it prints the
+ * compressed length of the payloads which are sent compressed, and the
+ * crossover, i.e., the shortest prefix of the payload which is shorter when
+ * compressed.
+ * 
+ * Run with: java -cp target/benchmarks.jar ch.uzh.csg.paymentlib.benchmarks.FrameSizes
+ */
+public class FrameSizes {
+	
+	public static void main(String[] args) throws Exception {
+		System.out.println("PKIAlgorithm\tsignature\tPaymentRequest frame\tcompressed\tServerPaymentRequest\tPaymentResponse frame\tcompressed");
+		for (PKIAlgorithm pkiAlgorithm : PKIAlgorithm.values()) {
+			Fixtures fixtures = new Fixtures(pkiAlgorithm);
+			byte[] dictionary = PayloadCompressor.dictionary(Fixtures.USERNAME_PAYEE);
+			byte[] paymentRequest = fixtures.paymentRequestPayer.encode();
+			byte[] paymentResponse = fixtures.paymentResponse.encode();
+			
+			System.out.println(pkiAlgorithm
+					+"\t"+fixtures.paymentRequestPayer.getSignature().length
+					+"\t"+new PaymentMessage().payload(paymentRequest).bytes().length
+					+"\t"+compressedFrameLength(paymentRequest, dictionary)
+					+"\t"+fixtures.serverPaymentRequest.encode().length
+					+"\t"+new PaymentMessage().payee().payload(paymentResponse).bytes().length
+					+"\t"+compressedFrameLength(paymentResponse, dictionary));
+		}
+		
+		System.out.println();
+		System.out.println("payload\tlength\tcompressed (username)\tcrossover (username)\tcompressed (dictionary)\tcrossover (dictionary)");
+		Fixtures fixtures = new Fixtures();
+		byte[] username = Fixtures.USERNAME_PAYEE.getBytes(Charset.forName("UTF-8"));
+		byte[] dictionary = PayloadCompressor.dictionary(Fixtures.USERNAME_PAYEE);
+		printCrossover("PaymentResponse", fixtures.paymentResponse.encode(), username, dictionary);
+		printCrossover("ServerPaymentResponse", fixtures.serverPaymentResponse.encode(), username, dictionary);
+	}
+	
+	private static void printCrossover(String name, byte[] payload, byte[] username, byte[] dictionary) {
+		System.out.println(name
+				+"\t"+payload.length
+				+"\t"+compressedLength(payload, username)
+				+"\t"+crossover(payload, username)
+				+"\t"+compressedLength(payload, dictionary)
+				+"\t"+crossover(payload, dictionary));
+	}
+	
+	private static int compressedLength(byte[] payload, byte[] dictionary) {
+		byte[] compressed = PayloadCompressor.compress(payload, dictionary);
+		return compressed == null ? payload.length : compressed.length;
+	}
+	
+	/*
+	 * Returns the length of the shortest prefix of the payload which is
+	 * compressed, or -1 if the payload is never compressed.
+	 */
+	private static int crossover(byte[] payload, byte[] dictionary) {
+		for (int i = 1; i <= payload.length; i++) {
+			if (PayloadCompressor.compress(Arrays.copyOf(payload, i), dictionary) != null)
+				return i;
+		}
+		return -1;
+	}
+	
+	/*
+	 * Returns the length of the frame, which is not compressed if compressing
+	 * does not reduce the length.
+	 */
+	private static int compressedFrameLength(byte[] payload, byte[] dictionary) {
+		byte[] compressed = PayloadCompressor.compress(payload, dictionary);
+		if (compressed == null)
+			compressed = payload;
+		return new PaymentMessage().compressed().payload(compressed).bytes().length;
+	}
+	
+}
@@ -0,0 +1,107 @@
+package ch.uzh.csg.paymentlib.benchmarks;
+
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.uzh.csg.mbps.customserialization.DecoderFactory;
+import ch.uzh.csg.mbps.customserialization.PKIAlgorithm;
+import ch.uzh.csg.mbps.customserialization.ServerPaymentRequest;
+import ch.uzh.csg.paymentlib.container.ServerInfos;
+
+/**
+ * Benchmarks the cryptographic operations of a payment for every
+ * {@link PKIAlgorithm}, in order to choose the algorithm of the users' and
+ * the server's keys. Every operation is reported as throughput and as
+ * sampled latency (with percentiles):
+ * 
+ * <ul>
+ * <li>loading the keys from their encoded form, as the app does on startup</li>
+ * <li>signing the payer's PaymentRequest (payer, within the NFC session)</li>
+ * <li>signing the payee's PaymentRequest and encoding the
+ * ServerPaymentRequest (payee, within the NFC session)</li>
+ * <li>decoding the ServerPaymentRequest and verifying both signatures
+ * (server)</li>
+ * <li>verifying the PaymentResponse with {@link ServerInfos} (both devices)</li>
+ * </ul>
+ * 
+ * The sizes of the resulting frames are printed by {@link FrameSizes}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PKIAlgorithmBenchmark {
+	
+	@Param
+	public PKIAlgorithm pkiAlgorithm;
+	
+	private Fixtures fixtures;
+	private ServerInfos serverInfos;
+	private KeyFactory keyFactory;
+	private byte[] encodedPrivateKey;
+	private byte[] encodedPublicKey;
+	private byte[] encodedServerPaymentRequest;
+	
+	@Setup
+	public void setup() throws Exception {
+		fixtures = new Fixtures(pkiAlgorithm);
+		serverInfos = new ServerInfos(fixtures.keyPairServer.getPublic());
+		keyFactory = KeyFactory.getInstance(pkiAlgorithm.getKeyPairAlgorithm());
+		encodedPrivateKey = fixtures.keyPairPayer.getPrivate().getEncoded();
+		encodedPublicKey = fixtures.keyPairServer.getPublic().getEncoded();
+		encodedServerPaymentRequest = fixtures.serverPaymentRequest.encode();
+	}
+	
+	@Benchmark
+	public PrivateKey loadPrivateKey() throws Exception {
+		return keyFactory.generatePrivate(new PKCS8EncodedKeySpec(encodedPrivateKey));
+	}
+	
+	@Benchmark
+	public PublicKey loadPublicKey() throws Exception {
+		return keyFactory.generatePublic(new X509EncodedKeySpec(encodedPublicKey));
+	}
+	
+	@Benchmark
+	public byte[] signPaymentRequestPayer() throws Exception {
+		fixtures.paymentRequestPayer.sign(fixtures.keyPairPayer.getPrivate());
+		return fixtures.paymentRequestPayer.getSignature();
+	}
+	
+	@Benchmark
+	public byte[] signServerPaymentRequest() throws Exception {
+		fixtures.paymentRequestPayee.sign(fixtures.keyPairPayee.getPrivate());
+		return new ServerPaymentRequest(fixtures.paymentRequestPayer, fixtures.paymentRequestPayee).encode();
+	}
+	
+	@Benchmark
+	public boolean verifyServerPaymentRequest() throws Exception {
+		ServerPaymentRequest serverPaymentRequest = DecoderFactory.decode(ServerPaymentRequest.class, encodedServerPaymentRequest);
+		return serverPaymentRequest.getPaymentRequestPayer().verify(fixtures.keyPairPayer.getPublic())
+				& serverPaymentRequest.getPaymentRequestPayee().verify(fixtures.keyPairPayee.getPublic());
+	}
+	
+	@Benchmark
+	public boolean verifyPaymentResponse() throws Exception {
+		return serverInfos.verify(fixtures.paymentResponse);
+	}
+	
+}
@@ -0,0 +1,65 @@
+package ch.uzh.csg.paymentlib.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.uzh.csg.paymentlib.messages.PayloadCompressor;
+import ch.uzh.csg.paymentlib.util.Config;
+
+/**
+ * Benchmarks compressing and decompressing the payloads which are eligible
+ * for compression, using the preset dictionary of the payment protocol (see
+ * {@link PayloadCompressor#dictionary(String)}).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadCompressorBenchmark {
+	
+	private byte[] dictionary;
+	private byte[] paymentRequest;
+	private byte[] paymentResponse;
+	private byte[] compressedPaymentResponse;
+	
+	@Setup
+	public void setup() throws Exception {
+		Fixtures fixtures = new Fixtures();
+		dictionary = PayloadCompressor.dictionary(Fixtures.USERNAME_PAYEE);
+		
+		paymentRequest = fixtures.paymentRequestPayer.encode();
+		paymentResponse = fixtures.paymentResponse.encode();
+		
+		compressedPaymentResponse = PayloadCompressor.compress(paymentResponse, dictionary);
+		if (compressedPaymentResponse == null)
+			throw new IllegalStateException("The payment response cannot be compressed.");
+	}
+	
+	@Benchmark
+	public byte[] compressPaymentRequest() {
+		return PayloadCompressor.compress(paymentRequest, dictionary);
+	}
+	
+	@Benchmark
+	public byte[] compressPaymentResponse() {
+		return PayloadCompressor.compress(paymentResponse, dictionary);
+	}
+	
+	@Benchmark
+	public byte[] decompressPaymentResponse() {
+		return PayloadCompressor.decompress(compressedPaymentResponse, dictionary, Config.MAX_PAYLOAD_LENGTH);
+	}
+
+}
@@ -0,0 +1,55 @@
+package ch.uzh.csg.paymentlib.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ch.uzh.csg.paymentlib.exceptions.UnknownPaymentErrorException;
+import ch.uzh.csg.paymentlib.messages.PaymentError;
+import ch.uzh.csg.paymentlib.messages.PaymentErrorResult;
+
+/**
+ * Benchmarks looking up a {@link PaymentError} by its code and creating the
+ * corresponding error results. The error frames are benchmarked by the
+ * {@link ch.uzh.csg.paymentlib.PaymentFramesBenchmark}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PaymentErrorBenchmark {
+	
+	private byte knownCode = PaymentError.NO_SERVER_RESPONSE.getCode();
+	private byte unknownCode = (byte) 0x7F;
+	
+	@Benchmark
+	public PaymentError getPaymentError() throws UnknownPaymentErrorException {
+		return PaymentError.getPaymentError(knownCode);
+	}
+	
+	@Benchmark
+	public void getPaymentError_Unknown(Blackhole blackhole) {
+		try {
+			blackhole.consume(PaymentError.getPaymentError(unknownCode));
+		} catch (UnknownPaymentErrorException e) {
+			blackhole.consume(e);
+		}
+	}
+	
+	@Benchmark
+	public PaymentErrorResult errorResult() {
+		return PaymentErrorResult.of(PaymentError.NO_SERVER_RESPONSE);
+	}
+
+}
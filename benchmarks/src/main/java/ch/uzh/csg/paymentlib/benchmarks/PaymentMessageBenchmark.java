@@ -0,0 +1,68 @@
+package ch.uzh.csg.paymentlib.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.uzh.csg.paymentlib.messages.PaymentMessage;
+
+/**
+ * Benchmarks encoding and decoding a {@link PaymentMessage}. The payload
+ * lengths correspond to an ACK, a signed payment request, and a large server
+ * response.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PaymentMessageBenchmark {
+	
+	@Param({ "1", "128", "1024" })
+	private int payloadLength;
+	
+	private PaymentMessage message;
+	private byte[] frame;
+	
+	@Setup
+	public void setup() {
+		byte[] payload = new byte[payloadLength];
+		new Random(42).nextBytes(payload);
+		
+		message = new PaymentMessage().payer().payload(payload);
+		frame = message.bytes();
+	}
+	
+	@Benchmark
+	public byte[] encode() {
+		return message.bytes();
+	}
+	
+	@Benchmark
+	public PaymentMessage decode() {
+		return new PaymentMessage().bytes(frame);
+	}
+	
+	@Benchmark
+	public PaymentMessage decodeView() {
+		return new PaymentMessage().view(frame);
+	}
+	
+	@Benchmark
+	public byte[] decodeViewPayload() {
+		return new PaymentMessage().view(frame).payload();
+	}
+
+}
@@ -0,0 +1,98 @@
+package ch.uzh.csg.paymentlib.benchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.uzh.csg.mbps.customserialization.PaymentResponse;
+import ch.uzh.csg.paymentlib.container.ServerInfos;
+
+/**
+ * Benchmarks verifying the server's signature of a payment response. The
+ * cold benchmarks initialize a new signature engine for every verification,
+ * as the first payment on a thread does, whereas the warm benchmark reuses
+ * the engine cached by {@link ServerInfos}. The precomputed benchmarks use
+ * the fixed-base tables of the server's key instead of a signature engine.
+ * The batch benchmarks verify the responses queued while a device was
+ * offline, starting with a new {@link ServerInfos} as after a restart.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SignatureBenchmark {
+	
+	private static final int QUEUED = 64;
+	
+	private Fixtures fixtures;
+	private ServerInfos serverInfos;
+	private ServerInfos serverInfosPrecomputed;
+	private PaymentResponse[] queued;
+	
+	@Setup
+	public void setup() throws Exception {
+		fixtures = new Fixtures();
+		serverInfos = new ServerInfos(fixtures.keyPairServer.getPublic());
+		serverInfosPrecomputed = new ServerInfos(fixtures.keyPairServer.getPublic(), true);
+		queued = new PaymentResponse[QUEUED];
+		Arrays.fill(queued, fixtures.paymentResponse);
+	}
+	
+	@Benchmark
+	public boolean verify_Cold() throws Exception {
+		return fixtures.paymentResponse.verify(fixtures.keyPairServer.getPublic());
+	}
+	
+	@Benchmark
+	public boolean verify_ColdServerInfos() throws Exception {
+		return new ServerInfos(fixtures.keyPairServer.getPublic()).verify(fixtures.paymentResponse);
+	}
+	
+	@Benchmark
+	public boolean verify_Warm() throws Exception {
+		return serverInfos.verify(fixtures.paymentResponse);
+	}
+	
+	@Benchmark
+	public boolean verify_Precomputed() throws Exception {
+		return serverInfosPrecomputed.verify(fixtures.paymentResponse);
+	}
+	
+	@Benchmark
+	public boolean verify_QueuedSerial() throws Exception {
+		ServerInfos serverInfos = new ServerInfos(fixtures.keyPairServer.getPublic());
+		boolean valid = true;
+		for (PaymentResponse paymentResponse : queued) {
+			valid &= serverInfos.verify(paymentResponse);
+		}
+		return valid;
+	}
+	
+	@Benchmark
+	public boolean[] verify_QueuedBatch() throws Exception {
+		return new ServerInfos(fixtures.keyPairServer.getPublic()).verify(queued);
+	}
+	
+	@Benchmark
+	public ServerInfos precompute() throws Exception {
+		return new ServerInfos(fixtures.keyPairServer.getPublic(), true);
+	}
+	
+	@Benchmark
+	public void sign() throws Exception {
+		fixtures.paymentRequestPayer.sign(fixtures.keyPairPayer.getPrivate());
+	}
+	
+}